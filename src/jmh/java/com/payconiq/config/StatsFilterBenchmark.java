@@ -0,0 +1,117 @@
+package com.payconiq.config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+import io.prometheus.client.SimpleTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import static com.payconiq.config.StockMetricsConfig.STOCK_API_REQUEST_HISTOGRAM;
+
+/**
+ * Cost of {@link StatsFilter} around a request that does nothing, i.e. what the metrics add to every request,
+ * against {@link StreamAndRegexFilter}, the filter it replaced, as the baseline.
+ * The chain sets the matching pattern like Spring MVC does, run with -t to see it under concurrent requests, e.g.
+ * -Djmh.args="StatsFilterBenchmark -t 4"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StatsFilterBenchmark {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatsFilterBenchmark.class);
+
+    @Param({"/api/stocks/5", "/api/stocks", "/api/stocks/5/history"})
+    private String path;
+
+    private StatsFilter statsFilter;
+    private StreamAndRegexFilter baselineFilter;
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+    private FilterChain chain;
+
+    @Setup
+    public void setup() {
+        statsFilter = new StatsFilter();
+        baselineFilter = new StreamAndRegexFilter();
+        request = new MockHttpServletRequest("GET", path);
+        request.setServletPath(path);
+        response = new MockHttpServletResponse();
+        final String pattern = path.replace("/5", "/{id}");
+        chain = (req, resp) -> req.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, pattern);
+    }
+
+    @Benchmark
+    public void doFilter() throws IOException, ServletException {
+        statsFilter.doFilter(request, response, chain);
+    }
+
+    @Benchmark
+    public void baseline() throws IOException, ServletException {
+        baselineFilter.doFilter(request, response, chain);
+    }
+
+    /**
+     * StatsFilter before the histogram children were cached: a stream over the regex map, labels and a timer
+     * for every request
+     */
+    static final class StreamAndRegexFilter {
+
+        private static final Map<Pattern, String> GENERALIZE_PATH_MAP = new HashMap<Pattern, String>() {{
+            put(Pattern.compile("\\/api\\/stocks\\/(?!export$|batch$|stream$)[^\\/]+"), "/api/stocks/*");
+            put(Pattern.compile("\\/api\\/stocks\\/[^\\/]+\\/history"), "/api/stocks/*/history");
+            put(Pattern.compile("\\/api\\/stocks\\/[^\\/]+\\/ohlc"), "/api/stocks/*/ohlc");
+        }};
+
+        void doFilter(final ServletRequest req, final ServletResponse resp, final FilterChain chain) throws IOException, ServletException {
+            if (req instanceof HttpServletRequest && resp instanceof HttpServletResponse
+                    && ((HttpServletRequest) req).getServletPath().startsWith("/api")) {
+                SimpleTimer timer = new SimpleTimer();
+                try {
+                    chain.doFilter(req, resp);
+                } finally {
+                    final double elapsedSeconds = timer.elapsedSeconds();
+                    final HttpServletRequest httpRequest = (HttpServletRequest) req;
+                    String statusCode = String.valueOf(((HttpServletResponse) resp).getStatus());
+                    String servletPath = httpRequest.getServletPath();
+                    Optional<Map.Entry<Pattern, String>> patternToPath = GENERALIZE_PATH_MAP.entrySet().stream()
+                            .filter(e -> e.getKey().matcher(httpRequest.getServletPath()).matches())
+                            .findFirst();
+                    if (patternToPath.isPresent()) {
+                        servletPath = patternToPath.get().getValue();
+                    }
+                    STOCK_API_REQUEST_HISTOGRAM.labels(httpRequest.getMethod(), servletPath, statusCode).observe(elapsedSeconds);
+                    LOGGER.trace("{}: {} seconds ", httpRequest.getServletPath(), elapsedSeconds);
+                }
+                return;
+            }
+            chain.doFilter(req, resp);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.payconiq.endpoint;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.payconiq.model.StockResponse;
+import com.payconiq.model.StockUpdateRequest;
+import com.payconiq.service.StockService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.validation.beanvalidation.LocalValidatorFactoryBean;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+
+/**
+ * {@link StockController} through Spring MVC dispatching, validation and Jackson, without the network and Tomcat,
+ * and the serialization of a single {@link StockResponse} on its own.
+ *
+ * putOneByOne and putBatch update the same {@link #BATCH_SIZE} stocks per invocation so scores are per stock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StockControllerBenchmark {
+
+    private static final int INIT_SIZE = 10_000;
+    private static final int BATCH_SIZE = 1000;
+
+    private MockMvc mockMvc;
+    private ObjectMapper objectMapper;
+    private StockResponse stockResponse;
+    private List<byte[]> updateBodies;
+    private byte[] batchBody;
+
+    @Setup
+    public void setup() throws Exception {
+        final StockService stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", INIT_SIZE);
+        stockService.init();
+        objectMapper = new ObjectMapper();
+        final LocalValidatorFactoryBean validator = new LocalValidatorFactoryBean();
+        validator.afterPropertiesSet();
+        final StockController stockController = new StockController();
+        ReflectionTestUtils.setField(stockController, "stockService", stockService);
+        ReflectionTestUtils.setField(stockController, "validator", validator);
+        ReflectionTestUtils.setField(stockController, "objectMapper", objectMapper);
+        ReflectionTestUtils.setField(stockController, "maxBatchSize", BATCH_SIZE);
+        mockMvc = MockMvcBuilders.standaloneSetup(stockController).build();
+
+        stockResponse = stockService.getStock(1L);
+        final List<StockUpdateRequest> updateRequests = new ArrayList<>(BATCH_SIZE);
+        updateBodies = new ArrayList<>(BATCH_SIZE);
+        for (long id = 1; id <= BATCH_SIZE; id++) {
+            final StockUpdateRequest updateRequest = new StockUpdateRequest(id, "batch_" + id, BigDecimal.valueOf(id, 2));
+            updateRequests.add(updateRequest);
+            updateBodies.add(objectMapper.writeValueAsBytes(updateRequest));
+        }
+        batchBody = objectMapper.writeValueAsBytes(updateRequests);
+    }
+
+    @Benchmark
+    public byte[] serializeStockResponse() throws Exception {
+        return objectMapper.writeValueAsBytes(stockResponse);
+    }
+
+    /**
+     * Copy of the stored stock into a response as done on every read
+     */
+    @Benchmark
+    public StockResponse buildStockResponse() {
+        return StockResponse.builder()
+                .id(stockResponse.getId())
+                .name(stockResponse.getName())
+                .currentPrice(stockResponse.getCurrentPrice())
+                .lastUpdate(stockResponse.getLastUpdate())
+                .version(stockResponse.getVersion()).build();
+    }
+
+    @Benchmark
+    public int getStock() throws Exception {
+        return mockMvc.perform(get("/api/stocks/{id}", ThreadLocalRandom.current().nextLong(1, INIT_SIZE + 1)))
+                .andReturn().getResponse().getContentLength();
+    }
+
+    @Benchmark
+    public int getStocksPage() throws Exception {
+        return mockMvc.perform(get("/api/stocks").param("limit", "100"))
+                .andReturn().getResponse().getContentLength();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int putOneByOne() throws Exception {
+        int status = 0;
+        for (int index = 0; index < BATCH_SIZE; index++) {
+            status += mockMvc.perform(put("/api/stocks/{id}", index + 1).contentType(MediaType.APPLICATION_JSON).content(updateBodies.get(index)))
+                    .andReturn().getResponse().getStatus();
+        }
+        return status;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int putBatch() throws Exception {
+        return mockMvc.perform(put("/api/stocks/batch").contentType(MediaType.APPLICATION_JSON).content(batchBody))
+                .andReturn().getResponse().getContentLength();
+    }
+}
@@ -0,0 +1,296 @@
+package com.payconiq.endpoint;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Throughput, latency and threads of a running stock API with many concurrent pollers, e.g. to compare the blocking
+ * and async serving modes. Connections are polled by a single selector thread, every connection sends its next
+ * request the poll interval after the previous response, right away when the interval is 0. The API runs in its own
+ * JVM, as both ends of 10k connections do not fit in the open files of one process:
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.main=com.payconiq.endpoint.StockLoadTest
+ * -Djmh.args="http://localhost:8080/api/stocks/1 10000 60 20000"
+ * With a JSON body the url is PUT instead, e.g. to wait for the journal on every request:
+ * -Djmh.args='http://localhost:8080/api/stocks/1 2000 30 0 {"name":"name_1","currentPrice":1.5}'
+ * Connections are spread round robin over comma separated urls of the same path, e.g. over the followers of a leader:
+ * -Djmh.args="http://localhost:8081/api/stocks/1,http://localhost:8082/api/stocks/1 1000 30 0"
+ */
+public final class StockLoadTest {
+
+    private static final String CREDENTIALS = Base64.getEncoder().encodeToString("admin:admin".getBytes(StandardCharsets.UTF_8));
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int RESPONSE_BUFFER_SIZE = 8192;
+    private static final byte[] HEADER_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "\r\n0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final InetSocketAddress[] addresses;
+    private final byte[] request;
+    private final Selector selector;
+    private final long pollIntervalNanos;
+    /**
+     * Connections waiting for their next poll, in the order they are due as the interval is the same for all
+     */
+    private final ArrayDeque<SelectionKey> waiting = new ArrayDeque<>();
+    private long[] latencies = new long[1 << 20];
+    private int latencyCount;
+    private boolean measuring;
+    private long errors;
+    private long reconnects;
+
+    private StockLoadTest(final InetSocketAddress[] addresses, final String path, final long pollIntervalNanos,
+                          final String body) throws IOException {
+        this.addresses = addresses;
+        this.pollIntervalNanos = pollIntervalNanos;
+        final String headers = (body == null ? "GET " : "PUT ") + path + " HTTP/1.1\r\nHost: localhost\r\nAuthorization: Basic "
+                + CREDENTIALS + "\r\nAccept: application/json\r\n";
+        this.request = (body == null ? headers + "\r\n" : headers + "Content-Type: application/json\r\nContent-Length: "
+                + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8);
+        this.selector = Selector.open();
+    }
+
+    /**
+     * @param args urls polled separated by commas, connections, seconds measured after 5 seconds of warm up
+     * and milliseconds between a response and the next request of a connection, then the body to PUT if any
+     */
+    public static void main(final String[] args) throws IOException {
+        final String[] urls = (args.length > 0 ? args[0] : "http://localhost:8080/api/stocks/1").split(",");
+        final InetSocketAddress[] addresses = new InetSocketAddress[urls.length];
+        for (int index = 0; index < urls.length; index++) {
+            final URL url = new URL(urls[index]);
+            addresses[index] = new InetSocketAddress(url.getHost(), url.getPort());
+        }
+        final URL url = new URL(urls[0]);
+        final int connections = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        final long pollIntervalMillis = args.length > 3 ? Long.parseLong(args[3]) : 0L;
+        final String body = args.length > 4 ? args[4] : null;
+
+        final StockLoadTest loadTest = new StockLoadTest(addresses, url.getFile(),
+                TimeUnit.MILLISECONDS.toNanos(pollIntervalMillis), body);
+        try {
+            for (int connection = 0; connection < connections; connection++) {
+                loadTest.connect(addresses[connection % addresses.length]);
+            }
+            loadTest.run(System.nanoTime() + WARMUP_NANOS);
+            loadTest.measuring = true;
+            final long start = System.nanoTime();
+            loadTest.run(start + TimeUnit.SECONDS.toNanos(seconds));
+            final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+            loadTest.report(connections, elapsedSeconds, threadMetrics(url));
+        } finally {
+            loadTest.selector.close();
+        }
+    }
+
+    /**
+     * @return the thread and resident memory gauges of the API of the first url from its Prometheus metrics
+     */
+    private static String threadMetrics(final URL url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url, "/metrics").openConnection();
+        connection.setRequestProperty("Authorization", "Basic " + CREDENTIALS);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            return reader.lines().filter(line -> line.startsWith("jvm_threads_current ") || line.startsWith("jvm_threads_peak ")
+                    || line.startsWith("process_resident_memory_bytes "))
+                    .collect(Collectors.joining(" "));
+        }
+    }
+
+    private void connect(final InetSocketAddress address) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        final Poller poller = new Poller(ByteBuffer.wrap(request), address);
+        if (channel.connect(address)) {
+            send(channel.register(selector, 0, poller));
+        } else {
+            channel.register(selector, SelectionKey.OP_CONNECT, poller);
+        }
+    }
+
+    private void run(final long endNanos) throws IOException {
+        while (System.nanoTime() < endNanos) {
+            sendDue();
+            selector.select(waiting.isEmpty() ? 100L : 1L);
+            final Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                final SelectionKey key = selected.next();
+                selected.remove();
+                try {
+                    handle(key);
+                } catch (IOException e) {
+                    errors++;
+                    reconnect(key);
+                }
+            }
+        }
+    }
+
+    private void handle(final SelectionKey key) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        final Poller poller = (Poller) key.attachment();
+        if (key.isConnectable()) {
+            channel.finishConnect();
+            send(key);
+        } else if (key.isWritable()) {
+            channel.write(poller.request);
+            if (!poller.request.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } else if (key.isReadable()) {
+            if (!poller.response.hasRemaining()) {
+                poller.response = ByteBuffer.allocate(poller.response.capacity() * 2).put((ByteBuffer) poller.response.flip());
+            }
+            if (channel.read(poller.response) < 0) {
+                reconnect(key);
+                return;
+            }
+            final int status = poller.completeStatus();
+            if (status > 0) {
+                record(System.nanoTime() - poller.sentNanos, status);
+                if (poller.closing()) {
+                    reconnect(key);
+                } else if (pollIntervalNanos > 0L) {
+                    poller.dueNanos = System.nanoTime() + pollIntervalNanos;
+                    key.interestOps(0);
+                    waiting.add(key);
+                } else {
+                    send(key);
+                }
+            }
+        }
+    }
+
+    private void sendDue() throws IOException {
+        final long now = System.nanoTime();
+        while (!waiting.isEmpty() && ((Poller) waiting.peek().attachment()).dueNanos <= now) {
+            final SelectionKey key = waiting.poll();
+            if (key.isValid()) {
+                send(key);
+            }
+        }
+    }
+
+    private void send(final SelectionKey key) throws IOException {
+        final Poller poller = (Poller) key.attachment();
+        poller.request.rewind();
+        poller.response.clear();
+        poller.sentNanos = System.nanoTime();
+        ((SocketChannel) key.channel()).write(poller.request);
+        key.interestOps(poller.request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void reconnect(final SelectionKey key) throws IOException {
+        key.cancel();
+        key.channel().close();
+        reconnects++;
+        connect(((Poller) key.attachment()).address);
+    }
+
+    private void record(final long nanos, final int status) {
+        if (!measuring) {
+            return;
+        }
+        if (status >= 400) {
+            errors++;
+        }
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+        latencies[latencyCount++] = nanos;
+    }
+
+    private void report(final int connections, final double elapsedSeconds, final String threadMetrics) {
+        final long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        System.out.printf(Locale.ROOT, "connections=%d requests=%d throughput=%.0f/s p50=%.2fms p99=%.2fms "
+                        + "p99.9=%.2fms max=%.2fms errors=%d reconnects=%d %s%n",
+                connections, latencyCount, latencyCount / elapsedSeconds, percentile(sorted, 0.5),
+                percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1.0), errors, reconnects,
+                threadMetrics);
+    }
+
+    private static double percentile(final long[] sorted, final double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        final int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    /**
+     * A connection with its request in flight
+     */
+    private static final class Poller {
+        private final ByteBuffer request;
+        private final InetSocketAddress address;
+        private ByteBuffer response = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+        private long sentNanos;
+        private long dueNanos;
+
+        private Poller(final ByteBuffer request, final InetSocketAddress address) {
+            this.request = request;
+            this.address = address;
+        }
+
+        /**
+         * @return status of the response once it is fully read, 0 until then
+         */
+        private int completeStatus() {
+            final byte[] bytes = response.array();
+            final int length = response.position();
+            final int headerEnd = indexOf(bytes, 0, length, HEADER_END);
+            if (headerEnd < 0) {
+                return 0;
+            }
+            final String headers = new String(bytes, 0, headerEnd, StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT);
+            final int bodyStart = headerEnd + HEADER_END.length;
+            final int contentLength = headers.indexOf("content-length:");
+            if (contentLength >= 0) {
+                final int valueEnd = headers.indexOf('\r', contentLength);
+                final int bodyLength = Integer.parseInt(headers.substring(contentLength + "content-length:".length(),
+                        valueEnd < 0 ? headers.length() : valueEnd).trim());
+                if (length < bodyStart + bodyLength) {
+                    return 0;
+                }
+            } else if (headers.contains("transfer-encoding: chunked")
+                    && indexOf(bytes, Math.max(bodyStart - 2, length - LAST_CHUNK.length), length, LAST_CHUNK) < 0) {
+                return 0;
+            }
+            return Integer.parseInt(headers.substring(9, 12));
+        }
+
+        private boolean closing() {
+            final String headers = new String(response.array(), 0, response.position(), StandardCharsets.US_ASCII)
+                    .toLowerCase(Locale.ROOT);
+            return headers.contains("connection: close");
+        }
+
+        private static int indexOf(final byte[] bytes, final int from, final int to, final byte[] target) {
+            for (int index = Math.max(from, 0); index <= to - target.length; index++) {
+                int matched = 0;
+                while (matched < target.length && bytes[index + matched] == target[matched]) {
+                    matched++;
+                }
+                if (matched == target.length) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+    }
+}
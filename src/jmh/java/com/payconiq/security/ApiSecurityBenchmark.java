@@ -0,0 +1,87 @@
+package com.payconiq.security;
+
+import com.payconiq.StockControllerApiApplication;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.Banner;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the Spring Security filter chain of the application for a GET /api/stocks/1 that does nothing past it:
+ * basic is the security.user credentials on every request, bearer a token of {@link ApiTokenService} found in the
+ * cache of verified tokens and bearerUncached the same token verified by its HMAC on every request.
+ * Every invocation builds a new mock request, the chain only runs once per request, which costs the same for all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dspring.devtools.restart.enabled=false")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ApiSecurityBenchmark {
+
+    @Param({"basic", "bearer", "bearerUncached"})
+    private String auth;
+
+    private ConfigurableApplicationContext context;
+    private Filter securityFilterChain;
+    private String authorization;
+    private FilterChain chain;
+
+    @Setup
+    public void setup() {
+        context = new SpringApplicationBuilder(StockControllerApiApplication.class).bannerMode(Banner.Mode.OFF)
+                .run("--server.port=0", "--stock-api.init-size=10", "--logging.level.root=WARN",
+                        "--stock-api.auth.token.max-cached=" + ("bearerUncached".equals(auth) ? 0 : 10000));
+        securityFilterChain = context.getBean("springSecurityFilterChain", Filter.class);
+        if ("basic".equals(auth)) {
+            authorization = "Basic " + Base64.getEncoder().encodeToString("admin:admin".getBytes(StandardCharsets.UTF_8));
+        } else {
+            authorization = "Bearer " + context.getBean(ApiTokenService.class).issue(new UsernamePasswordAuthenticationToken(
+                    "admin", null, AuthorityUtils.createAuthorityList("ROLE_USER")), System.currentTimeMillis()).getToken();
+        }
+        chain = (request, response) -> ((HttpServletResponse) response).setStatus(HttpServletResponse.SC_OK);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int doFilter() throws IOException, ServletException {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/stocks/1");
+        request.setServletPath("/api/stocks/1");
+        request.addHeader(HttpHeaders.AUTHORIZATION, authorization);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        securityFilterChain.doFilter(request, response, chain);
+        if (response.getStatus() != HttpServletResponse.SC_OK) {
+            throw new IllegalStateException("Request was rejected with " + response.getStatus());
+        }
+        return response.getStatus();
+    }
+}
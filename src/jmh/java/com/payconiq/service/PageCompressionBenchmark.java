@@ -0,0 +1,58 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockSort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to gzip a page of stocks at the levels of stock-api.page.compression-level, the compression ratio of
+ * each level is printed by the setup. Pages are gzipped once per version of the book, not per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PageCompressionBenchmark {
+
+    @Param({"1", "6", "9"})
+    private int level;
+    @Param({"100", "1000"})
+    private int limit;
+
+    private PageCompression compression;
+    private byte[] page;
+
+    @Setup
+    public void setup() throws IOException {
+        final StockService stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", 10000);
+        stockService.init();
+        final ByteArrayOutputStream json = new ByteArrayOutputStream();
+        stockService.getSerializedStocks(StockSort.PRICE, null, limit, false).writeTo(json, false);
+        page = json.toByteArray();
+        compression = new PageCompression(level, new StockServiceMetrics(() -> 0L, () -> 0L));
+        System.out.printf(Locale.ROOT, "%nlevel=%d page=%d bytes gzip=%d bytes ratio=%.3f%n",
+                level, page.length, gzip().length, (double) gzip().length / page.length);
+    }
+
+    @Benchmark
+    public byte[] gzip() {
+        return compression.gzip(page);
+    }
+}
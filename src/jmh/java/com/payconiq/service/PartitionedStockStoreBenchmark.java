@@ -0,0 +1,98 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Export latency and throughput of gets mixed with updates for the numbers of partitions of stock-api.partitions.
+ * export is the time of an export of the whole book in milliseconds, the stocks are serialized by the partitions in
+ * parallel, the mixed group runs 3 readers and 1 writer on the same book in operations per millisecond.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PartitionedStockStoreBenchmark {
+
+    @Param({"1", "2", "4", "8", "16"})
+    private int partitions;
+    @Param({"heap", "compact"})
+    private String storeType;
+    @Param({"1000000"})
+    private int initSize;
+
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(final int b) {}
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {}
+    };
+
+    private StockService stockService;
+    private StockRequest stockRequest;
+
+    @Setup
+    public void setup() {
+        stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", initSize);
+        ReflectionTestUtils.setField(stockService, "storeType", storeType);
+        ReflectionTestUtils.setField(stockService, "partitions", partitions);
+        stockService.init();
+        stockRequest = StockRequest.builder().name("benchmark").currentPrice(new BigDecimal("123.45")).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        stockService.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void export() throws IOException {
+        stockService.exportStocks(NULL_OUTPUT_STREAM, true);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Group("mixed")
+    @GroupThreads(3)
+    public StockResponse mixedGet() {
+        return stockService.getStock(randomId());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Group("mixed")
+    @GroupThreads(1)
+    public StockResponse mixedUpdate() {
+        return stockService.updateStock(stockRequest, randomId());
+    }
+
+    private long randomId() {
+        return ThreadLocalRandom.current().nextLong(1, initSize + 1);
+    }
+}
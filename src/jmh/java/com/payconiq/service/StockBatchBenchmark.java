@@ -0,0 +1,79 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockBatchResult;
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockUpdateRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stock updates per millisecond when applied one by one compared to applied as a batch.
+ * Both benchmarks update the same {@link #BATCH_SIZE} stocks per invocation so scores are per stock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StockBatchBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private StockService stockService;
+    private List<StockUpdateRequest> updateRequests;
+
+    @Setup
+    public void setup() {
+        stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", 100_000);
+        stockService.init();
+        updateRequests = new ArrayList<>(BATCH_SIZE);
+        for (long id = 1; id <= BATCH_SIZE; id++) {
+            updateRequests.add(new StockUpdateRequest(id * 100, "batch_" + id, BigDecimal.valueOf(id, 2)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void updateOneByOne(final Blackhole blackhole) {
+        for (final StockUpdateRequest updateRequest : updateRequests) {
+            blackhole.consume(stockService.updateStock(updateRequest, updateRequest.getId()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<StockBatchResult> updateBatch() {
+        return stockService.updateStocks(updateRequests);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void createOneByOne(final Blackhole blackhole) {
+        for (final StockRequest createRequest : updateRequests) {
+            blackhole.consume(stockService.createStock(createRequest));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<StockBatchResult> createBatch() {
+        return stockService.createStocks(updateRequests);
+    }
+}
@@ -0,0 +1,73 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable update throughput of concurrent writers with an fsync per change (maxBatch 1) compared to group commit.
+ * The journal is written under target so it is on the same disk as the build, e.g.
+ * -Djmh.args="StockJournalBenchmark -t 32"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(16)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StockJournalBenchmark {
+
+    private static final int INIT_SIZE = 10_000;
+
+    @Param({"1", "1000"})
+    private int maxBatch;
+
+    private Path directory;
+    private StockService stockService;
+    private StockRequest stockRequest;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory(Files.createDirectories(Paths.get("target")), "journal");
+        stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", INIT_SIZE);
+        ReflectionTestUtils.setField(stockService, "journalEnabled", true);
+        ReflectionTestUtils.setField(stockService, "journalPath", directory.toString());
+        ReflectionTestUtils.setField(stockService, "journalMaxBatch", maxBatch);
+        stockService.init();
+        stockRequest = StockRequest.builder().name("journal").currentPrice(new BigDecimal("1.23")).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        stockService.close();
+        FileSystemUtils.deleteRecursively(directory.toFile());
+    }
+
+    @Benchmark
+    public StockResponse updateStock() {
+        return stockService.updateStock(stockRequest, (long) ThreadLocalRandom.current().nextInt(1, INIT_SIZE + 1));
+    }
+}
@@ -0,0 +1,75 @@
+package com.payconiq.service;
+
+import com.payconiq.model.PriceBar;
+import com.payconiq.model.PricePoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Price history of one stock with a tick per second for a day. Appends should show no allocation with
+ * -prof gc once the rings are full, e.g. -Djmh.args="StockPriceHistoryBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StockPriceHistoryBenchmark {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long SECOND = TimeUnit.SECONDS.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private StockPriceHistory history;
+    private long time;
+    private long start;
+
+    @Setup
+    public void setup() {
+        history = new StockPriceHistory(64, DAY / SECOND, DAY);
+        final Random random = new Random(42);
+        start = 1_500_000_000_000L;
+        for (time = start; time < start + DAY; time += SECOND) {
+            history.add(time, 10_000 + random.nextInt(1000));
+        }
+    }
+
+    @Benchmark
+    public long append() {
+        time += SECOND;
+        history.add(time, time & 1023);
+        return time;
+    }
+
+    @Benchmark
+    public List<PricePoint> rangeOfAnHour() {
+        return history.range(time - HOUR, time);
+    }
+
+    @Benchmark
+    public List<PriceBar> ohlcOfADayByMinuteFromBars() {
+        return history.ohlc(TimeUnit.MINUTES.toMillis(1), 0L, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public List<PriceBar> ohlcOfADayByHourFromBars() {
+        return history.ohlc(HOUR, 0L, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public List<PriceBar> ohlcOfADayBy30sFromTicks() {
+        return history.ohlc(TimeUnit.SECONDS.toMillis(30), 0L, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,193 @@
+package com.payconiq.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.payconiq.model.StockPage;
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import com.payconiq.model.StockSort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput of the {@link StockService} operations for the book sizes of stock-api.init-size.
+ * Run with -prof gc (default of the benchmark profile) to get the bytes allocated per operation
+ * as gc.alloc.rate.norm, and with -t to change the number of threads of the non group benchmarks.
+ *
+ * readHeavy and writeHeavy groups run readers and writers at the same time on the same book.
+ * listWhileUpdating reads the first page of GET /api/stocks while a writer updates about 1k stocks a second,
+ * compare it with -p pageCacheMaxPages=0 to run without the page cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StockServiceBenchmark {
+
+    private static final long UPDATE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(final int b) {}
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {}
+    };
+
+    @Param({"10", "10000", "1000000"})
+    private int initSize;
+    @Param({"1000"})
+    private int pageCacheMaxPages;
+
+    private StockService stockService;
+    private ObjectMapper objectMapper;
+    private StockRequest stockRequest;
+
+    @Setup
+    public void setup() {
+        stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", initSize);
+        ReflectionTestUtils.setField(stockService, "pageCacheMaxPages", pageCacheMaxPages);
+        stockService.init();
+        objectMapper = new ObjectMapper();
+        stockRequest = StockRequest.builder().name("benchmark").currentPrice(new BigDecimal("123.45")).build();
+    }
+
+    @Benchmark
+    public StockResponse getStock() {
+        return stockService.getStock(randomId());
+    }
+
+    /**
+     * Read path of GET /api/stocks/{id}, compare its gc.alloc.rate.norm with getStock
+     */
+    @Benchmark
+    public void getSerializedStock() throws IOException {
+        stockService.getSerializedStock(randomId()).writeTo(NULL_OUTPUT_STREAM);
+    }
+
+    @Benchmark
+    public StockPage getStocksPage() {
+        return stockService.getStocks(StockSort.ID, String.valueOf(randomId()), 100);
+    }
+
+    /**
+     * Page path of GET /api/stocks before the page cache: StockResponse of the page serialized by Jackson
+     */
+    @Benchmark
+    public void serializeStocksPage() throws IOException {
+        objectMapper.writeValue(NULL_OUTPUT_STREAM, stockService.getStocks(StockSort.ID, null, 100).getStocks());
+    }
+
+    /**
+     * Page path of GET /api/stocks, cached while the book does not change
+     */
+    @Benchmark
+    public void getSerializedStocksPage() throws IOException {
+        stockService.getSerializedStocks(StockSort.ID, null, 100, false).writeTo(NULL_OUTPUT_STREAM, false);
+    }
+
+    @Benchmark
+    public void getSerializedStocksPageGzip() throws IOException {
+        stockService.getSerializedStocks(StockSort.ID, null, 100, false).writeTo(NULL_OUTPUT_STREAM, true);
+    }
+
+    @Benchmark
+    public StockPage getStocksByName() {
+        return stockService.getStocksByName("name_" + randomId(), false, null, 100);
+    }
+
+    /**
+     * First page of a prefix that matches a few names, e.g. name_1234 matches name_1234 and name_12340 to name_12349
+     */
+    @Benchmark
+    public StockPage getStocksByNamePrefix() {
+        return stockService.getStocksByName("name_" + randomId() / 100, true, null, 100);
+    }
+
+    /**
+     * The book grows while this benchmark runs, so compare it only with runs of the same length
+     */
+    @Benchmark
+    public StockResponse createStock() {
+        return stockService.createStock(stockRequest);
+    }
+
+    @Benchmark
+    public StockResponse updateStock() {
+        return stockService.updateStock(stockRequest, randomId());
+    }
+
+    /**
+     * Streaming path of GET /api/stocks/export
+     */
+    @Benchmark
+    public void exportStocks() throws IOException {
+        stockService.exportStocks(NULL_OUTPUT_STREAM, true);
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(3)
+    public StockResponse readHeavyGet() {
+        return getStock();
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public StockResponse readHeavyUpdate() {
+        return updateStock();
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(1)
+    public StockResponse writeHeavyGet() {
+        return getStock();
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(3)
+    public StockResponse writeHeavyUpdate() {
+        return updateStock();
+    }
+
+    @Benchmark
+    @Group("listWhileUpdating")
+    @GroupThreads(1)
+    public void listWhileUpdatingPage() throws IOException {
+        getSerializedStocksPageGzip();
+    }
+
+    @Benchmark
+    @Group("listWhileUpdating")
+    @GroupThreads(1)
+    public StockResponse listWhileUpdatingUpdate() {
+        LockSupport.parkNanos(UPDATE_INTERVAL_NANOS);
+        return updateStock();
+    }
+
+    private long randomId() {
+        return ThreadLocalRandom.current().nextLong(1, initSize + 1);
+    }
+}
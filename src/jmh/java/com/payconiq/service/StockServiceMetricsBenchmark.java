@@ -0,0 +1,59 @@
+package com.payconiq.service;
+
+import com.payconiq.service.StockServiceMetrics.Operation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead {@link StockServiceMetrics} adds to an operation: timing it with the two System.nanoTime() calls
+ * and recording it, compared with the two calls alone. Run with -t to see recording from many threads, e.g.
+ * -Djmh.args="StockServiceMetricsBenchmark -t 4"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StockServiceMetricsBenchmark {
+
+    private StockServiceMetrics metrics;
+
+    @Setup
+    public void setup() {
+        metrics = new StockServiceMetrics(() -> 0L, () -> 0L);
+    }
+
+    @Benchmark
+    public long nanoTimeOnly() {
+        final long start = System.nanoTime();
+        return System.nanoTime() - start;
+    }
+
+    @Benchmark
+    public void record() {
+        metrics.record(Operation.GET, System.nanoTime());
+    }
+
+    /**
+     * What an update adds: timing, recording and counting it as in flight
+     */
+    @Benchmark
+    public void recordUpdate() {
+        final long start = System.nanoTime();
+        final long id = ThreadLocalRandom.current().nextLong(1, 1_000_000);
+        metrics.updateStarted(id);
+        metrics.updateFinished(id);
+        metrics.record(Operation.UPDATE, start);
+    }
+}
@@ -0,0 +1,50 @@
+package com.payconiq.service;
+
+import org.springframework.test.util.ReflectionTestUtils;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Retained heap per stock of a {@link StockService} filled with the given storage engine, measured as used heap
+ * after full GCs with and without the service. Run one engine and size per JVM so they do not skew each other:
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.main=com.payconiq.service.StockStoreFootprint
+ * -Dbenchmark.jvm.args=-Xmx4g -Djmh.args="compact 1000000 true"
+ */
+public final class StockStoreFootprint {
+
+    private static final int GC_ROUNDS = 5;
+
+    private StockStoreFootprint() {
+    }
+
+    /**
+     * @param args store type heap or compact, number of stocks and whether the name and price indexes are kept
+     */
+    public static void main(final String[] args) throws InterruptedException {
+        final String storeType = args.length > 0 ? args[0] : "heap";
+        final int stockCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        final boolean sortIndexEnabled = args.length <= 2 || Boolean.parseBoolean(args[2]);
+
+        final long before = usedHeapAfterGc();
+        final StockService stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", stockCount);
+        ReflectionTestUtils.setField(stockService, "storeType", storeType);
+        ReflectionTestUtils.setField(stockService, "sortIndexEnabled", sortIndexEnabled);
+        stockService.init();
+        final long after = usedHeapAfterGc();
+
+        System.out.printf("store=%s sortIndex=%s stocks=%d retained=%d MB bytesPerStock=%d%n", storeType, sortIndexEnabled,
+                stockCount, (after - before) >> 20, (after - before) / stockCount);
+        //Keeps the service reachable until after the measurement
+        System.out.println(stockService.getStock(1L).getName());
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int round = 0; round < GC_ROUNDS; round++) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,68 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockSort;
+import com.payconiq.model.exception.SortIndexLoadingException;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Startup time of a {@link StockService} on a memory mapped book of the given size, the book is written first
+ * when the file does not exist yet:
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.main=com.payconiq.service.StockStoreStartup
+ * -Djmh.args="target/stocks.dat 5000000 false"
+ */
+public final class StockStoreStartup {
+
+    private StockStoreStartup() {
+    }
+
+    /**
+     * @param args path of the stock file, number of stocks and whether the name and price indexes are rebuilt
+     */
+    public static void main(final String[] args) throws InterruptedException {
+        final Path path = Paths.get(args.length > 0 ? args[0] : "target/stocks.dat");
+        final int stockCount = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+        final boolean sortIndexEnabled = args.length > 2 && Boolean.parseBoolean(args[2]);
+
+        if (!Files.exists(path)) {
+            final long start = System.nanoTime();
+            startService(path, stockCount, false).close();
+            System.out.printf("wrote %d stocks in %d ms%n", stockCount, (System.nanoTime() - start) / 1_000_000);
+        }
+        final long start = System.nanoTime();
+        final StockService stockService = startService(path, stockCount, sortIndexEnabled);
+        final long started = System.nanoTime();
+        final String name = stockService.getStock((long) stockCount).getName();
+        final long firstRead = System.nanoTime();
+        System.out.printf("sortIndex=%s startup=%d ms firstRead=%d us (%s)%n", sortIndexEnabled,
+                (started - start) / 1_000_000, (firstRead - started) / 1_000, name);
+        if (sortIndexEnabled) {
+            waitForSortIndex(stockService);
+            System.out.printf("sortIndex loaded after %d ms%n", (System.nanoTime() - start) / 1_000_000);
+        }
+        stockService.close();
+    }
+
+    private static void waitForSortIndex(final StockService stockService) throws InterruptedException {
+        while (true) {
+            try {
+                stockService.getStocks(StockSort.NAME, null, 1);
+                return;
+            } catch (SortIndexLoadingException e) {
+                Thread.sleep(10L);
+            }
+        }
+    }
+
+    private static StockService startService(final Path path, final int stockCount, final boolean sortIndexEnabled) {
+        final StockService stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", stockCount);
+        ReflectionTestUtils.setField(stockService, "storeType", "mapped");
+        ReflectionTestUtils.setField(stockService, "mappedPath", path.toString());
+        ReflectionTestUtils.setField(stockService, "sortIndexEnabled", sortIndexEnabled);
+        stockService.init();
+        return stockService;
+    }
+}
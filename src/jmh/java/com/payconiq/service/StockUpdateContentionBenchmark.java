@@ -0,0 +1,79 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import com.payconiq.model.exception.StockVersionConflictException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Update throughput while writers contend on the same stock or each update a stock of their own.
+ * Run once per writer count to see how it scales, e.g.
+ * -Djmh.args="StockUpdateContentionBenchmark -t 64"
+ * for 1, 4, 16 and 64 writers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StockUpdateContentionBenchmark {
+
+    private static final long SHARED_STOCK_ID = 1L;
+
+    private StockService stockService;
+    private StockRequest stockRequest;
+
+    @Setup
+    public void setup() {
+        stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", 10_000);
+        stockService.init();
+        stockRequest = StockRequest.builder().name("contention").currentPrice(new BigDecimal("1.23")).build();
+    }
+
+    /**
+     * Stock of a single writer thread, created once per thread
+     */
+    @State(Scope.Thread)
+    public static class OwnStock {
+        private Long stockId;
+
+        @Setup
+        public void setup(final StockUpdateContentionBenchmark benchmark) {
+            stockId = benchmark.stockService.createStock(benchmark.stockRequest).getId();
+        }
+    }
+
+    @Benchmark
+    public StockResponse updateSameKey() {
+        return stockService.updateStock(stockRequest, SHARED_STOCK_ID);
+    }
+
+    @Benchmark
+    public StockResponse updateDifferentKeys(final OwnStock ownStock) {
+        return stockService.updateStock(stockRequest, ownStock.stockId);
+    }
+
+    @Benchmark
+    public StockResponse updateSameKeyIfMatch() {
+        final StockResponse current = stockService.getStock(SHARED_STOCK_ID);
+        try {
+            return stockService.updateStock(stockRequest, SHARED_STOCK_ID, current.getVersion());
+        } catch (StockVersionConflictException e) {
+            return current;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.payconiq.service;
+
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.payconiq.model.StockResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode time per stock of a page of 100 stocks in JSON and in the binary of {@link StockBinary}.
+ * The sizes per stock of both formats are printed by the setup.
+ * json* run Jackson on StockResponse as a client does, copySerializedJson is what the API does for JSON pages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StockWireFormatBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<StockResponse> stockResponses = new ArrayList<>(PAGE_SIZE);
+    private final List<SerializedStock> serializedStocks = new ArrayList<>(PAGE_SIZE);
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setup() throws IOException {
+        final long lastUpdate = System.currentTimeMillis();
+        for (long id = 1; id <= PAGE_SIZE; id++) {
+            final BigDecimal price = BigDecimal.valueOf(id * 1234L, 2);
+            stockResponses.add(StockResponse.builder().id(id).name("name_" + id).currentPrice(price).lastUpdate(lastUpdate + id).build());
+            serializedStocks.add(Stock.of(id, "name_" + id, price, 1L, lastUpdate + id).getSerialized());
+        }
+        json = jsonEncode();
+        binary = binaryEncode();
+        System.out.printf(Locale.ROOT, "%nbytes/stock json=%.1f binary=%.1f%n",
+                (double) json.length / PAGE_SIZE, (double) binary.length / PAGE_SIZE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGE_SIZE)
+    public byte[] jsonEncode() throws IOException {
+        return objectMapper.writeValueAsBytes(stockResponses);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGE_SIZE)
+    public StockResponse[] jsonDecode() throws IOException {
+        return objectMapper.readValue(json, StockResponse[].class);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGE_SIZE)
+    public byte[] copySerializedJson() {
+        final ByteArrayBuilder byteArrayBuilder = new ByteArrayBuilder(json.length);
+        for (final SerializedStock stock : serializedStocks) {
+            stock.writeTo(byteArrayBuilder);
+        }
+        return byteArrayBuilder.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGE_SIZE)
+    public byte[] binaryEncode() {
+        final ByteArrayBuilder byteArrayBuilder = new ByteArrayBuilder(PAGE_SIZE * StockBinary.STOCK_FIXED_SIZE * 2);
+        for (final SerializedStock stock : serializedStocks) {
+            stock.writeBinaryTo(byteArrayBuilder);
+        }
+        return byteArrayBuilder.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGE_SIZE)
+    public List<StockResponse> binaryDecode() {
+        return StockBinary.readStocks(binary);
+    }
+}
@@ -0,0 +1,66 @@
+package com.payconiq.trace;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link RequestTracer} and its hooks around a request that does nothing else. With sampleEvery 0 tracing
+ * is off, with 100 it is the default sampling, whose unsampled requests should show no allocation with -prof gc,
+ * and with 1 every request is traced, e.g. -Djmh.args="RequestTracerBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RequestTracerBenchmark {
+
+    @Param({"0", "100", "1"})
+    private int sampleEvery;
+
+    private RequestTracer requestTracer;
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+    private FilterChain chain;
+
+    @Setup
+    public void setup() {
+        requestTracer = new RequestTracer(sampleEvery, 10, TimeUnit.MINUTES.toMillis(5));
+        request = new MockHttpServletRequest("PUT", "/api/stocks/5");
+        request.setServletPath("/api/stocks/5");
+        response = new MockHttpServletResponse();
+        chain = (req, resp) -> {
+            RequestTrace.securityDone();
+            req.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, "/api/stocks/{id}");
+            RequestTrace.handlerStarted();
+            RequestTrace.readStarted();
+            RequestTrace.readDone();
+            final long start = System.nanoTime();
+            RequestTrace.serviceCalled(start, System.nanoTime());
+            RequestTrace.writeStarted();
+            RequestTrace.handlerDone();
+        };
+    }
+
+    @Benchmark
+    public void doFilter() throws IOException, ServletException {
+        requestTracer.doFilter(request, response, chain);
+    }
+}
@@ -0,0 +1,160 @@
+package com.payconiq.config;
+
+import com.payconiq.trace.RequestTrace;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.servlet.DispatcherServlet;
+
+/**
+ * Dispatcher of stock-api.serving.mode=async, serves the /api/stocks requests on a small pool instead of the Tomcat
+ * thread that read them. The filters, security included, run on the Tomcat thread as usual, then the request is put
+ * in async mode and handed over, so a Tomcat thread is only taken while a request is read and checked and the threads
+ * stay the same however many connections are open. Filters that time the request wait for it to complete.
+ * The serving threads never block on the connection either: the body of a request is read without blocking before
+ * it is handed over, see {@link BufferedRequest}, and the response is kept in memory and written without blocking
+ * once served, see {@link BufferedResponse}. Both are bounded, requests by max-body-bytes and responses by the page size.
+ *
+ * Reads of the StockService never block, so without the journal the pool is as large as the number of processors
+ * and a burst of requests waits in its queue instead of in threads. With the journal every write waits for its fsync,
+ * so the pool gets {@link #BLOCKING_THREADS_PER_PROCESSOR} threads per processor for the writers waiting on one commit.
+ * Requests beyond the queue are turned down with 503 and Retry-After.
+ * The export and batch endpoints stream or read whole books and stay on the Tomcat thread that read them, so they
+ * do not hold up the small requests. The stream endpoint and async dispatches are left to Spring MVC, which puts
+ * them in async mode itself.
+ */
+public class AsyncDispatcherServlet extends DispatcherServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncDispatcherServlet.class);
+    private static final String SERVED_PATH = "/api/stocks";
+    private static final String STREAM_PATH = "/api/stocks/stream";
+    private static final String EXPORT_PATH = "/api/stocks/export";
+    private static final String BATCH_PATH = "/api/stocks/batch";
+    private static final int BLOCKING_THREADS_PER_PROCESSOR = 16;
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    private final transient ThreadPoolExecutor servingPool;
+    private final long maxBodyBytes;
+
+    /**
+     * @param threads serving threads, sized from the number of processors when 0
+     * @param maxQueued requests waiting for a serving thread before new ones are turned down
+     * @param maxBodyBytes largest request body read, larger ones are turned down with 413
+     * @param blockingWrites whether writes wait for the journal
+     */
+    public AsyncDispatcherServlet(final int threads, final int maxQueued, final long maxBodyBytes, final boolean blockingWrites) {
+        this.maxBodyBytes = maxBodyBytes;
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final int poolSize = threads > 0 ? threads : blockingWrites ? processors * BLOCKING_THREADS_PER_PROCESSOR : processors;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.servingPool = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxQueued), runnable -> {
+                    final Thread thread = new Thread(runnable, "stock-serving-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        LOG.info("Serving /api/stocks asynchronously on {} threads with up to {} queued requests", poolSize, maxQueued);
+    }
+
+    @Override
+    protected void service(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        if (request.getDispatcherType() != DispatcherType.REQUEST || !request.isAsyncSupported()
+                || !isServed(request.getServletPath())) {
+            super.service(request, response);
+            return;
+        }
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        //Completed by the serving thread whatever happens, so no timeout is needed
+        asyncContext.setTimeout(0L);
+        final RequestTrace trace = RequestTrace.detach();
+        new BufferedRequest(request, maxBodyBytes, bodyRead -> handOver(asyncContext, bodyRead, response, trace),
+                failure -> unreadable(asyncContext, response, failure)).read();
+    }
+
+    /**
+     * Called on a Tomcat thread once the body is read
+     */
+    private void handOver(final AsyncContext asyncContext, final BufferedRequest request, final HttpServletResponse response,
+                          final RequestTrace trace) {
+        try {
+            servingPool.execute(() -> serve(asyncContext, request, new BufferedResponse(response, asyncContext), trace));
+        } catch (RejectedExecutionException e) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+            sendError(asyncContext, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests queued");
+        }
+    }
+
+    /**
+     * @param failure of reading the body, null when it is too large
+     */
+    private static void unreadable(final AsyncContext asyncContext, final HttpServletResponse response, final Throwable failure) {
+        if (failure == null) {
+            sendError(asyncContext, response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Request body too large");
+        } else {
+            LOG.debug("Could not read the request", failure);
+            asyncContext.complete();
+        }
+    }
+
+    private static void sendError(final AsyncContext asyncContext, final HttpServletResponse response, final int status,
+                                  final String message) {
+        try {
+            response.sendError(status, message);
+        } catch (IOException e) {
+            LOG.debug("Could not send the error", e);
+        }
+        asyncContext.complete();
+    }
+
+    private static boolean isServed(final String servletPath) {
+        return servletPath.startsWith(SERVED_PATH) && !servletPath.startsWith(STREAM_PATH)
+                && !servletPath.startsWith(EXPORT_PATH) && !servletPath.startsWith(BATCH_PATH);
+    }
+
+    private void serve(final AsyncContext asyncContext, final HttpServletRequest request, final BufferedResponse response,
+                       final RequestTrace trace) {
+        RequestTrace.attach(trace);
+        try {
+            super.service(request, response);
+        } catch (IOException | ServletException | RuntimeException e) {
+            LOG.error("Failed serving {}", request.getServletPath(), e);
+            if (!response.isCommitted()) {
+                try {
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                } catch (IOException sendFailed) {
+                    LOG.debug("Could not send the error", sendFailed);
+                }
+            }
+        } finally {
+            RequestTrace.detach();
+            response.send();
+        }
+    }
+
+    /**
+     * Servlets are Serializable but this one is never serialized, its pool could not be
+     */
+    private void readObject(final ObjectInputStream in) throws NotSerializableException {
+        throw new NotSerializableException(AsyncDispatcherServlet.class.getName());
+    }
+
+    @Override
+    public void destroy() {
+        servingPool.shutdown();
+        super.destroy();
+    }
+}
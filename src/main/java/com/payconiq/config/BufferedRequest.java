@@ -0,0 +1,142 @@
+package com.payconiq.config;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Request of {@link AsyncDispatcherServlet} whose body is read without blocking before it is served, on the Tomcat
+ * threads as the body comes in, so a serving thread never waits for a slow client. The body is then served from memory.
+ */
+final class BufferedRequest extends HttpServletRequestWrapper implements ReadListener {
+
+    private static final int READ_CHUNK = 8192;
+
+    private final long maxBodyBytes;
+    private final Consumer<BufferedRequest> onBodyRead;
+    private final Consumer<Throwable> onReadFailure;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final ServletInputStream input;
+    private boolean tooLarge;
+
+    /**
+     * @param onBodyRead called once the whole body is read
+     * @param onReadFailure called when the body could not be read or is larger than maxBodyBytes, with null then
+     */
+    BufferedRequest(final HttpServletRequest request, final long maxBodyBytes, final Consumer<BufferedRequest> onBodyRead,
+                    final Consumer<Throwable> onReadFailure) throws IOException {
+        super(request);
+        this.input = request.getInputStream();
+        this.maxBodyBytes = maxBodyBytes;
+        this.onBodyRead = onBodyRead;
+        this.onReadFailure = onReadFailure;
+    }
+
+    /**
+     * Start reading the body, called back at once when there is none
+     */
+    void read() throws IOException {
+        final HttpServletRequest request = (HttpServletRequest) getRequest();
+        if (request.getContentLengthLong() > maxBodyBytes) {
+            tooLarge = true;
+            onReadFailure.accept(null);
+        } else if (request.getContentLengthLong() <= 0 && request.getHeader("Transfer-Encoding") == null) {
+            onBodyRead.accept(this);
+        } else {
+            input.setReadListener(this);
+        }
+    }
+
+    /**
+     * @return true if the body was refused for being larger than the maximum
+     */
+    boolean isTooLarge() {
+        return tooLarge;
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        final byte[] chunk = new byte[READ_CHUNK];
+        while (!tooLarge && input.isReady()) {
+            final int read = input.read(chunk);
+            if (read < 0) {
+                return;
+            }
+            body.write(chunk, 0, read);
+            if (body.size() > maxBodyBytes) {
+                tooLarge = true;
+                onReadFailure.accept(null);
+            }
+        }
+    }
+
+    @Override
+    public void onAllDataRead() {
+        if (!tooLarge) {
+            onBodyRead.accept(this);
+        }
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        onReadFailure.accept(throwable);
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+        return new BodyInputStream(body.toByteArray());
+    }
+
+    @Override
+    public BufferedReader getReader() throws IOException {
+        final String encoding = getCharacterEncoding();
+        return new BufferedReader(encoding == null
+                ? new InputStreamReader(getInputStream(), StandardCharsets.ISO_8859_1)
+                : new InputStreamReader(getInputStream(), encoding));
+    }
+
+    /**
+     * The body read, it is never waited for
+     */
+    private static final class BodyInputStream extends ServletInputStream {
+
+        private final ByteArrayInputStream bytes;
+
+        BodyInputStream(final byte[] body) {
+            this.bytes = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int read() {
+            return bytes.read();
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) {
+            return bytes.read(buffer, offset, length);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return bytes.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(final ReadListener readListener) {
+            throw new IllegalStateException("The body is already read");
+        }
+    }
+}
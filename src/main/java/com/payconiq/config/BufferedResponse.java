@@ -0,0 +1,153 @@
+package com.payconiq.config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Response of {@link AsyncDispatcherServlet} whose body is kept in memory while it is served, then written without
+ * blocking: only as much as the connection takes at a time, the rest once the Tomcat threads are called back as it
+ * drains. So a serving thread never waits for a slow client, and the request completes once the body is written.
+ * Status and headers go to the response as they are set.
+ */
+final class BufferedResponse extends HttpServletResponseWrapper implements WriteListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BufferedResponse.class);
+    private static final int WRITE_CHUNK = 8192;
+
+    private final AsyncContext asyncContext;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private ServletOutputStream bodyStream;
+    private PrintWriter writer;
+    private boolean error;
+    private ServletOutputStream output;
+    private byte[] bytes;
+    private int written;
+    private boolean completed;
+
+    BufferedResponse(final HttpServletResponse response, final AsyncContext asyncContext) {
+        super(response);
+        this.asyncContext = asyncContext;
+    }
+
+    /**
+     * Start writing the body once served, the request completes when it is written
+     */
+    synchronized void send() {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (error || body.size() == 0) {
+            complete();
+            return;
+        }
+        bytes = body.toByteArray();
+        try {
+            output = getResponse().getOutputStream();
+            output.setWriteListener(this);
+        } catch (IOException | IllegalStateException e) {
+            onError(e);
+        }
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        while (written < bytes.length && output.isReady()) {
+            final int length = Math.min(WRITE_CHUNK, bytes.length - written);
+            output.write(bytes, written, length);
+            written += length;
+        }
+        if (written == bytes.length && output.isReady()) {
+            complete();
+        }
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        LOG.debug("Could not write the response", throwable);
+        complete();
+    }
+
+    private synchronized void complete() {
+        if (!completed) {
+            completed = true;
+            asyncContext.complete();
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (bodyStream == null) {
+            bodyStream = new ServletOutputStream() {
+                @Override
+                public void write(final int b) {
+                    body.write(b);
+                }
+
+                @Override
+                public void write(final byte[] buffer, final int offset, final int length) {
+                    body.write(buffer, offset, length);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(final WriteListener writeListener) {
+                    throw new IllegalStateException("The body is written once served");
+                }
+            };
+        }
+        return bodyStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws UnsupportedEncodingException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void sendError(final int status) throws IOException {
+        error = true;
+        super.sendError(status);
+    }
+
+    @Override
+    public void sendError(final int status, final String message) throws IOException {
+        error = true;
+        super.sendError(status, message);
+    }
+
+    @Override
+    public void flushBuffer() {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        body.reset();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        body.reset();
+    }
+}
@@ -0,0 +1,42 @@
+package com.payconiq.config;
+
+import com.fasterxml.classmate.TypeResolver;
+import springfox.documentation.spi.service.RequestHandlerProvider;
+import springfox.documentation.spi.service.contexts.Defaults;
+import springfox.documentation.spring.web.DocumentationCache;
+import springfox.documentation.spring.web.plugins.DocumentationPluginsBootstrapper;
+import springfox.documentation.spring.web.plugins.DocumentationPluginsManager;
+import springfox.documentation.spring.web.scanners.ApiDocumentationScanner;
+import javax.servlet.ServletContext;
+import java.util.List;
+
+/**
+ * Springfox bootstrapper that does not scan the controllers when the context starts but on the first request of the
+ * docs, see {@link StockSwaggerConfig}
+ */
+class LazyDocumentationPluginsBootstrapper extends DocumentationPluginsBootstrapper {
+
+    LazyDocumentationPluginsBootstrapper(final DocumentationPluginsManager documentationPluginsManager,
+                                         final List<RequestHandlerProvider> handlerProviders,
+                                         final DocumentationCache scanned,
+                                         final ApiDocumentationScanner resourceListing,
+                                         final TypeResolver typeResolver,
+                                         final Defaults defaults,
+                                         final ServletContext servletContext) {
+        super(documentationPluginsManager, handlerProviders, scanned, resourceListing, typeResolver, defaults, servletContext);
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return false;
+    }
+
+    /**
+     * Scan once, requests arriving during the scan wait for it so that they do not get empty docs
+     */
+    synchronized void startOnce() {
+        if (!isRunning()) {
+            start();
+        }
+    }
+}
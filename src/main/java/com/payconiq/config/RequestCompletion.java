@@ -0,0 +1,40 @@
+package com.payconiq.config;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Runs what filters do once a request is done, e.g. recording its time and status. A request put in async mode,
+ * by {@link AsyncDispatcherServlet} or by a stream, is only done when it completes, after the filters returned.
+ */
+public final class RequestCompletion {
+
+    private RequestCompletion() {
+    }
+
+    /**
+     * Run the action now or, when the request is in async mode, once it completes
+     */
+    public static void onCompletion(final HttpServletRequest request, final Runnable action) {
+        if (!request.isAsyncStarted()) {
+            action.run();
+            return;
+        }
+        request.getAsyncContext().addListener(new AsyncListener() {
+            @Override
+            public void onComplete(final AsyncEvent event) {
+                action.run();
+            }
+
+            @Override
+            public void onTimeout(final AsyncEvent event) {}
+
+            @Override
+            public void onError(final AsyncEvent event) {}
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) {}
+        });
+    }
+}
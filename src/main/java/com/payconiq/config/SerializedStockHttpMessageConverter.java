@@ -0,0 +1,48 @@
+package com.payconiq.config;
+
+import com.payconiq.service.SerializedStock;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+import java.io.IOException;
+
+/**
+ * Writes the already serialized JSON of a {@link SerializedStock} as it is, e.g. for server sent events,
+ * so the stock is neither copied nor serialized again per subscriber.
+ * Picked up by Spring Boot as any other HttpMessageConverter bean.
+ */
+@Component
+public class SerializedStockHttpMessageConverter extends AbstractHttpMessageConverter<SerializedStock> {
+
+    public SerializedStockHttpMessageConverter() {
+        super(MediaType.APPLICATION_JSON);
+    }
+
+    @Override
+    protected boolean supports(final Class<?> clazz) {
+        return SerializedStock.class.equals(clazz);
+    }
+
+    @Override
+    protected boolean canRead(final MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected SerializedStock readInternal(final Class<? extends SerializedStock> clazz, final HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("SerializedStock can only be written");
+    }
+
+    @Override
+    protected Long getContentLength(final SerializedStock stock, final MediaType contentType) {
+        return (long) stock.getContentLength();
+    }
+
+    @Override
+    protected void writeInternal(final SerializedStock stock, final HttpOutputMessage outputMessage) throws IOException {
+        stock.writeTo(outputMessage.getBody());
+    }
+}
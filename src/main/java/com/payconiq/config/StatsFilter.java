@@ -1,18 +1,21 @@
 package com.payconiq.config;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Pattern;
 import javax.servlet.*;
 import javax.servlet.annotation.WebFilter;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import io.prometheus.client.SimpleTimer;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Histogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerMapping;
 import static com.payconiq.config.StockMetricsConfig.STOCK_API_REQUEST_HISTOGRAM;
 
 /**
@@ -20,7 +23,12 @@ import static com.payconiq.config.StockMetricsConfig.STOCK_API_REQUEST_HISTOGRAM
  * url pattern then converts them and then sends them to STOCK_API_REQUEST_HISTOGRAM histogram.
  * an example: /api/stock/23 => /api/stock/*
  *
- * If needed in the future new patterns can be added to GENERALIZE_PATH_MAP
+ * The path is generalized from the pattern Spring MVC already matched the request with, path variables
+ * of the pattern become *. Requests that never reach a controller, e.g. with a method or media type no mapping
+ * takes, fall back to the patterns of GENERALIZE_PATH_MAP, new patterns can be added there if needed, and any
+ * other path is counted as unmatched so scanning random paths can not grow the histogram without bound.
+ * Histogram children are cached per path, method and status so a request does not allocate for its metrics.
+ * Requests in async mode, e.g. served by {@link AsyncDispatcherServlet}, are observed once they complete.
  *
  * An example format in metrics is as
  * http_request_duration_seconds_bucket{method="POST",path="/api/stocks",status="201",le="0.5",} 1.0
@@ -34,9 +42,36 @@ public class StatsFilter implements Filter {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(StatsFilter.class);
 
-    private static final Map<Pattern, String> GENERALIZE_PATH_MAP = new HashMap<Pattern, String>() {{
-        put(Pattern.compile("\\/api\\/stocks\\/.+"), "/api/stocks/*");
-    }};
+    private static final Pattern PATH_VARIABLE = Pattern.compile("\\{[^/]+\\}");
+    private static final String GENERALIZED_SEGMENT = "*";
+    /**
+     * Statuses from 0 up to this have their histogram child in an array, others are resolved every time
+     */
+    private static final int CACHED_STATUSES = 600;
+
+    private static final String UNMATCHED_PATH = "unmatched";
+
+    /**
+     * Tried in order, so the specific patterns come before the catch-all of /api/stocks/
+     */
+    private static final Map<Pattern, String> GENERALIZE_PATH_MAP = new LinkedHashMap<>();
+
+    static {
+        GENERALIZE_PATH_MAP.put(Pattern.compile("\\/api\\/stocks"), "/api/stocks");
+        GENERALIZE_PATH_MAP.put(Pattern.compile("\\/api\\/stocks\\/export"), "/api/stocks/export");
+        GENERALIZE_PATH_MAP.put(Pattern.compile("\\/api\\/stocks\\/batch"), "/api/stocks/batch");
+        GENERALIZE_PATH_MAP.put(Pattern.compile("\\/api\\/stocks\\/stream"), "/api/stocks/stream");
+        GENERALIZE_PATH_MAP.put(Pattern.compile("\\/api\\/stocks\\/[^\\/]+\\/history"), "/api/stocks/*/history");
+        GENERALIZE_PATH_MAP.put(Pattern.compile("\\/api\\/stocks\\/[^\\/]+\\/ohlc"), "/api/stocks/*/ohlc");
+        GENERALIZE_PATH_MAP.put(Pattern.compile("\\/api\\/stocks\\/.+"), "/api/stocks/*");
+    }
+
+    /**
+     * Generalized path of every pattern matched so far, patterns are the mappings of the controllers
+     */
+    private final ConcurrentHashMap<String, String> generalizedPatterns = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, AtomicReferenceArray<Histogram.Child>>> children =
+            new ConcurrentHashMap<>();
 
     @Override
     public void init(final FilterConfig filterConfig) {}
@@ -45,28 +80,71 @@ public class StatsFilter implements Filter {
     public void doFilter(final ServletRequest req, final ServletResponse resp, final FilterChain chain) throws IOException, ServletException {
         if (req instanceof HttpServletRequest && resp instanceof HttpServletResponse
                 && ((HttpServletRequest) req).getServletPath().startsWith("/api")) {
-            SimpleTimer timer = new SimpleTimer();
+            final long start = System.nanoTime();
             try {
                 chain.doFilter(req, resp);
             } finally {
-                final double elapsedSeconds = timer.elapsedSeconds();
                 final HttpServletRequest httpRequest = (HttpServletRequest) req;
-                String statusCode = String.valueOf(((HttpServletResponse) resp).getStatus());
-                String servletPath = httpRequest.getServletPath();
-                Optional<Map.Entry<Pattern, String>> patternToPath = GENERALIZE_PATH_MAP.entrySet().stream()
-                        .filter(e -> e.getKey().matcher(httpRequest.getServletPath()).matches())
-                        .findFirst();
-                if (patternToPath.isPresent()) {
-                    servletPath = patternToPath.get().getValue();
+                if (httpRequest.isAsyncStarted()) {
+                    RequestCompletion.onCompletion(httpRequest, () -> observe(httpRequest, (HttpServletResponse) resp, start));
+                } else {
+                    observe(httpRequest, (HttpServletResponse) resp, start);
                 }
-                STOCK_API_REQUEST_HISTOGRAM.labels(httpRequest.getMethod(), servletPath, statusCode).observe(elapsedSeconds);
-                LOGGER.trace("{}: {} seconds ", httpRequest.getServletPath(), elapsedSeconds);
             }
             return;
         }
         chain.doFilter(req, resp);
     }
 
+    private void observe(final HttpServletRequest request, final HttpServletResponse response, final long start) {
+        final double elapsedSeconds = (System.nanoTime() - start) / Collector.NANOSECONDS_PER_SECOND;
+        child(generalizedPath(request), request.getMethod(), response.getStatus()).observe(elapsedSeconds);
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("{}: {} seconds ", request.getServletPath(), elapsedSeconds);
+        }
+    }
+
+    private String generalizedPath(final HttpServletRequest request) {
+        final Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        if (pattern instanceof String) {
+            final String generalized = generalizedPatterns.get(pattern);
+            return generalized != null ? generalized : generalizedPatterns.computeIfAbsent((String) pattern,
+                    key -> PATH_VARIABLE.matcher(key).replaceAll(GENERALIZED_SEGMENT));
+        }
+        final String servletPath = request.getServletPath();
+        for (final Map.Entry<Pattern, String> patternToPath : GENERALIZE_PATH_MAP.entrySet()) {
+            if (patternToPath.getKey().matcher(servletPath).matches()) {
+                return patternToPath.getValue();
+            }
+        }
+        //Paths of the requests are not bounded, so a path no pattern knows is not a label of its own
+        return UNMATCHED_PATH;
+    }
+
+    /**
+     * Looked up without locking once the child exists, labels of a child are only resolved the first time
+     */
+    private Histogram.Child child(final String path, final String method, final int status) {
+        ConcurrentHashMap<String, AtomicReferenceArray<Histogram.Child>> methods = children.get(path);
+        if (methods == null) {
+            methods = children.computeIfAbsent(path, key -> new ConcurrentHashMap<>());
+        }
+        AtomicReferenceArray<Histogram.Child> statuses = methods.get(method);
+        if (statuses == null) {
+            statuses = methods.computeIfAbsent(method, key -> new AtomicReferenceArray<>(CACHED_STATUSES));
+        }
+        if (status < 0 || status >= CACHED_STATUSES) {
+            return STOCK_API_REQUEST_HISTOGRAM.labels(method, path, String.valueOf(status));
+        }
+        Histogram.Child child = statuses.get(status);
+        if (child == null) {
+            //labels gives the same child to racing requests, so either of them can be cached
+            child = STOCK_API_REQUEST_HISTOGRAM.labels(method, path, String.valueOf(status));
+            statuses.set(status, child);
+        }
+        return child;
+    }
+
     @Override
     public void destroy() {}
-}
\ No newline at end of file
+}
@@ -0,0 +1,65 @@
+package com.payconiq.config;
+
+import com.payconiq.endpoint.StockController;
+import com.payconiq.model.StockBatchResult;
+import com.payconiq.service.StockBinary;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.stereotype.Component;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the results of the batch endpoints in the compact binary format of {@link StockBinary}
+ * when the client accepts application/x-stock, the endpoints themselves stay the same for JSON and binary.
+ * Picked up by Spring Boot as any other HttpMessageConverter bean.
+ */
+@Component
+public class StockBinaryHttpMessageConverter extends AbstractHttpMessageConverter<List<?>> {
+
+    public StockBinaryHttpMessageConverter() {
+        super(MediaType.valueOf(StockController.APPLICATION_STOCK_VALUE));
+    }
+
+    @Override
+    protected boolean supports(final Class<?> clazz) {
+        return List.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canRead(final MediaType mediaType) {
+        return false;
+    }
+
+    /**
+     * Only when binary is asked for by name, any other list without a content type stays JSON
+     */
+    @Override
+    protected boolean canWrite(final MediaType mediaType) {
+        return mediaType != null && getSupportedMediaTypes().get(0).includes(mediaType);
+    }
+
+    @Override
+    protected List<?> readInternal(final Class<? extends List<?>> clazz, final HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Binary stocks can only be written");
+    }
+
+    @Override
+    protected void writeInternal(final List<?> items, final HttpOutputMessage outputMessage) throws IOException {
+        final List<StockBatchResult> results = new ArrayList<>(items.size());
+        for (final Object item : items) {
+            if (!(item instanceof StockBatchResult)) {
+                throw new HttpMessageNotWritableException("Only batch results can be written in binary, not " + item);
+            }
+            results.add((StockBatchResult) item);
+        }
+        final byte[] binary = StockBinary.batchResults(results);
+        outputMessage.getHeaders().setContentLength(binary.length);
+        outputMessage.getBody().write(binary);
+    }
+}
@@ -0,0 +1,31 @@
+package com.payconiq.config;
+
+import com.payconiq.service.StockService;
+import java.io.IOException;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.stereotype.Component;
+
+/**
+ * Down once a write of the journal failed: the changes in flight then are served but lost on a restart
+ * and every change from then on is refused, so the instance should be replaced
+ */
+@Component
+public class StockJournalHealthIndicator extends AbstractHealthIndicator {
+
+    private final StockService stockService;
+
+    public StockJournalHealthIndicator(final StockService stockService) {
+        this.stockService = stockService;
+    }
+
+    @Override
+    protected void doHealthCheck(final Health.Builder builder) {
+        final IOException failure = stockService.getJournalFailure();
+        if (failure == null) {
+            builder.up();
+        } else {
+            builder.down(failure).withDetail("durable", false);
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package com.payconiq.config;
 
+import com.payconiq.service.StockService;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.MetricsServlet;
 import io.prometheus.client.hotspot.DefaultExports;
 import io.prometheus.client.spring.boot.SpringBootMetricsCollector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.endpoint.PublicMetrics;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -13,9 +17,14 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Stream;
 
 /**
@@ -25,11 +34,17 @@ import java.util.stream.Stream;
 @Configuration
 @ConfigurationProperties
 @EnableConfigurationProperties
-public class StockMetricsConfig {
+public class StockMetricsConfig implements DisposableBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(StockMetricsConfig.class);
 
     private String urlPath;
+    @Value("${stock-api.startup.lazy-collectors:false}")
+    private boolean lazyCollectors;
+    /**
+     * Collectors this context registered, unregistered when it closes so that another context can register them again
+     */
+    private final List<Collector> registeredCollectors = new CopyOnWriteArrayList<>();
 
     @Value("${prometheus.url.path:/metrics}")
     public void setUrlPath(final String urlPath) {
@@ -51,16 +66,56 @@ public class StockMetricsConfig {
     public SpringBootMetricsCollector springBootMetricsCollector(final Collection<PublicMetrics> publicMetrics) {
         LOG.info("Loading Prometheus Spring Boot metrics");
         final SpringBootMetricsCollector metricsCollector = new SpringBootMetricsCollector(publicMetrics);
-        metricsCollector.register();
+        registeredCollectors.add(metricsCollector.register());
         return metricsCollector;
     }
 
+    /**
+     * Latencies and counters of the StockService operations, exported on the same servlet as the http metrics
+     */
+    @Bean
+    public Collector stockServiceMetricsCollector(final StockService stockService) {
+        LOG.info("Loading StockService metrics");
+        final Collector collector = stockService.getMetrics().register();
+        registeredCollectors.add(collector);
+        return collector;
+    }
+
+    /**
+     * With stock-api.startup.lazy-collectors the JVM collectors are only registered by the first scrape
+     */
     @Bean
     public ServletRegistrationBean servletRegistrationBean() {
-        LOG.info("Initializing included Collectors from Prometheus");
-        DefaultExports.initialize();
+        final MetricsServlet servlet;
+        if (lazyCollectors) {
+            LOG.info("Deferring included Collectors from Prometheus to the first scrape");
+            servlet = new LazyExportsMetricsServlet();
+        } else {
+            LOG.info("Initializing included Collectors from Prometheus");
+            DefaultExports.initialize();
+            servlet = new MetricsServlet();
+        }
         LOG.info("Creating Prometheus MetricsServlet on path: {}", urlPath);
-        return new ServletRegistrationBean(new MetricsServlet(), urlPath);
+        return new ServletRegistrationBean(servlet, urlPath);
     }
 
+    @Override
+    public void destroy() {
+        registeredCollectors.forEach(CollectorRegistry.defaultRegistry::unregister);
+        registeredCollectors.clear();
+    }
+
+    /**
+     * Registers the JVM collectors before its first scrape, {@link DefaultExports#initialize()} only does it once
+     */
+    private static final class LazyExportsMetricsServlet extends MetricsServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+                throws ServletException, IOException {
+            DefaultExports.initialize();
+            super.doGet(request, response);
+        }
+    }
 }
@@ -0,0 +1,90 @@
+package com.payconiq.config;
+
+import java.util.concurrent.ExecutorService;
+import org.apache.coyote.AbstractProtocol;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.web.DispatcherServletAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.WebMvcProperties;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.DispatcherServlet;
+
+/**
+ * Serving mode of the stock endpoints, stock-api.serving.mode is blocking (a Tomcat thread per request, the default),
+ * async (see {@link AsyncDispatcherServlet}) or virtual (a virtual thread per request, JDK 21 or later).
+ * All serve the same controllers so the contract does not change.
+ */
+@Configuration
+public class StockServingConfig {
+
+    @Value("${stock-api.serving.threads:0}")
+    private int threads;
+    @Value("${stock-api.serving.max-queued:10000}")
+    private int maxQueued;
+    @Value("${stock-api.serving.max-body-bytes:1048576}")
+    private long maxBodyBytes;
+    @Value("${stock-api.serving.container-threads:8}")
+    private int containerThreads;
+    @Value("${stock-api.journal.enabled:false}")
+    private boolean journalEnabled;
+
+    /**
+     * Replaces the dispatcher servlet of Spring Boot, with the same settings
+     */
+    @Bean(name = DispatcherServletAutoConfiguration.DEFAULT_DISPATCHER_SERVLET_BEAN_NAME)
+    @ConditionalOnProperty(name = "stock-api.serving.mode", havingValue = "async")
+    public DispatcherServlet asyncDispatcherServlet(final WebMvcProperties webMvcProperties) {
+        final DispatcherServlet dispatcherServlet = new AsyncDispatcherServlet(threads, maxQueued, maxBodyBytes, journalEnabled);
+        dispatcherServlet.setDispatchOptionsRequest(webMvcProperties.isDispatchOptionsRequest());
+        dispatcherServlet.setDispatchTraceRequest(webMvcProperties.isDispatchTraceRequest());
+        dispatcherServlet.setThrowExceptionIfNoHandlerFound(webMvcProperties.isThrowExceptionIfNoHandlerFound());
+        return dispatcherServlet;
+    }
+
+    /**
+     * Tomcat threads only read, authenticate and hand over requests in async mode, besides serving export and batch,
+     * so a few of them are enough and bursts do not grow the Tomcat pool to its maximum
+     */
+    @Bean
+    @ConditionalOnProperty(name = "stock-api.serving.mode", havingValue = "async")
+    public EmbeddedServletContainerCustomizer asyncContainerCustomizer() {
+        return container -> {
+            if (container instanceof TomcatEmbeddedServletContainerFactory) {
+                ((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(connector -> {
+                    if (connector.getProtocolHandler() instanceof AbstractProtocol) {
+                        final AbstractProtocol<?> protocol = (AbstractProtocol<?>) connector.getProtocolHandler();
+                        protocol.setMaxThreads(containerThreads);
+                        protocol.setMinSpareThreads(Math.min(protocol.getMinSpareThreads(), containerThreads));
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Executor of the Tomcat requests in virtual mode, a request blocked on a lock or a socket unmounts from
+     * its carrier thread instead of holding a platform thread
+     */
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty(name = "stock-api.serving.mode", havingValue = "virtual")
+    public ExecutorService virtualThreadExecutor() {
+        return VirtualThreads.newThreadPerTaskExecutor("stock-virtual-");
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "stock-api.serving.mode", havingValue = "virtual")
+    public EmbeddedServletContainerCustomizer virtualContainerCustomizer(final ExecutorService virtualThreadExecutor) {
+        return container -> {
+            if (container instanceof TomcatEmbeddedServletContainerFactory) {
+                ((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(connector -> {
+                    if (connector.getProtocolHandler() instanceof AbstractProtocol) {
+                        ((AbstractProtocol<?>) connector.getProtocolHandler()).setExecutor(virtualThreadExecutor);
+                    }
+                });
+            }
+        };
+    }
+}
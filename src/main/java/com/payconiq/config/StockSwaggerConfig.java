@@ -1,18 +1,34 @@
 package com.payconiq.config;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.filter.OncePerRequestFilter;
 import springfox.documentation.builders.ApiInfoBuilder;
 import springfox.documentation.spi.DocumentationType;
 import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 
 /**
- * The Swagger configuration for the Stock API
+ * The Swagger configuration for the Stock API.
+ * With stock-api.startup.lazy-docs the controllers are scanned on the first request of the docs instead of at startup.
  */
 @Configuration
 @EnableSwagger2
 public class StockSwaggerConfig {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StockSwaggerConfig.class);
+    private static final String BOOTSTRAPPER_BEAN = "documentationPluginsBootstrapper";
+
     /**
      * @return the {@link Docket} for the Stock API
      */
@@ -22,4 +38,41 @@ public class StockSwaggerConfig {
                 new ApiInfoBuilder().title("STOCK API").description("REST API for Payconiq Stock").version("1.0").build()).
                 select().build();
     }
+
+    /**
+     * Springfox has no switch for its bootstrapper, so its bean is created as a {@link LazyDocumentationPluginsBootstrapper}
+     */
+    @Bean
+    @ConditionalOnProperty("stock-api.startup.lazy-docs")
+    public static BeanFactoryPostProcessor lazyDocumentationPostProcessor() {
+        return beanFactory -> beanFactory.getBeanDefinition(BOOTSTRAPPER_BEAN)
+                .setBeanClassName(LazyDocumentationPluginsBootstrapper.class.getName());
+    }
+
+    /**
+     * Scans the controllers before the first request of the docs or of their groups goes through
+     */
+    @Bean
+    @ConditionalOnProperty("stock-api.startup.lazy-docs")
+    public FilterRegistrationBean lazyDocumentationFilter(final LazyDocumentationPluginsBootstrapper bootstrapper) {
+        LOG.info("Deferring the Swagger docs to their first request");
+        final FilterRegistrationBean registration = new FilterRegistrationBean(new LazyDocumentationFilter(bootstrapper));
+        registration.addUrlPatterns("/v2/api-docs", "/swagger-resources", "/swagger-resources/*");
+        return registration;
+    }
+
+    private static final class LazyDocumentationFilter extends OncePerRequestFilter {
+        private final LazyDocumentationPluginsBootstrapper bootstrapper;
+
+        private LazyDocumentationFilter(final LazyDocumentationPluginsBootstrapper bootstrapper) {
+            this.bootstrapper = bootstrapper;
+        }
+
+        @Override
+        protected void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response,
+                                        final FilterChain filterChain) throws ServletException, IOException {
+            bootstrapper.startOnce();
+            filterChain.doFilter(request, response);
+        }
+    }
 }
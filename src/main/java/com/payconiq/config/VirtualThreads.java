@@ -0,0 +1,48 @@
+package com.payconiq.config;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads of JDK 21 and later, looked up by reflection as the API is built for Java 8 and runs on both.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true when the running JDK has virtual threads
+     */
+    public static boolean available() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param namePrefix threads are named with it and a counter, e.g. stock-virtual-1
+     * @return an executor starting a virtual thread per task
+     * @throws IllegalStateException when the running JDK has no virtual threads
+     */
+    public static ExecutorService newThreadPerTaskExecutor(final String namePrefix) {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            final Object namedBuilder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            final ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(namedBuilder);
+            final Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            throw new IllegalStateException("Virtual threads need JDK 21 or later, running on " + System.getProperty("java.version"), e);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Virtual threads could not be started", e);
+        }
+    }
+}
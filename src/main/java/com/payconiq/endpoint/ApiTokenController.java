@@ -0,0 +1,29 @@
+package com.payconiq.endpoint;
+
+import com.payconiq.model.ApiToken;
+import com.payconiq.security.ApiSecurityConfig;
+import com.payconiq.security.ApiTokenService;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Exchanges the basic credentials for a bearer token of {@link ApiTokenService}, the token then authenticates the
+ * /api requests until it expires without the credentials
+ */
+@Api("Payconiq Stock API tokens")
+@RestController
+public class ApiTokenController {
+
+    @Autowired
+    private ApiTokenService apiTokenService;
+
+    @ApiOperation(value = "Issue a bearer token for the authenticated user", response = ApiToken.class)
+    @PostMapping(value = ApiSecurityConfig.TOKEN_PATH, produces = "application/json")
+    public ApiToken issueToken(final Authentication authentication) {
+        return apiTokenService.issue(authentication, System.currentTimeMillis());
+    }
+}
@@ -1,28 +1,63 @@
 package com.payconiq.endpoint;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.payconiq.model.PriceBar;
+import com.payconiq.model.PricePoint;
+import com.payconiq.model.StockBatchResult;
 import com.payconiq.model.StockRequest;
 import com.payconiq.model.StockResponse;
+import com.payconiq.model.StockSort;
+import com.payconiq.model.StockUpdateRequest;
+import com.payconiq.model.exception.BatchTooLargeException;
+import com.payconiq.model.exception.FollowerCatchingUpException;
+import com.payconiq.model.exception.FollowerWriteException;
+import com.payconiq.model.exception.InvalidHistoryRequestException;
+import com.payconiq.model.exception.InvalidPageRequestException;
+import com.payconiq.model.exception.SortIndexLoadingException;
 import com.payconiq.model.exception.StockNotFoundException;
+import com.payconiq.model.exception.StockVersionConflictException;
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+import com.payconiq.service.SerializedPage;
+import com.payconiq.service.SerializedStock;
+import com.payconiq.service.StockBinary;
 import com.payconiq.service.StockService;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.hateoas.Link;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.util.UriComponentsBuilder;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.validation.ConstraintViolation;
 import javax.validation.Valid;
+import javax.validation.Validator;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * Common class for all the rest endpoint /api/stock interactions
@@ -32,29 +67,175 @@ import java.util.List;
 @RequestMapping(value = "/api/stocks")
 public class StockController {
 
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    private static final MediaType APPLICATION_NDJSON = MediaType.valueOf(APPLICATION_NDJSON_VALUE);
+    /**
+     * Compact binary format of {@link StockBinary}, served to the clients that ask for it
+     */
+    public static final String APPLICATION_STOCK_VALUE = "application/x-stock";
+    /**
+     * Versions start from 1, so an If-Match that is not one of our ETags or is one of another run never matches
+     */
+    private static final Long UNMATCHABLE_VERSION = 0L;
+    private static final int SORT_INDEX_RETRY_AFTER_SECONDS = 5;
+    private static final int CATCHING_UP_RETRY_AFTER_SECONDS = 1;
+    private static final String GZIP = "gzip";
+    private static final String WEAK_ETAG_PREFIX = "W/";
+    private static final Pattern ZERO_QUALITY = Pattern.compile("0(\\.0{0,3})?");
+
     @Autowired
     private StockService stockService;
+    @Autowired
+    private Validator validator;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Value("${stock-api.batch.max-size:10000}")
+    private int maxBatchSize;
+    /**
+     * Pages are gzipped here as they are cached gzipped, Tomcat gzips the other responses with the same settings
+     * and leaves the pages alone as they already have a Content-Encoding
+     */
+    @Value("${server.compression.enabled:false}")
+    private boolean compressionEnabled;
+    @Value("${server.compression.min-response-size:2048}")
+    private int compressionMinSize;
+    /**
+     * Without staleness a cached page is always at the current book version, so the version is checked
+     * before any page is taken or built. With staleness the page may be older and its own version is checked.
+     */
+    @Value("${stock-api.page.cache.max-staleness-ms:0}")
+    private long pageMaxStalenessMillis;
 
     /**
-     * Get stock by id
+     * Get stock by id, the JSON of the stock is serialized when the stock is written
+     * so it is copied to the response as it is.
+     * Answers 304 if the stock is not modified since the ETag in If-None-Match or the date in If-Modified-Since
      * @param id of the Stock
-     * @return Stock that is found by id
+     * @param webRequest to check the conditional headers and set ETag and Last-Modified
+     * @param response to write the Stock that is found by id
      */
-    @ApiOperation(value = "Return stock by id")
+    @ApiOperation(value = "Return stock by id", response = StockResponse.class)
     @GetMapping(value = "/{id}", produces = "application/json")
-    public StockResponse getStock(@PathVariable final Long id) {
-        return stockService.getStock(id);
+    public void getStock(@PathVariable final Long id, final WebRequest webRequest, final HttpServletResponse response) throws IOException {
+        final String epoch = stockService.getBookEpoch();
+        final SerializedStock serializedStock = stockService.getSerializedStock(id);
+        checkSameEpoch(epoch);
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        if (webRequest.checkNotModified(SerializedStock.eTag(epoch, serializedStock.getVersion()), serializedStock.getLastUpdate())) {
+            return;
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        response.setContentLength(serializedStock.getContentLength());
+        serializedStock.writeTo(response.getOutputStream());
+    }
+
+    /**
+     * Get stock by id in the compact binary format of {@link StockBinary}, for clients accepting application/x-stock.
+     * The ETag has the binary suffix so a cache never answers a JSON request with the binary or the other way around.
+     * @param id of the Stock
+     * @param webRequest to check the conditional headers and set ETag and Last-Modified
+     * @param response to write the Stock that is found by id
+     */
+    @ApiOperation(value = "Return stock by id in binary")
+    @GetMapping(value = "/{id}", produces = APPLICATION_STOCK_VALUE)
+    public void getStockBinary(@PathVariable final Long id, final WebRequest webRequest, final HttpServletResponse response) throws IOException {
+        final String epoch = stockService.getBookEpoch();
+        final SerializedStock serializedStock = stockService.getSerializedStock(id);
+        checkSameEpoch(epoch);
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        if (webRequest.checkNotModified(SerializedStock.binaryETag(epoch, serializedStock.getVersion()), serializedStock.getLastUpdate())) {
+            return;
+        }
+        final byte[] binary = serializedStock.toBinary();
+        response.setContentType(APPLICATION_STOCK_VALUE);
+        response.setContentLength(binary.length);
+        response.getOutputStream().write(binary);
     }
 
     /**
-     * Probably pagination could have been added if using in-memory or persistent database
-     * for now keeping it simple
-     * @return All the stocks
+     * Keyset pagination over the stocks, body stays a plain array and the next page is given
+     * as a Link header with rel="next" so clients can walk all the stocks cursor by cursor.
+     * Pages are JSON already, cached by the StockService, and gzipped when the client accepts it and they are
+     * at least server.compression.min-response-size long.
+     * @param sort one of id, name or price
+     * @param name to only get the stocks with this exact name, paged in name order whatever the sort
+     * @param namePrefix to only get the stocks with names starting with it, paged in name order whatever the sort
+     * @param after cursor of the next page taken from the previous page link
+     * @param limit maximum number of stocks in the page
+     * @param acceptEncoding to send the gzip of the page when it is accepted and the page is large enough
+     * @param webRequest to answer 304 when the book has not changed since the ETag or date of the client
+     * @param response to write the page of stocks
      */
-    @ApiOperation(value = "Return the stocks")
+    @ApiOperation(value = "Return the stocks page by page", response = StockResponse.class, responseContainer = "List")
     @GetMapping(produces = "application/json")
-    public List<StockResponse> getStock() {
-       return stockService.getStocks();
+    public void getStock(@RequestParam(defaultValue = "id") final String sort,
+                         @RequestParam(required = false) final String name,
+                         @RequestParam(required = false) final String namePrefix,
+                         @RequestParam(required = false) final String after,
+                         @RequestParam(defaultValue = "${stock-api.page.default-limit:100}") final int limit,
+                         @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) final String acceptEncoding,
+                         final WebRequest webRequest, final HttpServletResponse response) throws IOException {
+        writePage(sort, name, namePrefix, after, limit, false, acceptEncoding, webRequest, response);
+    }
+
+    /**
+     * Same pages as {@link #getStock(String, String, String, String, int, String, WebRequest, HttpServletResponse)}
+     * with the stocks in the compact binary format of {@link StockBinary}, one after the other
+     */
+    @ApiOperation(value = "Return the stocks page by page in binary")
+    @GetMapping(produces = APPLICATION_STOCK_VALUE)
+    public void getStocksBinary(@RequestParam(defaultValue = "id") final String sort,
+                                @RequestParam(required = false) final String name,
+                                @RequestParam(required = false) final String namePrefix,
+                                @RequestParam(required = false) final String after,
+                                @RequestParam(defaultValue = "${stock-api.page.default-limit:100}") final int limit,
+                                @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) final String acceptEncoding,
+                                final WebRequest webRequest, final HttpServletResponse response) throws IOException {
+        writePage(sort, name, namePrefix, after, limit, true, acceptEncoding, webRequest, response);
+    }
+
+    /**
+     * Price changes of the stock, from and to are epoch milliseconds and the to time itself is left out
+     * @param id of the Stock
+     * @return price changes oldest first
+     */
+    @ApiOperation(value = "Return the price changes of the stock in a time range")
+    @GetMapping(value = "/{id}/history", produces = "application/json")
+    public List<PricePoint> getPriceHistory(@PathVariable final Long id,
+                                            @RequestParam(defaultValue = "0") final long from,
+                                            @RequestParam(defaultValue = "" + Long.MAX_VALUE) final long to) {
+        return stockService.getPriceHistory(id, from, to);
+    }
+
+    /**
+     * Candles of the price changes of the stock, intervals start at multiples of the interval since the epoch
+     * @param id of the Stock
+     * @param interval of each candle e.g. 30s, 1m, 1h or 1d
+     * @return one candle per interval with price changes, oldest first
+     */
+    @ApiOperation(value = "Return open, high, low and close prices of the stock per interval")
+    @GetMapping(value = "/{id}/ohlc", produces = "application/json")
+    public List<PriceBar> getPriceBars(@PathVariable final Long id,
+                                       @RequestParam(defaultValue = "1m") final String interval,
+                                       @RequestParam(defaultValue = "0") final long from,
+                                       @RequestParam(defaultValue = "" + Long.MAX_VALUE) final long to) {
+        return stockService.getPriceBars(id, interval, from, to);
+    }
+
+    /**
+     * Export all the stocks streamed with chunked encoding, as one JSON object per line when
+     * application/x-ndjson is accepted otherwise as a single JSON array
+     * @param accept header of the request
+     * @param response to stream the stocks into
+     */
+    @ApiOperation(value = "Export all the stocks as a JSON array or newline delimited JSON")
+    @GetMapping(value = "/export", produces = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE})
+    public void exportStocks(@RequestHeader(value = HttpHeaders.ACCEPT, defaultValue = MediaType.APPLICATION_JSON_VALUE) final String accept,
+                             final HttpServletResponse response) throws IOException {
+        final boolean newlineDelimited = MediaType.parseMediaTypes(accept).stream()
+                .anyMatch(mediaType -> !mediaType.isWildcardSubtype() && APPLICATION_NDJSON.includes(mediaType));
+        response.setContentType(newlineDelimited ? APPLICATION_NDJSON_VALUE : MediaType.APPLICATION_JSON_UTF8_VALUE);
+        stockService.exportStocks(response.getOutputStream(), newlineDelimited);
     }
 
     /**
@@ -66,19 +247,116 @@ public class StockController {
     @PostMapping(consumes = "application/json", produces = "application/json")
     public ResponseEntity<StockResponse> createStock(@Valid @RequestBody final StockRequest stock) {
         final StockResponse stockResponse = stockService.createStock(stock);
-        return new ResponseEntity<>(stockResponse, addLocationHeaders(stockResponse.getId()), HttpStatus.CREATED);
+        final HttpHeaders headers = addLocationHeaders(stockResponse.getId());
+        headers.setETag(SerializedStock.eTag(stockService.getBookEpoch(), stockResponse.getVersion()));
+        return new ResponseEntity<>(stockResponse, headers, HttpStatus.CREATED);
     }
 
     /**
-     * Update stockRequest if exists otherwise return error
+     * Update stockRequest if exists otherwise return error.
+     * When If-Match header is given the update is only applied if the stock is still at that ETag
+     * otherwise 412 is returned, so concurrent updates do not silently overwrite each other
+     * @param ifMatch optional ETag of the stock the update is based on
      * @param stockRequest to be Updated
-     * @return updated Stock
+     * @return no content with the ETag of the updated Stock
      */
     @ApiOperation(value = "Update existing stock")
     @PutMapping(value = "/{id}", consumes = "application/json", produces = "application/json")
-    public ResponseEntity<Void> updateStock(@PathVariable final Long id, @Valid @RequestBody final StockRequest stockRequest) {
-        stockService.updateStock(stockRequest, id);
-        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    public ResponseEntity<Void> updateStock(@PathVariable final Long id,
+                                            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) final String ifMatch,
+                                            @Valid @RequestBody final StockRequest stockRequest) {
+        final String epoch = stockService.getBookEpoch();
+        final StockResponse stockResponse = stockService.updateStock(stockRequest, id, expectedVersion(epoch, ifMatch));
+        return ResponseEntity.noContent().eTag(SerializedStock.eTag(epoch, stockResponse.getVersion())).build();
+    }
+
+    /**
+     * Create the stocks of a JSON array in one go, invalid items are reported in their result
+     * and do not stop the valid ones from being created
+     * @param stockRequests to be created
+     * @return one result per item in the same order
+     */
+    @ApiOperation(value = "Create stocks in batch")
+    @PostMapping(value = "/batch", consumes = "application/json", produces = {"application/json", APPLICATION_STOCK_VALUE})
+    public List<StockBatchResult> createStocks(@RequestBody final List<StockRequest> stockRequests) {
+        return applyBatch(stockRequests, stockService::createStocks);
+    }
+
+    /**
+     * Create the stocks of a newline delimited JSON body in one go
+     * @param request whose body has one stock per line
+     * @return one result per line in the same order
+     */
+    @ApiOperation(value = "Create stocks in batch from newline delimited JSON")
+    @PostMapping(value = "/batch", consumes = APPLICATION_NDJSON_VALUE, produces = {"application/json", APPLICATION_STOCK_VALUE})
+    public List<StockBatchResult> createStocksFromNdjson(final HttpServletRequest request) throws IOException {
+        return createStocks(readNdjson(request, StockRequest.class));
+    }
+
+    /**
+     * Update the stocks of a JSON array in one go, invalid or missing items are reported in their result
+     * and do not stop the other ones from being updated
+     * @param stockRequests to be updated, each with the id of the stock
+     * @return one result per item in the same order
+     */
+    @ApiOperation(value = "Update existing stocks in batch")
+    @PutMapping(value = "/batch", consumes = "application/json", produces = {"application/json", APPLICATION_STOCK_VALUE})
+    public List<StockBatchResult> updateStocks(@RequestBody final List<StockUpdateRequest> stockRequests) {
+        return applyBatch(stockRequests, stockService::updateStocks);
+    }
+
+    /**
+     * Update the stocks of a newline delimited JSON body in one go
+     * @param request whose body has one stock with its id per line
+     * @return one result per line in the same order
+     */
+    @ApiOperation(value = "Update existing stocks in batch from newline delimited JSON")
+    @PutMapping(value = "/batch", consumes = APPLICATION_NDJSON_VALUE, produces = {"application/json", APPLICATION_STOCK_VALUE})
+    public List<StockBatchResult> updateStocksFromNdjson(final HttpServletRequest request) throws IOException {
+        return updateStocks(readNdjson(request, StockUpdateRequest.class));
+    }
+
+    /**
+     * Validate all the items in a single pass then hand the valid ones to the service at once,
+     * results of the invalid items are put back at their position
+     */
+    private <T> List<StockBatchResult> applyBatch(final List<T> stockRequests, final Function<List<T>, List<StockBatchResult>> operation) {
+        if (stockRequests.size() > maxBatchSize) {
+            throw new BatchTooLargeException(stockRequests.size(), maxBatchSize);
+        }
+        final StockBatchResult[] results = new StockBatchResult[stockRequests.size()];
+        final List<T> validRequests = new ArrayList<>(stockRequests.size());
+        final int[] validIndexes = new int[stockRequests.size()];
+        for (int index = 0; index < stockRequests.size(); index++) {
+            final T stockRequest = stockRequests.get(index);
+            final String violations = stockRequest == null ? "Stock is required" : violations(validator.validate(stockRequest));
+            if (violations.isEmpty()) {
+                validIndexes[validRequests.size()] = index;
+                validRequests.add(stockRequest);
+            } else {
+                results[index] = StockBatchResult.builder().status(HttpStatus.BAD_REQUEST.value()).message(violations).build();
+            }
+        }
+        final List<StockBatchResult> validResults = operation.apply(validRequests);
+        for (int index = 0; index < validResults.size(); index++) {
+            results[validIndexes[index]] = validResults.get(index);
+        }
+        return Arrays.asList(results);
+    }
+
+    private static <T> String violations(final Set<ConstraintViolation<T>> violations) {
+        return violations.stream()
+                .map(violation -> violation.getPropertyPath() + " " + violation.getMessage())
+                .sorted()
+                .collect(Collectors.joining(", "));
+    }
+
+    private <T> List<T> readNdjson(final HttpServletRequest request, final Class<T> type) throws IOException {
+        try (MappingIterator<T> iterator = objectMapper.readerFor(type).readValues(request.getInputStream())) {
+            return iterator.readAll();
+        } catch (JsonProcessingException e) {
+            throw new HttpMessageNotReadableException("Could not read newline delimited JSON: " + e.getOriginalMessage(), e);
+        }
     }
 
     /**
@@ -92,6 +370,206 @@ public class StockController {
         return headers;
     }
 
+    private void writePage(final String sort, final String name, final String namePrefix, final String after, final int limit,
+                           final boolean binary, final String acceptEncoding, final WebRequest webRequest,
+                           final HttpServletResponse response) throws IOException {
+        if (name != null && namePrefix != null) {
+            throw new InvalidPageRequestException("Only one of name and namePrefix can be given");
+        }
+        final StockSort stockSort = name != null || namePrefix != null ? StockSort.NAME : StockSort.fromValue(sort);
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING);
+        //Any page only depends on the book, the query and the format, so the book version is a strong validator for every url
+        final String epoch = stockService.getBookEpoch();
+        String eTag = null;
+        if (pageMaxStalenessMillis <= 0) {
+            eTag = bookETag(epoch, stockService.getBookVersion(), binary);
+            checkSameEpoch(epoch);
+            if (webRequest.checkNotModified(revalidatedETag(webRequest, eTag), stockService.getBookLastModified())) {
+                return;
+            }
+        }
+        final SerializedPage page;
+        if (name != null || namePrefix != null) {
+            page = stockService.getSerializedStocksByName(name != null ? name : namePrefix, namePrefix != null, after, limit, binary);
+        } else {
+            page = stockService.getSerializedStocks(stockSort, after, limit, binary);
+        }
+        checkSameEpoch(epoch);
+        if (eTag == null) {
+            eTag = bookETag(epoch, page.getBookVersion(), binary);
+            if (webRequest.checkNotModified(revalidatedETag(webRequest, eTag), page.getLastModified())) {
+                return;
+            }
+        }
+        if (page.getNextCursor() != null) {
+            response.addHeader(HttpHeaders.LINK, nextLink(stockSort, name, namePrefix, page.getNextCursor(), limit).toString());
+        }
+        final boolean gzip = compressionEnabled && page.getContentLength(false) >= compressionMinSize && acceptsGzip(acceptEncoding);
+        if (gzip) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP);
+            response.setHeader(HttpHeaders.ETAG, WEAK_ETAG_PREFIX + eTag);
+        }
+        response.setContentType(binary ? APPLICATION_STOCK_VALUE : MediaType.APPLICATION_JSON_UTF8_VALUE);
+        response.setContentLength(page.getContentLength(gzip));
+        page.writeTo(response.getOutputStream(), gzip);
+    }
+
+    /**
+     * The gzip of a page has the weak form of the ETag of the page, its bytes are not those of the page.
+     * If-None-Match is a weak comparison so either form is not modified, and the 304 gives back the form the client has.
+     */
+    private static String revalidatedETag(final WebRequest webRequest, final String eTag) {
+        final String weakETag = WEAK_ETAG_PREFIX + eTag;
+        final String ifNoneMatch = webRequest.getHeader(HttpHeaders.IF_NONE_MATCH);
+        return ifNoneMatch != null && ifNoneMatch.contains(weakETag) ? weakETag : eTag;
+    }
+
+    /**
+     * A follower changes epoch when it takes the book of another run of its leader, so the ETag is only of the book
+     * that was read when the epoch is the same after the read as before
+     */
+    private void checkSameEpoch(final String epoch) {
+        if (!epoch.equals(stockService.getBookEpoch())) {
+            throw new FollowerCatchingUpException();
+        }
+    }
+
+    private static String bookETag(final String epoch, final long bookVersion, final boolean binary) {
+        return "\"book-" + epoch + "-" + bookVersion + (binary ? SerializedStock.BINARY_ETAG_SUFFIX : "") + "\"";
+    }
+
+    /**
+     * @return true when gzip is one of the accepted encodings and not refused with q=0
+     */
+    private static boolean acceptsGzip(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (final String encoding : acceptEncoding.split(",")) {
+            final String[] parameters = encoding.split(";");
+            if (GZIP.equalsIgnoreCase(parameters[0].trim())) {
+                for (int index = 1; index < parameters.length; index++) {
+                    final String parameter = parameters[index].replace(" ", "");
+                    if (parameter.startsWith("q=") && ZERO_QUALITY.matcher(parameter.substring(2)).matches()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Link to the next page using Spring hateoas library
+     * @return link with rel next
+     */
+    private Link nextLink(final StockSort sort, final String name, final String namePrefix, final String nextCursor, final int limit) {
+        final UriComponentsBuilder builder = linkTo(StockController.class).toUriComponentsBuilder();
+        if (name != null) {
+            builder.queryParam("name", name);
+        } else if (namePrefix != null) {
+            builder.queryParam("namePrefix", namePrefix);
+        }
+        final String href = builder
+                .queryParam("sort", sort.getValue())
+                .queryParam("after", nextCursor)
+                .queryParam("limit", limit)
+                .build().toUriString();
+        return new Link(href, Link.REL_NEXT);
+    }
+
+    /**
+     * @param epoch of the run, an ETag of another run never matches
+     * @param ifMatch header value, either * or a strong ETag of the JSON or of the binary of the stock
+     * @return null when any version can be updated, otherwise the version in the ETag
+     */
+    private static Long expectedVersion(final String epoch, final String ifMatch) {
+        if (ifMatch == null || "*".equals(ifMatch.trim())) {
+            return null;
+        }
+        final String eTag = ifMatch.trim();
+        final String prefix = "\"" + epoch + "-";
+        if (eTag.length() > prefix.length() + 1 && eTag.startsWith(prefix) && eTag.endsWith("\"")) {
+            final String value = eTag.substring(prefix.length(), eTag.length() - 1);
+            try {
+                return Long.valueOf(value.endsWith(SerializedStock.BINARY_ETAG_SUFFIX)
+                        ? value.substring(0, value.length() - SerializedStock.BINARY_ETAG_SUFFIX.length()) : value);
+            } catch (NumberFormatException e) {
+                //falls through, the ETag can not be one of ours
+            }
+        }
+        return UNMATCHABLE_VERSION;
+    }
+
+    /**
+     * Catch the StockVersionConflictException error and then convert it into precondition failed httpResponse
+     */
+    @ExceptionHandler(StockVersionConflictException.class)
+    public void stockVersionConflictHandler(final HttpServletResponse response, final StockVersionConflictException exception) throws IOException {
+        response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED, exception.getMessage());
+    }
+
+    /**
+     * Catch the InvalidPageRequestException error and then convert it into bad request httpResponse
+     */
+    @ExceptionHandler(InvalidPageRequestException.class)
+    public void invalidPageRequestHandler(final HttpServletResponse response, final InvalidPageRequestException exception) throws IOException {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, exception.getMessage());
+    }
+
+    /**
+     * Catch the InvalidHistoryRequestException error and then convert it into bad request httpResponse
+     */
+    @ExceptionHandler(InvalidHistoryRequestException.class)
+    public void invalidHistoryRequestHandler(final HttpServletResponse response, final InvalidHistoryRequestException exception) throws IOException {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, exception.getMessage());
+    }
+
+    /**
+     * Catch the SortIndexLoadingException error and then convert it into service unavailable httpResponse
+     */
+    @ExceptionHandler(SortIndexLoadingException.class)
+    public void sortIndexLoadingHandler(final HttpServletResponse response, final SortIndexLoadingException exception) throws IOException {
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(SORT_INDEX_RETRY_AFTER_SECONDS));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, exception.getMessage());
+    }
+
+    /**
+     * Catch the FollowerCatchingUpException error and then convert it into service unavailable httpResponse,
+     * so a load balancer sends the read to another follower until this one has the book of the leader
+     */
+    @ExceptionHandler(FollowerCatchingUpException.class)
+    public void followerCatchingUpHandler(final HttpServletResponse response, final FollowerCatchingUpException exception) throws IOException {
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(CATCHING_UP_RETRY_AFTER_SECONDS));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, exception.getMessage());
+    }
+
+    /**
+     * Catch the BatchTooLargeException error and then convert it into payload too large httpResponse
+     */
+    @ExceptionHandler(BatchTooLargeException.class)
+    public void batchTooLargeHandler(final HttpServletResponse response, final BatchTooLargeException exception) throws IOException {
+        response.sendError(HttpStatus.PAYLOAD_TOO_LARGE.value(), exception.getMessage());
+    }
+
+    /**
+     * Catch the FollowerWriteException error and then redirect the write to the leader with its method and body,
+     * or convert it into method not allowed httpResponse when the leader is not known
+     */
+    @ExceptionHandler(FollowerWriteException.class)
+    public void followerWriteHandler(final HttpServletRequest request, final HttpServletResponse response,
+                                     final FollowerWriteException exception) throws IOException {
+        if (exception.getLeaderUrl() == null) {
+            response.setHeader(HttpHeaders.ALLOW, "GET, HEAD");
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, exception.getMessage());
+            return;
+        }
+        response.setHeader(HttpHeaders.LOCATION, UriComponentsBuilder.fromHttpUrl(exception.getLeaderUrl())
+                .path(request.getRequestURI()).query(request.getQueryString()).build().toUriString());
+        response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value());
+    }
+
     /**
      * Catch the StockNotFoundException error and then convert it into more generic httpResponse
      */
@@ -0,0 +1,151 @@
+package com.payconiq.endpoint;
+
+import com.payconiq.service.SerializedStock;
+import com.payconiq.service.StockSubscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Server sent events of one subscriber of /api/stocks/stream, written without ever blocking.
+ *
+ * Events are only written while the connection takes them, a drain that meets a full connection stops
+ * and is resumed by the container once the connection drains, so a stalled subscriber holds no thread.
+ * A subscriber that does not take anything for longer than the send timeout is dropped.
+ */
+final class StockEventStream implements StockSubscription.Sink, WriteListener, AsyncListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StockEventStream.class);
+    private static final byte[] EVENT_START = "event:stock\nid:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DATA_START = "\ndata:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EVENT_END = "\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream output;
+    private final StockSubscription subscription;
+    private final Runnable unsubscriber;
+    //Every event is written at once, a non-blocking write may only follow a ready output
+    private final ByteArrayOutputStream event = new ByteArrayOutputStream();
+    private volatile long stalledSinceNanos;
+    private volatile boolean stalled;
+    private boolean closed;
+
+    StockEventStream(final AsyncContext asyncContext, final StockSubscription subscription, final Runnable unsubscriber)
+            throws IOException {
+        this.asyncContext = asyncContext;
+        this.output = asyncContext.getResponse().getOutputStream();
+        this.subscription = subscription;
+        this.unsubscriber = unsubscriber;
+    }
+
+    /**
+     * @return true if the subscriber has not taken anything for longer than the timeout
+     */
+    boolean isStalled(final long nowNanos, final long timeoutNanos) {
+        return stalled && nowNanos - stalledSinceNanos > timeoutNanos;
+    }
+
+    /**
+     * Send the pending changes as far as the subscriber takes them, on a sender thread once changes are offered
+     * and on a container thread once the subscriber takes more
+     */
+    synchronized void push() {
+        if (closed) {
+            return;
+        }
+        try {
+            if (subscription.drain(this) && output.isReady()) {
+                output.flush();
+            }
+            if (subscription.isDropped()) {
+                LOG.info("Dropping slow stock stream subscriber");
+                close();
+            } else if (output.isReady()) {
+                stalled = false;
+            } else if (!stalled) {
+                stalledSinceNanos = System.nanoTime();
+                stalled = true;
+            }
+        } catch (IOException | IllegalStateException e) {
+            LOG.debug("Stock stream subscriber is gone", e);
+            close();
+        }
+    }
+
+    /**
+     * Drop the subscriber once it took nothing for longer than the send timeout
+     */
+    void drop() {
+        LOG.info("Dropping stalled stock stream subscriber");
+        close();
+    }
+
+    /**
+     * Complete the response, changes still pending are not sent
+     */
+    synchronized void close() {
+        unsubscriber.run();
+        if (!closed) {
+            closed = true;
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                LOG.debug("Stock stream is already complete", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return output.isReady();
+    }
+
+    @Override
+    public void send(final SerializedStock stock) throws IOException {
+        event.reset();
+        event.write(EVENT_START);
+        event.write((stock.getId() + ":" + stock.getVersion()).getBytes(StandardCharsets.US_ASCII));
+        event.write(DATA_START);
+        stock.writeTo(event);
+        event.write(EVENT_END);
+        event.writeTo(output);
+    }
+
+    @Override
+    public void onWritePossible() {
+        push();
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        LOG.debug("Stock stream subscriber is gone", throwable);
+        close();
+    }
+
+    @Override
+    public void onComplete(final AsyncEvent asyncEvent) {
+        unsubscriber.run();
+    }
+
+    @Override
+    public void onTimeout(final AsyncEvent asyncEvent) {
+        close();
+    }
+
+    @Override
+    public void onError(final AsyncEvent asyncEvent) {
+        onError(asyncEvent.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(final AsyncEvent asyncEvent) {
+        //Not dispatched again
+    }
+}
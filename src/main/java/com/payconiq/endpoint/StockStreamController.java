@@ -0,0 +1,117 @@
+package com.payconiq.endpoint;
+
+import com.payconiq.service.SerializedStock;
+import com.payconiq.service.StockChangeListener;
+import com.payconiq.service.StockService;
+import com.payconiq.service.StockSubscription;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server sent events of stock changes for /api/stocks/stream, replacing polling of /api/stocks.
+ *
+ * Writers only put the change into the coalescing buffer of each {@link StockSubscription},
+ * sending to the subscribers is done by a small pool so a slow subscriber never slows down the writers.
+ * The pool only writes what a connection takes without blocking, see {@link StockEventStream},
+ * so a stalled subscriber never delays the others.
+ */
+@Api("Payconiq Stock Stream API")
+@RestController
+@RequestMapping(value = "/api/stocks/stream")
+public class StockStreamController implements StockChangeListener {
+
+    private static final String EVENT_STREAM_CONTENT_TYPE = MediaType.TEXT_EVENT_STREAM_VALUE + ";charset=UTF-8";
+
+    @Autowired
+    private StockService stockService;
+    @Value("${stock-api.stream.max-pending:10000}")
+    private int maxPending;
+    @Value("${stock-api.stream.timeout-ms:1800000}")
+    private long timeoutMillis;
+    @Value("${stock-api.stream.send-timeout-ms:30000}")
+    private long sendTimeoutMillis;
+    @Value("${stock-api.stream.threads:2}")
+    private int threads;
+
+    private final Map<StockSubscription, StockEventStream> subscriptions = new ConcurrentHashMap<>();
+    private ExecutorService senders;
+
+    @PostConstruct
+    public void init() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        senders = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "stock-stream-sender-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        stockService.addChangeListener(this);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        stockService.removeChangeListener(this);
+        senders.shutdownNow();
+    }
+
+    /**
+     * Subscribe to the changes of the stocks, every event is the stock JSON as in /api/stocks/{id}.
+     * Only the latest change of a stock is sent when a subscriber falls behind and a subscriber that
+     * falls too far behind, or takes nothing for stock-api.stream.send-timeout-ms, is disconnected,
+     * it can reconnect and reload the stocks.
+     * @param ids of the stocks to get changes of, all the stocks when not given
+     */
+    @ApiOperation(value = "Stream the changes of the stocks as server sent events")
+    @GetMapping(produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public void subscribe(@RequestParam(required = false) final List<Long> ids, final HttpServletRequest request,
+                          final HttpServletResponse response) throws IOException {
+        final StockSubscription subscription = new StockSubscription(ids == null ? null : new HashSet<>(ids), maxPending);
+        response.setContentType(EVENT_STREAM_CONTENT_TYPE);
+        final AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(timeoutMillis);
+        final StockEventStream stream = new StockEventStream(asyncContext, subscription, () -> unsubscribe(subscription));
+        asyncContext.addListener(stream);
+        subscriptions.put(subscription, stream);
+        //Called back at once to send the headers, then whenever the connection takes more after a full one
+        response.getOutputStream().setWriteListener(stream);
+    }
+
+    @Override
+    public void stockChanged(final SerializedStock stock) {
+        final long nowNanos = System.nanoTime();
+        final long sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+        subscriptions.forEach((subscription, stream) -> {
+            if (stream.isStalled(nowNanos, sendTimeoutNanos)) {
+                unsubscribe(subscription);
+                senders.execute(stream::drop);
+            } else if (subscription.offer(stock)) {
+                senders.execute(stream::push);
+            }
+        });
+    }
+
+    private void unsubscribe(final StockSubscription subscription) {
+        subscription.cancel();
+        subscriptions.remove(subscription);
+    }
+}
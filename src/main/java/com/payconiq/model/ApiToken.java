@@ -0,0 +1,24 @@
+package com.payconiq.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ApiToken {
+
+    /**
+     * Sent as Authorization: Bearer token on the /api requests
+     */
+    private String token;
+    private String tokenType;
+    /**
+     * Epoch millis after which the token is rejected
+     */
+    private Long expiresAt;
+
+}
@@ -0,0 +1,31 @@
+package com.payconiq.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.math.BigDecimal;
+
+/**
+ * Open, high, low and close prices of a stock in one interval
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PriceBar {
+
+    /**
+     * Epoch milliseconds the interval starts at, a multiple of the interval
+     */
+    private long start;
+    private BigDecimal open;
+    private BigDecimal high;
+    private BigDecimal low;
+    private BigDecimal close;
+    /**
+     * Number of price changes in the interval
+     */
+    private long ticks;
+
+}
@@ -0,0 +1,24 @@
+package com.payconiq.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.math.BigDecimal;
+
+/**
+ * Price of a stock from the time it was changed
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PricePoint {
+
+    /**
+     * Epoch milliseconds of the change, same as lastUpdate of the stock
+     */
+    private long timestamp;
+    private BigDecimal price;
+
+}
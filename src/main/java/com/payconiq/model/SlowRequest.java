@@ -0,0 +1,31 @@
+package com.payconiq.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.util.Map;
+
+/**
+ * A sampled request kept as one of the slowest of its route, with the time spent in every phase
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SlowRequest {
+
+    /**
+     * Epoch milliseconds when the request came in
+     */
+    private long timestamp;
+    private String method;
+    private String path;
+    private int status;
+    private long durationMicros;
+    /**
+     * Microseconds per phase in the order the request went through them, phases the request did not reach are left out
+     */
+    private Map<String, Long> phaseMicros;
+
+}
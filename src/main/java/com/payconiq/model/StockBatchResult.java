@@ -0,0 +1,27 @@
+package com.payconiq.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Outcome of one item of a batch request, results are in the same order as the items of the request.
+ * Null fields are left out to keep the response of large batches compact.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class StockBatchResult {
+
+    private Long id;
+    /**
+     * Http status the item would have got as a single request, e.g. 201, 204, 400 or 404
+     */
+    private int status;
+    private String message;
+
+}
@@ -0,0 +1,22 @@
+package com.payconiq.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockPage {
+
+    private List<StockResponse> stocks;
+    /**
+     * Opaque keyset cursor to pass as after parameter to get the next page,
+     * null when this is the last page
+     */
+    private String nextCursor;
+
+}
@@ -1,8 +1,10 @@
 package com.payconiq.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import java.math.BigDecimal;
 
@@ -10,6 +12,7 @@ import java.math.BigDecimal;
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
+@EqualsAndHashCode(exclude = "version")
 public class StockResponse {
 
     private Long id;
@@ -21,5 +24,11 @@ public class StockResponse {
      * to keep things simpler.
      */
     private Long lastUpdate;
+    /**
+     * Optimistic locking version, starts from 1 and is incremented on every update.
+     * It is given to clients as ETag header instead of being part of the body.
+     */
+    @JsonIgnore
+    private Long version;
 
 }
@@ -0,0 +1,32 @@
+package com.payconiq.model;
+
+import com.payconiq.model.exception.InvalidPageRequestException;
+import java.util.Locale;
+
+/**
+ * Orderings supported by the paginated /api/stocks listing.
+ * Every ordering is a total order because ties are broken by stock id.
+ */
+public enum StockSort {
+    ID,
+    NAME,
+    PRICE;
+
+    /**
+     * Resolve the ordering from the request parameter value, case insensitive
+     * @param value of the sort request parameter
+     * @return the matching ordering
+     */
+    public static StockSort fromValue(final String value) {
+        for (final StockSort sort : values()) {
+            if (sort.name().equalsIgnoreCase(value)) {
+                return sort;
+            }
+        }
+        throw new InvalidPageRequestException("Unknown sort " + value);
+    }
+
+    public String getValue() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
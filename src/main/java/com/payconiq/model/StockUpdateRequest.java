@@ -0,0 +1,27 @@
+package com.payconiq.model;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import javax.validation.constraints.NotNull;
+import java.math.BigDecimal;
+
+/**
+ * Item of a batch update, carries the id of the stock to be updated next to the new values
+ */
+@Data
+@NoArgsConstructor
+@EqualsAndHashCode(callSuper = true)
+@ToString(callSuper = true)
+public class StockUpdateRequest extends StockRequest {
+
+    @NotNull
+    private Long id;
+
+    public StockUpdateRequest(final Long id, final String name, final BigDecimal currentPrice) {
+        super(name, currentPrice);
+        this.id = id;
+    }
+
+}
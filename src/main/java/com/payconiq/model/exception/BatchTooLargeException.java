@@ -0,0 +1,9 @@
+package com.payconiq.model.exception;
+
+public class BatchTooLargeException extends RuntimeException {
+
+    public BatchTooLargeException(final int size, final int maxSize) {
+        super("Batch of " + size + " stocks is larger than maximum " + maxSize);
+    }
+
+}
@@ -0,0 +1,9 @@
+package com.payconiq.model.exception;
+
+public class FollowerCatchingUpException extends RuntimeException {
+
+    public FollowerCatchingUpException() {
+        super("Stocks are not served until the follower has the book of the leader, retry later");
+    }
+
+}
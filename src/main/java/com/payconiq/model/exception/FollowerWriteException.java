@@ -0,0 +1,19 @@
+package com.payconiq.model.exception;
+
+public class FollowerWriteException extends RuntimeException {
+
+    private final String leaderUrl;
+
+    /**
+     * @param leaderUrl base url of the leader the write can be sent to, null when it is not known
+     */
+    public FollowerWriteException(final String leaderUrl) {
+        super(leaderUrl == null ? "Stocks are only written on the leader" : "Stocks are only written on the leader " + leaderUrl);
+        this.leaderUrl = leaderUrl;
+    }
+
+    public String getLeaderUrl() {
+        return leaderUrl;
+    }
+
+}
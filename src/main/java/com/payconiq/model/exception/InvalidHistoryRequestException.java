@@ -0,0 +1,9 @@
+package com.payconiq.model.exception;
+
+public class InvalidHistoryRequestException extends RuntimeException {
+
+    public InvalidHistoryRequestException(final String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,9 @@
+package com.payconiq.model.exception;
+
+public class InvalidPageRequestException extends RuntimeException {
+
+    public InvalidPageRequestException(final String message) {
+        super(message);
+    }
+
+}
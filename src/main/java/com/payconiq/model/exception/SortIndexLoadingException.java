@@ -0,0 +1,11 @@
+package com.payconiq.model.exception;
+
+import com.payconiq.model.StockSort;
+
+public class SortIndexLoadingException extends RuntimeException {
+
+    public SortIndexLoadingException(final StockSort sort) {
+        super("Sorting by " + sort.getValue() + " is not available until the stocks are loaded, retry later");
+    }
+
+}
@@ -3,7 +3,11 @@ package com.payconiq.model.exception;
 public class StockNotFoundException extends RuntimeException {
 
     public StockNotFoundException(final Long id) {
-        super("Stock not found by " + id);
+        super(message(id));
+    }
+
+    public static String message(final Long id) {
+        return "Stock not found by " + id;
     }
 
 }
@@ -0,0 +1,9 @@
+package com.payconiq.model.exception;
+
+public class StockVersionConflictException extends RuntimeException {
+
+    public StockVersionConflictException(final Long id, final Long expectedVersion, final Long version) {
+        super("Stock " + id + " is at version " + version + " not " + expectedVersion);
+    }
+
+}
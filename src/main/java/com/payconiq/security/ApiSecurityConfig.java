@@ -0,0 +1,77 @@
+package com.payconiq.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.autoconfigure.security.SpringBootWebSecurityConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+import org.springframework.security.access.vote.AuthenticatedVoter;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.annotation.web.configurers.UrlAuthorizationConfigurer;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+/**
+ * Security of the /api endpoints, the chains of Spring Boot keep the other paths.
+ * No session is created or read, every request carries its credentials: a bearer token of {@link ApiTokenService}
+ * issued at {@link #TOKEN_PATH} or the security.user basic credentials as before.
+ * Headers, realm and CSRF follow the security properties like the default chain.
+ *
+ * The chain comes right after the ignored paths so an /api request is not matched against every actuator path
+ * of the management chain, and access is checked by a voter instead of evaluating an expression on every request.
+ */
+@Configuration
+@Order(SecurityProperties.IGNORED_ORDER + 1)
+public class ApiSecurityConfig extends WebSecurityConfigurerAdapter {
+
+    public static final String TOKEN_PATH = "/api/token";
+    private static final Logger LOG = LoggerFactory.getLogger(ApiSecurityConfig.class);
+    private static final int GENERATED_SECRET_BYTES = 32;
+
+    @Autowired
+    private SecurityProperties securityProperties;
+    @Value("${stock-api.auth.token.secret:}")
+    private String tokenSecret;
+    @Value("${stock-api.auth.token.ttl-ms:3600000}")
+    private long tokenTtlMillis;
+    @Value("${stock-api.auth.token.max-cached:10000}")
+    private int maxCachedTokens;
+
+    /**
+     * Without a secret tokens are only accepted by this instance until it restarts
+     */
+    @Bean
+    public ApiTokenService apiTokenService() {
+        final byte[] secret;
+        if (tokenSecret.isEmpty()) {
+            LOG.warn("No stock-api.auth.token.secret, tokens are signed with a random secret of this instance");
+            secret = new byte[GENERATED_SECRET_BYTES];
+            new SecureRandom().nextBytes(secret);
+        } else {
+            secret = tokenSecret.getBytes(StandardCharsets.UTF_8);
+        }
+        LOG.info("Issuing tokens valid for {} ms, caching up to {} verified tokens", tokenTtlMillis, maxCachedTokens);
+        return new ApiTokenService(secret, tokenTtlMillis, maxCachedTokens);
+    }
+
+    @Override
+    protected void configure(final HttpSecurity http) throws Exception {
+        SpringBootWebSecurityConfiguration.configureHeaders(http.headers(), securityProperties.getHeaders());
+        if (!securityProperties.isEnableCsrf()) {
+            http.csrf().disable();
+        }
+        http.antMatcher("/api/**")
+                .sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS).and()
+                .addFilterBefore(new ApiTokenFilter(apiTokenService(), TOKEN_PATH), BasicAuthenticationFilter.class)
+                .httpBasic().realmName(securityProperties.getBasic().getRealm()).and()
+                .apply(new UrlAuthorizationConfigurer<HttpSecurity>(getApplicationContext())).getRegistry()
+                .anyRequest().access(AuthenticatedVoter.IS_AUTHENTICATED_FULLY);
+    }
+}
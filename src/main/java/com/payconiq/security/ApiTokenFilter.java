@@ -0,0 +1,58 @@
+package com.payconiq.security;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Authenticates the requests with a bearer token of {@link ApiTokenService}, before the basic authentication so a
+ * request with a valid token never reaches the user details and their password check. Requests without a token go on
+ * to the basic authentication, requests with a bad token are rejected without trying anything else.
+ */
+final class ApiTokenFilter extends OncePerRequestFilter {
+
+    private static final String BEARER_PREFIX = ApiTokenService.TOKEN_TYPE + ' ';
+    private static final String INVALID_TOKEN = ApiTokenService.TOKEN_TYPE + " error=\"invalid_token\"";
+
+    private final ApiTokenService tokenService;
+    private final String issuePath;
+
+    /**
+     * @param issuePath where the tokens are issued, only against credentials so a token can not renew itself
+     */
+    ApiTokenFilter(final ApiTokenService tokenService, final String issuePath) {
+        this.tokenService = tokenService;
+        this.issuePath = issuePath;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(final HttpServletRequest request) {
+        return issuePath.equals(request.getServletPath());
+    }
+
+    @Override
+    protected void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response,
+                                    final FilterChain filterChain) throws ServletException, IOException {
+        final String header = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (header == null || !header.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        final Authentication authentication = tokenService.authenticate(
+                header.substring(BEARER_PREFIX.length()).trim(), System.currentTimeMillis());
+        if (authentication == null) {
+            SecurityContextHolder.clearContext();
+            response.setHeader(HttpHeaders.WWW_AUTHENTICATE, INVALID_TOKEN);
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Invalid or expired token");
+            return;
+        }
+        SecurityContextHolder.getContext().setAuthentication(authentication);
+        filterChain.doFilter(request, response);
+    }
+}
@@ -0,0 +1,149 @@
+package com.payconiq.security;
+
+import com.payconiq.model.ApiToken;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Stateless bearer tokens: base64url(expiresAt:authorities:username).base64url(HMAC-SHA256 of the first part), so
+ * any instance sharing the secret verifies a token without storing it. Verified tokens are kept until they expire,
+ * so a client sending the same token again costs a lookup of the token instead of an HMAC.
+ * Beyond max cached an arbitrary token is dropped and verified again on its next request.
+ */
+public final class ApiTokenService {
+
+    static final String TOKEN_TYPE = "Bearer";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final char SEPARATOR = '.';
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final long ttlMillis;
+    private final int maxCached;
+    private final ConcurrentHashMap<String, VerifiedToken> verified = new ConcurrentHashMap<>();
+
+    /**
+     * @param secret key of the HMAC, shared by the instances that accept the same tokens
+     * @param ttlMillis lifetime of an issued token
+     * @param maxCached verified tokens kept, 0 to verify every request
+     */
+    public ApiTokenService(final byte[] secret, final long ttlMillis, final int maxCached) {
+        if (secret.length == 0) {
+            throw new IllegalArgumentException("Token secret must not be empty");
+        }
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.ttlMillis = ttlMillis;
+        this.maxCached = maxCached;
+    }
+
+    /**
+     * @param authentication of the client, its name and authorities are signed in the token
+     */
+    public ApiToken issue(final Authentication authentication, final long nowMillis) {
+        final long expiresAt = nowMillis + ttlMillis;
+        final String authorities = authentication.getAuthorities().stream()
+                .map(GrantedAuthority::getAuthority).collect(Collectors.joining(","));
+        final String payload = ENCODER.encodeToString((expiresAt + ":" + authorities + ":" + authentication.getName())
+                .getBytes(StandardCharsets.UTF_8));
+        return ApiToken.builder()
+                .token(payload + SEPARATOR + ENCODER.encodeToString(sign(payload)))
+                .tokenType(TOKEN_TYPE)
+                .expiresAt(expiresAt).build();
+    }
+
+    /**
+     * @return the authentication of the token, null if it is malformed, forged or expired
+     */
+    Authentication authenticate(final String token, final long nowMillis) {
+        final VerifiedToken cached = verified.get(token);
+        if (cached != null) {
+            if (nowMillis < cached.expiresAt) {
+                return cached.authentication;
+            }
+            verified.remove(token, cached);
+            return null;
+        }
+        final VerifiedToken verifiedToken = verify(token);
+        if (verifiedToken == null || nowMillis >= verifiedToken.expiresAt) {
+            return null;
+        }
+        if (maxCached > 0) {
+            if (verified.size() >= maxCached) {
+                final Iterator<String> tokens = verified.keySet().iterator();
+                if (tokens.hasNext()) {
+                    verified.remove(tokens.next());
+                }
+            }
+            verified.put(token, verifiedToken);
+        }
+        return verifiedToken.authentication;
+    }
+
+    int cachedTokens() {
+        return verified.size();
+    }
+
+    private VerifiedToken verify(final String token) {
+        final int separator = token.indexOf(SEPARATOR);
+        if (separator <= 0 || separator != token.lastIndexOf(SEPARATOR)) {
+            return null;
+        }
+        final String payload = token.substring(0, separator);
+        final String[] fields;
+        try {
+            if (!MessageDigest.isEqual(sign(payload), DECODER.decode(token.substring(separator + 1)))) {
+                return null;
+            }
+            fields = new String(DECODER.decode(payload), StandardCharsets.UTF_8).split(":", 3);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (fields.length < 3) {
+            return null;
+        }
+        final long expiresAt;
+        try {
+            expiresAt = Long.parseLong(fields[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        final List<GrantedAuthority> authorities = AuthorityUtils.commaSeparatedStringToAuthorityList(fields[1]);
+        return new VerifiedToken(expiresAt, new UsernamePasswordAuthenticationToken(fields[2], null, authorities));
+    }
+
+    /**
+     * Mac instances are not thread safe and cheap next to the HMAC itself, only cache misses pay for one
+     */
+    private byte[] sign(final String payload) {
+        try {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign the token", e);
+        }
+    }
+
+    private static final class VerifiedToken {
+        private final long expiresAt;
+        private final Authentication authentication;
+
+        private VerifiedToken(final long expiresAt, final Authentication authentication) {
+            this.expiresAt = expiresAt;
+            this.authentication = authentication;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.payconiq.service;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps the stocks in primitive columns of open addressing tables keyed by the id, 126 to 142 bytes per stock
+ * with the interned name as measured with StockStoreFootprint, instead of the few hundred bytes of {@link HeapStockStore}:
+ * no boxed ids or timestamps, prices as long cents and a byte of scale (lossless as prices have at most 2 fraction
+ * digits),
+ * and the JSON of a stock is not kept, it is serialized when a read asks for it.
+ *
+ * The ids are spread over {@link #SEGMENTS} segments each guarded by its own StampedLock, reads are
+ * optimistic and only take the read lock when a write of the same segment got in the way.
+ * Id 0 marks an empty slot, ids start from 1 and stocks are never removed so there are no tombstones.
+ */
+class CompactStockStore implements StockStore {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int MIN_CAPACITY = 16;
+    private static final long EMPTY = 0L;
+    /**
+     * 4 long columns and a name reference per slot of the tables
+     */
+    private static final long BYTES_PER_SLOT = 4 * Long.BYTES + 4 + 1;
+    /**
+     * Interned name of a stock like name_123456, names shared by stocks are counted more than once
+     */
+    private static final long ESTIMATED_BYTES_PER_NAME = 64;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    CompactStockStore(final int expectedSize) {
+        final int segmentCapacity = capacityFor(expectedSize / SEGMENTS);
+        for (int index = 0; index < SEGMENTS; index++) {
+            segments[index] = new Segment(segmentCapacity);
+        }
+    }
+
+    @Override
+    public Stock get(final long id) {
+        final long hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        final long stamp = segment.lock.tryOptimisticRead();
+        final Table table = segment.table;
+        final int slot = table.find(id, hash);
+        if (slot < 0) {
+            return segment.lock.validate(stamp) ? null : getLocked(segment, id, hash);
+        }
+        final String name = table.names[slot];
+        final long priceCents = table.priceCents[slot];
+        final byte droppedDigits = table.droppedDigits[slot];
+        final long version = table.versions[slot];
+        final long lastUpdate = table.lastUpdates[slot];
+        if (!segment.lock.validate(stamp)) {
+            return getLocked(segment, id, hash);
+        }
+        return Stock.read(id, name, Stock.fromCents(priceCents, droppedDigits), version, lastUpdate);
+    }
+
+    private static Stock getLocked(final Segment segment, final long id, final long hash) {
+        final long stamp = segment.lock.readLock();
+        try {
+            final Table table = segment.table;
+            final int slot = table.find(id, hash);
+            return slot < 0 ? null : table.read(slot);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void put(final Stock stock) {
+        final long hash = hash(stock.getId());
+        final Segment segment = segmentFor(hash);
+        final long stamp = segment.lock.writeLock();
+        try {
+            segment.ensureCapacity();
+            final Table table = segment.table;
+            int slot = table.find(stock.getId(), hash);
+            if (slot < 0) {
+                slot = table.freeSlot(hash);
+                segment.size++;
+            }
+            table.write(slot, stock);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Holds the write lock of the segment of the id while the update runs
+     */
+    @Override
+    public Stock computeIfPresent(final long id, final UnaryOperator<Stock> update) {
+        final long hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        final long stamp = segment.lock.writeLock();
+        try {
+            final Table table = segment.table;
+            final int slot = table.find(id, hash);
+            if (slot < 0) {
+                return null;
+            }
+            final Stock updated = update.apply(table.read(slot));
+            table.write(slot, updated);
+            return updated;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Every segment starts again from an empty table of the minimum capacity
+     */
+    @Override
+    public void clear() {
+        for (final Segment segment : segments) {
+            final long stamp = segment.lock.writeLock();
+            try {
+                segment.table = new Table(MIN_CAPACITY);
+                segment.size = 0;
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (final Segment segment : segments) {
+            final long stamp = segment.lock.readLock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Slots are counted exactly, names are estimated
+     */
+    @Override
+    public long estimatedHeapBytes() {
+        long slots = 0;
+        for (final Segment segment : segments) {
+            slots += segment.table.ids.length;
+        }
+        return slots * BYTES_PER_SLOT + size() * ESTIMATED_BYTES_PER_NAME;
+    }
+
+    /**
+     * Walks the table every segment has when the walk gets to it, stocks added after that may be missed
+     */
+    @Override
+    public Iterator<Stock> iterator() {
+        return new Iterator<Stock>() {
+            private int segmentIndex = -1;
+            private Segment segment;
+            private Table table;
+            private int slot;
+            private Stock next = advance();
+
+            private Stock advance() {
+                while (true) {
+                    if (table == null || slot >= table.ids.length) {
+                        if (++segmentIndex >= SEGMENTS) {
+                            return null;
+                        }
+                        segment = segments[segmentIndex];
+                        table = segment.table;
+                        slot = 0;
+                        continue;
+                    }
+                    final Stock stock = readSlot(segment, table, slot++);
+                    if (stock != null) {
+                        return stock;
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Stock next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final Stock stock = next;
+                next = advance();
+                return stock;
+            }
+        };
+    }
+
+    private static Stock readSlot(final Segment segment, final Table table, final int slot) {
+        final long stamp = segment.lock.tryOptimisticRead();
+        final long id = table.ids[slot];
+        final String name = table.names[slot];
+        final long priceCents = table.priceCents[slot];
+        final byte droppedDigits = table.droppedDigits[slot];
+        final long version = table.versions[slot];
+        final long lastUpdate = table.lastUpdates[slot];
+        if (!segment.lock.validate(stamp)) {
+            final long readStamp = segment.lock.readLock();
+            try {
+                return table.ids[slot] == EMPTY ? null : table.read(slot);
+            } finally {
+                segment.lock.unlockRead(readStamp);
+            }
+        }
+        return id == EMPTY ? null : Stock.read(id, name, Stock.fromCents(priceCents, droppedDigits), version, lastUpdate);
+    }
+
+    private Segment segmentFor(final long hash) {
+        return segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+    }
+
+    /**
+     * Ids are mostly sequential so they are mixed before being used for the segment and the slot
+     */
+    private static long hash(final long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 32;
+        return hash * 0xBF58476D1CE4E5B9L;
+    }
+
+    private static int capacityFor(final int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L / 4 < size) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Columns of one open addressing table with linear probing, replaced as a whole when it grows
+     * so a reader always sees columns of the same length
+     */
+    private static final class Table {
+        private final long[] ids;
+        private final long[] priceCents;
+        /**
+         * See {@link Stock#droppedDigits(java.math.BigDecimal)}, so prices keep their scale
+         */
+        private final byte[] droppedDigits;
+        private final long[] lastUpdates;
+        private final long[] versions;
+        private final String[] names;
+        private final int mask;
+
+        private Table(final int capacity) {
+            ids = new long[capacity];
+            priceCents = new long[capacity];
+            droppedDigits = new byte[capacity];
+            lastUpdates = new long[capacity];
+            versions = new long[capacity];
+            names = new String[capacity];
+            mask = capacity - 1;
+        }
+
+        /**
+         * Never loops forever as a table always has empty slots
+         * @return slot of the id or -1
+         */
+        private int find(final long id, final long hash) {
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                final long slotId = ids[slot];
+                if (slotId == id) {
+                    return slot;
+                }
+                if (slotId == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        private int freeSlot(final long hash) {
+            int slot = (int) hash & mask;
+            while (ids[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private Stock read(final int slot) {
+            return Stock.read(ids[slot], names[slot], Stock.fromCents(priceCents[slot], droppedDigits[slot]), versions[slot], lastUpdates[slot]);
+        }
+
+        private void write(final int slot, final Stock stock) {
+            priceCents[slot] = Stock.toCents(stock.getCurrentPrice());
+            droppedDigits[slot] = (byte) Stock.droppedDigits(stock.getCurrentPrice());
+            lastUpdates[slot] = stock.getLastUpdate();
+            versions[slot] = stock.getVersion();
+            names[slot] = stock.getName().intern();
+            ids[slot] = stock.getId();
+        }
+    }
+
+    private static final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private volatile Table table;
+        private int size;
+
+        private Segment(final int capacity) {
+            table = new Table(capacity);
+        }
+
+        /**
+         * Grows the table before it gets more than 3/4 full, called with the write lock
+         */
+        private void ensureCapacity() {
+            final Table current = table;
+            if ((size + 1) * 4L <= current.ids.length * 3L) {
+                return;
+            }
+            final Table grown = new Table(current.ids.length << 1);
+            for (int slot = 0; slot < current.ids.length; slot++) {
+                final long id = current.ids[slot];
+                if (id != EMPTY) {
+                    final int grownSlot = grown.freeSlot(hash(id));
+                    grown.ids[grownSlot] = id;
+                    grown.priceCents[grownSlot] = current.priceCents[slot];
+                    grown.droppedDigits[grownSlot] = current.droppedDigits[slot];
+                    grown.lastUpdates[grownSlot] = current.lastUpdates[slot];
+                    grown.versions[grownSlot] = current.versions[slot];
+                    grown.names[grownSlot] = current.names[slot];
+                }
+            }
+            table = grown;
+        }
+    }
+}
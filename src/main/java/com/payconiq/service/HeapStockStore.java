@@ -0,0 +1,61 @@
+package com.payconiq.service;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps every {@link Stock} with its serialized JSON in a ConcurrentHashMap, fastest reads at
+ * the cost of a few hundred bytes per stock
+ */
+class HeapStockStore implements StockStore {
+
+    /**
+     * Stock, its serialized JSON and the map entry, measured with StockStoreFootprint
+     */
+    private static final long ESTIMATED_BYTES_PER_STOCK = 496;
+
+    private final ConcurrentHashMap<Long, Stock> stockMap;
+
+    HeapStockStore(final int expectedSize) {
+        stockMap = new ConcurrentHashMap<>(expectedSize);
+    }
+
+    @Override
+    public Stock get(final long id) {
+        return stockMap.get(id);
+    }
+
+    @Override
+    public void put(final Stock stock) {
+        stockMap.put(stock.getId(), stock);
+    }
+
+    /**
+     * A single hash probe, computeIfPresent only locks the bin of the id
+     */
+    @Override
+    public Stock computeIfPresent(final long id, final UnaryOperator<Stock> update) {
+        return stockMap.computeIfPresent(id, (stockId, previous) -> update.apply(previous));
+    }
+
+    @Override
+    public void clear() {
+        stockMap.clear();
+    }
+
+    @Override
+    public long size() {
+        return stockMap.mappingCount();
+    }
+
+    @Override
+    public long estimatedHeapBytes() {
+        return size() * ESTIMATED_BYTES_PER_STOCK;
+    }
+
+    @Override
+    public Iterator<Stock> iterator() {
+        return stockMap.values().iterator();
+    }
+}
@@ -0,0 +1,203 @@
+package com.payconiq.service;
+
+/**
+ * Rows of primitive long columns kept in fixed size chunks that are used as a ring: chunks are added as rows come
+ * until there are enough for the maximum rows, then the oldest chunk is dropped and its arrays are filled again.
+ * Chunks dropped for their age are filled again as well, so adding a row allocates nothing once the ring is full.
+ * Column 0 is the time of the row and is never decreasing, so ranges are found by binary search.
+ *
+ * Rows are addressed by their sequence since the ring was created, from {@link #first()} to {@link #end()}.
+ * Not thread safe, {@link StockPriceHistory} guards it.
+ */
+final class LongRing {
+
+    static final int TIME = 0;
+
+    private final int columns;
+    private final int chunkBits;
+    private final int chunkMask;
+    private final int maxChunks;
+    private long[][][] chunks = new long[1][][];
+    /**
+     * Slot of the chunk firstChunk, chunks from it to firstChunk + chunkCount - 1 hold the rows
+     */
+    private int head;
+    private long firstChunk;
+    private int chunkCount;
+    private long first;
+    private long end;
+
+    /**
+     * @param chunkSize rows per chunk, rounded up to a power of 2
+     * @param maxRows rows kept at least before the oldest chunk is dropped
+     */
+    LongRing(final int columns, final int chunkSize, final long maxRows) {
+        this.columns = columns;
+        this.chunkBits = Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(chunkSize, 2) - 1);
+        this.chunkMask = (1 << chunkBits) - 1;
+        //One more chunk than needed for maxRows as the oldest chunk is dropped as a whole, and a power of 2
+        //like the number of slots so a slot is found with a mask
+        final long neededChunks = ((Math.max(maxRows, 1) + chunkMask) >>> chunkBits) + 1;
+        this.maxChunks = Integer.highestOneBit((int) Math.min(neededChunks, 1 << 30) * 2 - 1);
+    }
+
+    long first() {
+        return first;
+    }
+
+    long end() {
+        return end;
+    }
+
+    boolean isEmpty() {
+        return first == end;
+    }
+
+    /**
+     * Add a row whose columns are then set with {@link #setLast(int, long)}
+     */
+    void add(final long time) {
+        if ((end & chunkMask) == 0) {
+            if (chunkCount == maxChunks) {
+                first = (firstChunk + 1) << chunkBits;
+                dropFirstChunk();
+            } else if (chunkCount == chunks.length) {
+                grow();
+            }
+            final int slot = (head + chunkCount) & (chunks.length - 1);
+            if (chunks[slot] == null) {
+                chunks[slot] = new long[columns][chunkMask + 1];
+            }
+            chunkCount++;
+        }
+        end++;
+        setLast(TIME, time);
+    }
+
+    void setLast(final int column, final long value) {
+        chunk(end - 1)[column][(int) ((end - 1) & chunkMask)] = value;
+    }
+
+    long getLast(final int column) {
+        return get(end - 1, column);
+    }
+
+    long get(final long row, final int column) {
+        return chunk(row)[column][(int) (row & chunkMask)];
+    }
+
+    /**
+     * Drop the rows older than the time, whole chunks at a time so some older rows can stay
+     */
+    void dropBefore(final long time) {
+        while (!isEmpty()) {
+            final long lastOfChunk = Math.min(end, (first | chunkMask) + 1) - 1;
+            if (get(lastOfChunk, TIME) >= time) {
+                return;
+            }
+            first = lastOfChunk + 1;
+            if (first >>> chunkBits > firstChunk) {
+                dropFirstChunk();
+            }
+        }
+    }
+
+    /**
+     * @return first row with a time at or after the given time, {@link #end()} if there is none
+     */
+    long lowerBound(final long time) {
+        return lowerBound(time, first, end);
+    }
+
+    /**
+     * @return first row from the low row up to the high row with a time at or after the given time, high if there is none
+     */
+    long lowerBound(final long time, final long lowRow, final long highRow) {
+        long low = lowRow;
+        long high = highRow;
+        while (low < high) {
+            final long middle = (low + high) >>> 1;
+            if (get(middle, TIME) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Scans of a column go over the arrays of the chunks instead of finding the chunk of every row
+     * @return largest value of the column in the rows from up to but not including to, Long.MIN_VALUE if there is none
+     */
+    long max(final int column, final long from, final long to) {
+        long max = Long.MIN_VALUE;
+        for (long row = from; row < to; row = (row | chunkMask) + 1) {
+            final long[] values = chunk(row)[column];
+            final int last = lastIndex(row, to);
+            for (int index = (int) (row & chunkMask); index <= last; index++) {
+                max = Math.max(max, values[index]);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return smallest value of the column in the rows from up to but not including to, Long.MAX_VALUE if there is none
+     */
+    long min(final int column, final long from, final long to) {
+        long min = Long.MAX_VALUE;
+        for (long row = from; row < to; row = (row | chunkMask) + 1) {
+            final long[] values = chunk(row)[column];
+            final int last = lastIndex(row, to);
+            for (int index = (int) (row & chunkMask); index <= last; index++) {
+                min = Math.min(min, values[index]);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @return sum of the column in the rows from up to but not including to
+     */
+    long sum(final int column, final long from, final long to) {
+        long sum = 0L;
+        for (long row = from; row < to; row = (row | chunkMask) + 1) {
+            final long[] values = chunk(row)[column];
+            final int last = lastIndex(row, to);
+            for (int index = (int) (row & chunkMask); index <= last; index++) {
+                sum += values[index];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return index in the chunk of the row of the last row before to that is in the same chunk
+     */
+    private int lastIndex(final long row, final long to) {
+        return (int) ((Math.min(to, (row | chunkMask) + 1) - 1) & chunkMask);
+    }
+
+    /**
+     * The arrays of the chunk stay in its slot to be filled again
+     */
+    private void dropFirstChunk() {
+        head = (head + 1) & (chunks.length - 1);
+        firstChunk++;
+        chunkCount--;
+    }
+
+    private void grow() {
+        final long[][][] grown = new long[chunks.length * 2][][];
+        for (int index = 0; index < chunks.length; index++) {
+            grown[index] = chunks[(head + index) & (chunks.length - 1)];
+        }
+        chunks = grown;
+        head = 0;
+    }
+
+    private long[][] chunk(final long row) {
+        return chunks[(int) (head + (row >>> chunkBits) - firstChunk) & (chunks.length - 1)];
+    }
+}
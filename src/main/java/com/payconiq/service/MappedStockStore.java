@@ -0,0 +1,431 @@
+package com.payconiq.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps the stocks in memory mapped files so the book survives restarts and is served again as soon as
+ * the files are mapped, nothing is read into the heap at startup.
+ *
+ * The stock file has a header and fixed size records at a position given by the id, ids are dense as they come
+ * from a sequence. A record has the id, price as cents, lastUpdate, version and the offset of the name in the
+ * name file, where names are appended as a length and UTF-8 bytes. The top byte of the name offset keeps the scale
+ * of the price as {@link Stock#droppedDigits(java.math.BigDecimal)}, 0 for the records written before it. Renames append the new name and leave the old
+ * one behind. Both files are mapped in chunks that are added as the book grows.
+ *
+ * Writes go straight into the mapped pages, so they survive a crash of the process but not of the machine
+ * until the pages are flushed, which happens at the latest in {@link #close()}.
+ * Record writes are guarded by striped StampedLocks like {@link CompactStockStore}, names and the header
+ * are written with the append lock.
+ */
+class MappedStockStore implements StockStore {
+
+    private static final long MAGIC = 0x53544f434b53L;
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_LAST_ID = 8;
+    private static final int HEADER_SIZE_COUNT = 16;
+    private static final int HEADER_NAMES_END = 24;
+
+    private static final int RECORD_SIZE = 40;
+    private static final int RECORD_ID = 0;
+    private static final int RECORD_PRICE_CENTS = 8;
+    private static final int RECORD_LAST_UPDATE = 16;
+    private static final int RECORD_VERSION = 24;
+    private static final int RECORD_NAME_OFFSET = 32;
+    private static final int NAME_OFFSET_BITS = 56;
+    private static final long NAME_OFFSET_MASK = (1L << NAME_OFFSET_BITS) - 1;
+    private static final int RECORD_CHUNK_BITS = 20;
+    private static final int RECORDS_PER_CHUNK = 1 << RECORD_CHUNK_BITS;
+    private static final long RECORD_CHUNK_SIZE = (long) RECORDS_PER_CHUNK * RECORD_SIZE;
+
+    private static final int NAME_CHUNK_SIZE = 1 << 26;
+    private static final int NAME_LENGTH_SIZE = 4;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final FileChannel stockChannel;
+    private final FileChannel nameChannel;
+    private final MappedByteBuffer header;
+    private final StampedLock[] locks = new StampedLock[LOCK_STRIPES];
+    private final Object appendLock = new Object();
+    //Chunk arrays are copied when they grow so readers never see an array being filled
+    private final AtomicReference<MappedByteBuffer[]> recordChunks = new AtomicReference<>(new MappedByteBuffer[0]);
+    private final AtomicReference<MappedByteBuffer[]> nameChunks = new AtomicReference<>(new MappedByteBuffer[0]);
+    private final long loadedLastId;
+    private long lastId;
+    private long size;
+    private long namesEnd;
+
+    /**
+     * Map the stock file and its name file next to it, both are created when missing
+     * @param path of the stock file, the name file is the same path with .names appended
+     */
+    MappedStockStore(final Path path) throws IOException {
+        stockChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        nameChannel = FileChannel.open(Paths.get(path + ".names"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        for (int stripe = 0; stripe < LOCK_STRIPES; stripe++) {
+            locks[stripe] = new StampedLock();
+        }
+        header = stockChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        final long magic = header.getLong(HEADER_MAGIC);
+        if (magic == 0L) {
+            header.putLong(HEADER_MAGIC, MAGIC);
+        } else if (magic != MAGIC) {
+            throw new IOException(path + " is not a stock file");
+        }
+        lastId = header.getLong(HEADER_LAST_ID);
+        size = header.getLong(HEADER_SIZE_COUNT);
+        namesEnd = header.getLong(HEADER_NAMES_END);
+        loadedLastId = lastId;
+        if (lastId > 0) {
+            recordChunks.set(mapRecordChunks(recordChunk(lastId) + 1));
+        }
+        if (namesEnd > 0) {
+            nameChunks.set(mapNameChunks(nameChunk(namesEnd - 1) + 1));
+        }
+    }
+
+    @Override
+    public long lastLoadedId() {
+        return loadedLastId;
+    }
+
+    @Override
+    public Stock get(final long id) {
+        final MappedByteBuffer[] chunks = recordChunks.get();
+        final int chunk = recordChunk(id);
+        if (id < 1 || chunk >= chunks.length) {
+            return null;
+        }
+        final MappedByteBuffer records = chunks[chunk];
+        final int position = recordPosition(id);
+        final StampedLock lock = lockFor(id);
+        long stamp = lock.tryOptimisticRead();
+        long storedId = records.getLong(position + RECORD_ID);
+        long priceCents = records.getLong(position + RECORD_PRICE_CENTS);
+        long lastUpdate = records.getLong(position + RECORD_LAST_UPDATE);
+        long version = records.getLong(position + RECORD_VERSION);
+        long nameField = records.getLong(position + RECORD_NAME_OFFSET);
+        //Names are only written again after a clear, which takes the lock of every id first, so a name read before
+        //the stamp is validated is the name of the record, or garbage that the failed validation throws away
+        String name = storedId == id ? readName(nameField & NAME_OFFSET_MASK) : null;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                storedId = records.getLong(position + RECORD_ID);
+                priceCents = records.getLong(position + RECORD_PRICE_CENTS);
+                lastUpdate = records.getLong(position + RECORD_LAST_UPDATE);
+                version = records.getLong(position + RECORD_VERSION);
+                nameField = records.getLong(position + RECORD_NAME_OFFSET);
+                name = storedId == id ? readName(nameField & NAME_OFFSET_MASK) : null;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (storedId != id) {
+            return null;
+        }
+        return Stock.read(id, name,
+                Stock.fromCents(priceCents, (int) (nameField >>> NAME_OFFSET_BITS)), version, lastUpdate);
+    }
+
+    /**
+     * Takes the append lock and the lock stripe of the id one after the other, never both at once
+     */
+    @Override
+    public void put(final Stock stock) {
+        final long id = stock.getId();
+        final long nameOffset = appendName(stock.getName());
+        synchronized (appendLock) {
+            ensureRecordChunk(recordChunk(id));
+        }
+        final boolean added;
+        final StampedLock lock = lockFor(id);
+        final long stamp = lock.writeLock();
+        try {
+            final MappedByteBuffer records = recordChunks.get()[recordChunk(id)];
+            final int position = recordPosition(id);
+            added = records.getLong(position + RECORD_ID) != id;
+            writeRecord(records, position, stock, nameOffset);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        synchronized (appendLock) {
+            if (added) {
+                size++;
+            }
+            lastId = Math.max(lastId, id);
+            header.putLong(HEADER_LAST_ID, lastId);
+            header.putLong(HEADER_SIZE_COUNT, size);
+        }
+    }
+
+    /**
+     * Holds the lock stripe of the id while the update runs, only a rename also takes the append lock.
+     * An update that returns the stock it was given writes nothing.
+     */
+    @Override
+    public Stock computeIfPresent(final long id, final UnaryOperator<Stock> update) {
+        final MappedByteBuffer[] chunks = recordChunks.get();
+        if (id < 1 || recordChunk(id) >= chunks.length) {
+            return null;
+        }
+        final MappedByteBuffer records = chunks[recordChunk(id)];
+        final int position = recordPosition(id);
+        final StampedLock lock = lockFor(id);
+        final long stamp = lock.writeLock();
+        try {
+            if (records.getLong(position + RECORD_ID) != id) {
+                return null;
+            }
+            final long nameField = records.getLong(position + RECORD_NAME_OFFSET);
+            final long nameOffset = nameField & NAME_OFFSET_MASK;
+            final Stock current = Stock.read(id, readName(nameOffset),
+                    Stock.fromCents(records.getLong(position + RECORD_PRICE_CENTS), (int) (nameField >>> NAME_OFFSET_BITS)),
+                    records.getLong(position + RECORD_VERSION), records.getLong(position + RECORD_LAST_UPDATE));
+            final Stock updated = update.apply(current);
+            //The sort index load hands back every stock as it is, which must not dirty every page of the file
+            if (updated != current) {
+                writeRecord(records, position, updated, current.getName().equals(updated.getName()) ? nameOffset : appendName(updated.getName()));
+            }
+            return updated;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Zeroes the id of every record so none of them is found anymore, then starts the names file again from the
+     * beginning. The files keep their size and their chunks stay mapped for the stocks to come.
+     * Every id is zeroed with its lock before a name is written again, which {@link #get(long)} relies on.
+     */
+    @Override
+    public void clear() {
+        final long lastStoredId;
+        synchronized (appendLock) {
+            lastStoredId = lastId;
+        }
+        final MappedByteBuffer[] chunks = recordChunks.get();
+        for (long id = 1; id <= lastStoredId; id++) {
+            final StampedLock lock = lockFor(id);
+            final long stamp = lock.writeLock();
+            try {
+                chunks[recordChunk(id)].putLong(recordPosition(id) + RECORD_ID, 0L);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+        synchronized (appendLock) {
+            lastId = 0;
+            size = 0;
+            namesEnd = 0;
+            header.putLong(HEADER_LAST_ID, lastId);
+            header.putLong(HEADER_SIZE_COUNT, size);
+            header.putLong(HEADER_NAMES_END, namesEnd);
+        }
+    }
+
+    @Override
+    public long size() {
+        synchronized (appendLock) {
+            return size;
+        }
+    }
+
+    /**
+     * Walks the ids from the first one up to the last id stored when the walk started
+     */
+    @Override
+    public Iterator<Stock> iterator() {
+        final long lastStoredId;
+        synchronized (appendLock) {
+            lastStoredId = lastId;
+        }
+        return new Iterator<Stock>() {
+            private long id;
+            private Stock next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && id < lastStoredId) {
+                    next = get(++id);
+                }
+                return next != null;
+            }
+
+            @Override
+            public Stock next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Stock stock = next;
+                next = null;
+                return stock;
+            }
+        };
+    }
+
+    /**
+     * Flush the mapped pages to the disk and close the files, the mappings themselves are released by the GC
+     */
+    @Override
+    public void close() {
+        synchronized (appendLock) {
+            for (final MappedByteBuffer chunk : recordChunks.get()) {
+                chunk.force();
+            }
+            for (final MappedByteBuffer chunk : nameChunks.get()) {
+                chunk.force();
+            }
+            header.force();
+            try {
+                stockChannel.close();
+                nameChannel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static void writeRecord(final MappedByteBuffer records, final int position, final Stock stock, final long nameOffset) {
+        records.putLong(position + RECORD_PRICE_CENTS, Stock.toCents(stock.getCurrentPrice()));
+        records.putLong(position + RECORD_LAST_UPDATE, stock.getLastUpdate());
+        records.putLong(position + RECORD_VERSION, stock.getVersion());
+        records.putLong(position + RECORD_NAME_OFFSET,
+                nameOffset | (long) Stock.droppedDigits(stock.getCurrentPrice()) << NAME_OFFSET_BITS);
+        records.putLong(position + RECORD_ID, stock.getId());
+    }
+
+    /**
+     * A name never spans two chunks, when it does not fit in the rest of the chunk it goes to the next one
+     * @return offset of the name in the name file
+     */
+    private long appendName(final String name) {
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        final int entrySize = NAME_LENGTH_SIZE + bytes.length;
+        if (entrySize > NAME_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Stock name is too long");
+        }
+        synchronized (appendLock) {
+            long offset = namesEnd;
+            if (nameChunkOffset(offset) + entrySize > NAME_CHUNK_SIZE) {
+                offset = (long) (nameChunk(offset) + 1) * NAME_CHUNK_SIZE;
+            }
+            ensureNameChunk(nameChunk(offset));
+            final MappedByteBuffer names = nameChunks.get()[nameChunk(offset)];
+            int position = nameChunkOffset(offset);
+            names.putInt(position, bytes.length);
+            position += NAME_LENGTH_SIZE;
+            for (final byte nameByte : bytes) {
+                names.put(position++, nameByte);
+            }
+            namesEnd = offset + entrySize;
+            header.putLong(HEADER_NAMES_END, namesEnd);
+            return offset;
+        }
+    }
+
+    /**
+     * Bounds checked as an optimistic read may give the offset or the length of a name written again after a clear
+     * @return the name, or null when the offset or the length is out of the name file
+     */
+    private String readName(final long offset) {
+        final MappedByteBuffer[] chunks = nameChunks.get();
+        if (offset < 0 || nameChunk(offset) >= chunks.length || nameChunkOffset(offset) + NAME_LENGTH_SIZE > NAME_CHUNK_SIZE) {
+            return null;
+        }
+        final MappedByteBuffer names = chunks[nameChunk(offset)];
+        int position = nameChunkOffset(offset);
+        final int length = names.getInt(position);
+        position += NAME_LENGTH_SIZE;
+        if (length < 0 || length > NAME_CHUNK_SIZE - position) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        for (int index = 0; index < bytes.length; index++) {
+            bytes[index] = names.get(position + index);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Called with the append lock
+     */
+    private void ensureRecordChunk(final int chunk) {
+        if (chunk >= recordChunks.get().length) {
+            recordChunks.set(mapRecordChunks(chunk + 1));
+        }
+    }
+
+    /**
+     * Called with the append lock
+     */
+    private void ensureNameChunk(final int chunk) {
+        if (chunk >= nameChunks.get().length) {
+            nameChunks.set(mapNameChunks(chunk + 1));
+        }
+    }
+
+    private MappedByteBuffer[] mapRecordChunks(final int count) {
+        final MappedByteBuffer[] mapped = recordChunks.get();
+        final MappedByteBuffer[] chunks = Arrays.copyOf(mapped, count);
+        for (int chunk = mapped.length; chunk < count; chunk++) {
+            chunks[chunk] = map(stockChannel, HEADER_SIZE + chunk * RECORD_CHUNK_SIZE, RECORD_CHUNK_SIZE);
+        }
+        return chunks;
+    }
+
+    private MappedByteBuffer[] mapNameChunks(final int count) {
+        final MappedByteBuffer[] mapped = nameChunks.get();
+        final MappedByteBuffer[] chunks = Arrays.copyOf(mapped, count);
+        for (int chunk = mapped.length; chunk < count; chunk++) {
+            chunks[chunk] = map(nameChannel, (long) chunk * NAME_CHUNK_SIZE, NAME_CHUNK_SIZE);
+        }
+        return chunks;
+    }
+
+    /**
+     * Mapping past the end of the file grows it, the new part is zero filled
+     */
+    private static MappedByteBuffer map(final FileChannel channel, final long position, final long length) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private StampedLock lockFor(final long id) {
+        return locks[(int) (id & (LOCK_STRIPES - 1))];
+    }
+
+    private static int recordChunk(final long id) {
+        return (int) ((id - 1) >>> RECORD_CHUNK_BITS);
+    }
+
+    private static int recordPosition(final long id) {
+        return (int) ((id - 1) & (RECORDS_PER_CHUNK - 1)) * RECORD_SIZE;
+    }
+
+    private static int nameChunk(final long offset) {
+        return (int) (offset / NAME_CHUNK_SIZE);
+    }
+
+    private static int nameChunkOffset(final long offset) {
+        return (int) (offset % NAME_CHUNK_SIZE);
+    }
+}
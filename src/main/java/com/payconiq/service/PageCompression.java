@@ -0,0 +1,49 @@
+package com.payconiq.service;
+
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip of the pages at the level of stock-api.compression.level, from 1 for the fastest to 9 for the smallest.
+ * A page is gzipped once and kept with it, so the time and bytes recorded are those of the cache misses only.
+ */
+final class PageCompression {
+
+    private final int level;
+    private final StockServiceMetrics metrics;
+
+    PageCompression(final int level, final StockServiceMetrics metrics) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be from 1 to 9, was " + level);
+        }
+        this.level = level;
+        this.metrics = metrics;
+    }
+
+    byte[] gzip(final byte[] body) {
+        final long start = System.nanoTime();
+        final ByteArrayBuilder byteArrayBuilder = new ByteArrayBuilder(body.length / 4);
+        try (GZIPOutputStream gzipStream = new LeveledGzipOutputStream(byteArrayBuilder, level)) {
+            gzipStream.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not gzip the page", e);
+        }
+        final byte[] gzipped = byteArrayBuilder.toByteArray();
+        metrics.pageCompressed(body.length, gzipped.length, start);
+        return gzipped;
+    }
+
+    /**
+     * GZIPOutputStream only takes the level through its deflater
+     */
+    private static final class LeveledGzipOutputStream extends GZIPOutputStream {
+
+        private LeveledGzipOutputStream(final ByteArrayBuilder byteArrayBuilder, final int level) throws IOException {
+            super(byteArrayBuilder);
+            def.setLevel(level);
+        }
+    }
+}
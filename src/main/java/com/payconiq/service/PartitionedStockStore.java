@@ -0,0 +1,207 @@
+package com.payconiq.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Splits the book over partitions of their own store, a stock is in partition id mod partitions so consecutive ids
+ * are spread evenly. Single stock operations only touch the partition of the id, so every partition is a smaller
+ * table that grows in smaller steps. Iteration walks the partitions one after the other.
+ *
+ * Scans fan out over the partitions: a batch of ids is read and mapped by a task per partition on a pool of at most
+ * a thread per core, then the results are merged back in id order on the calling thread while the next batch is
+ * mapped. Only two batches are held at a time, so a scan of the whole book takes no more memory than a small one.
+ */
+class PartitionedStockStore implements StockStore {
+
+    private static final int SCAN_BATCH_PER_PARTITION = 1024;
+
+    private final StockStore[] partitions;
+    private final ExecutorService scanPool;
+
+    /**
+     * @param partitions number of partitions, from 2 as a single partition is the store itself
+     * @param partitionFactory opens the store of a partition
+     */
+    PartitionedStockStore(final int partitions, final Supplier<StockStore> partitionFactory) {
+        if (partitions < 2) {
+            throw new IllegalArgumentException("Partitions must be at least 2, was " + partitions);
+        }
+        this.partitions = new StockStore[partitions];
+        for (int index = 0; index < partitions; index++) {
+            this.partitions[index] = partitionFactory.get();
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        scanPool = Executors.newFixedThreadPool(Math.min(partitions, Runtime.getRuntime().availableProcessors()), runnable -> {
+            final Thread thread = new Thread(runnable, "stock-partition-scan-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private int partitionIndex(final long id) {
+        return (int) Math.floorMod(id, (long) partitions.length);
+    }
+
+    @Override
+    public Stock get(final long id) {
+        return partitions[partitionIndex(id)].get(id);
+    }
+
+    @Override
+    public void put(final Stock stock) {
+        partitions[partitionIndex(stock.getId())].put(stock);
+    }
+
+    @Override
+    public Stock computeIfPresent(final long id, final UnaryOperator<Stock> update) {
+        return partitions[partitionIndex(id)].computeIfPresent(id, update);
+    }
+
+    @Override
+    public void clear() {
+        for (final StockStore partition : partitions) {
+            partition.clear();
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (final StockStore partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long estimatedHeapBytes() {
+        long bytes = 0;
+        for (final StockStore partition : partitions) {
+            bytes += partition.estimatedHeapBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long lastLoadedId() {
+        long lastLoadedId = 0;
+        for (final StockStore partition : partitions) {
+            lastLoadedId = Math.max(lastLoadedId, partition.lastLoadedId());
+        }
+        return lastLoadedId;
+    }
+
+    @Override
+    public <R> void scan(final long lastId, final Function<Stock, ? extends R> mapper, final ScanSink<? super R> sink)
+            throws IOException {
+        final long batchSize = (long) SCAN_BATCH_PER_PARTITION * partitions.length;
+        List<Future<Object[]>> batch = lastId < 1 ? null : mapBatch(1, Math.min(lastId, batchSize), mapper);
+        try {
+            for (long firstId = 1; batch != null; firstId += batchSize) {
+                final long lastOfBatch = Math.min(lastId, firstId + batchSize - 1);
+                final List<Future<Object[]>> mapping = batch;
+                batch = lastOfBatch < lastId ? mapBatch(lastOfBatch + 1, Math.min(lastId, lastOfBatch + batchSize), mapper) : null;
+                merge(firstId, lastOfBatch, mapping, sink);
+            }
+        } finally {
+            if (batch != null) {
+                for (final Future<Object[]> partition : batch) {
+                    partition.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Map the ids of the batch of every partition on its own task
+     * @return per partition the mapped stocks of its ids in id order, null for the ids without a stock
+     */
+    private <R> List<Future<Object[]>> mapBatch(final long firstId, final long lastId, final Function<Stock, ? extends R> mapper) {
+        final List<Future<Object[]>> batch = new ArrayList<>(partitions.length);
+        for (int index = 0; index < partitions.length; index++) {
+            final StockStore partition = partitions[index];
+            final long firstOfPartition = firstId + Math.floorMod(index - firstId, (long) partitions.length);
+            batch.add(scanPool.submit(() -> {
+                final int count = firstOfPartition > lastId ? 0 : (int) ((lastId - firstOfPartition) / partitions.length + 1);
+                final Object[] mapped = new Object[count];
+                for (int position = 0; position < count; position++) {
+                    final Stock stock = partition.get(firstOfPartition + (long) position * partitions.length);
+                    mapped[position] = stock == null ? null : mapper.apply(stock);
+                }
+                return mapped;
+            }));
+        }
+        return batch;
+    }
+
+    /**
+     * Walk the ids of the batch from the lowest, the next stock in id order is the next one of the partition of the id
+     */
+    @SuppressWarnings("unchecked")
+    private <R> void merge(final long firstId, final long lastId, final List<Future<Object[]>> batch,
+                           final ScanSink<? super R> sink) throws IOException {
+        final Object[][] mapped = new Object[partitions.length][];
+        try {
+            for (int index = 0; index < partitions.length; index++) {
+                mapped[index] = batch.get(index).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning the partitions", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Scan of a partition failed", e.getCause());
+        }
+        final int[] positions = new int[partitions.length];
+        for (long id = firstId; id <= lastId; id++) {
+            final int index = partitionIndex(id);
+            final Object stock = mapped[index][positions[index]++];
+            if (stock != null) {
+                sink.accept((R) stock);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Stock> iterator() {
+        return new Iterator<Stock>() {
+            private int index;
+            private Iterator<Stock> current = partitions[0].iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && index < partitions.length - 1) {
+                    current = partitions[++index].iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Stock next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        scanPool.shutdown();
+        for (final StockStore partition : partitions) {
+            partition.close();
+        }
+    }
+}
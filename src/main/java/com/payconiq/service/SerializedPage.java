@@ -0,0 +1,72 @@
+package com.payconiq.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * UTF-8 JSON array of a page of stocks, copied from the JSON every stock was serialized with when it was written,
+ * or the {@link StockBinary} of the stocks one after the other,
+ * with the cursor of the next page and the version of the book the page was built at.
+ * The gzip of the page is made by {@link PageCompression} the first time a client accepts it and kept with the page,
+ * racing requests may both make it and either one is kept.
+ */
+public final class SerializedPage {
+
+    private final byte[] body;
+    private final String nextCursor;
+    private final long bookVersion;
+    private final long lastModified;
+    private final long builtNanos;
+    private final PageCompression compression;
+    private final AtomicReference<byte[]> gzipped = new AtomicReference<>();
+
+    SerializedPage(final byte[] body, final String nextCursor, final long bookVersion, final long lastModified, final long builtNanos,
+                   final PageCompression compression) {
+        this.body = body;
+        this.nextCursor = nextCursor;
+        this.bookVersion = bookVersion;
+        this.lastModified = lastModified;
+        this.builtNanos = builtNanos;
+        this.compression = compression;
+    }
+
+    /**
+     * Opaque keyset cursor to pass as after parameter to get the next page, null when this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return version of the book read before the page was built, the page has every change up to it
+     */
+    public long getBookVersion() {
+        return bookVersion;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    long getBuiltNanos() {
+        return builtNanos;
+    }
+
+    public int getContentLength(final boolean gzip) {
+        return gzip ? gzipped().length : body.length;
+    }
+
+    public void writeTo(final OutputStream outputStream, final boolean gzip) throws IOException {
+        outputStream.write(gzip ? gzipped() : body);
+    }
+
+    private byte[] gzipped() {
+        byte[] bytes = gzipped.get();
+        if (bytes == null) {
+            bytes = compression.gzip(body);
+            gzipped.set(bytes);
+        }
+        return bytes;
+    }
+}
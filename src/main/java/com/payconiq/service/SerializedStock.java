@@ -0,0 +1,103 @@
+package com.payconiq.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+
+/**
+ * UTF-8 JSON of a stock in the same format as {@link com.payconiq.model.StockResponse}.
+ * Created once when the stock is written and shared by every read of that version of the stock,
+ * so reads neither build a StockResponse nor run Jackson.
+ * The {@link StockBinary} of the stock is written from its fields when asked, few clients read it.
+ */
+public final class SerializedStock {
+
+    /**
+     * Suffix of the ETags of the binary representations, of a stock as of a page
+     */
+    public static final String BINARY_ETAG_SUFFIX = "-x";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final long id;
+    private final String name;
+    private final BigDecimal currentPrice;
+    private final byte[] json;
+    private final long version;
+    private final long lastUpdate;
+
+    SerializedStock(final long id, final String name, final BigDecimal currentPrice, final long lastUpdate, final long version) {
+        final ByteArrayBuilder byteArrayBuilder = new ByteArrayBuilder(64 + name.length());
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(byteArrayBuilder)) {
+            generator.writeStartObject();
+            generator.writeNumberField("id", id);
+            generator.writeStringField("name", name);
+            generator.writeNumberField("currentPrice", currentPrice);
+            generator.writeNumberField("lastUpdate", lastUpdate);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not serialize stock " + id, e);
+        }
+        this.id = id;
+        this.name = name;
+        this.currentPrice = currentPrice;
+        this.json = byteArrayBuilder.toByteArray();
+        this.version = version;
+        this.lastUpdate = lastUpdate;
+    }
+
+    /**
+     * Strong ETag of a stock, the epoch and the version are enough as the id is already in the url
+     * @param epoch of the run, see {@link StockService#getBookEpoch()}
+     */
+    public static String eTag(final String epoch, final long version) {
+        return "\"" + epoch + "-" + version + "\"";
+    }
+
+    /**
+     * Strong ETag of the {@link StockBinary} of a stock, the bytes are not those of the JSON so the ETag is not either
+     */
+    public static String binaryETag(final String epoch, final long version) {
+        return "\"" + epoch + "-" + version + BINARY_ETAG_SUFFIX + "\"";
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    public int getContentLength() {
+        return json.length;
+    }
+
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        outputStream.write(json);
+    }
+
+    void writeTo(final ByteArrayBuilder byteArrayBuilder) {
+        byteArrayBuilder.write(json, 0, json.length);
+    }
+
+    /**
+     * @return the stock in {@link StockBinary} format
+     */
+    public byte[] toBinary() {
+        final ByteArrayBuilder byteArrayBuilder = new ByteArrayBuilder(StockBinary.STOCK_FIXED_SIZE + name.length());
+        writeBinaryTo(byteArrayBuilder);
+        return byteArrayBuilder.toByteArray();
+    }
+
+    void writeBinaryTo(final ByteArrayBuilder byteArrayBuilder) {
+        StockBinary.writeStock(byteArrayBuilder, id, currentPrice, lastUpdate, name);
+    }
+}
@@ -0,0 +1,118 @@
+package com.payconiq.service;
+
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.payconiq.model.StockBatchResult;
+import com.payconiq.model.StockResponse;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary format of the stocks for internal consumers, served as application/x-stock next to JSON.
+ * Fields have a fixed layout in big endian order and a list is its items one after the other up to the end of the body:
+ * <pre>
+ * stock:        id int64 | price in cents int64 | lastUpdate int64 | name length varint | name UTF-8
+ * batch result: id int64, 0 when none | status uint16 | message length varint | message UTF-8
+ * </pre>
+ * Lengths are varints as in protobuf, 7 bits per byte with the high bit set on all but the last byte, so a name
+ * shorter than 128 bytes takes a single byte for its length.
+ * Prices are lossless in cents as the requests allow at most 2 fraction digits.
+ */
+public final class StockBinary {
+
+    static final int STOCK_FIXED_SIZE = 25;
+
+    private StockBinary() {
+    }
+
+    static void writeStock(final ByteArrayBuilder byteArrayBuilder, final long id, final BigDecimal currentPrice,
+                           final long lastUpdate, final String name) {
+        writeLong(byteArrayBuilder, id);
+        writeLong(byteArrayBuilder, Stock.toCents(currentPrice));
+        writeLong(byteArrayBuilder, lastUpdate);
+        writeText(byteArrayBuilder, name);
+    }
+
+    /**
+     * @param results written one after the other
+     * @return the binary of the batch results
+     */
+    public static byte[] batchResults(final List<StockBatchResult> results) {
+        final ByteArrayBuilder byteArrayBuilder = new ByteArrayBuilder(results.size() * 12);
+        for (final StockBatchResult result : results) {
+            writeLong(byteArrayBuilder, result.getId() == null ? 0L : result.getId());
+            byteArrayBuilder.appendTwoBytes(result.getStatus());
+            writeText(byteArrayBuilder, result.getMessage() == null ? "" : result.getMessage());
+        }
+        return byteArrayBuilder.toByteArray();
+    }
+
+    /**
+     * @param body of a single stock or a list of stocks
+     * @return the stocks in the order of the body, without their versions which are only in the ETag
+     */
+    public static List<StockResponse> readStocks(final byte[] body) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        final List<StockResponse> stocks = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            stocks.add(StockResponse.builder()
+                    .id(buffer.getLong())
+                    .currentPrice(Stock.fromCents(buffer.getLong()))
+                    .lastUpdate(buffer.getLong())
+                    .name(readText(buffer))
+                    .build());
+        }
+        return stocks;
+    }
+
+    /**
+     * @param body of the results of a batch
+     * @return the results in the order of the body, with null id and message when they were left out
+     */
+    public static List<StockBatchResult> readBatchResults(final byte[] body) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        final List<StockBatchResult> results = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            final long id = buffer.getLong();
+            final int status = buffer.getShort() & 0xFFFF;
+            final String message = readText(buffer);
+            results.add(StockBatchResult.builder().id(id == 0L ? null : id).status(status)
+                    .message(message.isEmpty() ? null : message).build());
+        }
+        return results;
+    }
+
+    private static void writeLong(final ByteArrayBuilder byteArrayBuilder, final long value) {
+        byteArrayBuilder.appendTwoBytes((int) (value >>> 48));
+        byteArrayBuilder.appendTwoBytes((int) (value >>> 32));
+        byteArrayBuilder.appendTwoBytes((int) (value >>> 16));
+        byteArrayBuilder.appendTwoBytes((int) value);
+    }
+
+    private static void writeText(final ByteArrayBuilder byteArrayBuilder, final String text) {
+        final byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        int length = utf8.length;
+        while (length >= 0x80) {
+            byteArrayBuilder.append(length & 0x7F | 0x80);
+            length >>>= 7;
+        }
+        byteArrayBuilder.append(length);
+        byteArrayBuilder.write(utf8, 0, utf8.length);
+    }
+
+    private static String readText(final ByteBuffer buffer) {
+        int length = 0;
+        int shift = 0;
+        byte lengthByte;
+        do {
+            lengthByte = buffer.get();
+            length |= (lengthByte & 0x7F) << shift;
+            shift += 7;
+        } while (lengthByte < 0);
+        final String text = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return text;
+    }
+}
@@ -0,0 +1,13 @@
+package com.payconiq.service;
+
+/**
+ * Gets every created or updated stock from {@link StockService}.
+ * Called on the writing thread while the stock is being written, so it needs to return quickly and never block.
+ * Changes of the same stock are given in version order.
+ */
+@FunctionalInterface
+public interface StockChangeListener {
+
+    void stockChanged(SerializedStock stock);
+
+}
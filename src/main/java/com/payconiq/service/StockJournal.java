@@ -0,0 +1,530 @@
+package com.payconiq.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the stocks created and updated, so the book can be recovered after a crash.
+ *
+ * A record is the whole stock after the change, so recovery keeps the record with the highest version of every id
+ * and the order of the records of different writers does not matter. Records are appended by a single writer thread
+ * that takes everything queued since its last write, up to maxBatch records, and writes them with one write and
+ * one fsync (group commit). Callers wait for the fsync of their record before answering, so many concurrent
+ * changes share the cost of an fsync instead of paying one each.
+ *
+ * The log is split into numbered segments. A snapshot switches to a new segment, writes every stock of the store
+ * into a snapshot file named after that segment, then deletes the older segments and snapshots. Recovery reads the
+ * latest snapshot and the segments from its number on, stopping a segment at the first torn or corrupt record.
+ * Snapshots are taken one at a time, and the temporary file of a snapshot cut short by a crash is deleted by recovery.
+ *
+ * Callers wait on locks rather than monitors, so a virtual thread waiting for its fsync unmounts from its carrier.
+ *
+ * A failed write, or an interrupt of the writer, stops the writer for good: the changes it had taken and those queued after it are in the store but
+ * not durable, their callers get the failure instead of an answer. Appends fail from then on, see {@link #getFailure()}.
+ */
+class StockJournal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StockJournal.class);
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    //id, version, lastUpdate, unscaled price, price scale and name length
+    private static final int RECORD_FIXED_SIZE = 4 * Long.BYTES + 2 * Integer.BYTES;
+    private static final int LENGTH_SIZE = Integer.BYTES;
+    private static final int CRC_SIZE = Integer.BYTES;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+
+    private final Path directory;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private final Condition pendingAppended = pendingLock.newCondition();
+    private List<byte[]> pending = new ArrayList<>();
+    private long appended;
+    private boolean closed;
+
+    private final ReentrantLock durableLock = new ReentrantLock();
+    private final Condition durableChanged = durableLock.newCondition();
+    private long durable;
+    private volatile IOException failure;
+
+    //Held by the writer thread while it writes and by a snapshot while it switches segments
+    private final Object segmentLock = new Object();
+    //Held for the whole of a snapshot, so a scheduled and a requested one do not delete the files of each other
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private FileChannel segment;
+    private long segmentNumber;
+    private long recordsSinceSnapshot;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+
+    private final Thread writer;
+    private final ScheduledExecutorService snapshots;
+
+    /**
+     * Recover the stocks of the directory, then start a new segment for the changes from now on
+     * @param recovered gets every record of the snapshot and the segments, an id can come more than once
+     * and not in version order so only its highest version should be kept
+     * @param maxBatch maximum number of records written with a single fsync, 1 for an fsync per change
+     * @param maxDelayMicros time to wait for more records when a batch is not full, 0 to write right away
+     */
+    StockJournal(final Path directory, final int maxBatch, final long maxDelayMicros, final Consumer<Stock> recovered) throws IOException {
+        this.directory = directory;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        Files.createDirectories(directory);
+        segmentNumber = recover(recovered) + 1;
+        segment = openSegment(segmentNumber);
+        writer = new Thread(this::writeLoop, "stock-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "stock-journal-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Take a snapshot of the store every interval, skipped when nothing was written since the last one
+     */
+    void scheduleSnapshots(final StockStore store, final LongSupplier lastId, final long intervalMillis) {
+        if (intervalMillis > 0) {
+            snapshots.scheduleWithFixedDelay(() -> {
+                try {
+                    snapshot(store, lastId);
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Snapshot of the stocks failed, the log is kept", e);
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queue the stock after a change, the store has to have the change already so a snapshot
+     * taken after the record is written can not miss it
+     * @return ticket to wait for with {@link #awaitDurable(long)}
+     * @throws UncheckedIOException once a write failed, as the record would never be written
+     */
+    long append(final Stock stock) {
+        final byte[] record = encode(stock);
+        pendingLock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Stock journal is closed");
+            }
+            checkWritable();
+            pending.add(record);
+            pendingAppended.signal();
+            return ++appended;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * @throws UncheckedIOException once a write failed
+     */
+    void checkWritable() {
+        final IOException writeFailure = failure;
+        if (writeFailure != null) {
+            throw new UncheckedIOException("Stock journal write failed, changes are not durable any more", writeFailure);
+        }
+    }
+
+    /**
+     * @return failure of the writer, null while the changes are durable
+     */
+    IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @param ticket of the last record to wait for, records before it are durable as well
+     * @throws UncheckedIOException if the record could not be written
+     */
+    void awaitDurable(final long ticket) {
+        durableLock.lock();
+        try {
+            while (durable < ticket && failure == null) {
+                durableChanged.await();
+            }
+            if (durable < ticket) {
+                throw new UncheckedIOException("Stock journal write failed", failure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the stock journal", e);
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    /**
+     * Switch to a new segment, write every stock of the store into a snapshot in id order and delete what it replaces
+     * @param lastId highest id given so far, read once the new segment takes the records
+     * @return true if a snapshot was taken
+     */
+    boolean snapshot(final StockStore store, final LongSupplier lastId) throws IOException {
+        snapshotLock.lock();
+        try {
+            return snapshotLocked(store, lastId);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    private boolean snapshotLocked(final StockStore store, final LongSupplier lastId) throws IOException {
+        final long snapshotNumber;
+        synchronized (segmentLock) {
+            if (recordsSinceSnapshot == 0) {
+                return false;
+            }
+            segment.close();
+            snapshotNumber = ++segmentNumber;
+            segment = openSegment(snapshotNumber);
+            recordsSinceSnapshot = 0;
+        }
+        final Path temporary = directory.resolve(SNAPSHOT_PREFIX + number(snapshotNumber) + TEMPORARY_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            //Records are encoded by the partitions of the store in parallel and written in id order
+            final ByteBuffer[] snapshotBuffer = {ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE)};
+            store.scan(lastId.getAsLong(), StockJournal::encode, record -> {
+                if (snapshotBuffer[0].remaining() < record.length) {
+                    writeFully(channel, snapshotBuffer[0]);
+                    snapshotBuffer[0] = ensureCapacity(snapshotBuffer[0], record.length);
+                }
+                snapshotBuffer[0].put(record);
+            });
+            writeFully(channel, snapshotBuffer[0]);
+            channel.force(false);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_PREFIX + number(snapshotNumber) + SNAPSHOT_SUFFIX),
+                StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        for (final Path file : list(SEGMENT_PREFIX, SEGMENT_SUFFIX).headMap(snapshotNumber).values()) {
+            Files.delete(file);
+        }
+        for (final Path file : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(snapshotNumber).values()) {
+            Files.delete(file);
+        }
+        return true;
+    }
+
+    /**
+     * Write what is queued, then stop the writer
+     */
+    @Override
+    public void close() {
+        pendingLock.lock();
+        try {
+            closed = true;
+            pendingAppended.signal();
+        } finally {
+            pendingLock.unlock();
+        }
+        snapshots.shutdownNow();
+        try {
+            writer.join();
+            synchronized (segmentLock) {
+                segment.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            final List<byte[]> batch = nextBatch();
+            if (batch == null) {
+                return;
+            }
+            try {
+                write(batch);
+            } catch (IOException e) {
+                LOG.error("Stock journal write failed, changes are not durable any more", e);
+                fail(e);
+                return;
+            }
+            durableLock.lock();
+            try {
+                durable += batch.size();
+                durableChanged.signalAll();
+            } finally {
+                durableLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Wakes up the callers waiting for their records, which are never written now
+     */
+    private void fail(final IOException writeFailure) {
+        durableLock.lock();
+        try {
+            failure = writeFailure;
+            durableChanged.signalAll();
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    /**
+     * @return up to maxBatch records in the order they were appended, null once closed and everything is written
+     */
+    private List<byte[]> nextBatch() {
+        pendingLock.lock();
+        try {
+            try {
+                while (pending.isEmpty() && !closed) {
+                    pendingAppended.await();
+                }
+                long delay = maxDelayNanos;
+                while (pending.size() < maxBatch && !closed && delay > 0) {
+                    delay = pendingAppended.awaitNanos(delay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.error("Stock journal writer was interrupted, changes are not durable any more");
+                fail(new InterruptedIOException("Stock journal writer was interrupted"));
+                return null;
+            }
+            if (pending.isEmpty()) {
+                return null;
+            }
+            if (pending.size() <= maxBatch) {
+                final List<byte[]> batch = pending;
+                pending = new ArrayList<>();
+                return batch;
+            }
+            final List<byte[]> batch = new ArrayList<>(pending.subList(0, maxBatch));
+            pending.subList(0, maxBatch).clear();
+            return batch;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    private void write(final List<byte[]> batch) throws IOException {
+        synchronized (segmentLock) {
+            for (final byte[] record : batch) {
+                if (buffer.remaining() < record.length) {
+                    writeFully(segment, buffer);
+                    buffer = ensureCapacity(buffer, record.length);
+                }
+                buffer.put(record);
+            }
+            writeFully(segment, buffer);
+            segment.force(false);
+            recordsSinceSnapshot += batch.size();
+        }
+    }
+
+    /**
+     * @return number of the last segment found, 0 when the directory is empty
+     */
+    private long recover(final Consumer<Stock> recovered) throws IOException {
+        //Left by a crash while a snapshot was written, the log it would have replaced is still there
+        for (final Path temporary : list(SNAPSHOT_PREFIX, TEMPORARY_SUFFIX).values()) {
+            LOG.warn("Deleting {} of an unfinished snapshot", temporary);
+            Files.delete(temporary);
+        }
+        final TreeMap<Long, Path> snapshotFiles = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        final TreeMap<Long, Path> segmentFiles = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        long first = 0;
+        if (!snapshotFiles.isEmpty()) {
+            first = snapshotFiles.lastKey();
+            read(snapshotFiles.lastEntry().getValue(), recovered);
+        }
+        for (final Path file : segmentFiles.tailMap(first).values()) {
+            recordsSinceSnapshot += read(file, recovered);
+        }
+        final long lastSnapshot = snapshotFiles.isEmpty() ? 0 : snapshotFiles.lastKey();
+        final long lastSegment = segmentFiles.isEmpty() ? 0 : segmentFiles.lastKey();
+        return Math.max(lastSnapshot, lastSegment);
+    }
+
+    /**
+     * @return number of records read
+     */
+    private static long read(final Path file, final Consumer<Stock> recovered) throws IOException {
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(LENGTH_SIZE);
+            while (true) {
+                header.clear();
+                if (!readFully(channel, header)) {
+                    return count;
+                }
+                final int length = header.getInt(0);
+                if (length < RECORD_FIXED_SIZE || length > MAX_RECORD_SIZE) {
+                    LOG.warn("Corrupt record in {}, the rest of the file is skipped", file);
+                    return count;
+                }
+                final ByteBuffer record = ByteBuffer.allocate(length + CRC_SIZE);
+                if (!readFully(channel, record)) {
+                    LOG.warn("Torn record at the end of {} is skipped", file);
+                    return count;
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(record.array(), 0, length);
+                if ((int) crc.getValue() != record.getInt(length)) {
+                    LOG.warn("Corrupt record in {}, the rest of the file is skipped", file);
+                    return count;
+                }
+                recovered.accept(decode(record));
+                count++;
+            }
+        }
+    }
+
+    /**
+     * @return false at the end of the file, also when it ends in the middle of the buffer
+     */
+    private static boolean readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * The price is kept with its scale so the recovered stock is the same as the one that was answered.
+     * Also the records of the changes streamed to the followers, see {@link StockReplicationLeader}
+     * @return length, id, version, lastUpdate, unscaled price, price scale, name length and name,
+     * then the CRC32 of all but the length and the CRC
+     */
+    static byte[] encode(final Stock stock) {
+        final byte[] name = stock.getName().getBytes(StandardCharsets.UTF_8);
+        final int length = RECORD_FIXED_SIZE + name.length;
+        if (length > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Stock name is too long");
+        }
+        final ByteBuffer record = ByteBuffer.allocate(LENGTH_SIZE + length + CRC_SIZE);
+        record.putInt(length)
+                .putLong(stock.getId())
+                .putLong(stock.getVersion())
+                .putLong(stock.getLastUpdate())
+                .putLong(stock.getCurrentPrice().unscaledValue().longValueExact())
+                .putInt(stock.getCurrentPrice().scale())
+                .putInt(name.length)
+                .put(name);
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), LENGTH_SIZE, length);
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * Read a record of {@link #encode(Stock)} from a stream, e.g. from the leader
+     * @throws IOException if the stream ends or the record is corrupt
+     */
+    static Stock read(final DataInputStream input) throws IOException {
+        final int length = input.readInt();
+        if (length < RECORD_FIXED_SIZE || length > MAX_RECORD_SIZE) {
+            throw new IOException("Corrupt record of length " + length);
+        }
+        final ByteBuffer record = ByteBuffer.allocate(length + CRC_SIZE);
+        input.readFully(record.array());
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, length);
+        if ((int) crc.getValue() != record.getInt(length)) {
+            throw new IOException("Corrupt record, CRC does not match");
+        }
+        return decode(record);
+    }
+
+    private static Stock decode(final ByteBuffer record) throws IOException {
+        final long id = record.getLong();
+        final long version = record.getLong();
+        final long lastUpdate = record.getLong();
+        final long unscaledPrice = record.getLong();
+        final int priceScale = record.getInt();
+        final int nameLength = record.getInt();
+        if (nameLength < 0 || nameLength > record.remaining() - CRC_SIZE) {
+            throw new EOFException("Name of stock " + id + " is cut");
+        }
+        final String name = new String(record.array(), record.position(), nameLength, StandardCharsets.UTF_8);
+        return Stock.of(id, name, BigDecimal.valueOf(unscaledPrice, priceScale), version, lastUpdate);
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static ByteBuffer ensureCapacity(final ByteBuffer buffer, final int size) {
+        return buffer.capacity() >= size ? buffer : ByteBuffer.allocateDirect(Integer.highestOneBit(size) << 1);
+    }
+
+    private FileChannel openSegment(final long number) throws IOException {
+        final FileChannel channel = FileChannel.open(directory.resolve(SEGMENT_PREFIX + number(number) + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        syncDirectory();
+        return channel;
+    }
+
+    /**
+     * New and renamed files are only durable once their directory is
+     */
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private TreeMap<Long, Path> list(final String prefix, final String suffix) throws IOException {
+        final TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (final Path file : stream) {
+                final String name = String.valueOf(file.getFileName());
+                files.put(Long.valueOf(name.substring(prefix.length(), name.length() - suffix.length())), file);
+            }
+        }
+        return files;
+    }
+
+    private static String number(final long number) {
+        return String.format("%016d", number);
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockSort;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialized pages of the stocks by format, sort, cursor and limit. A page is fresh while the book is still at the version
+ * it was built at, or for max staleness after it was built whatever the changes, so under a storm of writes a page
+ * is rebuilt at most once per max staleness instead of on every read.
+ *
+ * Pages are copies of the JSON of their stocks, which are serialized once when they are written, so a change only
+ * serializes the stock that changed and a rebuild copies bytes without running Jackson.
+ * Beyond max pages an arbitrary page is dropped, pages past the first ones of a walk are rarely read again.
+ */
+final class StockPageCache {
+
+    private final ConcurrentHashMap<String, SerializedPage> pages = new ConcurrentHashMap<>();
+    private final int maxPages;
+    private final long maxStalenessNanos;
+
+    /**
+     * @param maxPages pages kept, 0 to cache nothing
+     * @param maxStalenessMillis time a page is served after the book changed, 0 to only serve pages of the current book
+     */
+    StockPageCache(final int maxPages, final long maxStalenessMillis) {
+        this.maxPages = maxPages;
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+    }
+
+    static String key(final StockSort sort, final String after, final int limit, final boolean binary) {
+        return (binary ? "binary:" : "json:") + sort.name() + ':' + limit + ':' + (after == null ? "" : after);
+    }
+
+    /**
+     * @param bookVersion current version of the book
+     * @param nowNanos System.nanoTime() of the request
+     * @return the page if it is fresh, null otherwise
+     */
+    SerializedPage get(final String key, final long bookVersion, final long nowNanos) {
+        final SerializedPage page = maxPages > 0 ? pages.get(key) : null;
+        if (page == null || page.getBookVersion() != bookVersion && nowNanos - page.getBuiltNanos() >= maxStalenessNanos) {
+            return null;
+        }
+        return page;
+    }
+
+    /**
+     * Racing rebuilds of a page keep the one of the latest book
+     */
+    void put(final String key, final SerializedPage page) {
+        if (maxPages <= 0) {
+            return;
+        }
+        if (pages.size() >= maxPages && !pages.containsKey(key)) {
+            final Iterator<String> keys = pages.keySet().iterator();
+            if (keys.hasNext()) {
+                pages.remove(keys.next());
+            }
+        }
+        pages.merge(key, page, (cached, built) -> built.getBookVersion() >= cached.getBookVersion() ? built : cached);
+    }
+
+    void clear() {
+        pages.clear();
+    }
+
+    int size() {
+        return pages.size();
+    }
+}
@@ -0,0 +1,139 @@
+package com.payconiq.service;
+
+import com.payconiq.model.PriceBar;
+import com.payconiq.model.PricePoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Price changes of a single stock as columns of epoch millis and cents, with one minute bars kept up to date
+ * on every change so candles of whole minutes are read from the bars instead of the ticks.
+ * Changes are added by one writer at a time, the stock is held in the store while its price changes,
+ * and adding does not allocate once the rings are full.
+ */
+final class StockPriceHistory {
+
+    static final long BAR_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int PRICE = 1;
+    private static final int OPEN = 1;
+    private static final int HIGH = 2;
+    private static final int LOW = 3;
+    private static final int CLOSE = 4;
+    private static final int TICKS = 5;
+
+    private final long retentionMillis;
+    private final LongRing ticks;
+    private final LongRing bars;
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * @param maxTicks changes kept at most, give or take a chunk, the oldest chunk is dropped beyond them
+     * @param retentionMillis changes older than this, compared to the latest change, are dropped even when there are
+     * fewer than maxTicks
+     */
+    StockPriceHistory(final int chunkSize, final long maxTicks, final long retentionMillis) {
+        this.retentionMillis = retentionMillis;
+        this.ticks = new LongRing(2, chunkSize, maxTicks);
+        this.bars = new LongRing(6, chunkSize, Math.min(maxTicks, retentionMillis / BAR_MILLIS + 1));
+    }
+
+    /**
+     * @param time of the change, an earlier time than the last change is taken as the time of the last change
+     */
+    void add(final long time, final long priceCents) {
+        final long stamp = lock.writeLock();
+        try {
+            final long tickTime = ticks.isEmpty() ? time : Math.max(time, ticks.getLast(LongRing.TIME));
+            ticks.dropBefore(tickTime - retentionMillis);
+            bars.dropBefore(tickTime - retentionMillis - BAR_MILLIS);
+            ticks.add(tickTime);
+            ticks.setLast(PRICE, priceCents);
+            final long barStart = bucketStart(tickTime, BAR_MILLIS);
+            if (bars.isEmpty() || bars.getLast(LongRing.TIME) != barStart) {
+                bars.add(barStart);
+                bars.setLast(OPEN, priceCents);
+                bars.setLast(HIGH, priceCents);
+                bars.setLast(LOW, priceCents);
+                bars.setLast(TICKS, 0L);
+            } else {
+                bars.setLast(HIGH, Math.max(bars.getLast(HIGH), priceCents));
+                bars.setLast(LOW, Math.min(bars.getLast(LOW), priceCents));
+            }
+            bars.setLast(CLOSE, priceCents);
+            bars.setLast(TICKS, bars.getLast(TICKS) + 1);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return changes from the given time up to but not including the to time, oldest first
+     */
+    List<PricePoint> range(final long from, final long to) {
+        final long stamp = lock.readLock();
+        try {
+            final long end = ticks.lowerBound(to);
+            long row = ticks.lowerBound(from);
+            final List<PricePoint> points = new ArrayList<>((int) Math.max(0L, end - row));
+            for (; row < end; row++) {
+                points.add(PricePoint.builder().timestamp(ticks.get(row, LongRing.TIME))
+                        .price(Stock.fromCents(ticks.get(row, PRICE))).build());
+            }
+            return points;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Candles of the changes from the given time up to but not including the to time, buckets start at
+     * multiples of the interval since the epoch and buckets without changes are left out.
+     * The one minute bars are used when the interval and both ends are whole minutes.
+     */
+    List<PriceBar> ohlc(final long intervalMillis, final long from, final long to) {
+        final boolean fromBars = intervalMillis % BAR_MILLIS == 0 && isBarAligned(from) && isBarAligned(to);
+        final long stamp = lock.readLock();
+        try {
+            return fromBars ? aggregate(bars, OPEN, HIGH, LOW, CLOSE, TICKS, intervalMillis, from, to)
+                    : aggregate(ticks, PRICE, PRICE, PRICE, PRICE, -1, intervalMillis, from, to);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Buckets are found by binary search and their columns are scanned chunk by chunk
+     * @param ticksColumn column with the number of changes of a row, -1 when every row is a single change
+     */
+    private static List<PriceBar> aggregate(final LongRing ring, final int openColumn, final int highColumn, final int lowColumn,
+                                            final int closeColumn, final int ticksColumn, final long intervalMillis,
+                                            final long from, final long to) {
+        final List<PriceBar> priceBars = new ArrayList<>();
+        final long end = ring.lowerBound(to);
+        long row = ring.lowerBound(from);
+        while (row < end) {
+            final long start = bucketStart(ring.get(row, LongRing.TIME), intervalMillis);
+            final long bucketEnd = ring.lowerBound(start + intervalMillis, row, end);
+            final long count = ticksColumn < 0 ? bucketEnd - row : ring.sum(ticksColumn, row, bucketEnd);
+            priceBars.add(PriceBar.builder().start(start)
+                    .open(Stock.fromCents(ring.get(row, openColumn)))
+                    .high(Stock.fromCents(ring.max(highColumn, row, bucketEnd)))
+                    .low(Stock.fromCents(ring.min(lowColumn, row, bucketEnd)))
+                    .close(Stock.fromCents(ring.get(bucketEnd - 1, closeColumn)))
+                    .ticks(count).build());
+            row = bucketEnd;
+        }
+        return priceBars;
+    }
+
+    private static boolean isBarAligned(final long time) {
+        return time == Long.MIN_VALUE || time == Long.MAX_VALUE || Math.floorMod(time, BAR_MILLIS) == 0;
+    }
+
+    private static long bucketStart(final long time, final long intervalMillis) {
+        return time - Math.floorMod(time, intervalMillis);
+    }
+}
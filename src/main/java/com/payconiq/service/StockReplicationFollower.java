@@ -0,0 +1,220 @@
+package com.payconiq.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Applies the changes streamed by the {@link StockReplicationLeader} to the book of a follower.
+ *
+ * On every connection the leader sends the whole book again, so a follower that was disconnected or dropped
+ * for being too slow catches up the same way as a new one. When the epoch of the leader is not the one the book
+ * was taken from, e.g. the leader restarted with versions counted from 1 again, the book is cleared before the
+ * snapshot is applied. The epoch of a book read from the store or the journal of the follower is not known,
+ * so it is cleared on the first connection. Until the first heartbeat after the snapshot the book is not whole,
+ * see {@link #isCaughtUp()}, while a reconnection to the same epoch keeps serving a book that is only behind.
+ * The follower takes the epoch and the book version of the leader for its ETags, so every follower of a leader gives
+ * the same ETag for the same book. The version is only raised by a heartbeat, after the changes it counts, so the book
+ * may already have changes of the next heartbeat but never lacks one of its version. The lag is the time since the follower was last known
+ * to have every change of the leader, from the leader time of the last heartbeat, so it assumes the clocks of
+ * the leader and the followers are in sync.
+ */
+final class StockReplicationFollower implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StockReplicationFollower.class);
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 16;
+    //Heartbeats missed before the connection is taken as lost
+    private static final int MISSED_HEARTBEATS = 10;
+
+    private final String host;
+    private final int port;
+    private final long heartbeatMillis;
+    private final byte[] secret;
+    private final Consumer<Stock> applier;
+    private final Runnable clearer;
+    private final StockServiceMetrics metrics;
+    private final Thread receiver;
+    private final long startMillis = System.currentTimeMillis();
+    private final AtomicLong clears = new AtomicLong();
+    //Only used by the receiver thread
+    private Long epoch;
+    private String epochTag;
+    private volatile long leaderMillis;
+    private volatile LeaderBook leaderBook = new LeaderBook(null, 0L);
+    private volatile boolean caughtUp;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    /**
+     * @param leader host:port of the replication port of the leader
+     * @param secret to answer the challenge of a leader with a secret, null when the leader has none
+     * @param applier gets the stocks in the order of the leader, an id can come again with the same or a lower version
+     * @param clearer removes every stock of the book before the snapshot of another epoch, runs on the receiver thread
+     */
+    StockReplicationFollower(final String leader, final long heartbeatMillis, final byte[] secret, final Consumer<Stock> applier,
+                             final Runnable clearer, final StockServiceMetrics metrics) {
+        final int colon = leader.lastIndexOf(':');
+        if (colon < 1) {
+            throw new IllegalArgumentException("Leader must be host:port, was " + leader);
+        }
+        this.host = leader.substring(0, colon);
+        this.port = Integer.parseInt(leader.substring(colon + 1));
+        this.heartbeatMillis = heartbeatMillis;
+        this.secret = secret == null ? null : secret.clone();
+        this.applier = applier;
+        this.clearer = clearer;
+        this.metrics = metrics;
+        receiver = new Thread(this::receiveLoop, "stock-replication-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * @return millis since the follower last had every change of the leader, or since it started when it never had
+     */
+    long lagMillis() {
+        return Math.max(0L, System.currentTimeMillis() - Math.max(leaderMillis, startMillis));
+    }
+
+    /**
+     * @return true once a heartbeat came after the snapshot of the epoch, so the follower has every stock the leader had then,
+     * false from the start and from every clear of the book until then
+     */
+    boolean isCaughtUp() {
+        return caughtUp;
+    }
+
+    /**
+     * @return epoch of the leader as in its ETags, null until the first connection
+     */
+    String epochTag() {
+        return leaderBook.epochTag;
+    }
+
+    /**
+     * @return book version of the leader as of the last heartbeat
+     */
+    long bookVersion() {
+        return leaderBook.version;
+    }
+
+    /**
+     * A read that sees the same count before and after it did not overlap a clear, as the count is raised before the clear
+     * @return number of times the book was cleared for another epoch
+     */
+    long clears() {
+        return clears.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeSocket();
+        receiver.interrupt();
+    }
+
+    private void receiveLoop() {
+        while (!closed) {
+            try {
+                receive();
+            } catch (IOException e) {
+                if (!closed) {
+                    LOG.warn("Lost the leader {}:{}, reconnecting: {}", host, port, e.toString());
+                }
+            } finally {
+                closeSocket();
+            }
+            try {
+                Thread.sleep(heartbeatMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void receive() throws IOException {
+        final Socket connection = new Socket();
+        socket = connection;
+        if (closed) {
+            return;
+        }
+        final int timeout = (int) Math.min(Integer.MAX_VALUE, heartbeatMillis * MISSED_HEARTBEATS);
+        connection.connect(new InetSocketAddress(host, port), timeout);
+        connection.setSoTimeout(timeout);
+        LOG.info("Following the leader {}:{}", host, port);
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream(), RECEIVE_BUFFER_SIZE));
+        while (!closed) {
+            final byte frame = input.readByte();
+            if (frame == StockReplicationLeader.STOCK_FRAME) {
+                applier.accept(StockJournal.read(input));
+                metrics.replicationApplied();
+            } else if (frame == StockReplicationLeader.HEARTBEAT_FRAME) {
+                leaderMillis = input.readLong();
+                leaderBook = new LeaderBook(epochTag, input.readLong());
+                caughtUp = true;
+            } else if (frame == StockReplicationLeader.EPOCH_FRAME) {
+                follow(input.readLong());
+            } else if (frame == StockReplicationLeader.CHALLENGE_FRAME) {
+                answer(connection, input);
+            } else {
+                throw new IOException("Unknown frame " + frame);
+            }
+        }
+    }
+
+    private void answer(final Socket connection, final DataInputStream input) throws IOException {
+        if (secret == null) {
+            throw new IOException("Leader only lets in the followers with its stock-api.replication.secret");
+        }
+        final byte[] nonce = new byte[StockReplicationLeader.NONCE_BYTES];
+        input.readFully(nonce);
+        final OutputStream output = connection.getOutputStream();
+        output.write(StockReplicationLeader.proof(secret, nonce));
+        output.flush();
+    }
+
+    private void follow(final long leaderEpoch) {
+        if (epoch == null || epoch != leaderEpoch) {
+            LOG.info("Leader {}:{} is at epoch {}, clearing the book of epoch {}", host, port, leaderEpoch, epoch);
+            caughtUp = false;
+            clears.incrementAndGet();
+            clearer.run();
+            metrics.replicationCleared();
+            epoch = leaderEpoch;
+            epochTag = Long.toHexString(leaderEpoch);
+        }
+    }
+
+    private void closeSocket() {
+        final Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close the socket to the leader", e);
+            }
+        }
+    }
+
+    /**
+     * Epoch and book version of the leader as of a heartbeat, replaced as a whole so the version is never paired
+     * with the epoch of another book
+     */
+    private static final class LeaderBook {
+        private final String epochTag;
+        private final long version;
+
+        private LeaderBook(final String epochTag, final long version) {
+            this.epochTag = epochTag;
+            this.version = version;
+        }
+    }
+}
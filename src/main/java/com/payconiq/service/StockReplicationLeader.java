@@ -0,0 +1,284 @@
+package com.payconiq.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Streams the changes of the book to the followers over TCP, see {@link StockReplicationFollower}.
+ *
+ * A follower that connects gets a queue of the changes from then on, then the epoch of the leader, a snapshot of
+ * every stock of the store in id order and the changes of its queue. Frames are a type byte followed by its payload:
+ * <pre>
+ * C | nonce of 16 bytes, first frame when the leader has a secret, answered by the follower with its HMAC-SHA256
+ * E | epoch int64, random for every run of the leader as in its ETags, first frame once the follower is let in
+ * S | stock record of {@link StockJournal#encode(Stock)}
+ * H | leader time in millis int64 and book version int64, sent once the queue is drained and every heartbeat interval when idle
+ * </pre>
+ * Records are whole stocks, so the follower keeps the highest version of every id and a stock both in the snapshot
+ * and in the queue is harmless. The queue of a follower has room for maxPending changes, a follower that falls
+ * further behind is disconnected instead of slowing down the writers and catches up again from a new snapshot.
+ * Versions only go on from the versions of another run when the book was kept in the store or the journal,
+ * so a follower does not compare the versions of two epochs and takes the book of a new epoch from scratch.
+ * The book version of a heartbeat is read before the queue is drained, and changes are queued before they are counted
+ * in the book version, so a follower has every change of that version once it reads the heartbeat.
+ *
+ * The port listens on the bind address, the loopback by default. The secret only keeps out the followers
+ * that do not have it, the frames themselves are neither encrypted nor signed, so across hosts the port belongs
+ * on a private network. Every connection takes a sender thread, so beyond maxFollowers connections are refused
+ * and a follower that does not answer the challenge in time is disconnected.
+ */
+final class StockReplicationLeader implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StockReplicationLeader.class);
+    static final byte CHALLENGE_FRAME = 'C';
+    static final byte EPOCH_FRAME = 'E';
+    static final byte STOCK_FRAME = 'S';
+    static final byte HEARTBEAT_FRAME = 'H';
+    private static final int SEND_BUFFER_SIZE = 1 << 16;
+    static final int NONCE_BYTES = 16;
+    private static final int PROOF_BYTES = 32;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final String PROOF_ALGORITHM = "HmacSHA256";
+    private static final SecureRandom NONCES = new SecureRandom();
+
+    private final StockStore store;
+    private final LongSupplier lastId;
+    private final LongSupplier bookVersion;
+    private final byte[] secret;
+    private final int maxFollowers;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final int maxPending;
+    private final long heartbeatMillis;
+    private final StockServiceMetrics metrics;
+    private final ServerSocket serverSocket;
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+    private final Thread acceptor;
+    private final long epoch;
+    private volatile boolean closed;
+
+    /**
+     * @param lastId highest id given so far, the snapshot of a follower scans up to it once the follower is queued
+     * @param epoch of the run of the leader, see {@link StockService#getBookEpoch()}
+     * @param bookVersion of the leader, see {@link StockService#getBookVersion()}
+     * @param bindAddress to listen to the followers on, 0.0.0.0 for every interface
+     * @param port to listen to the followers on, 0 for any free port
+     * @param secret followers have to prove they have, null to let any follower in
+     * @param maxFollowers connections at a time, waiting for their challenge or following
+     * @param maxPending changes a follower can be behind before it is disconnected
+     * @param heartbeatMillis interval of the heartbeats of an idle follower
+     */
+    StockReplicationLeader(final StockStore store, final LongSupplier lastId, final long epoch, final LongSupplier bookVersion,
+                           final String bindAddress, final int port, final byte[] secret, final int maxFollowers, final int maxPending,
+                           final long heartbeatMillis, final StockServiceMetrics metrics) throws IOException {
+        this.store = store;
+        this.lastId = lastId;
+        this.epoch = epoch;
+        this.bookVersion = bookVersion;
+        this.secret = secret == null ? null : secret.clone();
+        this.maxFollowers = maxFollowers;
+        this.maxPending = maxPending;
+        this.heartbeatMillis = heartbeatMillis;
+        this.metrics = metrics;
+        serverSocket = new ServerSocket(port, 0, InetAddress.getByName(bindAddress));
+        if (secret == null && !serverSocket.getInetAddress().isLoopbackAddress()) {
+            LOG.warn("Replication port {} lets in any host that reaches it, set stock-api.replication.secret or firewall it", getPort());
+        }
+        acceptor = new Thread(this::acceptLoop, "stock-replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("Replicating the stocks to the followers on {}:{}", serverSocket.getInetAddress().getHostAddress(), getPort());
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    int followers() {
+        return followers.size();
+    }
+
+    /**
+     * Never blocks, called on the writing thread while it holds the stock so changes of a stock are queued in version order
+     */
+    void changed(final Stock stock) {
+        for (final Follower follower : followers) {
+            if (!follower.pending.offer(stock)) {
+                LOG.warn("Follower {} is more than {} changes behind, disconnecting it", follower.socket.getRemoteSocketAddress(), maxPending);
+                follower.close();
+                metrics.followerDropped();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close the replication port", e);
+        }
+        //The port is only released once the acceptor returns from accept, so a restarted leader can bind it again
+        try {
+            acceptor.join(heartbeatMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (final Follower follower : followers) {
+            follower.close();
+        }
+    }
+
+    /**
+     * @return HMAC-SHA256 of the nonce keyed by the secret, the answer of a follower to the challenge of the leader
+     */
+    static byte[] proof(final byte[] secret, final byte[] nonce) {
+        try {
+            final Mac mac = Mac.getInstance(PROOF_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, PROOF_ALGORITHM));
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not answer the challenge of the leader", e);
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                if (connections.incrementAndGet() > maxFollowers) {
+                    connections.decrementAndGet();
+                    LOG.warn("Refusing follower {}, {} followers are connected already", socket.getRemoteSocketAddress(), maxFollowers);
+                    metrics.followerRejected();
+                    socket.close();
+                    continue;
+                }
+                final Follower follower = new Follower(socket);
+                final Thread sender = new Thread(follower::send, "stock-replication-sender-" + follower.socket.getPort());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    LOG.error("Could not accept a follower", e);
+                }
+            }
+        }
+    }
+
+    private final class Follower {
+        private final Socket socket;
+        private final BlockingQueue<Stock> pending = new ArrayBlockingQueue<>(maxPending);
+
+        private Follower(final Socket socket) {
+            this.socket = socket;
+        }
+
+        private void send() {
+            LOG.info("Follower {} connected, sending the snapshot", socket.getRemoteSocketAddress());
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), SEND_BUFFER_SIZE))) {
+                socket.setTcpNoDelay(true);
+                if (!letIn(output)) {
+                    return;
+                }
+                //Queued before the snapshot is read, so no change is missed by both
+                followers.add(this);
+                output.writeByte(EPOCH_FRAME);
+                output.writeLong(epoch);
+                //In id order, the records are encoded by the partitions of the store in parallel
+                store.scan(lastId.getAsLong(), StockJournal::encode, record -> writeRecord(output, record));
+                final List<Stock> batch = new ArrayList<>();
+                while (!closed) {
+                    final Stock first = pending.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                    //Every change queued before now, so every change of the version, is written before the heartbeat
+                    final long now = System.currentTimeMillis();
+                    final long version = bookVersion.getAsLong();
+                    if (first != null) {
+                        writeStock(output, first);
+                        pending.drainTo(batch);
+                        for (final Stock stock : batch) {
+                            writeStock(output, stock);
+                        }
+                        batch.clear();
+                    }
+                    output.writeByte(HEARTBEAT_FRAME);
+                    output.writeLong(now);
+                    output.writeLong(version);
+                    output.flush();
+                }
+            } catch (SocketException e) {
+                LOG.info("Follower {} disconnected: {}", socket.getRemoteSocketAddress(), e.getMessage());
+            } catch (IOException e) {
+                LOG.warn("Could not send the changes to follower {}", socket.getRemoteSocketAddress(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+                connections.decrementAndGet();
+            }
+        }
+
+        /**
+         * @return true when the leader has no secret or the follower answered the challenge with it
+         */
+        private boolean letIn(final DataOutputStream output) throws IOException {
+            if (secret == null) {
+                return true;
+            }
+            final byte[] nonce = new byte[NONCE_BYTES];
+            NONCES.nextBytes(nonce);
+            output.writeByte(CHALLENGE_FRAME);
+            output.write(nonce);
+            output.flush();
+            final byte[] answer = new byte[PROOF_BYTES];
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            new DataInputStream(socket.getInputStream()).readFully(answer);
+            socket.setSoTimeout(0);
+            if (MessageDigest.isEqual(proof(secret, nonce), answer)) {
+                return true;
+            }
+            LOG.warn("Follower {} does not have the replication secret, disconnecting it", socket.getRemoteSocketAddress());
+            metrics.followerRejected();
+            return false;
+        }
+
+        private void writeStock(final DataOutputStream output, final Stock stock) throws IOException {
+            writeRecord(output, StockJournal.encode(stock));
+        }
+
+        private void writeRecord(final DataOutputStream output, final byte[] record) throws IOException {
+            output.writeByte(STOCK_FRAME);
+            output.write(record);
+        }
+
+        private void close() {
+            followers.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close the socket of follower {}", socket.getRemoteSocketAddress(), e);
+            }
+        }
+    }
+}
@@ -1,17 +1,49 @@
 package com.payconiq.service;
 
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.payconiq.model.PriceBar;
+import com.payconiq.model.PricePoint;
+import com.payconiq.model.StockBatchResult;
+import com.payconiq.model.StockPage;
 import com.payconiq.model.StockRequest;
 import com.payconiq.model.StockResponse;
+import com.payconiq.model.StockSort;
+import com.payconiq.model.StockUpdateRequest;
+import com.payconiq.model.exception.FollowerCatchingUpException;
+import com.payconiq.model.exception.FollowerWriteException;
+import com.payconiq.model.exception.InvalidHistoryRequestException;
+import com.payconiq.model.exception.InvalidPageRequestException;
 import com.payconiq.model.exception.StockNotFoundException;
+import com.payconiq.model.exception.StockVersionConflictException;
+import com.payconiq.service.StockServiceMetrics.Operation;
+import io.prometheus.client.Collector;
 import lombok.*;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Storage for stocks that handles create, update, get and list of stocks request
@@ -19,64 +51,920 @@ import java.util.stream.Collectors;
 @Service
 public class StockService {
 
-    private final ConcurrentHashMap<Long, Stock> stockMap = new ConcurrentHashMap<>();
+    private static final long FIRST_VERSION = 1L;
+    private static final int SERIALIZED_STOCK_SIZE_HINT = 80;
+    private static final int PRELOAD_CHUNK = 1 << 14;
+
+    private static final String COMPACT_STORE = "compact";
+    private static final String MAPPED_STORE = "mapped";
+    private static final String LEADER_ROLE = "leader";
+    private static final String FOLLOWER_ROLE = "follower";
+
+    private static final Map<Character, TimeUnit> INTERVAL_UNITS = new HashMap<>();
+    private static final long MAX_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(3650);
+
+    static {
+        INTERVAL_UNITS.put('s', TimeUnit.SECONDS);
+        INTERVAL_UNITS.put('m', TimeUnit.MINUTES);
+        INTERVAL_UNITS.put('h', TimeUnit.HOURS);
+        INTERVAL_UNITS.put('d', TimeUnit.DAYS);
+    }
+
+    private StockStore store;
+    private StockSortIndex sortIndex;
+    private StockJournal journal;
+    private StockPageCache pageCache;
+    private PageCompression pageCompression;
+    private StockReplicationLeader replicationLeader;
+    private StockReplicationFollower replicationFollower;
     private final AtomicLong idSequence = new AtomicLong(0);
+    private final LongAdder bookVersion = new LongAdder();
+    private final long bookEpoch = ThreadLocalRandom.current().nextLong();
+    private final String bookEpochTag = Long.toHexString(bookEpoch);
+    private final LongAccumulator bookLastModified = new LongAccumulator(Math::max, 0L);
+    private final List<StockChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<Long, StockPriceHistory> priceHistories = new ConcurrentHashMap<>();
+    private final StockServiceMetrics metrics = new StockServiceMetrics(this::getBookSize, this::getEstimatedHeapBytes);
     @Value("${stock-api.init-size:10}")
     private int initSize;
+    @Value("${stock-api.startup.preload-threads:1}")
+    private int preloadThreads = 1;
+    @Value("${stock-api.startup.defer-sort-index:false}")
+    private boolean deferSortIndex;
+    @Value("${stock-api.page.max-limit:1000}")
+    private int maxPageLimit = 1000;
+    @Value("${stock-api.page.sort-index:true}")
+    private boolean sortIndexEnabled = true;
+    @Value("${stock-api.page.cache.max-pages:1000}")
+    private int pageCacheMaxPages = 1000;
+    @Value("${stock-api.page.cache.max-staleness-ms:0}")
+    private long pageCacheMaxStalenessMillis;
+    @Value("${stock-api.page.compression-level:6}")
+    private int pageCompressionLevel = 6;
+    @Value("${stock-api.store:heap}")
+    private String storeType = "heap";
+    @Value("${stock-api.partitions:0}")
+    private int partitions;
+    @Value("${stock-api.mapped.path:stocks.dat}")
+    private String mappedPath = "stocks.dat";
+    @Value("${stock-api.journal.enabled:false}")
+    private boolean journalEnabled;
+    @Value("${stock-api.journal.path:journal}")
+    private String journalPath = "journal";
+    @Value("${stock-api.journal.max-batch:1000}")
+    private int journalMaxBatch = 1000;
+    @Value("${stock-api.journal.max-delay-us:0}")
+    private long journalMaxDelayMicros;
+    @Value("${stock-api.journal.snapshot-interval-ms:600000}")
+    private long snapshotIntervalMillis = 600000;
+    @Value("${stock-api.history.enabled:true}")
+    private boolean historyEnabled = true;
+    @Value("${stock-api.history.chunk-size:64}")
+    private int historyChunkSize = 64;
+    @Value("${stock-api.history.max-ticks:100000}")
+    private long historyMaxTicks = 100000;
+    @Value("${stock-api.history.retention-ms:86400000}")
+    private long historyRetentionMillis = 86400000;
+    @Value("${stock-api.replication.role:standalone}")
+    private String replicationRole = "standalone";
+    @Value("${stock-api.replication.bind-address:127.0.0.1}")
+    private String replicationBindAddress = "127.0.0.1";
+    @Value("${stock-api.replication.port:7070}")
+    private int replicationPort = 7070;
+    @Value("${stock-api.replication.secret:}")
+    private String replicationSecret = "";
+    @Value("${stock-api.replication.max-followers:16}")
+    private int replicationMaxFollowers = 16;
+    @Value("${stock-api.replication.leader:localhost:7070}")
+    private String replicationLeaderAddress = "localhost:7070";
+    @Value("${stock-api.replication.leader-url:}")
+    private String replicationLeaderUrl = "";
+    @Value("${stock-api.replication.max-pending:100000}")
+    private int replicationMaxPending = 100000;
+    @Value("${stock-api.replication.heartbeat-ms:100}")
+    private long replicationHeartbeatMillis = 100;
 
     /**
-     * Initialize some stocks
+     * Pick the storage engine and initialize some stocks, unless the store or the journal
+     * already has the book of a previous run or the stocks come from the leader
      */
     @PostConstruct
     public void init() {
-        for (long count=1; count <= initSize; count++) {
-            final Stock stock = Stock.builder()
-                    .id(idSequence.incrementAndGet())
-                    .name("name_"+count)
-                    .currentPrice(BigDecimal.valueOf(count+.66).setScale(2, BigDecimal.ROUND_HALF_UP))
-                    .lastUpdate(System.currentTimeMillis()).build();
-            stockMap.put(stock.getId(), stock);
+        store = openStore();
+        sortIndex = new StockSortIndex(store, idSequence, sortIndexEnabled);
+        pageCache = new StockPageCache(pageCacheMaxPages, pageCacheMaxStalenessMillis);
+        pageCompression = new PageCompression(pageCompressionLevel, metrics);
+        idSequence.set(store.lastLoadedId());
+        //Versions of a previous run are not known, the ETags have the random epoch of the run so none of them matches
+        bookLastModified.accumulate(System.currentTimeMillis());
+        if (journalEnabled) {
+            journal = openJournal();
         }
+        if (idSequence.get() > 0) {
+            loadStocks();
+        } else if (!isFollower()) {
+            preloadStocks();
+        }
+        if (journal != null) {
+            journal.scheduleSnapshots(store, idSequence::get, snapshotIntervalMillis);
+        }
+        startReplication();
     }
 
-    public List<StockResponse> getStocks() {
-        return stockMap.values().stream()
-                .map(this::getStockResponse)
-                .collect(Collectors.toList());
+    /**
+     * Create the init-size stocks on stock-api.startup.preload-threads threads, one per core when it is 0.
+     * Ids of the whole book are reserved up front like those of a batch and every thread takes the next chunk of them,
+     * stocks are stored one at a time as by createStock so the book can be read while it is loaded.
+     * With stock-api.startup.defer-sort-index the name and price orders are then loaded in the background
+     * as for a stored book, see {@link #loadStocks()}.
+     */
+    private void preloadStocks() {
+        final long lastId = idSequence.addAndGet(initSize);
+        final long lastUpdate = System.currentTimeMillis();
+        final int threads = preloadThreads > 0 ? preloadThreads : Runtime.getRuntime().availableProcessors();
+        if (threads == 1 || lastId <= PRELOAD_CHUNK) {
+            awaitDurable(preloadStocks(1, lastId, lastUpdate));
+        } else {
+            preloadStocks(lastId, lastUpdate, threads);
+        }
+        if (deferSortIndex) {
+            loadSortIndex(lastId);
+        }
     }
 
-    public StockResponse getStock(final Long id) {
-        final Stock stock = stockMap.get(id);
-        if (stock == null) {
+    private void preloadStocks(final long lastId, final long lastUpdate, final int threads) {
+        final AtomicLong nextChunk = new AtomicLong(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "stock-preload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final List<Future<Long>> tickets = new ArrayList<>(threads);
+            for (int thread = 0; thread < threads; thread++) {
+                tickets.add(executor.submit(() -> {
+                    long ticket = 0;
+                    for (long from = nextChunk.getAndAdd(PRELOAD_CHUNK); from <= lastId; from = nextChunk.getAndAdd(PRELOAD_CHUNK)) {
+                        ticket = Math.max(ticket, preloadStocks(from, Math.min(from + PRELOAD_CHUNK - 1, lastId), lastUpdate));
+                    }
+                    return ticket;
+                }));
+            }
+            long ticket = 0;
+            for (final Future<Long> threadTicket : tickets) {
+                ticket = Math.max(ticket, threadTicket.get());
+            }
+            awaitDurable(ticket);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while creating the stocks", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not create the stocks", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Prices are n.66 for stock n, built from their cents
+     * @return ticket of the journal record of the last stock
+     */
+    private long preloadStocks(final long fromId, final long toId, final long lastUpdate) {
+        long ticket = 0;
+        for (long id = fromId; id <= toId; id++) {
+            final Stock stock = newStock(id, "name_" + id, BigDecimal.valueOf(id * 100 + 66, 2), FIRST_VERSION, lastUpdate);
+            if (deferSortIndex) {
+                stockChanged(stock);
+                store.put(stock);
+                ticket = journal(stock);
+                bookChanged(lastUpdate);
+            } else {
+                ticket = putStock(stock);
+            }
+        }
+        return ticket;
+    }
+
+    @PreDestroy
+    public void close() {
+        if (replicationLeader != null) {
+            replicationLeader.close();
+        }
+        if (replicationFollower != null) {
+            replicationFollower.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        store.close();
+    }
+
+    /**
+     * Take a snapshot of the book now instead of waiting for the next one
+     * @return false if the journal is disabled or nothing changed since the last snapshot
+     */
+    public boolean snapshot() throws IOException {
+        return journal != null && journal.snapshot(store, idSequence::get);
+    }
+
+    /**
+     * The replication port of the leader is only known once it listens, 0 picks any free port
+     * @return port of the leader, 0 when this is not a leader
+     */
+    public int getReplicationPort() {
+        return replicationLeader == null ? 0 : replicationLeader.getPort();
+    }
+
+    private boolean isFollower() {
+        return FOLLOWER_ROLE.equalsIgnoreCase(replicationRole);
+    }
+
+    private void startReplication() {
+        if (LEADER_ROLE.equalsIgnoreCase(replicationRole)) {
+            try {
+                replicationLeader = new StockReplicationLeader(store, idSequence::get, bookEpoch, bookVersion::sum, replicationBindAddress,
+                        replicationPort, replicationSecret(), replicationMaxFollowers, replicationMaxPending,
+                        replicationHeartbeatMillis, metrics);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            metrics.replicationStatus(replicationLeader::followers, null);
+        } else if (isFollower()) {
+            replicationFollower = new StockReplicationFollower(replicationLeaderAddress, replicationHeartbeatMillis, replicationSecret(),
+                    this::applyReplicated, this::clearReplicated, metrics);
+            metrics.replicationStatus(null, replicationFollower::lagMillis);
+        }
+    }
+
+    /**
+     * @return secret of the leader and its followers, null without one
+     */
+    private byte[] replicationSecret() {
+        return replicationSecret.isEmpty() ? null : replicationSecret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Called by the single receiving thread of the follower, so the stock is not changed in between the get and the put.
+     * Stocks of the leader come with their own version, a version the follower already has is skipped.
+     */
+    private void applyReplicated(final Stock stock) {
+        idSequence.accumulateAndGet(stock.getId(), Math::max);
+        final Stock current = store.get(stock.getId());
+        if (current == null) {
+            putStock(stock);
+        } else if (current.getVersion() < stock.getVersion()) {
+            store.computeIfPresent(stock.getId(), previous -> {
+                sortIndex.replace(previous, stock);
+                priceChanged(previous, stock);
+                stockChanged(stock);
+                return stock;
+            });
+            journal(stock);
+            bookChanged(stock.getLastUpdate());
+        }
+    }
+
+    /**
+     * Called by the receiving thread of the follower before the snapshot of a leader of another epoch,
+     * whose versions can not be compared with those of the book. Followers are only written by that thread.
+     */
+    private void clearReplicated() {
+        store.clear();
+        sortIndex.clear();
+        priceHistories.clear();
+        pageCache.clear();
+        idSequence.set(0);
+        bookChanged(System.currentTimeMillis());
+    }
+
+    /**
+     * A follower only serves a whole book, not the book it is clearing or taking from the leader of another epoch
+     * @return clears of the book before the read, to give to {@link #checkSameBook(long)} once read
+     * @throws FollowerCatchingUpException until the first heartbeat of the leader after the snapshot
+     */
+    private long checkCaughtUp() {
+        if (replicationFollower == null) {
+            return 0L;
+        }
+        final long clears = replicationFollower.clears();
+        if (!replicationFollower.isCaughtUp()) {
+            throw new FollowerCatchingUpException();
+        }
+        return clears;
+    }
+
+    /**
+     * @throws FollowerCatchingUpException if the book was cleared during the read, which may then have half of each book
+     */
+    private void checkSameBook(final long clears) {
+        if (replicationFollower != null && replicationFollower.clears() != clears) {
+            throw new FollowerCatchingUpException();
+        }
+    }
+
+    /**
+     * @throws FollowerWriteException on a follower, stocks are only written on the leader
+     * @throws UncheckedIOException once the journal failed, so no more changes are applied without being durable
+     */
+    private void checkWritable() {
+        if (isFollower()) {
+            throw new FollowerWriteException(replicationLeaderUrl.isEmpty() ? null : replicationLeaderUrl);
+        }
+        if (journal != null) {
+            journal.checkWritable();
+        }
+    }
+
+    /**
+     * Changes that were in flight when the journal failed are applied but not durable, and are lost on a restart
+     * @return failure of the journal, null when it is disabled or the changes are durable
+     */
+    public IOException getJournalFailure() {
+        return journal == null ? null : journal.getFailure();
+    }
+
+    private StockJournal openJournal() {
+        try {
+            return new StockJournal(Paths.get(journalPath), journalMaxBatch, journalMaxDelayMicros, this::recoverStock);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Records of the journal come in no particular version order, only the highest version of a stock is kept
+     */
+    private void recoverStock(final Stock stock) {
+        final Stock current = store.get(stock.getId());
+        if (current == null || current.getVersion() < stock.getVersion()) {
+            store.put(stock);
+        }
+        idSequence.accumulateAndGet(stock.getId(), Math::max);
+    }
+
+    /**
+     * Heap and compact books are split into stock-api.partitions partitions, one per core when it is 0.
+     * The mapped book is a single file so it is never split.
+     */
+    private StockStore openStore() {
+        if (MAPPED_STORE.equalsIgnoreCase(storeType)) {
+            try {
+                return new MappedStockStore(Paths.get(mappedPath));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        final int partitionCount = partitions > 0 ? partitions : Runtime.getRuntime().availableProcessors();
+        if (partitionCount == 1) {
+            return openPartition(initSize);
+        }
+        return new PartitionedStockStore(partitionCount, () -> openPartition(initSize / partitionCount));
+    }
+
+    private StockStore openPartition(final int expectedSize) {
+        if (COMPACT_STORE.equalsIgnoreCase(storeType)) {
+            return new CompactStockStore(expectedSize);
+        }
+        return new HeapStockStore(expectedSize);
+    }
+
+    /**
+     * Stocks stay in the store and are not read, the sort index is rebuilt in the background so the stocks
+     * are served right away.
+     */
+    private void loadStocks() {
+        loadSortIndex(idSequence.get());
+    }
+
+    private void loadSortIndex(final long lastId) {
+        sortIndex.load(lastId, loader -> {
+            final Thread thread = new Thread(loader, "stock-sort-index-loader");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * Keyset pagination over the sort index, only the stocks of the page are visited
+     * @param sort ordering of the stocks
+     * @param after cursor of the previous page or null for the first page
+     * @param limit maximum number of stocks in the page
+     * @return the page with the cursor of the next page if there are more stocks
+     */
+    public StockPage getStocks(final StockSort sort, final String after, final int limit) {
+        final long start = System.nanoTime();
+        try {
+            checkPageLimit(limit);
+            final long clears = checkCaughtUp();
+            final StockPage page = page(sortIndex.after(sort, after), limit);
+            checkSameBook(clears);
+            return page;
+        } finally {
+            metrics.record(Operation.PAGE, start);
+        }
+    }
+
+    /**
+     * Stocks found by name through the name order of the sort index, paged like the stocks sorted by name
+     * @param name exact name, or prefix of the names when prefix is true
+     * @param after cursor of the previous page or null for the first page
+     * @param limit maximum number of stocks in the page
+     * @return the page in name then id order, with the cursor of the next page if there are more stocks
+     */
+    public StockPage getStocksByName(final String name, final boolean prefix, final String after, final int limit) {
+        final long start = System.nanoTime();
+        try {
+            checkPageLimit(limit);
+            final long clears = checkCaughtUp();
+            final StockPage page = page(sortIndex.named(name, prefix, after), limit);
+            checkSameBook(clears);
+            return page;
+        } finally {
+            metrics.record(Operation.SEARCH, start);
+        }
+    }
+
+    /**
+     * Page of the stocks as JSON or binary, taken from the page cache while it is fresh, see {@link StockPageCache},
+     * otherwise copied from the JSON of its stocks, or encoded from them, and cached
+     * @param sort ordering of the stocks
+     * @param after cursor of the previous page or null for the first page
+     * @param limit maximum number of stocks in the page
+     * @param binary true for the {@link StockBinary} of the stocks, false for a JSON array
+     * @return the page with the cursor of the next page if there are more stocks
+     */
+    public SerializedPage getSerializedStocks(final StockSort sort, final String after, final int limit, final boolean binary) {
+        final long start = System.nanoTime();
+        try {
+            checkPageLimit(limit);
+            final long clears = checkCaughtUp();
+            final String key = StockPageCache.key(sort, after, limit, binary);
+            final SerializedPage cached = pageCache.get(key, getBookVersion(), start);
+            if (cached != null) {
+                metrics.pageCacheHit();
+                return cached;
+            }
+            metrics.pageCacheMiss();
+            final long bookVersion = getBookVersion();
+            final long lastModified = getBookLastModified();
+            final SerializedPage page = serializedPage(sortIndex.after(sort, after), limit, binary, bookVersion, lastModified);
+            checkSameBook(clears);
+            pageCache.put(key, page);
+            return page;
+        } finally {
+            metrics.record(Operation.PAGE, start);
+        }
+    }
+
+    /**
+     * Stocks found by name as JSON or binary, see {@link #getStocksByName(String, boolean, String, int)}.
+     * Searches are not cached, there are as many of them as names.
+     */
+    public SerializedPage getSerializedStocksByName(final String name, final boolean prefix, final String after, final int limit,
+                                                    final boolean binary) {
+        final long start = System.nanoTime();
+        try {
+            checkPageLimit(limit);
+            final long clears = checkCaughtUp();
+            final long bookVersion = getBookVersion();
+            final long lastModified = getBookLastModified();
+            final SerializedPage page = serializedPage(sortIndex.named(name, prefix, after), limit, binary, bookVersion, lastModified);
+            checkSameBook(clears);
+            return page;
+        } finally {
+            metrics.record(Operation.SEARCH, start);
+        }
+    }
+
+    /**
+     * @param bookVersion read before the stocks, so the page has every change up to it
+     */
+    private SerializedPage serializedPage(final StockSortIndex.SortedStocks iterator, final int limit, final boolean binary,
+                                          final long bookVersion, final long lastModified) {
+        final ByteArrayBuilder body = new ByteArrayBuilder(limit * SERIALIZED_STOCK_SIZE_HINT);
+        if (!binary) {
+            body.append('[');
+        }
+        int count = 0;
+        while (count < limit && iterator.hasNext()) {
+            final SerializedStock stock = iterator.next().getSerialized();
+            if (binary) {
+                stock.writeBinaryTo(body);
+            } else {
+                if (count > 0) {
+                    body.append(',');
+                }
+                stock.writeTo(body);
+            }
+            count++;
+        }
+        if (!binary) {
+            body.append(']');
+        }
+        final String nextCursor = iterator.hasNext() ? iterator.cursor() : null;
+        return new SerializedPage(body.toByteArray(), nextCursor, bookVersion, lastModified, System.nanoTime(), pageCompression);
+    }
+
+    private void checkPageLimit(final int limit) {
+        if (limit < 1 || limit > maxPageLimit) {
+            throw new InvalidPageRequestException("limit should be between 1 and " + maxPageLimit);
+        }
+    }
+
+    private StockPage page(final StockSortIndex.SortedStocks iterator, final int limit) {
+        final List<StockResponse> stocks = new ArrayList<>(limit);
+        while (stocks.size() < limit && iterator.hasNext()) {
+            stocks.add(getStockResponse(iterator.next()));
+        }
+        final String nextCursor = iterator.hasNext() ? iterator.cursor() : null;
+        return StockPage.builder().stocks(stocks).nextCursor(nextCursor).build();
+    }
+
+    /**
+     * @param from epoch milliseconds of the first change
+     * @param to epoch milliseconds the changes end before
+     * @return price changes of the stock in the range, oldest first, empty if its price has not changed yet
+     */
+    public List<PricePoint> getPriceHistory(final Long id, final long from, final long to) {
+        final long start = System.nanoTime();
+        try {
+            final StockPriceHistory priceHistory = getPriceHistory(id, Operation.HISTORY);
+            return priceHistory == null ? new ArrayList<>() : priceHistory.range(from, to);
+        } finally {
+            metrics.record(Operation.HISTORY, start);
+        }
+    }
+
+    /**
+     * @param interval of each bar as a number followed by s, m, h or d e.g. 1m
+     * @param from epoch milliseconds of the first change
+     * @param to epoch milliseconds the changes end before
+     * @return open, high, low and close prices of the stock per interval that has any change, oldest first
+     */
+    public List<PriceBar> getPriceBars(final Long id, final String interval, final long from, final long to) {
+        final long start = System.nanoTime();
+        try {
+            final long intervalMillis = parseInterval(interval);
+            final StockPriceHistory priceHistory = getPriceHistory(id, Operation.OHLC);
+            return priceHistory == null ? new ArrayList<>() : priceHistory.ohlc(intervalMillis, from, to);
+        } finally {
+            metrics.record(Operation.OHLC, start);
+        }
+    }
+
+    private StockPriceHistory getPriceHistory(final Long id, final Operation operation) {
+        checkCaughtUp();
+        if (store.get(id) == null) {
+            metrics.notFound(operation);
             throw new StockNotFoundException(id);
         }
-        return getStockResponse(stock);
+        return priceHistories.get(id);
+    }
+
+    private static long parseInterval(final String interval) {
+        final TimeUnit unit = interval == null || interval.isEmpty() ? null : INTERVAL_UNITS.get(interval.charAt(interval.length() - 1));
+        long amount = 0L;
+        if (unit != null) {
+            try {
+                amount = Long.parseLong(interval.substring(0, interval.length() - 1));
+            } catch (NumberFormatException e) {
+                //falls through as an invalid interval
+            }
+        }
+        if (amount < 1 || unit.toMillis(amount) >= MAX_INTERVAL_MILLIS) {
+            throw new InvalidHistoryRequestException("interval should be a positive number followed by s, m, h or d e.g. 1m");
+        }
+        return unit.toMillis(amount);
+    }
+
+    /**
+     * Write all the stocks as JSON straight from the store into the stream in id order, memory stays constant
+     * whatever the size of the book as stocks are serialized a batch at a time, by the partitions in parallel
+     * @param outputStream to write the stocks into, it is left open
+     * @param newlineDelimited true for one JSON object per line (NDJSON), false for a single JSON array
+     */
+    public void exportStocks(final OutputStream outputStream, final boolean newlineDelimited) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            checkCaughtUp();
+            if (!newlineDelimited) {
+                outputStream.write('[');
+            }
+            final boolean[] first = {true};
+            store.scan(idSequence.get(), Stock::getSerialized, serializedStock -> {
+                if (!newlineDelimited && !first[0]) {
+                    outputStream.write(',');
+                }
+                serializedStock.writeTo(outputStream);
+                if (newlineDelimited) {
+                    outputStream.write('\n');
+                }
+                first[0] = false;
+            });
+            if (!newlineDelimited) {
+                outputStream.write(']');
+            }
+            outputStream.flush();
+        } finally {
+            metrics.record(Operation.EXPORT, start);
+        }
+    }
+
+    /**
+     * @param changeListener to get every stock created or updated from now on
+     */
+    public void addChangeListener(final StockChangeListener changeListener) {
+        changeListeners.add(changeListener);
+    }
+
+    public void removeChangeListener(final StockChangeListener changeListener) {
+        changeListeners.remove(changeListener);
+    }
+
+    /**
+     * @return latencies, not found and contention counts of the operations and the size of the book,
+     * to be registered with Prometheus
+     */
+    public Collector getMetrics() {
+        return metrics;
+    }
+
+    private long getBookSize() {
+        return store == null ? 0L : store.size();
+    }
+
+    /**
+     * Price histories are left out, they are only taken by the stocks whose price changed
+     */
+    private long getEstimatedHeapBytes() {
+        return store == null ? 0L : store.estimatedHeapBytes() + sortIndex.estimatedHeapBytes(store.size());
+    }
+
+    /**
+     * Version of the whole book, changes whenever any stock is created or updated.
+     * A LongAdder so writers of different stocks do not contend on a single counter.
+     * A follower has the version of the leader as of its last heartbeat, see {@link StockReplicationFollower}.
+     * @return version to be used as validator of the list of stocks
+     */
+    public long getBookVersion() {
+        return replicationFollower == null ? bookVersion.sum() : replicationFollower.bookVersion();
+    }
+
+    /**
+     * Random for every run, versions of the book and of the stocks start over in every run without a store or
+     * a journal to keep them, so the ETags have the epoch of the run and those of another run never match.
+     * A follower has the epoch of its leader, which changes when it takes the book of another run of the leader,
+     * so an ETag is only of the book it was read from when the epoch is the same before and after the read.
+     * @return epoch of the run as used in the ETags
+     * @throws FollowerCatchingUpException until a follower caught up with its leader
+     */
+    public String getBookEpoch() {
+        if (replicationFollower == null) {
+            return bookEpochTag;
+        }
+        checkCaughtUp();
+        return replicationFollower.epochTag();
+    }
+
+    /**
+     * @return latest lastUpdate of all the stocks in epoch milliseconds
+     */
+    public long getBookLastModified() {
+        return bookLastModified.get();
+    }
+
+    /**
+     * Read path that does not allocate with the heap store, the stock was serialized when it was written
+     * @param id of the stock
+     * @return JSON and ETag of the stock
+     */
+    public SerializedStock getSerializedStock(final Long id) {
+        final long start = System.nanoTime();
+        try {
+            final long clears = checkCaughtUp();
+            final Stock stock = store.get(id);
+            checkSameBook(clears);
+            if (stock == null) {
+                metrics.notFound(Operation.GET_SERIALIZED);
+                throw new StockNotFoundException(id);
+            }
+            return stock.getSerialized();
+        } finally {
+            metrics.record(Operation.GET_SERIALIZED, start);
+        }
+    }
+
+    public StockResponse getStock(final Long id) {
+        final long start = System.nanoTime();
+        try {
+            final long clears = checkCaughtUp();
+            final Stock stock = store.get(id);
+            checkSameBook(clears);
+            if (stock == null) {
+                metrics.notFound(Operation.GET);
+                throw new StockNotFoundException(id);
+            }
+            return getStockResponse(stock);
+        } finally {
+            metrics.record(Operation.GET, start);
+        }
     }
 
     public StockResponse createStock(final StockRequest stockRequest) {
-        final Stock stock = createStockFromRequest(stockRequest, idSequence.incrementAndGet());
-        stockMap.put(stock.getId(), stock);
-        return getStockResponse(stock);
+        checkWritable();
+        final long start = System.nanoTime();
+        try {
+            final Stock stock = createStockFromRequest(stockRequest, idSequence.incrementAndGet(), FIRST_VERSION, System.currentTimeMillis());
+            awaitDurable(putStock(stock));
+            return getStockResponse(stock);
+        } finally {
+            metrics.record(Operation.CREATE, start);
+        }
     }
 
     public StockResponse updateStock(final StockRequest stockRequest, final Long stockId) {
-        if (!stockMap.containsKey(stockId)) {
-            throw new StockNotFoundException(stockId);
+        return updateStock(stockRequest, stockId, null);
+    }
+
+    /**
+     * Update the stock if it is still at the expected version
+     * @param stockRequest new values of the stock
+     * @param stockId of the stock to be updated
+     * @param expectedVersion version the client has seen, null to update whatever the current version is
+     * @return updated stock with the incremented version
+     */
+    public StockResponse updateStock(final StockRequest stockRequest, final Long stockId, final Long expectedVersion) {
+        checkWritable();
+        final long start = System.nanoTime();
+        try {
+            final Stock updated = replaceStock(stockRequest, stockId, expectedVersion, System.currentTimeMillis());
+            if (updated == null) {
+                metrics.notFound(Operation.UPDATE);
+                throw new StockNotFoundException(stockId);
+            }
+            awaitDurable(journal(updated));
+            return getStockResponse(updated);
+        } finally {
+            metrics.record(Operation.UPDATE, start);
         }
-        final Stock stockToBeUpdated = createStockFromRequest(stockRequest, stockId);
-        //Be aware of the fact that it could have been updated by another thread hopefully in normal databases
-        //we can use versioning(OptimisticLocking) to control
-        stockMap.put(stockId, stockToBeUpdated);
-        return getStockResponse(stockToBeUpdated);
     }
 
-    private Stock createStockFromRequest(final StockRequest stockRequest, final long stockId) {
-        return Stock.builder()
-                .id(stockId)
-                .name(stockRequest.getName())
-                .currentPrice(stockRequest.getCurrentPrice())
-                .lastUpdate(System.currentTimeMillis())
-                .build();
+    /**
+     * Create the stocks of a batch, ids of the whole batch are reserved with a single increment
+     * of the sequence, all the stocks share the same lastUpdate and the journal is waited for once
+     * @param stockRequests already validated stocks to be created
+     * @return one result per request in the same order
+     */
+    public List<StockBatchResult> createStocks(final List<? extends StockRequest> stockRequests) {
+        checkWritable();
+        final long start = System.nanoTime();
+        try {
+            final List<StockBatchResult> results = new ArrayList<>(stockRequests.size());
+            long stockId = idSequence.getAndAdd(stockRequests.size());
+            final long lastUpdate = System.currentTimeMillis();
+            long ticket = 0;
+            for (final StockRequest stockRequest : stockRequests) {
+                final Stock stock = createStockFromRequest(stockRequest, ++stockId, FIRST_VERSION, lastUpdate);
+                ticket = putStock(stock);
+                results.add(StockBatchResult.builder().id(stock.getId()).status(HttpStatus.CREATED.value()).build());
+            }
+            awaitDurable(ticket);
+            return results;
+        } finally {
+            metrics.record(Operation.CREATE_BATCH, start);
+        }
+    }
+
+    /**
+     * Update the stocks of a batch, missing stocks are reported in their result instead of failing the batch
+     * @param stockRequests already validated stocks to be updated
+     * @return one result per request in the same order
+     */
+    public List<StockBatchResult> updateStocks(final List<StockUpdateRequest> stockRequests) {
+        checkWritable();
+        final long start = System.nanoTime();
+        try {
+            final List<StockBatchResult> results = new ArrayList<>(stockRequests.size());
+            final long lastUpdate = System.currentTimeMillis();
+            long ticket = 0;
+            for (final StockUpdateRequest stockRequest : stockRequests) {
+                final Long stockId = stockRequest.getId();
+                final Stock updated = replaceStock(stockRequest, stockId, null, lastUpdate);
+                if (updated != null) {
+                    ticket = journal(updated);
+                    results.add(StockBatchResult.builder().id(stockId).status(HttpStatus.NO_CONTENT.value()).build());
+                } else {
+                    metrics.notFound(Operation.UPDATE_BATCH);
+                    results.add(StockBatchResult.builder().id(stockId).status(HttpStatus.NOT_FOUND.value())
+                            .message(StockNotFoundException.message(stockId)).build());
+                }
+            }
+            awaitDurable(ticket);
+            return results;
+        } finally {
+            metrics.record(Operation.UPDATE_BATCH, start);
+        }
+    }
+
+    /**
+     * Replace the stock with a single probe of the store, updates of the same id are applied one after
+     * the other with an incremented version, while updates of different ids mostly do not wait on each other.
+     * The sort index is replaced in the same step so it stays in line with the store.
+     * @param expectedVersion null to skip the optimistic locking check
+     * @return the new stock or null if there is no stock with the id
+     * @throws StockVersionConflictException if the stock is not at the expected version any more
+     */
+    private Stock replaceStock(final StockRequest stockRequest, final Long stockId, final Long expectedVersion, final long lastUpdate) {
+        metrics.updateStarted(stockId);
+        final Stock updated;
+        try {
+            updated = store.computeIfPresent(stockId, previous -> {
+                if (expectedVersion != null && !expectedVersion.equals(previous.getVersion())) {
+                    metrics.versionConflict();
+                    throw new StockVersionConflictException(stockId, expectedVersion, previous.getVersion());
+                }
+                final Stock stockToBeUpdated = createStockFromRequest(stockRequest, stockId, previous.getVersion() + 1, lastUpdate);
+                sortIndex.replace(previous, stockToBeUpdated);
+                priceChanged(previous, stockToBeUpdated);
+                //Still holding the id in the store so listeners get the changes of a stock in version order
+                stockChanged(stockToBeUpdated);
+                return stockToBeUpdated;
+            });
+        } finally {
+            metrics.updateFinished(stockId);
+        }
+        if (updated != null) {
+            bookChanged(lastUpdate);
+        }
+        return updated;
+    }
+
+    /**
+     * Listeners get a new stock before it can be read or updated, so its creation is never given after its updates
+     * @return ticket of the journal record of the stock
+     */
+    private long putStock(final Stock stock) {
+        stockChanged(stock);
+        store.put(stock);
+        sortIndex.add(stock);
+        final long ticket = journal(stock);
+        bookChanged(stock.getLastUpdate());
+        return ticket;
+    }
+
+    /**
+     * Called once the store has the change, see {@link StockJournal#append(Stock)}
+     * @return ticket of the journal record or 0 when the journal is disabled
+     */
+    private long journal(final Stock stock) {
+        return journal == null ? 0L : journal.append(stock);
+    }
+
+    private void awaitDurable(final long ticket) {
+        if (journal != null && ticket > 0) {
+            journal.awaitDurable(ticket);
+        }
+    }
+
+    /**
+     * Called while the stock is held in the store, so changes of a stock are added one at a time in version order.
+     * The history of a stock is created on its first price change starting from its previous price.
+     */
+    private void priceChanged(final Stock previous, final Stock updated) {
+        if (!historyEnabled || previous.getCurrentPrice().compareTo(updated.getCurrentPrice()) == 0) {
+            return;
+        }
+        final StockPriceHistory priceHistory = priceHistories.computeIfAbsent(updated.getId(), id -> {
+            final StockPriceHistory created = new StockPriceHistory(historyChunkSize, historyMaxTicks, historyRetentionMillis);
+            created.add(previous.getLastUpdate(), Stock.toCents(previous.getCurrentPrice()));
+            return created;
+        });
+        priceHistory.add(updated.getLastUpdate(), Stock.toCents(updated.getCurrentPrice()));
+    }
+
+    private void stockChanged(final Stock stock) {
+        if (replicationLeader != null) {
+            replicationLeader.changed(stock);
+        }
+        for (final StockChangeListener changeListener : changeListeners) {
+            changeListener.stockChanged(stock.getSerialized());
+        }
+    }
+
+    /**
+     * Called after every change of the book, so a version read before a list is built is never newer than the list
+     */
+    private void bookChanged(final long lastUpdate) {
+        bookLastModified.accumulate(lastUpdate);
+        bookVersion.increment();
+    }
+
+    private Stock createStockFromRequest(final StockRequest stockRequest, final long stockId, final long version, final long lastUpdate) {
+        return newStock(stockId, stockRequest.getName(), stockRequest.getCurrentPrice(), version, lastUpdate);
+    }
+
+    private Stock newStock(final long stockId, final String name, final BigDecimal currentPrice, final long version, final long lastUpdate) {
+        return Stock.of(stockId, name, currentPrice, version, lastUpdate);
     }
 
     private StockResponse getStockResponse(final Stock stock) {
@@ -84,7 +972,8 @@ public class StockService {
                 .id(stock.getId())
                 .name(stock.getName())
                 .currentPrice(stock.getCurrentPrice())
-                .lastUpdate(stock.getLastUpdate()).build();
+                .lastUpdate(stock.getLastUpdate())
+                .version(stock.getVersion()).build();
     }
 
 }
@@ -94,6 +983,8 @@ public class StockService {
  */
 @Data
 @Builder
+@EqualsAndHashCode(exclude = "serialized")
+@ToString(exclude = "serialized")
 class Stock {
     @Setter(AccessLevel.NONE)
     private Long id;
@@ -103,4 +994,76 @@ class Stock {
     private BigDecimal currentPrice;
     @Setter(AccessLevel.NONE)
     private Long lastUpdate;
+    @Setter(AccessLevel.NONE)
+    private Long version;
+    @Setter(AccessLevel.NONE)
+    @Getter(AccessLevel.NONE)
+    private SerializedStock serialized;
+
+    private static final int PRICE_SCALE = 2;
+
+    /**
+     * Stock with its JSON serialized right away, for the stocks that are written and kept as they are
+     */
+    static Stock of(final long id, final String name, final BigDecimal currentPrice, final long version, final long lastUpdate) {
+        return Stock.builder()
+                .id(id)
+                .version(version)
+                .name(name)
+                .currentPrice(currentPrice)
+                .lastUpdate(lastUpdate)
+                .serialized(new SerializedStock(id, name, currentPrice, lastUpdate, version))
+                .build();
+    }
+
+    /**
+     * Stock read from the columns of a store, its JSON is only serialized if a reader asks for it,
+     * so walking the stores e.g. to load the sort index does not run Jackson
+     */
+    static Stock read(final long id, final String name, final BigDecimal currentPrice, final long version, final long lastUpdate) {
+        return Stock.builder()
+                .id(id)
+                .version(version)
+                .name(name)
+                .currentPrice(currentPrice)
+                .lastUpdate(lastUpdate)
+                .build();
+    }
+
+    /**
+     * Racing readers may both serialize the stock, SerializedStock is immutable so either copy is as good
+     */
+    SerializedStock getSerialized() {
+        SerializedStock current = serialized;
+        if (current == null) {
+            current = new SerializedStock(id, name, currentPrice, lastUpdate, version);
+            serialized = current;
+        }
+        return current;
+    }
+
+    /**
+     * Lossless as validation of the requests allows at most 2 fraction digits
+     * @throws ArithmeticException if the price has more fraction digits or does not fit a long
+     */
+    static long toCents(final BigDecimal price) {
+        return price.movePointRight(PRICE_SCALE).longValueExact();
+    }
+
+    static BigDecimal fromCents(final long cents) {
+        return BigDecimal.valueOf(cents, PRICE_SCALE);
+    }
+
+    /**
+     * @return fraction digits of the price short of the cents, 0 to 13 for the prices validation allows,
+     * kept by the stores next to the cents so a price comes back as 1.5 for 1.5 and as 1.50 for 1.50
+     */
+    static int droppedDigits(final BigDecimal price) {
+        return PRICE_SCALE - price.scale();
+    }
+
+    static BigDecimal fromCents(final long cents, final int droppedDigits) {
+        final BigDecimal price = BigDecimal.valueOf(cents, PRICE_SCALE);
+        return droppedDigits == 0 ? price : price.setScale(PRICE_SCALE - droppedDigits);
+    }
 }
\ No newline at end of file
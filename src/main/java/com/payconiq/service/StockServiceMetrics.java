@@ -0,0 +1,275 @@
+package com.payconiq.service;
+
+import com.payconiq.trace.RequestTrace;
+import io.prometheus.client.Collector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Latencies and counters of the {@link StockService} operations, collected by Prometheus on the /metrics servlet.
+ *
+ * A latency goes into a bucket of powers of 2 nanoseconds, found from its leading zeros like HdrHistogram does,
+ * and buckets are LongAdders so recording is a couple of uncontended increments. Buckets are only made cumulative
+ * when Prometheus collects them.
+ */
+final class StockServiceMetrics extends Collector {
+
+    /**
+     * Bucket i is up to 2^(FIRST_BUCKET_BITS + i) nanoseconds, from 128ns to 34s, then +Inf
+     */
+    private static final int FIRST_BUCKET_BITS = 7;
+    private static final int BUCKETS = 29;
+    /**
+     * Ints apart of two stripes of in flight updates, so stripes are on different cache lines
+     */
+    private static final int STRIPE_PADDING = 16;
+    private static final int STRIPES = 1024;
+    private static final List<String> OPERATION_LABEL = Collections.singletonList("operation");
+    private static final List<String> BUCKET_LABELS = Arrays.asList("operation", "le");
+    private static final String[] BUCKET_BOUNDS = new String[BUCKETS + 1];
+
+    static {
+        long bound = 1L << FIRST_BUCKET_BITS;
+        for (int bucket = 0; bucket < BUCKETS; bucket++, bound <<= 1) {
+            BUCKET_BOUNDS[bucket] = doubleToGoString(bound / NANOSECONDS_PER_SECOND);
+        }
+        BUCKET_BOUNDS[BUCKETS] = "+Inf";
+    }
+
+    enum Operation {
+        GET,
+        GET_SERIALIZED,
+        PAGE,
+        SEARCH,
+        EXPORT,
+        CREATE,
+        UPDATE,
+        CREATE_BATCH,
+        UPDATE_BATCH,
+        HISTORY,
+        OHLC;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    private final OperationStats[] operations = new OperationStats[Operation.values().length];
+    private final AtomicIntegerArray updatesInFlight = new AtomicIntegerArray(STRIPES * STRIPE_PADDING);
+    private final LongAdder contendedUpdates = new LongAdder();
+    private final LongAdder versionConflicts = new LongAdder();
+    private final LongAdder pageCacheHits = new LongAdder();
+    private final LongAdder pageCacheMisses = new LongAdder();
+    private final LongAdder pagesCompressed = new LongAdder();
+    private final LongAdder pageCompressionNanos = new LongAdder();
+    private final LongAdder pageCompressionInputBytes = new LongAdder();
+    private final LongAdder pageCompressionOutputBytes = new LongAdder();
+    private final LongAdder replicationApplied = new LongAdder();
+    private final LongAdder droppedFollowers = new LongAdder();
+    private final LongAdder rejectedFollowers = new LongAdder();
+    private final LongAdder replicationClears = new LongAdder();
+    private final LongSupplier bookSize;
+    private final LongSupplier estimatedHeapBytes;
+    private volatile LongSupplier replicationFollowers;
+    private volatile LongSupplier replicationLagMillis;
+
+    /**
+     * @param bookSize gives the number of stocks when metrics are collected
+     * @param estimatedHeapBytes gives the heap taken by the stocks and their indexes when metrics are collected
+     */
+    StockServiceMetrics(final LongSupplier bookSize, final LongSupplier estimatedHeapBytes) {
+        this.bookSize = bookSize;
+        this.estimatedHeapBytes = estimatedHeapBytes;
+        for (int index = 0; index < operations.length; index++) {
+            operations[index] = new OperationStats();
+        }
+    }
+
+    /**
+     * The operation is also added to the trace of the request when the request is sampled
+     * @param startNanos System.nanoTime() when the operation started
+     */
+    void record(final Operation operation, final long startNanos) {
+        final long endNanos = System.nanoTime();
+        operations[operation.ordinal()].record(endNanos - startNanos);
+        RequestTrace.serviceCalled(startNanos, endNanos);
+    }
+
+    void notFound(final Operation operation) {
+        operations[operation.ordinal()].notFound.increment();
+    }
+
+    void versionConflict() {
+        versionConflicts.increment();
+    }
+
+    void pageCacheHit() {
+        pageCacheHits.increment();
+    }
+
+    void pageCacheMiss() {
+        pageCacheMisses.increment();
+    }
+
+    /**
+     * Compression ratio is the rate of the output bytes over the rate of the input bytes
+     * @param startNanos System.nanoTime() when the compression started
+     */
+    void pageCompressed(final int inputBytes, final int outputBytes, final long startNanos) {
+        pageCompressionNanos.add(System.nanoTime() - startNanos);
+        pagesCompressed.increment();
+        pageCompressionInputBytes.add(inputBytes);
+        pageCompressionOutputBytes.add(outputBytes);
+    }
+
+    /**
+     * Stock records of the leader applied by a follower, including those of the snapshots
+     */
+    void replicationApplied() {
+        replicationApplied.increment();
+    }
+
+    void followerDropped() {
+        droppedFollowers.increment();
+    }
+
+    /**
+     * Connection refused by a leader, without the replication secret or beyond the max followers
+     */
+    void followerRejected() {
+        rejectedFollowers.increment();
+    }
+
+    /**
+     * Book of a follower cleared to take the book of a leader of another epoch
+     */
+    void replicationCleared() {
+        replicationClears.increment();
+    }
+
+    /**
+     * Set once the replication is started, the gauges are left out while they are null
+     * @param followers gives the number of connected followers on a leader
+     * @param lagMillis gives the replication lag on a follower
+     */
+    void replicationStatus(final LongSupplier followers, final LongSupplier lagMillis) {
+        this.replicationFollowers = followers;
+        this.replicationLagMillis = lagMillis;
+    }
+
+    /**
+     * Counts the update as contended when another update of the same id is in flight. Ids share 1024 stripes,
+     * so with many updates of different ids at the same time some of them are counted as well.
+     * Has to be followed by {@link #updateFinished(long)} for the same id.
+     */
+    void updateStarted(final long id) {
+        if (updatesInFlight.incrementAndGet(stripe(id)) > 1) {
+            contendedUpdates.increment();
+        }
+    }
+
+    void updateFinished(final long id) {
+        updatesInFlight.decrementAndGet(stripe(id));
+    }
+
+    private static int stripe(final long id) {
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - 10)) * STRIPE_PADDING;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final List<MetricFamilySamples.Sample> durations = new ArrayList<>();
+        final List<MetricFamilySamples.Sample> notFound = new ArrayList<>();
+        for (final Operation operation : Operation.values()) {
+            final OperationStats stats = operations[operation.ordinal()];
+            long count = 0;
+            for (int bucket = 0; bucket <= BUCKETS; bucket++) {
+                count += stats.buckets[bucket].sum();
+                durations.add(new MetricFamilySamples.Sample("stock_service_operation_duration_seconds_bucket",
+                        BUCKET_LABELS, Arrays.asList(operation.label, BUCKET_BOUNDS[bucket]), count));
+            }
+            final List<String> label = Collections.singletonList(operation.label);
+            durations.add(new MetricFamilySamples.Sample("stock_service_operation_duration_seconds_count", OPERATION_LABEL, label, count));
+            durations.add(new MetricFamilySamples.Sample("stock_service_operation_duration_seconds_sum", OPERATION_LABEL, label,
+                    stats.nanos.sum() / NANOSECONDS_PER_SECOND));
+            notFound.add(new MetricFamilySamples.Sample("stock_service_not_found_total", OPERATION_LABEL, label, stats.notFound.sum()));
+        }
+        final List<MetricFamilySamples> metrics = new ArrayList<>(Arrays.asList(
+                new MetricFamilySamples("stock_service_operation_duration_seconds", Type.HISTOGRAM,
+                        "Duration of StockService operations in seconds", durations),
+                new MetricFamilySamples("stock_service_not_found_total", Type.COUNTER,
+                        "Operations on a stock id that does not exist", notFound),
+                counter("stock_service_update_contended_total",
+                        "Updates started while another update of the same id stripe was in flight", contendedUpdates.sum()),
+                counter("stock_service_version_conflicts_total",
+                        "Updates rejected as the stock was not at the expected version", versionConflicts.sum()),
+                counter("stock_service_page_cache_hits_total", "Pages of the stocks served from the page cache", pageCacheHits.sum()),
+                counter("stock_service_page_cache_misses_total", "Pages of the stocks built as the cached one was missing or stale",
+                        pageCacheMisses.sum()),
+                new MetricFamilySamples("stock_service_page_compression_seconds", Type.SUMMARY, "Time taken to gzip the pages",
+                        Arrays.asList(
+                                new MetricFamilySamples.Sample("stock_service_page_compression_seconds_count",
+                                        Collections.emptyList(), Collections.emptyList(), pagesCompressed.sum()),
+                                new MetricFamilySamples.Sample("stock_service_page_compression_seconds_sum",
+                                        Collections.emptyList(), Collections.emptyList(), pageCompressionNanos.sum() / NANOSECONDS_PER_SECOND))),
+                counter("stock_service_page_compression_input_bytes_total", "Bytes of the pages before gzip",
+                        pageCompressionInputBytes.sum()),
+                counter("stock_service_page_compression_output_bytes_total", "Bytes of the gzip of the pages",
+                        pageCompressionOutputBytes.sum()),
+                gauge("stock_service_book_size", "Number of stocks", bookSize.getAsLong()),
+                gauge("stock_service_estimated_heap_bytes", "Estimated heap taken by the stocks and their indexes",
+                        estimatedHeapBytes.getAsLong()),
+                counter("stock_service_replication_applied_total", "Stocks of the leader applied by this follower",
+                        replicationApplied.sum()),
+                counter("stock_service_replication_dropped_followers_total",
+                        "Followers disconnected by this leader for being too many changes behind", droppedFollowers.sum()),
+                counter("stock_service_replication_rejected_followers_total",
+                        "Connections refused by this leader, without the replication secret or beyond the max followers",
+                        rejectedFollowers.sum()),
+                counter("stock_service_replication_clears_total",
+                        "Books of this follower cleared for a leader of another epoch", replicationClears.sum())));
+        final LongSupplier followers = replicationFollowers;
+        if (followers != null) {
+            metrics.add(gauge("stock_service_replication_followers", "Followers connected to this leader", followers.getAsLong()));
+        }
+        final LongSupplier lagMillis = replicationLagMillis;
+        if (lagMillis != null) {
+            metrics.add(gauge("stock_service_replication_lag_seconds",
+                    "Time since this follower last had every change of the leader", lagMillis.getAsLong() / 1000.0));
+        }
+        return metrics;
+    }
+
+    private static MetricFamilySamples counter(final String name, final String help, final double value) {
+        return new MetricFamilySamples(name, Type.COUNTER, help, Collections.singletonList(
+                new MetricFamilySamples.Sample(name, Collections.emptyList(), Collections.emptyList(), value)));
+    }
+
+    private static MetricFamilySamples gauge(final String name, final String help, final double value) {
+        return new MetricFamilySamples(name, Type.GAUGE, help, Collections.singletonList(
+                new MetricFamilySamples.Sample(name, Collections.emptyList(), Collections.emptyList(), value)));
+    }
+
+    private static final class OperationStats {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder notFound = new LongAdder();
+
+        private OperationStats() {
+            for (int bucket = 0; bucket <= BUCKETS; bucket++) {
+                buckets[bucket] = new LongAdder();
+            }
+        }
+
+        private void record(final long elapsedNanos) {
+            //Bits needed for elapsedNanos - 1 is the smallest power of 2 at or above elapsedNanos
+            final int bits = Long.SIZE - Long.numberOfLeadingZeros(Math.max(elapsedNanos - 1, 0L));
+            buckets[Math.min(Math.max(bits - FIRST_BUCKET_BITS, 0), BUCKETS)].increment();
+            nanos.add(elapsedNanos);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockSort;
+import com.payconiq.model.exception.InvalidPageRequestException;
+import com.payconiq.model.exception.SortIndexLoadingException;
+import lombok.Value;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ordered views of the stock book for keyset pagination. Seeking to a cursor is O(log n) for name and price
+ * and O(1) for id, so a page costs O(log n + page size) whatever the size of the book.
+ *
+ * Ids are given by a sequence and stocks are never removed, so the id order is a walk over the sequence
+ * through {@link StockStore#get(long)} and needs no index. Name and price orders are concurrent skip lists
+ * of small keys only, the stocks themselves stay in the store so the index does not keep a second copy of
+ * the book alive. The indexes can be disabled with stock-api.page.sort-index to save their memory,
+ * then only the id order can be paged.
+ */
+class StockSortIndex {
+
+    private static final String CURSOR_SEPARATOR = ",";
+    /**
+     * Name and price keys with their skip list nodes, measured with StockStoreFootprint
+     */
+    private static final long ESTIMATED_BYTES_PER_STOCK = 128;
+    private static final Comparator<NameKey> NAME_ORDER = Comparator.comparing(NameKey::getName)
+            .thenComparingLong(NameKey::getId);
+    private static final Comparator<PriceKey> PRICE_ORDER = Comparator.comparingLong(PriceKey::getPriceCents)
+            .thenComparingLong(PriceKey::getId);
+
+    private final StockStore store;
+    private final AtomicLong idSequence;
+    private final ConcurrentSkipListSet<NameKey> names;
+    private final ConcurrentSkipListSet<PriceKey> prices;
+    private volatile boolean loaded = true;
+
+    /**
+     * @param idSequence last id given to a stock
+     * @param sorted false to only keep the id order
+     */
+    StockSortIndex(final StockStore store, final AtomicLong idSequence, final boolean sorted) {
+        this.store = store;
+        this.idSequence = idSequence;
+        this.names = sorted ? new ConcurrentSkipListSet<>(NAME_ORDER) : null;
+        this.prices = sorted ? new ConcurrentSkipListSet<>(PRICE_ORDER) : null;
+    }
+
+    /**
+     * @param size number of stocks in the store
+     */
+    long estimatedHeapBytes(final long size) {
+        return names == null ? 0L : size * ESTIMATED_BYTES_PER_STOCK;
+    }
+
+    void add(final Stock stock) {
+        if (names != null) {
+            names.add(NameKey.of(stock));
+            prices.add(PriceKey.of(stock));
+        }
+    }
+
+    /**
+     * Add the stocks a store already had when it was opened, name and price orders can not be paged until then.
+     * Runs while the store is written to, so every stock is added while its id is held in the store
+     * and the key can not go stale because of an update of the same stock.
+     * @param lastLoadedId highest id the store had when it was opened
+     * @param executor to load the stocks in the background
+     */
+    void load(final long lastLoadedId, final Executor executor) {
+        if (names == null) {
+            return;
+        }
+        loaded = false;
+        executor.execute(() -> {
+            for (long id = 1; id <= lastLoadedId; id++) {
+                store.computeIfPresent(id, stock -> {
+                    add(stock);
+                    return stock;
+                });
+            }
+            loaded = true;
+        });
+    }
+
+    /**
+     * Drop the keys of every stock, called when the store is cleared
+     */
+    void clear() {
+        if (names != null) {
+            names.clear();
+            prices.clear();
+        }
+    }
+
+    /**
+     * Callers need to serialize replacements of the same id, otherwise two replacements
+     * racing each other can leave a stale key behind
+     */
+    void replace(final Stock previous, final Stock current) {
+        if (names != null) {
+            replace(names, NameKey.of(previous), NameKey.of(current));
+            replace(prices, PriceKey.of(previous), PriceKey.of(current));
+        }
+    }
+
+    private static <K> void replace(final NavigableSet<K> index, final K previous, final K current) {
+        if (!previous.equals(current)) {
+            //Adding before removing so that a concurrent page never skips the stock
+            index.add(current);
+            index.remove(previous);
+        }
+    }
+
+    /**
+     * @param sort ordering of the stocks
+     * @param after cursor returned with the previous page, null for the first page
+     * @return stocks strictly after the cursor in the given order, read from the store while iterating
+     */
+    SortedStocks after(final StockSort sort, final String after) {
+        switch (sort) {
+            case NAME:
+                return new KeyedStocks<>(tailSet(sortedKeys(sort, names), after == null ? null : NameKey.of(after)));
+            case PRICE:
+                return new KeyedStocks<>(tailSet(sortedKeys(sort, prices), after == null ? null : PriceKey.of(after)));
+            default:
+                return new IdStocks(after == null ? 0L : parseId(after));
+        }
+    }
+
+    /**
+     * Stocks with the exact name or with names starting with the prefix, in name order then id order.
+     * Served by the name order of the index, the search is a seek to the first name plus a walk of the page.
+     * @param name exact name or prefix of the names
+     * @param prefix true to search names starting with the name
+     * @param after cursor returned with the previous page, null for the first page
+     */
+    SortedStocks named(final String name, final boolean prefix, final String after) {
+        final NavigableSet<NameKey> keys = sortedKeys(StockSort.NAME, names);
+        NameKey from = new NameKey(name, Long.MIN_VALUE);
+        boolean fromInclusive = true;
+        if (after != null) {
+            //A cursor before the range of the search gives the whole range, after the range nothing
+            final NameKey cursor = NameKey.of(after);
+            if (NAME_ORDER.compare(cursor, from) >= 0) {
+                from = cursor;
+                fromInclusive = false;
+            }
+        }
+        final String end = prefix ? prefixEnd(name) : name;
+        if (end == null) {
+            return new KeyedStocks<>(keys.tailSet(from, fromInclusive));
+        }
+        final NameKey to = new NameKey(end, prefix ? Long.MIN_VALUE : Long.MAX_VALUE);
+        if (NAME_ORDER.compare(from, to) > 0) {
+            return new KeyedStocks<>(Collections.emptyNavigableSet());
+        }
+        return new KeyedStocks<>(keys.subSet(from, fromInclusive, to, !prefix));
+    }
+
+    /**
+     * @return the smallest string after every string starting with the prefix, null if there is none
+     */
+    private static String prefixEnd(final String prefix) {
+        int last = prefix.length() - 1;
+        while (last >= 0 && prefix.charAt(last) == Character.MAX_VALUE) {
+            last--;
+        }
+        return last < 0 ? null : prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    private <K> NavigableSet<K> sortedKeys(final StockSort sort, final ConcurrentSkipListSet<K> index) {
+        if (index == null) {
+            throw new InvalidPageRequestException("Only sorting by id is enabled");
+        }
+        if (!loaded) {
+            throw new SortIndexLoadingException(sort);
+        }
+        return index;
+    }
+
+    private static <K> NavigableSet<K> tailSet(final NavigableSet<K> index, final K probe) {
+        return probe == null ? index : index.tailSet(probe, false);
+    }
+
+    private static long parseId(final String cursor) {
+        try {
+            return Long.parseLong(cursor);
+        } catch (NumberFormatException e) {
+            throw invalidCursor(cursor);
+        }
+    }
+
+    private static InvalidPageRequestException invalidCursor(final String cursor) {
+        return new InvalidPageRequestException("Invalid cursor " + cursor);
+    }
+
+    /**
+     * Stocks in a sort order together with the cursor of the last stock given
+     */
+    interface SortedStocks extends Iterator<Stock> {
+        String cursor();
+    }
+
+    private final class IdStocks implements SortedStocks {
+        private long lastId;
+        private Stock next;
+
+        private IdStocks(final long after) {
+            lastId = Math.max(after, 0L);
+        }
+
+        /**
+         * Ids of a batch are reserved before its stocks are stored, so a missing id is skipped
+         */
+        @Override
+        public boolean hasNext() {
+            final long lastGivenId = idSequence.get();
+            long id = lastId;
+            while (next == null && id < lastGivenId) {
+                next = store.get(++id);
+            }
+            return next != null;
+        }
+
+        @Override
+        public Stock next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Stock stock = next;
+            lastId = stock.getId();
+            next = null;
+            return stock;
+        }
+
+        @Override
+        public String cursor() {
+            return String.valueOf(lastId);
+        }
+    }
+
+    private final class KeyedStocks<K extends SortKey> implements SortedStocks {
+        private final Iterator<K> keys;
+        private K lastKey;
+        private K nextKey;
+        private Stock next;
+
+        private KeyedStocks(final NavigableSet<K> keys) {
+            this.keys = keys.iterator();
+        }
+
+        /**
+         * The cursor is taken from the key, not from the stock which may have been updated since
+         */
+        @Override
+        public boolean hasNext() {
+            while (next == null && keys.hasNext()) {
+                nextKey = keys.next();
+                next = store.get(nextKey.getId());
+            }
+            return next != null;
+        }
+
+        @Override
+        public Stock next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Stock stock = next;
+            lastKey = nextKey;
+            next = null;
+            return stock;
+        }
+
+        @Override
+        public String cursor() {
+            return lastKey.cursor();
+        }
+    }
+
+    private interface SortKey {
+        long getId();
+
+        String cursor();
+    }
+
+    @Value
+    private static class NameKey implements SortKey {
+        String name;
+        long id;
+
+        static NameKey of(final Stock stock) {
+            return new NameKey(stock.getName(), stock.getId());
+        }
+
+        static NameKey of(final String cursor) {
+            final int separator = cursor.lastIndexOf(CURSOR_SEPARATOR);
+            if (separator < 0) {
+                throw invalidCursor(cursor);
+            }
+            return new NameKey(cursor.substring(0, separator), parseId(cursor.substring(separator + 1)));
+        }
+
+        @Override
+        public String cursor() {
+            return name + CURSOR_SEPARATOR + id;
+        }
+    }
+
+    @Value
+    private static class PriceKey implements SortKey {
+        long priceCents;
+        long id;
+
+        static PriceKey of(final Stock stock) {
+            return new PriceKey(Stock.toCents(stock.getCurrentPrice()), stock.getId());
+        }
+
+        static PriceKey of(final String cursor) {
+            final int separator = cursor.lastIndexOf(CURSOR_SEPARATOR);
+            if (separator < 0) {
+                throw invalidCursor(cursor);
+            }
+            try {
+                return new PriceKey(Stock.toCents(new BigDecimal(cursor.substring(0, separator))),
+                        parseId(cursor.substring(separator + 1)));
+            } catch (NumberFormatException | ArithmeticException e) {
+                throw invalidCursor(cursor);
+            }
+        }
+
+        @Override
+        public String cursor() {
+            return Stock.fromCents(priceCents).toPlainString() + CURSOR_SEPARATOR + id;
+        }
+    }
+}
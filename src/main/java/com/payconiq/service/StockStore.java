@@ -0,0 +1,83 @@
+package com.payconiq.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Storage engine of the stock book behind {@link StockService}, chosen with stock-api.store.
+ * Iteration is weakly consistent, like the iterators of the concurrent collections.
+ */
+interface StockStore extends Iterable<Stock>, Closeable {
+
+    /**
+     * Takes the stocks of a {@link #scan} in id order
+     */
+    @FunctionalInterface
+    interface ScanSink<R> {
+        void accept(R mapped) throws IOException;
+    }
+
+    /**
+     * @return the stock or null when there is no stock with the id
+     */
+    Stock get(long id);
+
+    /**
+     * Store a new stock, ids are never reused so there is nothing to replace
+     */
+    void put(Stock stock);
+
+    /**
+     * Atomically replace the stock with the id, updates of the same id are applied one after the other
+     * @param update gives the new stock from the current one, may throw or return the current one to leave the stock as it is
+     * @return the new stock or null when there is no stock with the id
+     */
+    Stock computeIfPresent(long id, UnaryOperator<Stock> update);
+
+    long size();
+
+    /**
+     * Remove every stock, for a follower to take the book of a leader of another epoch, see {@link StockReplicationFollower}.
+     * Must not run alongside writes, readers may see a part of the stocks while it runs.
+     */
+    void clear();
+
+    /**
+     * Map every stock up to an id and hand them over in id order, e.g. to export or snapshot the book.
+     * Weakly consistent like the iteration, stocks stored while scanning may be left out.
+     * @param lastId highest id to scan, read once every change to keep is in the store
+     * @param mapper applied to every stock, on other threads when the store is partitioned
+     * @param sink gets the mapped stocks in id order on the calling thread
+     */
+    default <R> void scan(final long lastId, final Function<Stock, ? extends R> mapper, final ScanSink<? super R> sink)
+            throws IOException {
+        for (long id = 1; id <= lastId; id++) {
+            final Stock stock = get(id);
+            if (stock != null) {
+                sink.accept(mapper.apply(stock));
+            }
+        }
+    }
+
+    /**
+     * Rough heap taken by the stocks for the metrics, from the footprints measured with StockStoreFootprint
+     * @return 0 for stores that keep the stocks off the heap
+     */
+    default long estimatedHeapBytes() {
+        return 0L;
+    }
+
+    /**
+     * @return highest id the store already had when it was opened, 0 when it starts empty
+     */
+    default long lastLoadedId() {
+        return 0L;
+    }
+
+    @Override
+    default void close() {
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.payconiq.service;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Changes waiting to be pushed to one subscriber of the stock stream.
+ *
+ * Pending changes are coalesced per stock, only the latest version of a stock is kept,
+ * so a subscriber never has more pending changes than stocks. When it still has more than
+ * maxPending the subscriber is too slow and it is dropped instead of slowing down the writers.
+ * A drain stops as soon as the subscriber can not take more, so it never waits for a stalled subscriber,
+ * and it is resumed once the subscriber takes more.
+ */
+public final class StockSubscription {
+
+    /**
+     * Pushes a change to the subscriber
+     */
+    @FunctionalInterface
+    public interface Sink {
+        /**
+         * Never blocks, called before every change that is sent
+         * @return false if the subscriber can not take a change now, the drain then stops until it is resumed
+         */
+        default boolean isReady() throws IOException {
+            return true;
+        }
+
+        void send(SerializedStock stock) throws IOException;
+    }
+
+    private final Set<Long> ids;
+    private final int maxPending;
+    private final ConcurrentHashMap<Long, SerializedStock> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean dropped;
+
+    /**
+     * @param ids of the stocks to subscribe to, null or empty for all the stocks
+     * @param maxPending number of stocks with pending changes after which the subscriber is dropped
+     */
+    public StockSubscription(final Set<Long> ids, final int maxPending) {
+        this.ids = ids == null || ids.isEmpty() ? null : ids;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Never blocks, called on the writing thread
+     * @return true if the caller needs to schedule {@link #drain(Sink)}, false if a drain is already running
+     */
+    public boolean offer(final SerializedStock stock) {
+        if (dropped || ids != null && !ids.contains(stock.getId())) {
+            return false;
+        }
+        pending.merge(stock.getId(), stock, (previous, current) -> current.getVersion() > previous.getVersion() ? current : previous);
+        if (pending.size() > maxPending) {
+            dropped = true;
+            pending.clear();
+        }
+        return draining.compareAndSet(false, true);
+    }
+
+    /**
+     * Send the pending changes until there are none left or the sink is not ready, only one drain runs at a time
+     * @return false if it stopped on a sink that was not ready, no other drain is scheduled then until
+     * the caller drains again once the sink is ready
+     */
+    public boolean drain(final Sink sink) throws IOException {
+        do {
+            for (final Long id : pending.keySet()) {
+                if (dropped) {
+                    return true;
+                }
+                if (!sink.isReady()) {
+                    return false;
+                }
+                final SerializedStock stock = pending.remove(id);
+                if (stock != null) {
+                    sink.send(stock);
+                }
+            }
+            draining.set(false);
+        } while (!pending.isEmpty() && draining.compareAndSet(false, true));
+        return true;
+    }
+
+    public boolean isDropped() {
+        return dropped;
+    }
+
+    /**
+     * Stop getting changes, e.g. once the subscriber is gone
+     */
+    public void cancel() {
+        dropped = true;
+        pending.clear();
+    }
+}
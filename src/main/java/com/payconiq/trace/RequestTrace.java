@@ -0,0 +1,181 @@
+package com.payconiq.trace;
+
+import com.payconiq.model.SlowRequest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phase timestamps of a sampled request, taken with System.nanoTime() by the hooks the request goes through.
+ * Only a sampled request has a trace, held by its thread from {@link RequestTracer} until the request leaves it
+ * or is handed over to another thread, so the hooks of a request that is not sampled do a thread local lookup
+ * and nothing else.
+ *
+ * A timestamp of 0 is a phase the request did not reach, e.g. a request rejected by the security filters
+ * or one without a body.
+ */
+public final class RequestTrace {
+
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+
+    private final long timestamp;
+    private final String method;
+    private final String path;
+    private final long startNanos;
+    private long securityEndNanos;
+    private long handlerStartNanos;
+    private long readStartNanos;
+    private long readEndNanos;
+    private long serviceStartNanos;
+    private long serviceNanos;
+    private long writeStartNanos;
+    private long handlerEndNanos;
+    private long endNanos;
+    private int status;
+
+    private RequestTrace(final String method, final String path) {
+        this.timestamp = System.currentTimeMillis();
+        this.method = method;
+        this.path = path;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Start tracing the request on the current thread
+     */
+    static RequestTrace start(final String method, final String path) {
+        final RequestTrace trace = new RequestTrace(method, path);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * The request is done, the trace is not changed anymore
+     */
+    void end(final int responseStatus) {
+        endNanos = System.nanoTime();
+        status = responseStatus;
+    }
+
+    /**
+     * Stop tracing on the current thread, e.g. to carry on on the thread a request is handed over to
+     * @return the trace of the current thread, null when the request is not sampled
+     */
+    public static RequestTrace detach() {
+        final RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            CURRENT.remove();
+        }
+        return trace;
+    }
+
+    /**
+     * Carry on tracing on the current thread
+     * @param trace returned by {@link #detach()}, nothing is done when null
+     */
+    public static void attach(final RequestTrace trace) {
+        if (trace != null) {
+            CURRENT.set(trace);
+        }
+    }
+
+    static void securityDone() {
+        final RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.securityEndNanos = System.nanoTime();
+        }
+    }
+
+    static void handlerStarted() {
+        final RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.handlerStartNanos = System.nanoTime();
+        }
+    }
+
+    static void handlerDone() {
+        final RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.handlerEndNanos = System.nanoTime();
+        }
+    }
+
+    static void readStarted() {
+        final RequestTrace trace = CURRENT.get();
+        if (trace != null && trace.readStartNanos == 0L) {
+            trace.readStartNanos = System.nanoTime();
+        }
+    }
+
+    static void readDone() {
+        final RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.readEndNanos = System.nanoTime();
+        }
+    }
+
+    static void writeStarted() {
+        final RequestTrace trace = CURRENT.get();
+        if (trace != null && trace.writeStartNanos == 0L) {
+            trace.writeStartNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called by the StockService for every operation, with the timestamps it already took for its own metrics
+     */
+    public static void serviceCalled(final long startNanos, final long endNanos) {
+        final RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            if (trace.serviceStartNanos == 0L) {
+                trace.serviceStartNanos = startNanos;
+            }
+            trace.serviceNanos += endNanos - startNanos;
+        }
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    long durationNanos() {
+        return endNanos - startNanos;
+    }
+
+    /**
+     * Phases are security (with the filters before it), filters (the ones after security up to the controller),
+     * deserialization of the body, validation (up to the service call), service, serialization of the response
+     * and other for whatever is left, e.g. the controller itself
+     */
+    SlowRequest toSlowRequest() {
+        final Map<String, Long> phases = new LinkedHashMap<>();
+        final long securityEnd = securityEndNanos != 0L ? securityEndNanos : endNanos;
+        long accounted = phase(phases, "security", startNanos, securityEnd);
+        accounted += phase(phases, "filters", securityEndNanos, handlerStartNanos);
+        accounted += phase(phases, "deserialization", readStartNanos, readEndNanos);
+        accounted += phase(phases, "validation", readEndNanos, serviceStartNanos);
+        if (serviceStartNanos != 0L) {
+            phases.put("service", toMicros(serviceNanos));
+            accounted += serviceNanos;
+        }
+        accounted += phase(phases, "serialization", writeStartNanos, handlerEndNanos != 0L ? handlerEndNanos : endNanos);
+        phases.put("other", toMicros(Math.max(durationNanos() - accounted, 0L)));
+        return SlowRequest.builder().timestamp(timestamp).method(method).path(path).status(status)
+                .durationMicros(toMicros(durationNanos())).phaseMicros(phases).build();
+    }
+
+    /**
+     * @return nanoseconds of the phase, 0 when the request did not reach both of its ends
+     */
+    private static long phase(final Map<String, Long> phases, final String name, final long from, final long to) {
+        if (from == 0L || to == 0L || to < from) {
+            return 0L;
+        }
+        phases.put(name, toMicros(to - from));
+        return to - from;
+    }
+
+    private static long toMicros(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
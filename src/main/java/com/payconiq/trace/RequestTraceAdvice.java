@@ -0,0 +1,53 @@
+package com.payconiq.trace;
+
+import java.lang.reflect.Type;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.RequestBodyAdviceAdapter;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Marks when the request body starts and stops being read, e.g. a StockRequest, and when the response body
+ * starts being written. Validation of the body runs after it is read, so it is timed up to the StockService call.
+ */
+@ControllerAdvice
+public class RequestTraceAdvice extends RequestBodyAdviceAdapter implements ResponseBodyAdvice<Object> {
+
+    @Override
+    public boolean supports(final MethodParameter methodParameter, final Type targetType,
+                            final Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public HttpInputMessage beforeBodyRead(final HttpInputMessage inputMessage, final MethodParameter parameter, final Type targetType,
+                                           final Class<? extends HttpMessageConverter<?>> converterType) {
+        RequestTrace.readStarted();
+        return inputMessage;
+    }
+
+    @Override
+    public Object afterBodyRead(final Object body, final HttpInputMessage inputMessage, final MethodParameter parameter,
+                                final Type targetType, final Class<? extends HttpMessageConverter<?>> converterType) {
+        RequestTrace.readDone();
+        return body;
+    }
+
+    @Override
+    public boolean supports(final MethodParameter returnType, final Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(final Object body, final MethodParameter returnType, final MediaType selectedContentType,
+                                  final Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  final ServerHttpRequest request, final ServerHttpResponse response) {
+        RequestTrace.writeStarted();
+        return body;
+    }
+}
@@ -0,0 +1,99 @@
+package com.payconiq.trace;
+
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/**
+ * Request tracing: the tracer is the first filter, a marker filter right after the security filters ends the
+ * security phase, an interceptor marks the controller and {@link RequestTraceAdvice} the request and response bodies.
+ */
+@Configuration
+public class RequestTraceConfig extends WebMvcConfigurerAdapter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestTraceConfig.class);
+
+    @Value("${stock-api.trace.sample-every:100}")
+    private int sampleEvery;
+    @Value("${stock-api.trace.slowest-per-route:10}")
+    private int slowestPerRoute;
+    @Value("${stock-api.trace.window-ms:300000}")
+    private long windowMillis;
+
+    @Bean
+    RequestTracer requestTracer() {
+        LOG.info("Tracing one request out of {}, keeping the {} slowest per route", sampleEvery, slowestPerRoute);
+        return new RequestTracer(sampleEvery, slowestPerRoute, windowMillis);
+    }
+
+    @Bean
+    public FilterRegistrationBean requestTracerRegistration(final RequestTracer requestTracer) {
+        final FilterRegistrationBean registration = new FilterRegistrationBean(requestTracer);
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
+    }
+
+    @Bean
+    public FilterRegistrationBean securityDoneRegistration(final SecurityProperties securityProperties) {
+        final FilterRegistrationBean registration = new FilterRegistrationBean(new SecurityDoneFilter());
+        registration.setOrder(securityProperties.getFilterOrder() + 1);
+        return registration;
+    }
+
+    @Bean
+    public SlowRequestsEndpoint slowRequestsEndpoint(final RequestTracer requestTracer) {
+        return new SlowRequestsEndpoint(requestTracer);
+    }
+
+    @Override
+    public void addInterceptors(final InterceptorRegistry registry) {
+        registry.addInterceptor(new HandlerTraceInterceptor());
+    }
+
+    private static final class HandlerTraceInterceptor extends HandlerInterceptorAdapter {
+
+        @Override
+        public boolean preHandle(final HttpServletRequest request, final HttpServletResponse response, final Object handler) {
+            RequestTrace.handlerStarted();
+            return true;
+        }
+
+        @Override
+        public void afterCompletion(final HttpServletRequest request, final HttpServletResponse response,
+                                    final Object handler, final Exception ex) {
+            RequestTrace.handlerDone();
+        }
+    }
+
+    private static final class SecurityDoneFilter implements Filter {
+
+        @Override
+        public void init(final FilterConfig filterConfig) {}
+
+        @Override
+        public void doFilter(final ServletRequest req, final ServletResponse resp, final FilterChain chain) throws IOException, ServletException {
+            RequestTrace.securityDone();
+            chain.doFilter(req, resp);
+        }
+
+        @Override
+        public void destroy() {}
+    }
+}
@@ -0,0 +1,105 @@
+package com.payconiq.trace;
+
+import com.payconiq.config.RequestCompletion;
+import com.payconiq.model.SlowRequest;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+/**
+ * First filter of the /api requests, samples one request out of sample-every and traces it through the other
+ * filters, the controller and the StockService, then offers it to the slowest traces of its route.
+ *
+ * A request in async mode is offered once it completes.
+ *
+ * The sampling decision is a draw of the thread local random, so a request that is not sampled takes no lock
+ * and allocates nothing, neither here nor in the hooks of the later phases.
+ * Routes are the patterns the controllers are mapped with, requests that matched no pattern share one route
+ * so that random paths can not grow the routes.
+ */
+final class RequestTracer implements Filter {
+
+    static final String UNMATCHED_ROUTE = "unmatched";
+
+    private final int sampleEvery;
+    private final int slowestPerRoute;
+    private final long windowMillis;
+    private final ConcurrentHashMap<String, SlowestTraces> routes = new ConcurrentHashMap<>();
+
+    /**
+     * @param sampleEvery one request out of this many is traced, 0 to trace none
+     * @param slowestPerRoute traces kept per route
+     * @param windowMillis traces older than this are replaced first and not reported
+     */
+    RequestTracer(final int sampleEvery, final int slowestPerRoute, final long windowMillis) {
+        this.sampleEvery = sampleEvery;
+        this.slowestPerRoute = slowestPerRoute;
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public void init(final FilterConfig filterConfig) {}
+
+    @Override
+    public void doFilter(final ServletRequest req, final ServletResponse resp, final FilterChain chain) throws IOException, ServletException {
+        if (sampleEvery <= 0 || ThreadLocalRandom.current().nextInt(sampleEvery) != 0
+                || !(req instanceof HttpServletRequest) || !(resp instanceof HttpServletResponse)
+                || !((HttpServletRequest) req).getServletPath().startsWith("/api")) {
+            chain.doFilter(req, resp);
+            return;
+        }
+        final HttpServletRequest request = (HttpServletRequest) req;
+        final RequestTrace trace = RequestTrace.start(request.getMethod(), request.getServletPath());
+        try {
+            chain.doFilter(req, resp);
+        } finally {
+            RequestTrace.detach();
+            RequestCompletion.onCompletion(request, () -> {
+                trace.end(((HttpServletResponse) resp).getStatus());
+                slowestTraces(route(request)).offer(trace);
+            });
+        }
+    }
+
+    private static String route(final HttpServletRequest request) {
+        final Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return request.getMethod() + " " + (pattern instanceof String ? pattern : UNMATCHED_ROUTE);
+    }
+
+    private SlowestTraces slowestTraces(final String route) {
+        final SlowestTraces traces = routes.get(route);
+        return traces != null ? traces : routes.computeIfAbsent(route, key -> new SlowestTraces(slowestPerRoute, windowMillis));
+    }
+
+    /**
+     * @return slowest requests of the window per route, routes in alphabetical order and requests slowest first
+     */
+    Map<String, List<SlowRequest>> slowestRequests() {
+        final long now = System.currentTimeMillis();
+        final Map<String, List<SlowRequest>> slowest = new TreeMap<>();
+        routes.forEach((route, traces) -> {
+            final List<SlowRequest> requests = traces.slowest(now).stream()
+                    .map(RequestTrace::toSlowRequest).collect(Collectors.toList());
+            if (!requests.isEmpty()) {
+                slowest.put(route, requests);
+            }
+        });
+        return slowest;
+    }
+
+    @Override
+    public void destroy() {}
+}
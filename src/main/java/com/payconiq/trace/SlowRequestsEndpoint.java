@@ -0,0 +1,25 @@
+package com.payconiq.trace;
+
+import com.payconiq.model.SlowRequest;
+import java.util.List;
+import java.util.Map;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+
+/**
+ * Actuator endpoint /slowrequests with the slowest sampled requests per route, sensitive so it needs
+ * the management role like the other actuator endpoints
+ */
+public class SlowRequestsEndpoint extends AbstractEndpoint<Map<String, List<SlowRequest>>> {
+
+    private final RequestTracer requestTracer;
+
+    SlowRequestsEndpoint(final RequestTracer requestTracer) {
+        super("slowrequests", true);
+        this.requestTracer = requestTracer;
+    }
+
+    @Override
+    public Map<String, List<SlowRequest>> invoke() {
+        return requestTracer.slowestRequests();
+    }
+}
@@ -0,0 +1,70 @@
+package com.payconiq.trace;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The slowest traces of a route in a fixed ring of slots replaced by compare and set, without locking.
+ * A trace takes the slot of the fastest trace kept when it is slower, so the ring holds the slowest traces
+ * offered so far. Traces older than the window are the first to be replaced, so after a spike is over
+ * the ring fills up again with the slowest requests since.
+ */
+final class SlowestTraces {
+
+    private final AtomicReferenceArray<RequestTrace> slots;
+    private final long windowMillis;
+
+    SlowestTraces(final int size, final long windowMillis) {
+        this.slots = new AtomicReferenceArray<>(size);
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Racing offers of the same slot are retried, a trace is dropped once it is not slower than any kept trace
+     */
+    void offer(final RequestTrace trace) {
+        final long oldest = trace.getTimestamp() - windowMillis;
+        final long nanos = trace.durationNanos();
+        while (true) {
+            int fastestSlot = -1;
+            RequestTrace fastest = null;
+            long fastestNanos = Long.MAX_VALUE;
+            for (int slot = 0; slot < slots.length(); slot++) {
+                final RequestTrace kept = slots.get(slot);
+                final long keptNanos = kept == null || kept.getTimestamp() < oldest ? -1L : kept.durationNanos();
+                if (keptNanos < fastestNanos) {
+                    fastestSlot = slot;
+                    fastest = kept;
+                    fastestNanos = keptNanos;
+                    if (keptNanos < 0L) {
+                        break;
+                    }
+                }
+            }
+            if (fastestSlot < 0 || fastestNanos >= nanos) {
+                return;
+            }
+            if (slots.compareAndSet(fastestSlot, fastest, trace)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param now epoch milliseconds, traces older than the window are left out
+     * @return traces kept, slowest first
+     */
+    List<RequestTrace> slowest(final long now) {
+        final List<RequestTrace> traces = new ArrayList<>(slots.length());
+        for (int slot = 0; slot < slots.length(); slot++) {
+            final RequestTrace trace = slots.get(slot);
+            if (trace != null && trace.getTimestamp() >= now - windowMillis) {
+                traces.add(trace);
+            }
+        }
+        traces.sort(Comparator.comparingLong(RequestTrace::durationNanos).reversed());
+        return traces;
+    }
+}
@@ -12,8 +12,45 @@ class App extends React.Component {
 	}
 
 	componentDidMount() {
-		client({method: 'GET', path: '/api/stocks'}).done(response => {
-			this.setState({stocks: response.entity});
+		// Subscribe before loading so no change is missed between the load and the subscription
+		this.eventSource = new EventSource('/api/stocks/stream');
+		this.eventSource.addEventListener('stock', event => this.stockChanged(JSON.parse(event.data)));
+		this.loadStocks('/api/stocks', []);
+	}
+
+	// Walks the pages by their Link rel="next" header, then merges the streamed changes into the loaded stocks
+	loadStocks(path, loaded) {
+		client({method: 'GET', path: path}).done(response => {
+			const stocks = loaded.concat(response.entity);
+			const next = nextPage(response.headers['Link']);
+			if (next) {
+				this.loadStocks(next, stocks);
+				return;
+			}
+			this.setState(previous => {
+				const streamed = {};
+				previous.stocks.forEach(stock => streamed[stock.id] = stock);
+				const merged = stocks.map(stock => streamed[stock.id] || stock);
+				const loadedIds = {};
+				merged.forEach(stock => loadedIds[stock.id] = true);
+				return {stocks: merged.concat(previous.stocks.filter(stock => !loadedIds[stock.id]))};
+			});
+		});
+	}
+
+	componentWillUnmount() {
+		this.eventSource.close();
+	}
+
+	stockChanged(changed) {
+		this.setState(previous => {
+			const index = previous.stocks.findIndex(stock => stock.id === changed.id);
+			if (index < 0) {
+				return {stocks: previous.stocks.concat([changed])};
+			}
+			const stocks = previous.stocks.slice();
+			stocks[index] = changed;
+			return {stocks: stocks};
 		});
 	}
 
@@ -24,6 +61,11 @@ class App extends React.Component {
 	}
 }
 
+function nextPage(link) {
+	const next = link && /<([^>]*)>\s*;\s*rel="next"/.exec(link);
+	return next ? next[1] : null;
+}
+
 class StockList extends React.Component{
 	render() {
 		var stocks = this.props.stocks.map(stock =>
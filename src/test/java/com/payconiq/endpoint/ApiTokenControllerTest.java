@@ -0,0 +1,78 @@
+package com.payconiq.endpoint;
+
+import com.payconiq.model.ApiToken;
+import com.payconiq.model.PriceBar;
+import com.payconiq.security.ApiSecurityConfig;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of the bearer tokens issued at {@link ApiSecurityConfig#TOKEN_PATH}.
+ * The http metrics are shared with {@link StockControllerTest}, which asserts exact counts, so these tests
+ * only make requests it does not count.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(locations = "file:./application.yml", properties = "stock-api.auth.token.secret=test-secret")
+@DirtiesContext
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ApiTokenControllerTest {
+
+    private static final String OHLC_URL = "/api/stocks/1/ohlc?interval=1h";
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Test
+    public void test_GivenBasicCredentials_WhenTokenIssued_ThenTokenAuthenticatesWithoutSession() {
+        final ResponseEntity<ApiToken> issued = restTemplate.withBasicAuth("admin", "admin")
+                .postForEntity(ApiSecurityConfig.TOKEN_PATH, null, ApiToken.class);
+        assertEquals(HttpStatus.OK, issued.getStatusCode());
+        assertEquals("Bearer", issued.getBody().getTokenType());
+        assertTrue("Token is already expired", issued.getBody().getExpiresAt() > System.currentTimeMillis());
+        assertFalse("Token request created a session", issued.getHeaders().containsKey(HttpHeaders.SET_COOKIE));
+
+        for (int request = 0; request < 2; request++) {
+            final ResponseEntity<PriceBar[]> bars = restTemplate.exchange(OHLC_URL, HttpMethod.GET,
+                    bearer(issued.getBody().getToken()), PriceBar[].class);
+            assertEquals(HttpStatus.OK, bars.getStatusCode());
+            assertNotNull(bars.getBody());
+            assertFalse("Token request created a session", bars.getHeaders().containsKey(HttpHeaders.SET_COOKIE));
+        }
+    }
+
+    @Test
+    public void test_GivenBadToken_ThenUnauthorized() {
+        final String token = restTemplate.withBasicAuth("admin", "admin")
+                .postForEntity(ApiSecurityConfig.TOKEN_PATH, null, ApiToken.class).getBody().getToken();
+        final ResponseEntity<String> forged = restTemplate.exchange(OHLC_URL, HttpMethod.GET, bearer(token + "x"), String.class);
+        assertEquals(HttpStatus.UNAUTHORIZED, forged.getStatusCode());
+        assertEquals("Bearer error=\"invalid_token\"", forged.getHeaders().getFirst(HttpHeaders.WWW_AUTHENTICATE));
+
+        //A GET as the JDK client can not read a 401 to a POST, a token accepted there would answer 405 instead
+        final ResponseEntity<String> renewed = restTemplate.exchange(ApiSecurityConfig.TOKEN_PATH, HttpMethod.GET, bearer(token), String.class);
+        assertEquals("A token should not renew itself", HttpStatus.UNAUTHORIZED, renewed.getStatusCode());
+        final ResponseEntity<String> anonymous = restTemplate.getForEntity(OHLC_URL, String.class);
+        assertEquals(HttpStatus.UNAUTHORIZED, anonymous.getStatusCode());
+    }
+
+    private static HttpEntity<Void> bearer(final String token) {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+        return new HttpEntity<>(headers);
+    }
+}
@@ -0,0 +1,191 @@
+package com.payconiq.endpoint;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.type.MapType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.payconiq.model.PriceBar;
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import com.payconiq.service.StockService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of the /api/stock endpoints served with stock-api.serving.mode=async.
+ * The http metrics are shared with {@link StockControllerTest}, which asserts exact counts, so these tests
+ * only make requests it does not count.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(locations = "file:./application.yml", properties = {"stock-api.serving.mode=async",
+        "stock-api.serving.threads=1", "stock-api.serving.max-body-bytes=" + StockControllerAsyncTest.MAX_BODY_BYTES})
+@DirtiesContext
+@RunWith(SpringJUnit4ClassRunner.class)
+public class StockControllerAsyncTest {
+
+    static final int MAX_BODY_BYTES = 16 << 20;
+    private static final int SERVED_WITHIN_MILLIS = 5000;
+    private static final int STALLED_RECEIVE_BUFFER = 4096;
+    private static final int LARGE_NAME_LENGTH = 8 << 20;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @SpyBean
+    private StockService stockService;
+    @Value("${local.server.port}")
+    private int port;
+    private final MapType mapType = TypeFactory.defaultInstance().constructMapType(HashMap.class, String.class, String.class);
+
+    @Before
+    public void init() {
+        restTemplate = restTemplate.withBasicAuth("admin", "admin");
+    }
+
+    @Test
+    public void test_GivenAsyncServing_WhenGetOhlc_ThenServeOnServingThread() {
+        final StockResponse created = stockService.createStock(StockRequest.builder().name("async").currentPrice(BigDecimal.ONE).build());
+        stockService.updateStock(StockRequest.builder().name("async").currentPrice(BigDecimal.TEN).build(), created.getId());
+        final AtomicReference<String> servingThread = new AtomicReference<>();
+        Mockito.doAnswer(invocation -> {
+            servingThread.set(Thread.currentThread().getName());
+            return invocation.callRealMethod();
+        }).when(stockService).getPriceBars(Matchers.anyLong(), Matchers.anyString(), Matchers.anyLong(), Matchers.anyLong());
+        final ResponseEntity<PriceBar[]> bars = restTemplate
+                .getForEntity("/api/stocks/" + created.getId() + "/ohlc?interval=1h", PriceBar[].class);
+        assertEquals(HttpStatus.OK, bars.getStatusCode());
+        assertEquals("close is wrong", 0, BigDecimal.TEN.compareTo(bars.getBody()[bars.getBody().length - 1].getClose()));
+        assertTrue("Served on " + servingThread.get(), servingThread.get().startsWith("stock-serving-"));
+    }
+
+    @Test
+    public void test_GivenAsyncServing_WhenExport_ThenServeOnContainerThread() throws IOException {
+        final AtomicReference<String> servingThread = new AtomicReference<>();
+        Mockito.doAnswer(invocation -> {
+            servingThread.set(Thread.currentThread().getName());
+            return invocation.callRealMethod();
+        }).when(stockService).exportStocks(Matchers.any(OutputStream.class), Matchers.anyBoolean());
+        final ResponseEntity<String> export = restTemplate.getForEntity("/api/stocks/export", String.class);
+        assertEquals(HttpStatus.OK, export.getStatusCode());
+        assertFalse("Served on " + servingThread.get(), servingThread.get().startsWith("stock-serving-"));
+    }
+
+    @Test
+    public void test_GivenAsyncServing_WhenNonExistenceGetHistory_ThenFailWithErrorBody() throws IOException {
+        final ResponseEntity<String> errorEntity = restTemplate.getForEntity("/api/stocks/-321/history", String.class);
+        assertEquals(HttpStatus.NOT_FOUND, errorEntity.getStatusCode());
+        final Map<String, String> errorMap = objectMapper.readValue(errorEntity.getBody(), mapType);
+        assertEquals("Error message in body", "Stock not found by -321", errorMap.get("message"));
+    }
+
+    @Test
+    public void test_GivenAsyncServing_WhenStaleIfMatch_ThenFailWithPreconditionFailed() {
+        final StockRequest stockRequest = StockRequest.builder().name("async").currentPrice(BigDecimal.TEN).build();
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setIfMatch("\"0\"");
+        final ResponseEntity<Void> conflict = restTemplate.exchange("/api/stocks/4", HttpMethod.PUT, new HttpEntity<>(stockRequest, headers), Void.class);
+        assertEquals(HttpStatus.PRECONDITION_FAILED, conflict.getStatusCode());
+    }
+
+    @Test
+    public void test_GivenAsyncServing_WhenBodyIsSentSlowly_ThenOtherRequestsAreStillServed() throws Exception {
+        final byte[] body = objectMapper.writeValueAsBytes(StockRequest.builder().name("slowBody").currentPrice(BigDecimal.ONE).build());
+        try (Socket slow = new Socket("localhost", port)) {
+            //Single serving thread, the body stops half way
+            final OutputStream output = slow.getOutputStream();
+            output.write(requestHead("PUT /api/stocks/4", body.length));
+            output.write(body, 0, body.length / 2);
+            output.flush();
+            assertServedWhileStalled();
+            output.write(body, body.length / 2, body.length - body.length / 2);
+            output.flush();
+            slow.setSoTimeout(SERVED_WITHIN_MILLIS);
+            final String statusLine = new BufferedReader(new InputStreamReader(slow.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            assertTrue("Slow update failed: " + statusLine, statusLine.contains(" 204"));
+        }
+    }
+
+    @Test
+    public void test_GivenAsyncServing_WhenResponseIsNotRead_ThenOtherRequestsAreStillServed() throws Exception {
+        final char[] largeName = new char[LARGE_NAME_LENGTH];
+        Arrays.fill(largeName, 'x');
+        final byte[] body = objectMapper.writeValueAsBytes(StockRequest.builder().name(new String(largeName)).currentPrice(BigDecimal.ONE).build());
+        try (Socket stalled = new Socket()) {
+            //Single serving thread, the created stock is sent back with its name and the client reads none of it
+            stalled.setReceiveBufferSize(STALLED_RECEIVE_BUFFER);
+            stalled.connect(new InetSocketAddress("localhost", port));
+            stalled.getOutputStream().write(requestHead("POST /api/stocks", body.length));
+            stalled.getOutputStream().write(body);
+            stalled.getOutputStream().flush();
+            assertServedWhileStalled();
+        }
+    }
+
+    @Test
+    public void test_GivenAsyncServing_WhenBodyTooLarge_ThenFailWithPayloadTooLarge() {
+        final char[] largeName = new char[MAX_BODY_BYTES];
+        Arrays.fill(largeName, 'x');
+        final ResponseEntity<String> tooLarge = restTemplate.postForEntity("/api/stocks",
+                StockRequest.builder().name(new String(largeName)).currentPrice(BigDecimal.ONE).build(), String.class);
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, tooLarge.getStatusCode());
+    }
+
+    @Test
+    public void test_GivenAsyncServing_WhenNoCredentials_ThenUnauthorized() {
+        final ResponseEntity<String> anonymous = new TestRestTemplate().getForEntity(
+                "http://localhost:" + port + "/api/stocks/export", String.class);
+        assertEquals(HttpStatus.UNAUTHORIZED, anonymous.getStatusCode());
+    }
+
+    /**
+     * Another request is served on the single serving thread while a client stalls
+     */
+    private void assertServedWhileStalled() {
+        final long start = System.nanoTime();
+        final ResponseEntity<PriceBar[]> bars = restTemplate.getForEntity("/api/stocks/1/ohlc?interval=1h", PriceBar[].class);
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(HttpStatus.OK, bars.getStatusCode());
+        assertTrue("Served in " + elapsedMillis + " ms behind the stalled client", elapsedMillis < SERVED_WITHIN_MILLIS);
+    }
+
+    private static byte[] requestHead(final String requestLine, final int contentLength) {
+        return (requestLine + " HTTP/1.1\r\nHost: localhost\r\n"
+                + HttpHeaders.AUTHORIZATION + ": Basic " + Base64.getEncoder().encodeToString("admin:admin".getBytes(StandardCharsets.UTF_8)) + "\r\n"
+                + HttpHeaders.CONTENT_TYPE + ": " + MediaType.APPLICATION_JSON_VALUE + "\r\n"
+                + HttpHeaders.CONTENT_LENGTH + ": " + contentLength + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,68 @@
+package com.payconiq.endpoint;
+
+import com.payconiq.model.StockResponse;
+import com.payconiq.service.StockService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of the fast-startup profile: the book, the Swagger docs and the JVM metrics are all there once
+ * asked for even though the docs and the collectors were deferred.
+ * The http metrics are shared with {@link StockControllerTest}, which asserts exact counts, so these tests
+ * only make requests it does not count.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(locations = "file:./application.yml")
+@ActiveProfiles("fast-startup")
+@DirtiesContext
+@RunWith(SpringJUnit4ClassRunner.class)
+public class StockControllerFastStartupTest {
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+    @Autowired
+    private StockService stockService;
+    @Value("${prometheus.url.path:/metrics}")
+    private String urlPath;
+    @Value("${stock-api.init-size}")
+    private int initSize;
+
+    @Before
+    public void init() {
+        restTemplate = restTemplate.withBasicAuth("admin", "admin");
+    }
+
+    @Test
+    public void test_GivenFastStartup_ThenBookIsPreloaded() {
+        final StockResponse last = stockService.getStock((long) initSize);
+        assertEquals("name_" + initSize, last.getName());
+        assertEquals("Price is wrong", initSize + ".66", last.getCurrentPrice().toPlainString());
+    }
+
+    @Test
+    public void test_GivenLazyDocs_WhenFirstRequested_ThenControllersAreScanned() {
+        final ResponseEntity<String> docs = restTemplate.getForEntity("/v2/api-docs?group=payconiq", String.class);
+        assertEquals(HttpStatus.OK, docs.getStatusCode());
+        assertTrue("Docs are missing the stocks: " + docs.getBody(), docs.getBody().contains("/api/stocks/{id}"));
+    }
+
+    @Test
+    public void test_GivenLazyCollectors_WhenScraped_ThenJvmMetricsAreExported() {
+        final ResponseEntity<String> metrics = restTemplate.getForEntity(urlPath, String.class);
+        assertEquals(HttpStatus.OK, metrics.getStatusCode());
+        assertTrue("JVM metrics are missing", metrics.getBody().contains("jvm_threads_current"));
+    }
+}
@@ -1,29 +1,45 @@
 package com.payconiq.endpoint;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.type.MapType;
 import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.payconiq.model.PriceBar;
+import com.payconiq.model.PricePoint;
+import com.payconiq.model.StockBatchResult;
 import com.payconiq.model.StockRequest;
 import com.payconiq.model.StockResponse;
+import com.payconiq.model.StockUpdateRequest;
+import com.payconiq.service.SerializedStock;
+import com.payconiq.service.StockBinary;
+import com.payconiq.service.StockService;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.http.*;
+import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.StreamUtils;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
+import java.util.zip.GZIPInputStream;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -31,7 +47,9 @@ import static org.junit.Assert.assertTrue;
  * Integration tests for /api/stock {@link StockController} endpoints
  */
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
-@TestPropertySource("file:./application.yml")
+@TestPropertySource(locations = "file:./application.yml",
+        properties = {"stock-api.trace.sample-every=1", "server.compression.min-response-size=512"})
+@DirtiesContext
 @RunWith(SpringJUnit4ClassRunner.class)
 public class StockControllerTest {
 
@@ -40,6 +58,8 @@ public class StockControllerTest {
     private TestRestTemplate restTemplate;
     @Autowired
     private ObjectMapper objectMapper;
+    @SpyBean
+    private StockService stockService;
     @Value("${stock-api.init-size:10}")
     private int initSize;
     @Value("${local.server.port}")
@@ -57,17 +77,177 @@ public class StockControllerTest {
     }
 
     @Test
-    public void test_GivenStocksInit_WhenGetStocks_ThenReturnStocksSuccessfully() {
+    public void test_GivenStocksInit_WhenGetStocks_ThenReturnStocksSuccessfully() throws IOException {
         final ResponseEntity<StockResponse[]> responseEntity = restTemplate
                 .getForEntity("/api/stocks", StockResponse[].class);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
         assertTrue(responseEntity.getBody().length >= 10);
         assertTrue(Arrays.stream(responseEntity.getBody()).map(StockResponse::getId).collect(Collectors.toList()).containsAll(ONE_TO_TEN));
         testMetric("/api/stocks", "GET", HttpStatus.OK);
+
+        final HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        final ResponseEntity<byte[]> gzipped = restTemplate.exchange("/api/stocks", HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+        assertEquals("gzip", gzipped.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        final StockResponse[] stocks = objectMapper.readValue(new GZIPInputStream(new ByteArrayInputStream(gzipped.getBody())), StockResponse[].class);
+        assertEquals("Gzip should have the same stocks", Arrays.asList(responseEntity.getBody()), Arrays.asList(stocks));
+        assertEquals("Gzip should have the weak ETag of the page", "W/" + responseEntity.getHeaders().getETag(), gzipped.getHeaders().getETag());
+
+        final ResponseEntity<byte[]> binaryEntity = getBinary("/api/stocks");
+        assertTrue("Binary should have its own ETag", binaryEntity.getHeaders().getETag().endsWith("-x\""));
+        assertTrue(binaryEntity.getHeaders().getFirst(HttpHeaders.VARY).contains(HttpHeaders.ACCEPT));
+        final List<StockResponse> binaryStocks = StockBinary.readStocks(binaryEntity.getBody());
+        assertEquals("Binary should have the same stocks", stocks.length, binaryStocks.size());
+        for (int index = 0; index < stocks.length; index++) {
+            assertEquals(stocks[index].getId(), binaryStocks.get(index).getId());
+            assertEquals(stocks[index].getName(), binaryStocks.get(index).getName());
+            assertEquals(0, stocks[index].getCurrentPrice().compareTo(binaryStocks.get(index).getCurrentPrice()));
+        }
+
+        headers.setIfNoneMatch(gzipped.getHeaders().getETag());
+        final ResponseEntity<byte[]> notModified = restTemplate.exchange("/api/stocks", HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+        assertEquals(HttpStatus.NOT_MODIFIED, notModified.getStatusCode());
+        assertEquals(gzipped.getHeaders().getETag(), notModified.getHeaders().getETag());
+    }
+
+    @Test
+    public void test_GivenLimit_WhenGetStocks_ThenReturnPageWithNextLink() {
+        final ResponseEntity<StockResponse[]> firstPage = restTemplate
+                .getForEntity("/api/stocks?limit=2", StockResponse[].class);
+        assertEquals(HttpStatus.OK, firstPage.getStatusCode());
+        assertEquals(Arrays.asList(1L, 2L), Arrays.stream(firstPage.getBody()).map(StockResponse::getId).collect(Collectors.toList()));
+        final String link = firstPage.getHeaders().getFirst(HttpHeaders.LINK);
+        assertEquals(String.format("<http://localhost:%d/api/stocks?sort=id&after=2&limit=2>;rel=\"next\"", port), link);
+        final ResponseEntity<StockResponse[]> secondPage = restTemplate
+                .getForEntity("/api/stocks?sort=id&after=2&limit=2", StockResponse[].class);
+        assertEquals(Arrays.asList(3L, 4L), Arrays.stream(secondPage.getBody()).map(StockResponse::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void test_GivenNamePrefix_WhenGetStocks_ThenReturnMatchingStocksWithNextLink() {
+        final ResponseEntity<StockResponse[]> firstPage = restTemplate
+                .getForEntity("/api/stocks?namePrefix=name_1&limit=1", StockResponse[].class);
+        assertEquals(HttpStatus.OK, firstPage.getStatusCode());
+        assertEquals("name_1", firstPage.getBody()[0].getName());
+        final String link = firstPage.getHeaders().getFirst(HttpHeaders.LINK);
+        assertEquals(String.format("<http://localhost:%d/api/stocks?namePrefix=name_1&sort=name&after=name_1,1&limit=1>;rel=\"next\"", port), link);
+        final ResponseEntity<StockResponse[]> secondPage = restTemplate
+                .getForEntity("/api/stocks?namePrefix=name_1&after=name_1,1&limit=1", StockResponse[].class);
+        assertEquals("name_10", secondPage.getBody()[0].getName());
+        final ResponseEntity<String> both = restTemplate.getForEntity("/api/stocks?name=name_1&namePrefix=name_1", String.class);
+        assertEquals(HttpStatus.BAD_REQUEST, both.getStatusCode());
+    }
+
+    @Test
+    public void test_WhenExportStocks_ThenStreamAllStocks() throws IOException {
+        final ResponseEntity<String> arrayEntity = restTemplate.getForEntity("/api/stocks/export", String.class);
+        assertEquals(HttpStatus.OK, arrayEntity.getStatusCode());
+        final StockResponse[] stocks = objectMapper.readValue(arrayEntity.getBody(), StockResponse[].class);
+        assertTrue(Arrays.stream(stocks).map(StockResponse::getId).collect(Collectors.toList()).containsAll(ONE_TO_TEN));
+
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(Collections.singletonList(MediaType.valueOf(StockController.APPLICATION_NDJSON_VALUE)));
+        final ResponseEntity<String> ndjsonEntity = restTemplate.exchange("/api/stocks/export", HttpMethod.GET,
+                new HttpEntity<>(headers), String.class);
+        assertEquals(HttpStatus.OK, ndjsonEntity.getStatusCode());
+        final String[] lines = ndjsonEntity.getBody().split("\n");
+        assertTrue(lines.length >= initSize);
+        for (final String line : lines) {
+            Assert.assertNotNull(objectMapper.readValue(line, StockResponse.class).getId());
+        }
+
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        final ResponseEntity<byte[]> gzipEntity = restTemplate.exchange("/api/stocks/export", HttpMethod.GET,
+                new HttpEntity<>(headers), byte[].class);
+        assertEquals("Streamed export should be compressed by the container", "gzip",
+                gzipEntity.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(ndjsonEntity.getBody(), StreamUtils.copyToString(new GZIPInputStream(
+                new ByteArrayInputStream(gzipEntity.getBody())), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test_WhenUpdateStocksInBatch_ThenReturnResultPerItem() {
+        final List<StockUpdateRequest> stockRequests = Arrays.asList(
+                new StockUpdateRequest(5L, "batch5", new BigDecimal("5.5")),
+                new StockUpdateRequest(6L, "batch 6", new BigDecimal("6.6")),
+                new StockUpdateRequest(-6L, "batch6", new BigDecimal("6.6")));
+        final ResponseEntity<StockBatchResult[]> resultEntity = restTemplate.exchange("/api/stocks/batch", HttpMethod.PUT,
+                new HttpEntity<>(stockRequests), StockBatchResult[].class);
+        assertEquals(HttpStatus.OK, resultEntity.getStatusCode());
+        final StockBatchResult[] results = resultEntity.getBody();
+        assertEquals(StockBatchResult.builder().id(5L).status(HttpStatus.NO_CONTENT.value()).build(), results[0]);
+        assertEquals(HttpStatus.BAD_REQUEST.value(), results[1].getStatus());
+        assertTrue(results[1].getMessage().contains("Name needs to be alphanumeric"));
+        assertEquals(StockBatchResult.builder().id(-6L).status(HttpStatus.NOT_FOUND.value()).message("Stock not found by -6").build(), results[2]);
+        testMetric("/api/stocks/batch", "PUT", HttpStatus.OK);
+
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(Collections.singletonList(MediaType.valueOf(StockController.APPLICATION_STOCK_VALUE)));
+        final ResponseEntity<byte[]> binaryEntity = restTemplate.exchange("/api/stocks/batch", HttpMethod.PUT,
+                new HttpEntity<>(stockRequests, headers), byte[].class);
+        assertEquals("Binary should have the same results", Arrays.asList(results), StockBinary.readBatchResults(binaryEntity.getBody()));
+    }
+
+    @Test
+    public void test_WhenInvalidNdjsonCreateStocksInBatch_ThenReturnBadRequestPerItem() {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.valueOf(StockController.APPLICATION_NDJSON_VALUE));
+        final String ndjson = "{\"name\":\"batch\",\"currentPrice\":-1}\n{\"currentPrice\":1}\n";
+        final ResponseEntity<StockBatchResult[]> resultEntity = restTemplate.exchange("/api/stocks/batch", HttpMethod.POST,
+                new HttpEntity<>(ndjson, headers), StockBatchResult[].class);
+        assertEquals(HttpStatus.OK, resultEntity.getStatusCode());
+        assertEquals(2, resultEntity.getBody().length);
+        assertTrue(resultEntity.getBody()[0].getMessage().contains("Value must be positive"));
+        assertTrue(resultEntity.getBody()[1].getMessage().contains("may not be null"));
+        testMetric("/api/stocks/batch", "POST", HttpStatus.OK);
+    }
+
+    @Test
+    public void test_GivenMatchingETag_WhenGetStock_ThenNotModifiedWithoutBuildingStock() {
+        final String eTag = SerializedStock.eTag(stockService.getBookEpoch(), stockService.getSerializedStock(3L).getVersion());
+        Mockito.reset(stockService);
+
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(eTag);
+        final ResponseEntity<String> notModified = restTemplate.exchange("/api/stocks/3", HttpMethod.GET, new HttpEntity<>(headers), String.class);
+        assertEquals(HttpStatus.NOT_MODIFIED, notModified.getStatusCode());
+        assertEquals(eTag, notModified.getHeaders().getETag());
+        Assert.assertNull(notModified.getBody());
+        //Only the serialized stock of the store is read, no StockResponse is built
+        Mockito.verify(stockService, Mockito.times(2)).getBookEpoch();
+        Mockito.verify(stockService).getSerializedStock(3L);
+        Mockito.verifyNoMoreInteractions(stockService);
+        testMetric("/api/stocks/*", "GET", HttpStatus.NOT_MODIFIED);
+    }
+
+    @Test
+    public void test_GivenUnchangedBook_WhenGetStocks_ThenNotModifiedWithoutBuildingPage() {
+        final HttpHeaders headHeaders = restTemplate.headForHeaders("/api/stocks");
+        final String eTag = headHeaders.getETag();
+        Assert.assertNotNull(eTag);
+        Assert.assertTrue(headHeaders.getLastModified() > 0);
+        Mockito.reset(stockService);
+
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(eTag);
+        final ResponseEntity<String> notModified = restTemplate.exchange("/api/stocks", HttpMethod.GET, new HttpEntity<>(headers), String.class);
+        assertEquals(HttpStatus.NOT_MODIFIED, notModified.getStatusCode());
+        //Only the validators of the book are read, no page is taken from the cache or built
+        Mockito.verify(stockService, Mockito.times(2)).getBookEpoch();
+        Mockito.verify(stockService).getBookVersion();
+        Mockito.verify(stockService).getBookLastModified();
+        Mockito.verifyNoMoreInteractions(stockService);
     }
 
     @Test
-    public void test_WhenGetStock_ThenReturnStockSuccessfully() {
+    public void test_WhenInvalidSortGetStocks_ThenFail() {
+        final ResponseEntity<String> errorEntity = restTemplate
+                .getForEntity("/api/stocks?sort=volume", String.class);
+        assertEquals(HttpStatus.BAD_REQUEST, errorEntity.getStatusCode());
+    }
+
+    @Test
+    public void test_WhenGetStock_ThenReturnStockSuccessfully() throws IOException {
         final ResponseEntity<StockResponse> responseEntity = restTemplate
                 .getForEntity("/api/stocks/1", StockResponse.class);
         assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
@@ -80,6 +260,20 @@ public class StockControllerTest {
                 .lastUpdate(stockResponse.getLastUpdate()).build();
         Assert.assertEquals("Get stock is not working", expectedStockResponse, stockResponse);
         testMetric("/api/stocks/*", "GET", HttpStatus.OK);
+
+        final HttpHeaders gzipHeaders = new HttpHeaders();
+        gzipHeaders.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        final ResponseEntity<String> smallEntity = restTemplate.exchange("/api/stocks/1", HttpMethod.GET, new HttpEntity<>(gzipHeaders), String.class);
+        Assert.assertNull("Single stock is too small to compress", smallEntity.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        Assert.assertEquals(expectedStockResponse, objectMapper.readValue(smallEntity.getBody(), StockResponse.class));
+
+        final ResponseEntity<byte[]> binaryEntity = getBinary("/api/stocks/1");
+        assertEquals(StockController.APPLICATION_STOCK_VALUE, binaryEntity.getHeaders().getContentType().toString());
+        assertEquals("Binary should be the same stock", Collections.singletonList(expectedStockResponse),
+                StockBinary.readStocks(binaryEntity.getBody()));
+        final String eTag = responseEntity.getHeaders().getETag();
+        assertEquals("Binary should have its own ETag", eTag.substring(0, eTag.length() - 1) + "-x\"", binaryEntity.getHeaders().getETag());
+        assertEquals(HttpHeaders.ACCEPT, binaryEntity.getHeaders().getFirst(HttpHeaders.VARY));
     }
 
     @Test
@@ -100,6 +294,37 @@ public class StockControllerTest {
         testMetric("/api/stocks/*", "GET", HttpStatus.BAD_REQUEST);
     }
 
+    @Test
+    public void test_GivenNoMatchingMapping_WhenDelete_ThenPathIsGeneralized() {
+        final ResponseEntity<String> stock = restTemplate.exchange("/api/stocks/1", HttpMethod.DELETE, null, String.class);
+        assertEquals(HttpStatus.METHOD_NOT_ALLOWED, stock.getStatusCode());
+        testMetric("/api/stocks/*", "DELETE", HttpStatus.METHOD_NOT_ALLOWED);
+        final ResponseEntity<String> ohlc = restTemplate.exchange("/api/stocks/1/ohlc", HttpMethod.DELETE, null, String.class);
+        assertEquals(HttpStatus.METHOD_NOT_ALLOWED, ohlc.getStatusCode());
+        testMetric("/api/stocks/*/ohlc", "DELETE", HttpStatus.METHOD_NOT_ALLOWED);
+    }
+
+    @Test
+    public void test_GivenPriceChange_WhenGetHistoryAndOhlc_ThenReturnChanges() {
+        //Changed through the service to leave the metrics of the create and update endpoints to their own tests
+        final StockResponse created = stockService.createStock(StockRequest.builder().name("history").currentPrice(BigDecimal.ONE).build());
+        stockService.updateStock(StockRequest.builder().name("history").currentPrice(BigDecimal.TEN).build(), created.getId());
+        final ResponseEntity<PricePoint[]> history = restTemplate
+                .getForEntity("/api/stocks/" + created.getId() + "/history?from=0", PricePoint[].class);
+        assertEquals(HttpStatus.OK, history.getStatusCode());
+        assertEquals("History should have the first price and its change", 2, history.getBody().length);
+        testMetric("/api/stocks/*/history", "GET", HttpStatus.OK);
+
+        final ResponseEntity<PriceBar[]> bars = restTemplate
+                .getForEntity("/api/stocks/" + created.getId() + "/ohlc?interval=1h", PriceBar[].class);
+        assertEquals(HttpStatus.OK, bars.getStatusCode());
+        assertEquals("close is wrong", 0, BigDecimal.TEN.compareTo(bars.getBody()[bars.getBody().length - 1].getClose()));
+        final ResponseEntity<String> invalidInterval = restTemplate
+                .getForEntity("/api/stocks/" + created.getId() + "/ohlc?interval=hour", String.class);
+        assertEquals(HttpStatus.BAD_REQUEST, invalidInterval.getStatusCode());
+        testMetric("/api/stocks/*/ohlc", "GET", HttpStatus.BAD_REQUEST);
+    }
+
     @Test
     public void test_WhenValidCreateStock_ThenReturnStockSuccessfully() {
         final BigDecimal currentPrice = new BigDecimal("12.45");
@@ -139,6 +364,43 @@ public class StockControllerTest {
         testMetric("/api/stocks/*", "PUT", HttpStatus.NO_CONTENT);
     }
 
+    @Test
+    public void test_GivenStaleIfMatch_WhenUpdateStock_ThenFailWithPreconditionFailed() {
+        final StockRequest stockRequest = StockRequest.builder().name("conditional").currentPrice(BigDecimal.TEN).build();
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setIfMatch(SerializedStock.eTag("0", 1L));
+        assertEquals("ETag of another run should not match", HttpStatus.PRECONDITION_FAILED,
+                restTemplate.exchange("/api/stocks/7", HttpMethod.PUT, new HttpEntity<>(stockRequest, headers), Void.class).getStatusCode());
+        headers.setIfMatch(SerializedStock.eTag(stockService.getBookEpoch(), 1L));
+        final ResponseEntity<Void> updated = restTemplate.exchange("/api/stocks/7", HttpMethod.PUT, new HttpEntity<>(stockRequest, headers), Void.class);
+        assertEquals(HttpStatus.NO_CONTENT, updated.getStatusCode());
+        assertEquals(SerializedStock.eTag(stockService.getBookEpoch(), 2L), updated.getHeaders().getETag());
+        final ResponseEntity<Void> conflict = restTemplate.exchange("/api/stocks/7", HttpMethod.PUT, new HttpEntity<>(stockRequest, headers), Void.class);
+        assertEquals(HttpStatus.PRECONDITION_FAILED, conflict.getStatusCode());
+    }
+
+    @Test
+    public void test_GivenSampledRequests_WhenGetSlowRequests_ThenReturnPhasesPerRoute() throws IOException {
+        final StockRequest stockRequest = StockRequest.builder().name("traced").currentPrice(BigDecimal.TEN).build();
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setIfMatch("\"0\"");
+        final ResponseEntity<Void> conflict = restTemplate.exchange("/api/stocks/8", HttpMethod.PUT, new HttpEntity<>(stockRequest, headers), Void.class);
+        assertEquals(HttpStatus.PRECONDITION_FAILED, conflict.getStatusCode());
+
+        final ResponseEntity<String> slowRequests = restTemplate.getForEntity("/slowrequests", String.class);
+        assertEquals(HttpStatus.OK, slowRequests.getStatusCode());
+        final JsonNode updates = objectMapper.readTree(slowRequests.getBody()).get("PUT /api/stocks/{id}");
+        Assert.assertNotNull("Updates should be traced", updates);
+        for (final JsonNode update : updates) {
+            assertTrue(update.get("phaseMicros").has("security"));
+            assertTrue(update.get("phaseMicros").has("deserialization"));
+            assertTrue(update.get("phaseMicros").has("service"));
+        }
+        final ResponseEntity<String> anonymous = new TestRestTemplate().getForEntity(
+                "http://localhost:" + port + "/slowrequests", String.class);
+        assertEquals(HttpStatus.UNAUTHORIZED, anonymous.getStatusCode());
+    }
+
     @Test
     public void test_WhenNonExistenceUpdateStock_ThenFail() {
         final BigDecimal currentPrice = new BigDecimal("666.6");
@@ -149,6 +411,12 @@ public class StockControllerTest {
         testMetric("/api/stocks/*", "PUT", HttpStatus.NOT_FOUND);
     }
 
+    private ResponseEntity<byte[]> getBinary(final String url) {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(Collections.singletonList(MediaType.valueOf(StockController.APPLICATION_STOCK_VALUE)));
+        return restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+    }
+
     private void testMetric(final String path, final String method, final HttpStatus status) {
         final ResponseEntity<String> metricsResponse = restTemplate.getForEntity(metricsUrl, String.class);
         assertEquals("Expected HTTP OK response", HttpStatus.OK, metricsResponse.getStatusCode());
@@ -0,0 +1,82 @@
+package com.payconiq.endpoint;
+
+import com.payconiq.config.VirtualThreads;
+import com.payconiq.model.PriceBar;
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import com.payconiq.service.StockService;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of the /api/stock endpoints served with stock-api.serving.mode=virtual, skipped below JDK 21.
+ * The http metrics are shared with {@link StockControllerTest}, which asserts exact counts, so these tests
+ * only make requests it does not count.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(locations = "file:./application.yml", properties = "stock-api.serving.mode=virtual")
+@DirtiesContext
+@RunWith(SpringJUnit4ClassRunner.class)
+public class StockControllerVirtualThreadTest {
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+    @SpyBean
+    private StockService stockService;
+
+    @BeforeClass
+    public static void requireVirtualThreads() {
+        Assume.assumeTrue("Virtual threads need JDK 21 or later", VirtualThreads.available());
+    }
+
+    @Before
+    public void init() {
+        restTemplate = restTemplate.withBasicAuth("admin", "admin");
+    }
+
+    @Test
+    public void test_GivenVirtualServing_WhenGetOhlc_ThenServeOnVirtualThread() {
+        final StockResponse created = stockService.createStock(StockRequest.builder().name("virtual").currentPrice(BigDecimal.ONE).build());
+        stockService.updateStock(StockRequest.builder().name("virtual").currentPrice(BigDecimal.TEN).build(), created.getId());
+        final AtomicReference<String> servingThread = new AtomicReference<>();
+        Mockito.doAnswer(invocation -> {
+            servingThread.set(Thread.currentThread().getName());
+            return invocation.callRealMethod();
+        }).when(stockService).getPriceBars(Matchers.anyLong(), Matchers.anyString(), Matchers.anyLong(), Matchers.anyLong());
+        final ResponseEntity<PriceBar[]> bars = restTemplate
+                .getForEntity("/api/stocks/" + created.getId() + "/ohlc?interval=1h", PriceBar[].class);
+        assertEquals(HttpStatus.OK, bars.getStatusCode());
+        assertEquals("close is wrong", 0, BigDecimal.TEN.compareTo(bars.getBody()[bars.getBody().length - 1].getClose()));
+        assertTrue("Served on " + servingThread.get(), servingThread.get().startsWith("stock-virtual-"));
+    }
+
+    @Test
+    public void test_GivenVirtualServing_WhenStaleIfMatch_ThenFailWithPreconditionFailed() {
+        final StockRequest stockRequest = StockRequest.builder().name("virtual").currentPrice(BigDecimal.TEN).build();
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setIfMatch("\"0\"");
+        final ResponseEntity<Void> conflict = restTemplate.exchange("/api/stocks/5", HttpMethod.PUT, new HttpEntity<>(stockRequest, headers), Void.class);
+        assertEquals(HttpStatus.PRECONDITION_FAILED, conflict.getStatusCode());
+    }
+}
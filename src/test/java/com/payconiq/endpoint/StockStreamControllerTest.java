@@ -0,0 +1,140 @@
+package com.payconiq.endpoint;
+
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import com.payconiq.service.StockService;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests of the server sent events of /api/stocks/stream {@link StockStreamController}.
+ * The http metrics are shared with {@link StockControllerTest}, the stream path is not counted there.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(locations = "file:./application.yml",
+        properties = {"stock-api.stream.threads=1", "stock-api.stream.send-timeout-ms=" + StockStreamControllerTest.SEND_TIMEOUT_MILLIS})
+@DirtiesContext
+@RunWith(SpringJUnit4ClassRunner.class)
+public class StockStreamControllerTest {
+
+    static final long SEND_TIMEOUT_MILLIS = 500;
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+    private static final int STALLED_RECEIVE_BUFFER = 4096;
+    private static final int STALLING_STOCKS = 5000;
+    private static final int STALLING_NAME_LENGTH = 4000;
+
+    @Autowired
+    private StockService stockService;
+    @Value("${local.server.port}")
+    private int port;
+
+    @Test
+    public void test_GivenSubscriptionToStock_WhenStocksUpdated_ThenOnlyItsChangesAreStreamed() throws IOException {
+        final HttpURLConnection connection = subscribe(3L);
+        try {
+            assertEquals(HttpStatus.OK.value(), connection.getResponseCode());
+            assertTrue("Not an event stream: " + connection.getContentType(),
+                    connection.getContentType().startsWith(MediaType.TEXT_EVENT_STREAM_VALUE));
+            stockService.updateStock(StockRequest.builder().name("unsubscribed").currentPrice(BigDecimal.ONE).build(), 4L);
+            final StockResponse updated = stockService.updateStock(
+                    StockRequest.builder().name("streamed").currentPrice(new BigDecimal("3.33")).build(), 3L);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                final Map<String, String> event = readEvent(reader);
+                assertEquals("Event name is wrong", "stock", event.get("event"));
+                assertEquals("Event id is wrong", "3:" + updated.getVersion(), event.get("id"));
+                assertTrue("Data is not the updated stock: " + event.get("data"),
+                        event.get("data").contains("\"name\":\"streamed\"") && event.get("data").contains("3.33"));
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test
+    public void test_GivenStalledSubscriber_WhenStocksUpdated_ThenOtherSubscribersStillGetTheirChanges() throws Exception {
+        final HttpURLConnection connection = subscribe(3L);
+        try (Socket stalled = new Socket()) {
+            assertEquals(HttpStatus.OK.value(), connection.getResponseCode());
+            //Single sender thread, the stalled subscriber reads its headers and then nothing at all
+            stalled.setReceiveBufferSize(STALLED_RECEIVE_BUFFER);
+            stalled.connect(new InetSocketAddress("localhost", port));
+            stalled.getOutputStream().write(("GET /api/stocks/stream HTTP/1.1\r\nHost: localhost\r\n"
+                    + HttpHeaders.AUTHORIZATION + ": " + basicAuthorization() + "\r\n"
+                    + HttpHeaders.ACCEPT + ": " + MediaType.TEXT_EVENT_STREAM_VALUE + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            stalled.setSoTimeout(READ_TIMEOUT_MILLIS);
+            final BufferedReader stalledReader = new BufferedReader(new InputStreamReader(stalled.getInputStream(), StandardCharsets.US_ASCII));
+            assertTrue("Stalled subscriber is not subscribed", stalledReader.readLine().contains(" 200"));
+            for (String line = stalledReader.readLine(); line != null && !line.isEmpty(); line = stalledReader.readLine()) {
+                //Headers only
+            }
+            final char[] longName = new char[STALLING_NAME_LENGTH];
+            //Changes of distinct stocks are not coalesced, far more than the buffers of both sockets take
+            for (int i = 0; i < STALLING_STOCKS; i++) {
+                Arrays.fill(longName, (char) ('a' + i % 26));
+                stockService.createStock(StockRequest.builder().name(new String(longName)).currentPrice(BigDecimal.ONE).build());
+            }
+            //The next change drops the subscriber that took nothing for longer than the send timeout
+            Thread.sleep(2 * SEND_TIMEOUT_MILLIS);
+            stockService.updateStock(StockRequest.builder().name("dropping").currentPrice(BigDecimal.ONE).build(), 4L);
+            final StockResponse updated = stockService.updateStock(
+                    StockRequest.builder().name("notDelayed").currentPrice(BigDecimal.TEN).build(), 3L);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                final Map<String, String> event = readEvent(reader);
+                assertEquals("Change is not streamed past the stalled subscriber", "3:" + updated.getVersion(), event.get("id"));
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection subscribe(final long id) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/api/stocks/stream?ids=" + id)
+                .openConnection();
+        connection.setRequestProperty(HttpHeaders.AUTHORIZATION, basicAuthorization());
+        connection.setRequestProperty(HttpHeaders.ACCEPT, MediaType.TEXT_EVENT_STREAM_VALUE);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        return connection;
+    }
+
+    private static String basicAuthorization() {
+        return "Basic " + Base64.getEncoder().encodeToString("admin:admin".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return fields of the next event up to the blank line that ends it
+     */
+    private static Map<String, String> readEvent(final BufferedReader reader) throws IOException {
+        final Map<String, String> event = new HashMap<>();
+        for (String line = reader.readLine(); line != null && !(line.isEmpty() && !event.isEmpty()); line = reader.readLine()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                event.put(line.substring(0, colon), line.substring(colon + 1));
+            }
+        }
+        return event;
+    }
+}
@@ -0,0 +1,71 @@
+package com.payconiq.security;
+
+import com.payconiq.model.ApiToken;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Check the tokens of {@link ApiTokenService} are only accepted as issued and until they expire
+ */
+public class ApiTokenServiceTest {
+
+    private static final byte[] SECRET = "test-secret".getBytes(StandardCharsets.UTF_8);
+    private static final long TTL_MILLIS = 1000L;
+    private static final Authentication USER = new UsernamePasswordAuthenticationToken("user:with.separators", "password",
+            AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ACTUATOR"));
+
+    @Test
+    public void test_Given_IssuedToken_Then_ItAuthenticatesTheUserUntilItExpires() {
+        final ApiTokenService tokenService = new ApiTokenService(SECRET, TTL_MILLIS, 10);
+        final ApiToken token = tokenService.issue(USER, 5000L);
+        Assert.assertEquals("Expiry is wrong", Long.valueOf(6000L), token.getExpiresAt());
+        Assert.assertEquals("Bearer", token.getTokenType());
+
+        final Authentication authentication = tokenService.authenticate(token.getToken(), 5500L);
+        Assert.assertEquals("Name is wrong", USER.getName(), authentication.getName());
+        Assert.assertEquals("Authorities are wrong", USER.getAuthorities(), authentication.getAuthorities());
+        Assert.assertTrue(authentication.isAuthenticated());
+        Assert.assertNull("Credentials should not be kept", authentication.getCredentials());
+        Assert.assertSame("Verified token is not cached", authentication, tokenService.authenticate(token.getToken(), 5600L));
+        Assert.assertNull("Expired token is accepted", tokenService.authenticate(token.getToken(), 6000L));
+        Assert.assertEquals("Expired token is still cached", 0, tokenService.cachedTokens());
+        Assert.assertNull("Expired token is accepted once out of the cache", tokenService.authenticate(token.getToken(), 6001L));
+    }
+
+    @Test
+    public void test_Given_ForgedOrMalformedToken_Then_ItIsRejected() {
+        final ApiTokenService tokenService = new ApiTokenService(SECRET, TTL_MILLIS, 10);
+        final String token = tokenService.issue(USER, 5000L).getToken();
+        final String otherSecretToken = new ApiTokenService("other".getBytes(StandardCharsets.UTF_8), TTL_MILLIS, 10)
+                .issue(USER, 5000L).getToken();
+        final String payload = token.substring(0, token.indexOf('.'));
+        final String extended = tokenService.issue(USER, 9000L).getToken();
+        final String otherPayload = extended.substring(0, extended.indexOf('.'));
+
+        Assert.assertNull("Token of another secret is accepted", tokenService.authenticate(otherSecretToken, 5500L));
+        Assert.assertNull("Payload with another signature is accepted",
+                tokenService.authenticate(otherPayload + token.substring(token.indexOf('.')), 5500L));
+        Assert.assertNull("Unsigned token is accepted", tokenService.authenticate(payload, 5500L));
+        Assert.assertNull("Empty signature is accepted", tokenService.authenticate(payload + ".", 5500L));
+        Assert.assertNull("Bad base64 is accepted", tokenService.authenticate("!!.!!", 5500L));
+        Assert.assertNull("Extra part is accepted", tokenService.authenticate(token + ".x", 5500L));
+        Assert.assertEquals("Rejected tokens should not be cached", 0, tokenService.cachedTokens());
+    }
+
+    @Test
+    public void test_Given_MoreTokensThanCached_Then_CacheIsBoundedAndEvictedTokensAreVerifiedAgain() {
+        final ApiTokenService tokenService = new ApiTokenService(SECRET, TTL_MILLIS, 3);
+        for (long issued = 0; issued < 10; issued++) {
+            Assert.assertNotNull(tokenService.authenticate(tokenService.issue(USER, 5000L + issued).getToken(), 5500L));
+            Assert.assertTrue("Cache is not bounded", tokenService.cachedTokens() <= 3);
+        }
+        final String first = tokenService.issue(USER, 5000L).getToken();
+        Assert.assertEquals("Evicted token is not verified again", USER.getName(), tokenService.authenticate(first, 5500L).getName());
+        Assert.assertNotNull("Tokens are not verified without a cache",
+                new ApiTokenService(SECRET, TTL_MILLIS, 0).authenticate(first, 5500L));
+    }
+}
@@ -0,0 +1,72 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockPage;
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import com.payconiq.model.StockSort;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Check the primitive storage engine {@link CompactStockStore}
+ */
+public class CompactStockStoreTest {
+
+    private static final int STOCK_COUNT = 10_000;
+
+    @Test
+    public void test_Given_StoreGrowsPastExpectedSize_Then_GetEveryStockBack() {
+        final CompactStockStore store = new CompactStockStore(1);
+        for (long id = 1; id <= STOCK_COUNT; id++) {
+            store.put(Stock.of(id, "name_" + id, new BigDecimal(id + ".05"), 1L, id));
+        }
+        Assert.assertEquals("Size is wrong", STOCK_COUNT, store.size());
+        for (long id = 1; id <= STOCK_COUNT; id++) {
+            final Stock stock = store.get(id);
+            Assert.assertEquals("name is wrong", "name_" + id, stock.getName());
+            Assert.assertEquals("currentPrice is wrong", new BigDecimal(id + ".05"), stock.getCurrentPrice());
+            Assert.assertEquals("lastUpdate is wrong", Long.valueOf(id), stock.getLastUpdate());
+        }
+        Assert.assertNull("Missing stock should not be found", store.get(STOCK_COUNT + 1));
+        final Set<Long> iterated = StreamSupport.stream(store.spliterator(), false).map(Stock::getId).collect(Collectors.toSet());
+        Assert.assertEquals("Iteration does not give every stock once", STOCK_COUNT, iterated.size());
+    }
+
+    @Test
+    public void test_Given_Stock_Then_ComputeIfPresentReplacesIt() {
+        final CompactStockStore store = new CompactStockStore(16);
+        store.put(Stock.of(7L, "name_7", new BigDecimal("7.10"), 1L, 1L));
+        final Stock updated = store.computeIfPresent(7L, previous ->
+                Stock.of(7L, "renamed", new BigDecimal("8"), previous.getVersion() + 1, 2L));
+        Assert.assertEquals("Version is not incremented", Long.valueOf(2L), updated.getVersion());
+        Assert.assertEquals("Stock is not replaced", "renamed", store.get(7L).getName());
+        Assert.assertEquals("Price does not keep its scale", new BigDecimal("8"), store.get(7L).getCurrentPrice());
+        store.computeIfPresent(7L, previous -> Stock.of(7L, "renamed", new BigDecimal("8.5"), previous.getVersion() + 1, 3L));
+        Assert.assertEquals("Price does not keep its scale", new BigDecimal("8.5"), store.get(7L).getCurrentPrice());
+        Assert.assertNull("Missing stock should not be computed", store.computeIfPresent(8L, previous -> previous));
+    }
+
+    @Test
+    public void test_Given_CompactStoreWithoutSortIndex_Then_PageInIdOrder() {
+        final StockService stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", 10);
+        ReflectionTestUtils.setField(stockService, "storeType", "compact");
+        ReflectionTestUtils.setField(stockService, "sortIndexEnabled", false);
+        stockService.init();
+        final StockResponse created = stockService.createStock(StockRequest.builder().name("test").currentPrice(new BigDecimal("12.45")).build());
+        Assert.assertEquals("Stock is not stored properly", created, stockService.getStock(created.getId()));
+        final StockPage first = stockService.getStocks(StockSort.ID, null, 6);
+        final StockPage second = stockService.getStocks(StockSort.ID, first.getNextCursor(), 6);
+        Assert.assertNull("There should be no third page", second.getNextCursor());
+        final Set<Long> paged = new HashSet<>();
+        first.getStocks().forEach(stock -> paged.add(stock.getId()));
+        second.getStocks().forEach(stock -> paged.add(stock.getId()));
+        Assert.assertEquals("Pages do not give every stock", 11, paged.size());
+    }
+}
@@ -0,0 +1,132 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockPage;
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import com.payconiq.model.StockSort;
+import com.payconiq.model.exception.SortIndexLoadingException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * Check the memory mapped storage engine {@link MappedStockStore} keeps the book over restarts
+ */
+public class MappedStockStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_Given_ServiceRestarted_Then_StocksAreLoadedFromFile() throws InterruptedException {
+        final File file = new File(folder.getRoot(), "stocks.dat");
+        final StockService stockService = mappedStockService(file);
+        final StockResponse updated = stockService.updateStock(StockRequest.builder().name("renamed")
+                .currentPrice(new BigDecimal("99.9")).build(), 3L);
+        final List<StockResponse> stocks = allStocks(stockService);
+        stockService.close();
+
+        final StockService restarted = mappedStockService(file);
+        Assert.assertEquals("Stocks are not loaded", stocks, allStocks(restarted));
+        Assert.assertEquals("Updated stock is not loaded", updated, restarted.getStock(3L));
+        Assert.assertEquals("Version is not loaded", Long.valueOf(2L), restarted.getStock(3L).getVersion());
+        final StockResponse created = restarted.createStock(StockRequest.builder().name("test").currentPrice(BigDecimal.TEN).build());
+        Assert.assertEquals("Ids should go on from the loaded stocks", Long.valueOf(11L), created.getId());
+        final List<String> names = pageByName(restarted).getStocks().stream()
+                .map(StockResponse::getName).collect(Collectors.toList());
+        Assert.assertEquals("Sort index is not rebuilt", "test", names.get(names.size() - 1));
+        restarted.close();
+    }
+
+    @Test
+    public void test_Given_EmptyFile_Then_GetReturnsNothing() throws IOException {
+        final MappedStockStore store = new MappedStockStore(new File(folder.getRoot(), "empty.dat").toPath());
+        Assert.assertNull("Missing stock should not be found", store.get(1L));
+        Assert.assertNull("Missing stock should not be computed", store.computeIfPresent(1L, previous -> previous));
+        Assert.assertEquals("Empty store should have nothing loaded", 0L, store.lastLoadedId());
+        store.close();
+    }
+
+    @Test
+    public void test_Given_ClearWhileReading_Then_ReadsGiveWholeStocksOrNothing() throws Exception {
+        final MappedStockStore store = new MappedStockStore(new File(folder.getRoot(), "cleared.dat").toPath());
+        final int stocks = 100;
+        final AtomicBoolean clearing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread reader = new Thread(() -> {
+            try {
+                while (clearing.get()) {
+                    for (long id = 1; id <= stocks; id++) {
+                        final Stock stock = store.get(id);
+                        if (stock != null) {
+                            Assert.assertTrue("Name is torn: " + stock.getName(), stock.getName().startsWith("name_"));
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        reader.start();
+        for (int round = 0; round < 200; round++) {
+            //Names of another length every round, so a stale offset points into the middle of a name
+            final String suffix = round % 2 == 0 ? "" : "_renamed_in_round_" + round;
+            for (long id = 1; id <= stocks; id++) {
+                store.put(Stock.of(id, "name_" + id + suffix, BigDecimal.ONE, 1L, 1L));
+            }
+            store.clear();
+        }
+        clearing.set(false);
+        reader.join();
+        store.close();
+        Assert.assertNull("Read failed while the store was cleared", failure.get());
+    }
+
+    /**
+     * The sort index is loaded in the background after a restart
+     */
+    private static StockPage pageByName(final StockService stockService) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (true) {
+            try {
+                return stockService.getStocks(StockSort.NAME, null, 100);
+            } catch (SortIndexLoadingException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10L);
+            }
+        }
+    }
+
+    private static StockService mappedStockService(final File file) {
+        final StockService stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", 10);
+        ReflectionTestUtils.setField(stockService, "storeType", "mapped");
+        ReflectionTestUtils.setField(stockService, "mappedPath", file.getPath());
+        stockService.init();
+        return stockService;
+    }
+
+    private static List<StockResponse> allStocks(final StockService stockService) {
+        final List<StockResponse> stocks = new ArrayList<>();
+        StockPage page = stockService.getStocks(StockSort.ID, null, 1000);
+        stocks.addAll(page.getStocks());
+        while (page.getNextCursor() != null) {
+            page = stockService.getStocks(StockSort.ID, page.getNextCursor(), 1000);
+            stocks.addAll(page.getStocks());
+        }
+        return stocks;
+    }
+}
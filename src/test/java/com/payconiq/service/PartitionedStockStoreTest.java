@@ -0,0 +1,105 @@
+package com.payconiq.service;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.payconiq.model.StockPage;
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import com.payconiq.model.StockSort;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Check the book split over partitions {@link PartitionedStockStore}
+ */
+public class PartitionedStockStoreTest {
+
+    private static final int STOCK_COUNT = 10_000;
+
+    @Test
+    public void test_Given_PartitionedStore_Then_EveryStockIsInItsPartition() {
+        final PartitionedStockStore store = new PartitionedStockStore(7, () -> new HeapStockStore(16));
+        //Every other id, in no particular order
+        for (long id = STOCK_COUNT * 2; id > 0; id -= 2) {
+            store.put(Stock.of(id, "name_" + id, new BigDecimal(id + ".05"), 1L, id));
+        }
+        Assert.assertEquals("Size is wrong", STOCK_COUNT, store.size());
+        Assert.assertEquals("Stock is not routed to its partition", "name_42", store.get(42L).getName());
+        Assert.assertNull("Missing stock should not be found", store.get(41L));
+        Assert.assertEquals("Stock is not replaced in its partition", Long.valueOf(2L), store.computeIfPresent(42L, previous ->
+                Stock.of(42L, "renamed", previous.getCurrentPrice(), previous.getVersion() + 1, 2L)).getVersion());
+
+        final Set<Long> iterated = StreamSupport.stream(store.spliterator(), false).map(Stock::getId).collect(Collectors.toSet());
+        Assert.assertEquals("Iteration does not give every stock once", LongStream.rangeClosed(1, STOCK_COUNT).map(id -> id * 2)
+                .boxed().collect(Collectors.toSet()), iterated);
+        store.close();
+    }
+
+    @Test
+    public void test_Given_PartitionedStore_Then_ScanMapsEveryStockInIdOrder() throws IOException {
+        final PartitionedStockStore store = new PartitionedStockStore(7, () -> new HeapStockStore(16));
+        //Every other id, over several batches of the scan
+        for (long id = STOCK_COUNT * 2; id > 0; id -= 2) {
+            store.put(Stock.of(id, "name_" + id, new BigDecimal(id + ".05"), 1L, id));
+        }
+        final List<String> scanned = new ArrayList<>();
+        store.scan(STOCK_COUNT * 2 - 1, Stock::getName, scanned::add);
+        Assert.assertEquals("Scan does not map every stock up to the last id in id order", LongStream.range(1, STOCK_COUNT)
+                .mapToObj(id -> "name_" + id * 2).collect(Collectors.toList()), scanned);
+        store.close();
+    }
+
+    @Test
+    public void test_Given_PartitionedBook_Then_ExportIsInIdOrder() throws IOException {
+        final StockService stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", STOCK_COUNT);
+        ReflectionTestUtils.setField(stockService, "storeType", "compact");
+        ReflectionTestUtils.setField(stockService, "partitions", 16);
+        stockService.init();
+        final ByteArrayOutputStream export = new ByteArrayOutputStream();
+        stockService.exportStocks(export, true);
+        final List<Long> exported = new ArrayList<>();
+        try (MappingIterator<StockResponse> stocks = new ObjectMapper().readerFor(StockResponse.class)
+                .readValues(export.toByteArray())) {
+            stocks.forEachRemaining(stock -> exported.add(stock.getId()));
+        }
+        Assert.assertEquals("Stocks are not exported in id order",
+                LongStream.rangeClosed(1, STOCK_COUNT).boxed().collect(Collectors.toList()), exported);
+        stockService.close();
+    }
+
+    @Test
+    public void test_Given_PartitionedBook_Then_StocksAreListedInIdOrder() {
+        final StockService stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", 100);
+        ReflectionTestUtils.setField(stockService, "storeType", "compact");
+        ReflectionTestUtils.setField(stockService, "partitions", 16);
+        stockService.init();
+        final StockResponse created = stockService.createStock(StockRequest.builder().name("test").currentPrice(new BigDecimal("12.45")).build());
+        Assert.assertEquals("Stock is not stored properly", created, stockService.getStock(created.getId()));
+        final List<Long> listed = allStocks(stockService).stream().map(StockResponse::getId).collect(Collectors.toList());
+        Assert.assertEquals("Stocks are not listed in id order", LongStream.rangeClosed(1, 101).boxed().collect(Collectors.toList()), listed);
+        stockService.close();
+    }
+
+    private static List<StockResponse> allStocks(final StockService stockService) {
+        final List<StockResponse> stocks = new ArrayList<>();
+        StockPage page = stockService.getStocks(StockSort.ID, null, 1000);
+        stocks.addAll(page.getStocks());
+        while (page.getNextCursor() != null) {
+            page = stockService.getStocks(StockSort.ID, page.getNextCursor(), 1000);
+            stocks.addAll(page.getStocks());
+        }
+        return stocks;
+    }
+}
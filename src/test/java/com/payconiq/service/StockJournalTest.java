@@ -0,0 +1,253 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockPage;
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import com.payconiq.model.StockSort;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Check the write-ahead log {@link StockJournal} recovers every change that was acknowledged
+ */
+public class StockJournalTest {
+
+    private static final int INIT_SIZE = 10;
+    private static final int PARTITIONS = 4;
+    private static final int ACKS_BEFORE_KILL = 3000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_Given_ServiceRestarted_Then_StocksAreRecoveredFromJournal() {
+        final File directory = folder.getRoot();
+        final StockService stockService = journaledStockService(directory, 0L);
+        stockService.updateStock(StockRequest.builder().name("renamed").currentPrice(new BigDecimal("99.99")).build(), 3L);
+        stockService.createStock(StockRequest.builder().name("created").currentPrice(BigDecimal.TEN).build());
+        final List<StockResponse> stocks = allStocks(stockService);
+        stockService.close();
+
+        final StockService restarted = journaledStockService(directory, 0L);
+        Assert.assertEquals("Stocks are not recovered", stocks, allStocks(restarted));
+        Assert.assertEquals("Version is not recovered", Long.valueOf(2L), restarted.getStock(3L).getVersion());
+        final StockResponse created = restarted.createStock(StockRequest.builder().name("test").currentPrice(BigDecimal.ONE).build());
+        Assert.assertEquals("Ids should go on from the recovered stocks", Long.valueOf(INIT_SIZE + 2L), created.getId());
+        restarted.close();
+    }
+
+    @Test
+    public void test_Given_Snapshot_Then_OldSegmentsAreDeletedAndStocksRecovered() throws IOException {
+        final File directory = folder.getRoot();
+        final StockService stockService = journaledStockService(directory, 0L);
+        for (int update = 0; update < 100; update++) {
+            stockService.updateStock(StockRequest.builder().name("name_1").currentPrice(BigDecimal.valueOf(update)).build(), 1L);
+        }
+        Assert.assertTrue("Snapshot should be taken", stockService.snapshot());
+        Assert.assertFalse("Nothing changed since the last snapshot", stockService.snapshot());
+        stockService.updateStock(StockRequest.builder().name("after_snapshot").currentPrice(BigDecimal.ONE).build(), 2L);
+        final List<StockResponse> stocks = allStocks(stockService);
+        stockService.close();
+
+        try (Stream<Path> files = Files.list(directory.toPath())) {
+            Assert.assertEquals("Segments before the snapshot are not deleted", 1,
+                    files.filter(file -> file.getFileName().toString().startsWith("wal-")).count());
+        }
+        final StockService restarted = journaledStockService(directory, 0L);
+        Assert.assertEquals("Stocks are not recovered from snapshot and log", stocks, allStocks(restarted));
+        Assert.assertEquals("Version is not recovered from the snapshot", Long.valueOf(101L), restarted.getStock(1L).getVersion());
+        restarted.close();
+    }
+
+    @Test
+    public void test_Given_ConcurrentSnapshots_Then_NoneFailsAndStocksRecovered() throws Exception {
+        final File directory = folder.getRoot();
+        final StockService stockService = journaledStockService(directory, 0L);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 50; round++) {
+                stockService.updateStock(StockRequest.builder().name("name_1").currentPrice(BigDecimal.valueOf(round)).build(), 1L);
+                final List<Future<Boolean>> snapshots = new ArrayList<>();
+                for (int thread = 0; thread < 4; thread++) {
+                    snapshots.add(executor.submit(stockService::snapshot));
+                }
+                for (final Future<Boolean> snapshot : snapshots) {
+                    snapshot.get();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        final List<StockResponse> stocks = allStocks(stockService);
+        stockService.close();
+        Files.write(directory.toPath().resolve("snapshot-9999999999999999.tmp"), new byte[]{1, 2, 3});
+
+        final StockService restarted = journaledStockService(directory, 0L);
+        Assert.assertEquals("Stocks are not recovered from the snapshots", stocks, allStocks(restarted));
+        Assert.assertFalse("Temporary snapshot of a crash is not deleted",
+                Files.exists(directory.toPath().resolve("snapshot-9999999999999999.tmp")));
+        restarted.close();
+    }
+
+    @Test(timeout = 10_000L)
+    public void test_Given_JournalWriterInterrupted_Then_WritersDoNotHang() {
+        final StockService stockService = journaledStockService(folder.getRoot(), 0L);
+        final StockJournal journal = (StockJournal) ReflectionTestUtils.getField(stockService, "journal");
+        ((Thread) ReflectionTestUtils.getField(journal, "writer")).interrupt();
+        try {
+            stockService.updateStock(StockRequest.builder().name("lost").currentPrice(BigDecimal.ONE).build(), 3L);
+            Assert.fail("Update was acknowledged without a writer");
+        } catch (UncheckedIOException e) {
+            Assert.assertNotNull("Interrupt of the writer is not kept", stockService.getJournalFailure());
+        }
+        stockService.close();
+    }
+
+    @Test
+    public void test_Given_TornRecordAtTheEnd_Then_RecoverUpToIt() throws IOException {
+        final File directory = folder.getRoot();
+        final StockService stockService = journaledStockService(directory, 0L);
+        stockService.updateStock(StockRequest.builder().name("renamed").currentPrice(BigDecimal.ONE).build(), 4L);
+        stockService.close();
+        try (Stream<Path> files = Files.list(directory.toPath())) {
+            for (final Path segment : files.collect(Collectors.toList())) {
+                Files.write(segment, new byte[]{0, 0, 0, 60, 1, 2, 3}, StandardOpenOption.APPEND);
+            }
+        }
+        final StockService restarted = journaledStockService(directory, 0L);
+        Assert.assertEquals("Stocks before the torn record are not recovered", INIT_SIZE, allStocks(restarted).size());
+        Assert.assertEquals("Update before the torn record is not recovered", "renamed", restarted.getStock(4L).getName());
+        restarted.close();
+    }
+
+    @Test
+    public void test_Given_JournalWriteFailed_Then_ChangesAreRefused() throws IOException {
+        final StockService stockService = journaledStockService(folder.getRoot(), 0L);
+        final StockJournal journal = (StockJournal) ReflectionTestUtils.getField(stockService, "journal");
+        ((FileChannel) ReflectionTestUtils.getField(journal, "segment")).close();
+        final StockRequest stockRequest = StockRequest.builder().name("lost").currentPrice(BigDecimal.ONE).build();
+        try {
+            stockService.updateStock(stockRequest, 3L);
+            Assert.fail("Update was acknowledged without being durable");
+        } catch (UncheckedIOException e) {
+            Assert.assertNotNull("Failure of the journal is not kept", stockService.getJournalFailure());
+        }
+        final Long version = stockService.getStock(4L).getVersion();
+        try {
+            stockService.updateStock(stockRequest, 4L);
+            Assert.fail("Update was queued to a failed journal");
+        } catch (UncheckedIOException e) {
+            Assert.assertEquals("Update after the failure was applied", version, stockService.getStock(4L).getVersion());
+        }
+        stockService.close();
+    }
+
+    /**
+     * Kills a process writing through the journal with snapshots going on, every change it acknowledged
+     * has to be recovered with at least the acknowledged version
+     */
+    @Test
+    public void test_Given_ProcessKilledWhileWriting_Then_AcknowledgedChangesAreRecovered() throws Exception {
+        final File directory = folder.getRoot();
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                CrashWriter.class.getName(), directory.getPath())
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        final Map<Long, Long> acknowledged = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (int acks = 0; acks < ACKS_BEFORE_KILL; acks++) {
+                final String line = reader.readLine();
+                Assert.assertNotNull("Writer stopped before it was killed", line);
+                final String[] ack = line.split(" ");
+                acknowledged.merge(Long.valueOf(ack[0]), Long.valueOf(ack[1]), Math::max);
+            }
+        } finally {
+            process.destroyForcibly();
+            process.waitFor(1, TimeUnit.MINUTES);
+        }
+
+        final StockService recovered = journaledStockService(directory, 0L);
+        acknowledged.forEach((id, version) -> Assert.assertTrue("Acknowledged version " + version + " of " + id + " is lost",
+                recovered.getStock(id).getVersion() >= version));
+        recovered.close();
+    }
+
+    private static StockService journaledStockService(final File directory, final long snapshotIntervalMillis) {
+        final StockService stockService = new StockService();
+        ReflectionTestUtils.setField(stockService, "initSize", INIT_SIZE);
+        //Snapshots fan out over the partitions
+        ReflectionTestUtils.setField(stockService, "partitions", PARTITIONS);
+        ReflectionTestUtils.setField(stockService, "journalEnabled", true);
+        ReflectionTestUtils.setField(stockService, "journalPath", directory.getPath());
+        ReflectionTestUtils.setField(stockService, "snapshotIntervalMillis", snapshotIntervalMillis);
+        stockService.init();
+        return stockService;
+    }
+
+    /**
+     * Creates and updates stocks from a few threads until it is killed, printing the id and version
+     * of every change once it is acknowledged
+     */
+    public static final class CrashWriter {
+
+        private static final int THREADS = 4;
+
+        private CrashWriter() {
+        }
+
+        public static void main(final String[] args) {
+            final StockService stockService = journaledStockService(new File(args[0]), 20L);
+            for (int thread = 0; thread < THREADS; thread++) {
+                new Thread(() -> {
+                    final ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (true) {
+                        final StockRequest request = StockRequest.builder().name("name_" + random.nextInt(1000))
+                                .currentPrice(BigDecimal.valueOf(random.nextInt(100_000), 2)).build();
+                        final StockResponse response = random.nextInt(10) == 0 ? stockService.createStock(request)
+                                : stockService.updateStock(request, (long) random.nextInt(1, INIT_SIZE + 1));
+                        synchronized (System.out) {
+                            System.out.println(response.getId() + " " + response.getVersion());
+                            System.out.flush();
+                        }
+                    }
+                }).start();
+            }
+        }
+    }
+
+    private static List<StockResponse> allStocks(final StockService stockService) {
+        final List<StockResponse> stocks = new ArrayList<>();
+        StockPage page = stockService.getStocks(StockSort.ID, null, 1000);
+        stocks.addAll(page.getStocks());
+        while (page.getNextCursor() != null) {
+            page = stockService.getStocks(StockSort.ID, page.getNextCursor(), 1000);
+            stocks.addAll(page.getStocks());
+        }
+        return stocks;
+    }
+}
@@ -0,0 +1,79 @@
+package com.payconiq.service;
+
+import com.payconiq.model.PriceBar;
+import com.payconiq.model.PricePoint;
+import org.junit.Assert;
+import org.junit.Test;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check the price time series {@link StockPriceHistory} and its chunked ring {@link LongRing}
+ */
+public class StockPriceHistoryTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long SECOND = TimeUnit.SECONDS.toMillis(1);
+
+    @Test
+    public void test_Given_MoreTicksThanMax_Then_OldestChunksAreDropped() {
+        final StockPriceHistory history = new StockPriceHistory(16, 100, DAY);
+        for (long tick = 0; tick < 1000; tick++) {
+            history.add(tick, tick);
+        }
+        final List<PricePoint> points = history.range(0L, Long.MAX_VALUE);
+        Assert.assertTrue("At least max ticks should be kept", points.size() >= 100);
+        Assert.assertTrue("At most two chunks more than max ticks should be kept", points.size() <= 100 + 2 * 16);
+        for (int index = 0; index < points.size(); index++) {
+            final long tick = 1000 - points.size() + index;
+            Assert.assertEquals("Ticks are not the latest in order", tick, points.get(index).getTimestamp());
+            Assert.assertEquals("price is wrong", Stock.fromCents(tick), points.get(index).getPrice());
+        }
+    }
+
+    @Test
+    public void test_Given_TicksOlderThanRetention_Then_TheyAreDropped() {
+        final StockPriceHistory history = new StockPriceHistory(4, 1000, 100);
+        for (long time = 0; time < 1000; time += 10) {
+            history.add(time, 1L);
+        }
+        final List<PricePoint> points = history.range(0L, Long.MAX_VALUE);
+        Assert.assertTrue("Ticks in the retention should be kept", points.get(0).getTimestamp() <= 990 - 100);
+        Assert.assertTrue("Only a chunk older than the retention should be kept", points.get(0).getTimestamp() >= 990 - 100 - 4 * 10);
+        Assert.assertEquals("range should start at from and leave to out", 4, history.range(950L, 1000L - 10).size());
+    }
+
+    @Test
+    public void test_Given_OutOfOrderTime_Then_TickIsAtTheLastTime() {
+        final StockPriceHistory history = new StockPriceHistory(4, 100, DAY);
+        history.add(1000L, 1L);
+        history.add(500L, 2L);
+        final List<PricePoint> points = history.range(0L, Long.MAX_VALUE);
+        Assert.assertEquals("Time should never go back", 1000L, points.get(1).getTimestamp());
+    }
+
+    /**
+     * Candles of whole minutes come from the one minute bars, they have to be the same as the ones
+     * aggregated from the ticks
+     */
+    @Test
+    public void test_Given_DayOfTicks_Then_BarsAndTicksGiveTheSameCandles() {
+        final StockPriceHistory history = new StockPriceHistory(64, DAY / SECOND, DAY);
+        final Random random = new Random(42);
+        final long start = 1_500_000_000_000L;
+        for (long time = start; time < start + DAY; time += SECOND) {
+            history.add(time, 10_000 + random.nextInt(1000));
+        }
+        final long from = start + TimeUnit.HOURS.toMillis(1);
+        final long to = start + TimeUnit.HOURS.toMillis(5);
+        final List<PriceBar> fromBars = history.ohlc(TimeUnit.MINUTES.toMillis(5), from, to);
+        final List<PriceBar> fromTicks = history.ohlc(TimeUnit.MINUTES.toMillis(5), from + 1, to);
+        Assert.assertEquals("Candles should be every 5 minutes for 4 hours", 48, fromBars.size());
+        Assert.assertEquals("Only the first tick should be left out", fromBars.get(0).getTicks() - 1, fromTicks.get(0).getTicks());
+        Assert.assertEquals("Candles of bars and ticks are not the same", fromBars.subList(1, 48), fromTicks.subList(1, 48));
+        Assert.assertEquals("Candle should have a tick per second", 300L, fromBars.get(1).getTicks());
+        Assert.assertEquals("Candle should start at a multiple of the interval", 0L,
+                fromBars.get(1).getStart() % TimeUnit.MINUTES.toMillis(5));
+    }
+}
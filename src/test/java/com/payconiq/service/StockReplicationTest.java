@@ -0,0 +1,316 @@
+package com.payconiq.service;
+
+import com.payconiq.model.StockPage;
+import com.payconiq.model.StockRequest;
+import com.payconiq.model.StockResponse;
+import com.payconiq.model.StockSort;
+import com.payconiq.model.StockUpdateRequest;
+import com.payconiq.model.exception.FollowerCatchingUpException;
+import com.payconiq.model.exception.FollowerWriteException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Check a follower gets the book of the leader from the snapshot then every change, see {@link StockReplicationLeader}
+ */
+public class StockReplicationTest {
+
+    private static final int INIT_SIZE = 10;
+    private static final int PARTITIONS = 4;
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final int FIRST_FIXED_PORT = 17070;
+
+    private StockService leader;
+    private final List<StockService> followers = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        leader = leader(0);
+    }
+
+    @After
+    public void close() {
+        followers.forEach(StockService::close);
+        leader.close();
+    }
+
+    @Test
+    public void test_Given_FollowerConnected_Then_ItCatchesUpFromTheSnapshot() {
+        leader.updateStock(StockRequest.builder().name("before").currentPrice(new BigDecimal("12.34")).build(), 3L);
+        leader.createStock(StockRequest.builder().name("created").currentPrice(BigDecimal.ONE).build());
+
+        final StockService follower = follower("");
+        awaitUntil("Follower did not catch up", () -> allStocks(follower).size() == INIT_SIZE + 1);
+        Assert.assertEquals("Stocks of the follower are not those of the leader", allStocks(leader), allStocks(follower));
+        Assert.assertEquals("Version is not replicated", Long.valueOf(2L), follower.getStock(3L).getVersion());
+        Assert.assertEquals("Follower did not apply the snapshot", INIT_SIZE + 1, metric(follower, "stock_service_replication_applied_total"), 0);
+        Assert.assertEquals("Follower is not counted", 1, metric(leader, "stock_service_replication_followers"), 0);
+    }
+
+    @Test
+    public void test_Given_LeaderWrites_Then_FollowersGetTheChangesInVersionOrder() {
+        final StockService first = follower("");
+        final StockService second = follower("");
+        awaitUntil("Followers did not catch up", () -> allStocks(first).size() == INIT_SIZE && allStocks(second).size() == INIT_SIZE);
+
+        for (int update = 1; update <= 100; update++) {
+            leader.updateStock(StockRequest.builder().name("name_1").currentPrice(BigDecimal.valueOf(update)).build(), 1L);
+        }
+        leader.createStocks(Collections.nCopies(5, StockRequest.builder().name("batch").currentPrice(BigDecimal.TEN).build()));
+        leader.updateStocks(Collections.singletonList(new StockUpdateRequest(2L, "batch_update", BigDecimal.ONE)));
+
+        for (final StockService follower : Arrays.asList(first, second)) {
+            awaitUntil("Changes did not reach the follower", () -> allStocks(follower).size() == INIT_SIZE + 5
+                    && follower.getStock(1L).getVersion() == 101L && "batch_update".equals(follower.getStock(2L).getName()));
+            Assert.assertEquals("Stocks of the follower are not those of the leader", allStocks(leader), allStocks(follower));
+            Assert.assertEquals("Price history is not replicated", leader.getPriceHistory(1L, 0L, Long.MAX_VALUE),
+                    follower.getPriceHistory(1L, 0L, Long.MAX_VALUE));
+            awaitUntil("Lag is not reported", () -> metric(follower, "stock_service_replication_lag_seconds") < 1.0);
+            //Same validators on every follower, so an ETag of one follower is good on the others behind a load balancer
+            awaitUntil("Book version of the leader is not replicated", () -> follower.getBookVersion() == leader.getBookVersion());
+            Assert.assertEquals("Epoch of the leader is not replicated", leader.getBookEpoch(), follower.getBookEpoch());
+        }
+    }
+
+    @Test
+    public void test_Given_LeaderRestarted_Then_FollowerClearsTheBookOfTheOldEpoch() throws IOException {
+        //Below the ephemeral ports, so the follower can not connect to itself while it reconnects to the stopped leader
+        final int port = freePort(FIRST_FIXED_PORT);
+        leader.close();
+        leader = leader(port);
+        for (int update = 1; update <= 5; update++) {
+            leader.updateStock(StockRequest.builder().name("old_epoch").currentPrice(BigDecimal.valueOf(update)).build(), 3L);
+        }
+        leader.createStock(StockRequest.builder().name("old_epoch").currentPrice(BigDecimal.ONE).build());
+        final StockService follower = follower("");
+        awaitUntil("Follower did not catch up", () -> allStocks(follower).size() == INIT_SIZE + 1
+                && follower.getStock(3L).getVersion() == 6L);
+
+        leader.close();
+        leader = leader(port);
+        leader.updateStock(StockRequest.builder().name("new_epoch").currentPrice(BigDecimal.TEN).build(), 3L);
+
+        awaitUntil("Follower did not take the book of the new epoch",
+                () -> allStocks(leader).equals(allStocks(follower)));
+        Assert.assertEquals("Stock of the old epoch is kept", "new_epoch", follower.getStock(3L).getName());
+        Assert.assertEquals("Book was not cleared once", 2, metric(follower, "stock_service_replication_clears_total"), 0);
+    }
+
+    @Test
+    public void test_Given_SnapshotOfAnotherEpoch_Then_FollowerServesNoStockUntilTheHeartbeatAfterIt() throws IOException {
+        try (ServerSocket fakeLeader = new ServerSocket(0)) {
+            //Heartbeats of the fake leader are sent by hand, the follower must not time out in between
+            final StockService follower = follower("", fakeLeader.getLocalPort(), TimeUnit.SECONDS.toMillis(1), "");
+            try (Socket socket = fakeLeader.accept();
+                 DataOutputStream output = new DataOutputStream(socket.getOutputStream())) {
+                sendSnapshot(output, 1L, "first");
+                awaitUntil("Follower did not take the snapshot", () -> metric(follower, "stock_service_replication_applied_total") == INIT_SIZE);
+                assertCatchingUp(follower);
+                sendHeartbeat(output, INIT_SIZE);
+                awaitUntil("Follower did not serve the book after the heartbeat", () -> allStocks(follower).size() == INIT_SIZE);
+                Assert.assertEquals("Book version is not the one of the leader", INIT_SIZE, follower.getBookVersion());
+
+                output.writeByte(StockReplicationLeader.EPOCH_FRAME);
+                output.writeLong(2L);
+                output.flush();
+                awaitUntil("Follower did not clear the book", () -> metric(follower, "stock_service_replication_clears_total") == 2);
+                assertCatchingUp(follower);
+                sendSnapshot(output, 2L, "second");
+                sendHeartbeat(output, INIT_SIZE);
+                awaitUntil("Follower did not serve the book of the new epoch", () -> allStocks(follower).size() == INIT_SIZE);
+                Assert.assertTrue("Follower served stocks of the old epoch",
+                        allStocks(follower).stream().allMatch(stock -> stock.getName().startsWith("second")));
+                Assert.assertEquals("ETags are not of the new epoch", Long.toHexString(2L), follower.getBookEpoch());
+            }
+        }
+    }
+
+    @Test
+    public void test_Given_ReplicationSecret_Then_OnlyFollowersWithItGetTheBook() {
+        leader.close();
+        leader = leader(0, "s3cret", 16);
+        final StockService stranger = follower("", leader.getReplicationPort(), 20L, "guess");
+        final StockService follower = follower("", leader.getReplicationPort(), 20L, "s3cret");
+        awaitUntil("Follower with the secret did not catch up", () -> allStocks(follower).size() == INIT_SIZE);
+        awaitUntil("Follower without the secret was not refused",
+                () -> metric(leader, "stock_service_replication_rejected_followers_total") >= 1);
+        assertCatchingUp(stranger);
+        Assert.assertEquals("Only the follower with the secret should follow", 1, metric(leader, "stock_service_replication_followers"), 0);
+    }
+
+    @Test
+    public void test_Given_MaxFollowersConnected_Then_MoreAreRefused() {
+        leader.close();
+        leader = leader(0, "", 1);
+        final StockService first = follower("");
+        awaitUntil("First follower did not catch up", () -> allStocks(first).size() == INIT_SIZE);
+        final StockService second = follower("");
+        awaitUntil("Follower beyond the max was not refused",
+                () -> metric(leader, "stock_service_replication_rejected_followers_total") >= 1);
+        assertCatchingUp(second);
+        Assert.assertEquals("Only the first follower should follow", 1, metric(leader, "stock_service_replication_followers"), 0);
+    }
+
+    @Test
+    public void test_Given_Follower_Then_WritesAreRejectedWithTheLeader() {
+        final StockService follower = follower("http://leader:8080");
+        final StockRequest stockRequest = StockRequest.builder().name("test").currentPrice(BigDecimal.ONE).build();
+        try {
+            follower.createStock(stockRequest);
+            Assert.fail("Follower created a stock");
+        } catch (FollowerWriteException e) {
+            Assert.assertEquals("Leader is not given", "http://leader:8080", e.getLeaderUrl());
+        }
+        try {
+            follower.updateStock(stockRequest, 1L, null);
+            Assert.fail("Follower updated a stock");
+        } catch (FollowerWriteException e) {
+            Assert.assertEquals("Leader is not given", "http://leader:8080", e.getLeaderUrl());
+        }
+        final StockService unknownLeader = follower("");
+        try {
+            unknownLeader.createStocks(Collections.singletonList(stockRequest));
+            Assert.fail("Follower created a batch of stocks");
+        } catch (FollowerWriteException e) {
+            Assert.assertNull("Leader should not be known", e.getLeaderUrl());
+        }
+    }
+
+    private static StockService leader(final int port) {
+        return leader(port, "", 16);
+    }
+
+    private static StockService leader(final int port, final String secret, final int maxFollowers) {
+        final StockService leader = new StockService();
+        ReflectionTestUtils.setField(leader, "initSize", INIT_SIZE);
+        //Snapshots of the followers fan out over the partitions
+        ReflectionTestUtils.setField(leader, "partitions", PARTITIONS);
+        ReflectionTestUtils.setField(leader, "replicationRole", "leader");
+        ReflectionTestUtils.setField(leader, "replicationPort", port);
+        ReflectionTestUtils.setField(leader, "replicationSecret", secret);
+        ReflectionTestUtils.setField(leader, "replicationMaxFollowers", maxFollowers);
+        leader.init();
+        return leader;
+    }
+
+    private static int freePort(final int from) throws IOException {
+        for (int port = from; ; port++) {
+            try (ServerSocket socket = new ServerSocket(port)) {
+                return socket.getLocalPort();
+            } catch (BindException e) {
+                //taken, try the next one
+            }
+        }
+    }
+
+    private StockService follower(final String leaderUrl) {
+        return follower(leaderUrl, leader.getReplicationPort(), 20L, "");
+    }
+
+    private StockService follower(final String leaderUrl, final int leaderPort, final long heartbeatMillis, final String secret) {
+        final StockService follower = new StockService();
+        ReflectionTestUtils.setField(follower, "initSize", INIT_SIZE);
+        ReflectionTestUtils.setField(follower, "replicationRole", "follower");
+        ReflectionTestUtils.setField(follower, "replicationLeaderAddress", "localhost:" + leaderPort);
+        ReflectionTestUtils.setField(follower, "replicationLeaderUrl", leaderUrl);
+        ReflectionTestUtils.setField(follower, "replicationHeartbeatMillis", heartbeatMillis);
+        ReflectionTestUtils.setField(follower, "replicationSecret", secret);
+        follower.init();
+        followers.add(follower);
+        return follower;
+    }
+
+    /**
+     * Frames of a leader of the epoch with INIT_SIZE stocks named after the prefix, without the heartbeat that ends the snapshot
+     */
+    private static void sendSnapshot(final DataOutputStream output, final long epoch, final String namePrefix) throws IOException {
+        output.writeByte(StockReplicationLeader.EPOCH_FRAME);
+        output.writeLong(epoch);
+        for (long id = 1; id <= INIT_SIZE; id++) {
+            output.writeByte(StockReplicationLeader.STOCK_FRAME);
+            output.write(StockJournal.encode(Stock.of(id, namePrefix + "_" + id, BigDecimal.ONE, 1L, 1L)));
+        }
+        output.flush();
+    }
+
+    private static void sendHeartbeat(final DataOutputStream output, final long bookVersion) throws IOException {
+        output.writeByte(StockReplicationLeader.HEARTBEAT_FRAME);
+        output.writeLong(System.currentTimeMillis());
+        output.writeLong(bookVersion);
+        output.flush();
+    }
+
+    private static void assertCatchingUp(final StockService follower) {
+        try {
+            follower.getSerializedStock(1L);
+            Assert.fail("Follower served a stock before it caught up");
+        } catch (FollowerCatchingUpException e) {
+            //expected, the snapshot is not known to be whole
+        }
+        try {
+            follower.getSerializedStocks(StockSort.ID, null, INIT_SIZE, false);
+            Assert.fail("Follower served a page before it caught up");
+        } catch (FollowerCatchingUpException e) {
+            //expected, the snapshot is not known to be whole
+        }
+    }
+
+    /**
+     * A follower that is catching up is not there yet
+     */
+    private static void awaitUntil(final String message, final BooleanSupplier condition) {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!holds(condition)) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail(message);
+            }
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Assert.fail(message);
+            }
+        }
+    }
+
+    private static boolean holds(final BooleanSupplier condition) {
+        try {
+            return condition.getAsBoolean();
+        } catch (FollowerCatchingUpException e) {
+            return false;
+        }
+    }
+
+    private static double metric(final StockService stockService, final String name) {
+        return stockService.getMetrics().collect().stream()
+                .flatMap(family -> family.samples.stream())
+                .filter(sample -> sample.name.equals(name))
+                .findFirst().orElseThrow(() -> new AssertionError("No metric " + name)).value;
+    }
+
+    private static List<StockResponse> allStocks(final StockService stockService) {
+        final List<StockResponse> stocks = new ArrayList<>();
+        StockPage page = stockService.getStocks(StockSort.ID, null, 1000);
+        stocks.addAll(page.getStocks());
+        while (page.getNextCursor() != null) {
+            page = stockService.getStocks(StockSort.ID, page.getNextCursor(), 1000);
+            stocks.addAll(page.getStocks());
+        }
+        return stocks;
+    }
+}
@@ -1,14 +1,40 @@
 package com.payconiq.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.payconiq.model.PriceBar;
+import com.payconiq.model.PricePoint;
+import com.payconiq.model.StockBatchResult;
+import com.payconiq.model.StockPage;
 import com.payconiq.model.StockRequest;
 import com.payconiq.model.StockResponse;
+import com.payconiq.model.StockSort;
+import com.payconiq.model.StockUpdateRequest;
+import com.payconiq.model.exception.InvalidHistoryRequestException;
+import com.payconiq.model.exception.InvalidPageRequestException;
+import com.payconiq.model.exception.SortIndexLoadingException;
 import com.payconiq.model.exception.StockNotFoundException;
+import com.payconiq.model.exception.StockVersionConflictException;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Check in memory storage service {@link StockService}
@@ -21,7 +47,7 @@ public class StockServiceTest {
     public static void setup() {
         ReflectionTestUtils.setField(stockService, "initSize", 10);
         stockService.init();
-        final List<StockResponse> responses = stockService.getStocks();
+        final List<StockResponse> responses = allStocks(stockService);
         Assert.assertEquals("Initial stocks count not correct", 10, responses.size());
     }
 
@@ -37,6 +63,48 @@ public class StockServiceTest {
         Assert.assertEquals("Get stock is not working", expectedStockResponse, stockResponse);
     }
 
+    @Test
+    public void test_Given_PreloadedBookOfAnotherRun_Then_VersionsAreTheSameButNotTheEpoch() {
+        final long beforeStartup = System.currentTimeMillis();
+        final StockService preloaded = new StockService();
+        ReflectionTestUtils.setField(preloaded, "initSize", 10);
+        preloaded.init();
+        final StockService restarted = new StockService();
+        ReflectionTestUtils.setField(restarted, "initSize", 10);
+        restarted.init();
+        Assert.assertEquals("Both runs should be at the same versions", preloaded.getBookVersion(), restarted.getBookVersion());
+        Assert.assertEquals(preloaded.getSerializedStock(1L).getVersion(), restarted.getSerializedStock(1L).getVersion());
+        Assert.assertNotEquals("ETags of a previous run could match", preloaded.getBookEpoch(), restarted.getBookEpoch());
+        Assert.assertTrue("Book last modified is before the startup", preloaded.getBookLastModified() >= beforeStartup);
+    }
+
+    @Test
+    public void test_Given_ParallelPreload_Then_EveryStockIsCreatedAndSortedInTheBackground() throws InterruptedException {
+        final int initSize = 100_000;
+        final StockService preloaded = new StockService();
+        ReflectionTestUtils.setField(preloaded, "initSize", initSize);
+        ReflectionTestUtils.setField(preloaded, "preloadThreads", 4);
+        ReflectionTestUtils.setField(preloaded, "deferSortIndex", true);
+        preloaded.init();
+        Assert.assertEquals("Book size is wrong", initSize, allStocks(preloaded).size());
+        Assert.assertEquals("Price is wrong", new BigDecimal("77777.66"), preloaded.getStock(77777L).getCurrentPrice());
+        final StockResponse created = preloaded.createStock(StockRequest.builder().name("a_first").currentPrice(BigDecimal.ONE).build());
+        Assert.assertEquals("Ids go on after the preloaded stocks", Long.valueOf(initSize + 1), created.getId());
+
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        StockPage page = null;
+        while (page == null) {
+            try {
+                page = preloaded.getStocks(StockSort.NAME, null, 2);
+            } catch (SortIndexLoadingException e) {
+                Assert.assertTrue("Sort index was not loaded", System.currentTimeMillis() < deadline);
+                Thread.sleep(10L);
+            }
+        }
+        Assert.assertEquals("Names are not sorted", Arrays.asList("a_first", "name_1"), nameList(page));
+        preloaded.close();
+    }
+
     @Test
     public void test_Given_ValidStockUpdateRequest_Then_UpdateStockSuccessfully() throws InterruptedException {
         final BigDecimal currentPrice = new BigDecimal("666.6");
@@ -74,4 +142,314 @@ public class StockServiceTest {
         stockService.updateStock(stockRequest, -666L);
     }
 
+    @Test
+    public void test_Given_SmallPageLimit_Then_WalkAllStocksInIdOrder() {
+        final List<Long> expectedIds = allStocks(stockService).stream()
+                .map(StockResponse::getId).sorted().collect(Collectors.toList());
+        Assert.assertEquals("Stocks are not paged in id order", expectedIds, walk(StockSort.ID).stream()
+                .map(StockResponse::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void test_Given_SortByPrice_Then_WalkAllStocksInPriceOrder() {
+        final List<StockResponse> expected = allStocks(stockService).stream()
+                .sorted(Comparator.comparing(StockResponse::getCurrentPrice).thenComparing(StockResponse::getId))
+                .collect(Collectors.toList());
+        Assert.assertEquals("Stocks are not paged in price order", expected, walk(StockSort.PRICE));
+    }
+
+    @Test
+    public void test_Given_StockRenamed_Then_NameIndexIsUpdated() {
+        final StockResponse created = stockService.createStock(StockRequest.builder().name("aaa").currentPrice(BigDecimal.ONE).build());
+        stockService.updateStock(StockRequest.builder().name("zzz").currentPrice(BigDecimal.ONE).build(), created.getId());
+        final List<String> names = walk(StockSort.NAME).stream().map(StockResponse::getName).collect(Collectors.toList());
+        Assert.assertFalse("Old name is still indexed", names.contains("aaa"));
+        Assert.assertEquals("New name is not indexed last", "zzz", names.get(names.size() - 1));
+    }
+
+    @Test
+    public void test_Given_NameOrPrefix_Then_FindStocksPageByPage() {
+        final List<Long> ids = new ArrayList<>();
+        for (final String name : Arrays.asList("search_b", "search_a", "search_ab", "search_a", "searchless")) {
+            ids.add(stockService.createStock(StockRequest.builder().name(name).currentPrice(BigDecimal.ONE).build()).getId());
+        }
+        Assert.assertEquals("Exact name should find both stocks in id order", Arrays.asList(ids.get(1), ids.get(3)),
+                stockService.getStocksByName("search_a", false, null, 10).getStocks().stream().map(StockResponse::getId).collect(Collectors.toList()));
+
+        final StockPage firstPage = stockService.getStocksByName("search_", true, null, 2);
+        final StockPage secondPage = stockService.getStocksByName("search_", true, firstPage.getNextCursor(), 2);
+        Assert.assertEquals("Prefix should find the names in order", Arrays.asList("search_a", "search_a"), nameList(firstPage));
+        Assert.assertEquals("Prefix should go on after the cursor", Arrays.asList("search_ab", "search_b"), nameList(secondPage));
+        Assert.assertNull("There should be no more pages", secondPage.getNextCursor());
+
+        stockService.updateStock(StockRequest.builder().name("renamed_search_b").currentPrice(BigDecimal.ONE).build(), ids.get(0));
+        Assert.assertEquals("Renamed stock should not be found by its old name", Arrays.asList("search_a", "search_a", "search_ab"),
+                nameList(stockService.getStocksByName("search_", true, null, 10)));
+        Assert.assertEquals("Renamed stock should be found by its new name", Collections.singletonList(ids.get(0)),
+                stockService.getStocksByName("renamed_search", true, null, 10).getStocks().stream().map(StockResponse::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void test_Given_Stocks_Then_ExportEveryStockAsNdjson() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        stockService.exportStocks(outputStream, true);
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final List<StockResponse> exported = new ArrayList<>();
+        for (final String line : outputStream.toString("UTF-8").split("\n")) {
+            exported.add(objectMapper.readValue(line, StockResponse.class));
+        }
+        Assert.assertEquals("Exported stocks are not the same as stored", new HashSet<>(allStocks(stockService)), new HashSet<>(exported));
+    }
+
+    @Test
+    public void test_Given_BatchOfStocks_Then_CreateAndUpdateInBulk() {
+        final List<StockBatchResult> created = stockService.createStocks(Arrays.asList(
+                StockRequest.builder().name("bulk1").currentPrice(BigDecimal.ONE).build(),
+                StockRequest.builder().name("bulk2").currentPrice(BigDecimal.TEN).build()));
+        Assert.assertEquals("All stocks should be created", Arrays.asList(201, 201),
+                created.stream().map(StockBatchResult::getStatus).collect(Collectors.toList()));
+        final Long firstId = created.get(0).getId();
+        Assert.assertEquals("Ids of a batch should be consecutive", Long.valueOf(firstId + 1), created.get(1).getId());
+        Assert.assertEquals("name is wrong", "bulk1", stockService.getStock(firstId).getName());
+
+        final List<StockBatchResult> updated = stockService.updateStocks(Arrays.asList(
+                new StockUpdateRequest(firstId, "bulk1Updated", BigDecimal.ONE),
+                new StockUpdateRequest(-1L, "missing", BigDecimal.ONE)));
+        Assert.assertEquals("Existing stock should be updated", 204, updated.get(0).getStatus());
+        Assert.assertEquals("Missing stock should be reported", 404, updated.get(1).getStatus());
+        Assert.assertEquals("name is wrong", "bulk1Updated", stockService.getStock(firstId).getName());
+    }
+
+    @Test
+    public void test_Given_PriceChanges_Then_HistoryAndOhlcHaveEveryChange() {
+        final Long stockId = stockService.createStock(StockRequest.builder().name("history").currentPrice(new BigDecimal("1.00")).build()).getId();
+        Assert.assertTrue("Stock without price changes should have no history", stockService.getPriceHistory(stockId, 0L, Long.MAX_VALUE).isEmpty());
+        stockService.updateStock(StockRequest.builder().name("renamed").currentPrice(new BigDecimal("1.00")).build(), stockId);
+        Assert.assertTrue("Renaming is not a price change", stockService.getPriceHistory(stockId, 0L, Long.MAX_VALUE).isEmpty());
+        for (final String price : Arrays.asList("3.50", "0.75", "2.25")) {
+            stockService.updateStock(StockRequest.builder().name("history").currentPrice(new BigDecimal(price)).build(), stockId);
+        }
+        final List<PricePoint> history = stockService.getPriceHistory(stockId, 0L, Long.MAX_VALUE);
+        Assert.assertEquals("History should start from the price before the first change",
+                Arrays.asList(new BigDecimal("1.00"), new BigDecimal("3.50"), new BigDecimal("0.75"), new BigDecimal("2.25")),
+                history.stream().map(PricePoint::getPrice).collect(Collectors.toList()));
+        Assert.assertEquals("Last change should be at the lastUpdate of the stock",
+                stockService.getStock(stockId).getLastUpdate(), Long.valueOf(history.get(history.size() - 1).getTimestamp()));
+
+        final List<PriceBar> bars = stockService.getPriceBars(stockId, "1d", 0L, Long.MAX_VALUE);
+        Assert.assertEquals("Changes of today should be in a single daily bar", 1, bars.size());
+        Assert.assertEquals("open is wrong", new BigDecimal("1.00"), bars.get(0).getOpen());
+        Assert.assertEquals("high is wrong", new BigDecimal("3.50"), bars.get(0).getHigh());
+        Assert.assertEquals("low is wrong", new BigDecimal("0.75"), bars.get(0).getLow());
+        Assert.assertEquals("close is wrong", new BigDecimal("2.25"), bars.get(0).getClose());
+        Assert.assertEquals("ticks is wrong", 4L, bars.get(0).getTicks());
+    }
+
+    @Test(expected = InvalidHistoryRequestException.class)
+    public void test_Given_InvalidInterval_Then_GetPriceBarsShouldFail() {
+        stockService.getPriceBars(1L, "1w", 0L, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void test_Given_StaleVersion_Then_UpdateShouldFailWithoutChangingStock() {
+        final StockResponse created = stockService.createStock(StockRequest.builder().name("versioned").currentPrice(BigDecimal.ONE).build());
+        Assert.assertEquals("First version is wrong", Long.valueOf(1L), created.getVersion());
+        final StockRequest stockRequest = StockRequest.builder().name("versioned").currentPrice(BigDecimal.TEN).build();
+        Assert.assertEquals("Version is not incremented", Long.valueOf(2L),
+                stockService.updateStock(stockRequest, created.getId(), 1L).getVersion());
+        try {
+            stockService.updateStock(StockRequest.builder().name("stale").currentPrice(BigDecimal.ONE).build(), created.getId(), 1L);
+            Assert.fail("Update with stale version should fail");
+        } catch (StockVersionConflictException e) {
+            Assert.assertEquals("Stale update should not be applied", "versioned", stockService.getStock(created.getId()).getName());
+        }
+    }
+
+    @Test
+    public void test_Given_ConcurrentUpdates_Then_NoUpdateIsLost() throws InterruptedException {
+        final Long stockId = stockService.createStock(StockRequest.builder().name("contended").currentPrice(BigDecimal.ONE).build()).getId();
+        final int threads = 8;
+        final int updatesPerThread = 1000;
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        for (int thread = 0; thread < threads; thread++) {
+            executorService.submit(() -> {
+                for (int update = 0; update < updatesPerThread; update++) {
+                    stockService.updateStock(StockRequest.builder().name("contended").currentPrice(BigDecimal.TEN).build(), stockId);
+                }
+            });
+        }
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(30, TimeUnit.SECONDS));
+        Assert.assertEquals("Every update should increment the version once", Long.valueOf(1L + threads * updatesPerThread),
+                stockService.getStock(stockId).getVersion());
+    }
+
+    @Test
+    public void test_Given_StockUpdated_Then_SerializedStockIsTheNewVersion() throws IOException {
+        final StockResponse created = stockService.createStock(StockRequest.builder().name("serialized").currentPrice(new BigDecimal("1.50")).build());
+        final StockResponse updated = stockService.updateStock(StockRequest.builder().name("serialized").currentPrice(new BigDecimal("2.25")).build(), created.getId());
+        final SerializedStock serializedStock = stockService.getSerializedStock(created.getId());
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        serializedStock.writeTo(outputStream);
+        Assert.assertEquals("Content length is wrong", outputStream.size(), serializedStock.getContentLength());
+        Assert.assertEquals("Serialized stock is not the updated stock", updated,
+                new ObjectMapper().readValue(outputStream.toByteArray(), StockResponse.class));
+        Assert.assertEquals("Serialized stock is not the updated version", 2L, serializedStock.getVersion());
+    }
+
+    @Test
+    public void test_Given_SubscriptionToStock_Then_OnlyLatestChangeOfTheStockIsSent() throws IOException {
+        final Long stockId = stockService.createStock(StockRequest.builder().name("streamed").currentPrice(BigDecimal.ONE).build()).getId();
+        final StockSubscription subscription = new StockSubscription(Collections.singleton(stockId), 10);
+        final StockChangeListener listener = stock -> subscription.offer(stock);
+        stockService.addChangeListener(listener);
+        try {
+            stockService.updateStock(StockRequest.builder().name("streamed").currentPrice(BigDecimal.TEN).build(), stockId);
+            stockService.updateStock(StockRequest.builder().name("streamedAgain").currentPrice(BigDecimal.TEN).build(), stockId);
+            stockService.updateStock(StockRequest.builder().name("other").currentPrice(BigDecimal.TEN).build(), 1L);
+        } finally {
+            stockService.removeChangeListener(listener);
+        }
+        final List<SerializedStock> sent = new ArrayList<>();
+        subscription.drain(sent::add);
+        Assert.assertEquals("Only the latest change of the subscribed stock should be sent", 1, sent.size());
+        Assert.assertEquals("Latest version is not sent", stockService.getSerializedStock(stockId), sent.get(0));
+    }
+
+    @Test
+    public void test_Given_SlowSubscriber_Then_SubscriberIsDropped() throws IOException {
+        final StockSubscription subscription = new StockSubscription(null, 2);
+        Assert.assertTrue("First change should schedule a drain", subscription.offer(stockService.getSerializedStock(1L)));
+        Assert.assertFalse("Drain is already scheduled", subscription.offer(stockService.getSerializedStock(3L)));
+        Assert.assertFalse("Subscriber is not slow yet", subscription.isDropped());
+        subscription.offer(stockService.getSerializedStock(4L));
+        Assert.assertTrue("Subscriber with too many pending changes should be dropped", subscription.isDropped());
+        final List<SerializedStock> sent = new ArrayList<>();
+        subscription.drain(sent::add);
+        Assert.assertTrue("Nothing should be sent to a dropped subscriber", sent.isEmpty());
+    }
+
+    @Test
+    public void test_Given_Operations_Then_MetricsAreRecorded() {
+        final double gets = metric("stock_service_operation_duration_seconds_count", "get");
+        final double notFound = metric("stock_service_not_found_total", "get");
+        stockService.getStock(1L);
+        try {
+            stockService.getStock(-1L);
+            Assert.fail("Missing stock should not be found");
+        } catch (StockNotFoundException e) {
+            //expected to be counted as not found
+        }
+        Assert.assertEquals("Both gets should be timed", gets + 2, metric("stock_service_operation_duration_seconds_count", "get"), 0);
+        Assert.assertEquals("Missing stock should be counted", notFound + 1, metric("stock_service_not_found_total", "get"), 0);
+        Assert.assertEquals("Book size is wrong", allStocks(stockService).size(), metric("stock_service_book_size", null), 0);
+        Assert.assertTrue("Heap of the book should be estimated", metric("stock_service_estimated_heap_bytes", null) > 0);
+    }
+
+    @Test
+    public void test_Given_UnchangedBook_Then_SerializedPageIsCachedUntilAChange() throws IOException {
+        final SerializedPage cached = stockService.getSerializedStocks(StockSort.ID, null, 3, false);
+        Assert.assertSame("Page of the same book should be cached", cached, stockService.getSerializedStocks(StockSort.ID, null, 3, false));
+        final StockResponse third = stockService.getStock(3L);
+        stockService.updateStock(StockRequest.builder().name(third.getName()).currentPrice(new BigDecimal("33.3")).build(), 3L);
+        final SerializedPage rebuilt = stockService.getSerializedStocks(StockSort.ID, null, 3, false);
+        Assert.assertNotSame("Page should be rebuilt after a change", cached, rebuilt);
+        Assert.assertTrue("Book version of the page is wrong", rebuilt.getBookVersion() > cached.getBookVersion());
+        Assert.assertEquals("Cursor of the next page is wrong", "3", rebuilt.getNextCursor());
+        final ByteArrayOutputStream json = new ByteArrayOutputStream();
+        rebuilt.writeTo(json, false);
+        final StockResponse[] stocks = new ObjectMapper().readValue(json.toByteArray(), StockResponse[].class);
+        Assert.assertEquals("Page should have the stocks in id order", Arrays.asList(1L, 2L, 3L),
+                Arrays.stream(stocks).map(StockResponse::getId).collect(Collectors.toList()));
+        Assert.assertEquals("Page should have the new price", new BigDecimal("33.3"), stocks[2].getCurrentPrice());
+        final double compressedBytes = metric("stock_service_page_compression_input_bytes_total", null);
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        rebuilt.writeTo(gzipped, true);
+        Assert.assertEquals("Length of the gzip is wrong", gzipped.size(), rebuilt.getContentLength(true));
+        Assert.assertEquals("Page should be gzipped once", compressedBytes + json.size(),
+                metric("stock_service_page_compression_input_bytes_total", null), 0);
+        final ByteArrayOutputStream gunzipped = new ByteArrayOutputStream();
+        StreamUtils.copy(new GZIPInputStream(new ByteArrayInputStream(gzipped.toByteArray())), gunzipped);
+        Assert.assertArrayEquals("Gzip should be the same JSON", json.toByteArray(), gunzipped.toByteArray());
+    }
+
+    @Test
+    public void test_Given_BinaryPage_Then_ItHasTheStocksOfTheJsonPage() throws IOException {
+        final StockPage page = stockService.getStocks(StockSort.PRICE, null, 5);
+        final SerializedPage binaryPage = stockService.getSerializedStocks(StockSort.PRICE, null, 5, true);
+        Assert.assertEquals("Cursor of the next page is wrong", page.getNextCursor(), binaryPage.getNextCursor());
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        binaryPage.writeTo(binary, false);
+        final List<StockResponse> stocks = StockBinary.readStocks(binary.toByteArray());
+        Assert.assertEquals("Page should have the same stocks", page.getStocks().size(), stocks.size());
+        for (int index = 0; index < stocks.size(); index++) {
+            final StockResponse expected = page.getStocks().get(index);
+            Assert.assertEquals("Stock is wrong", expected.getId(), stocks.get(index).getId());
+            Assert.assertEquals("Name is wrong", expected.getName(), stocks.get(index).getName());
+            Assert.assertEquals("Last update is wrong", expected.getLastUpdate(), stocks.get(index).getLastUpdate());
+            Assert.assertEquals("Price is wrong", 0, expected.getCurrentPrice().compareTo(stocks.get(index).getCurrentPrice()));
+        }
+        Assert.assertNotSame("Binary and JSON pages are cached apart", binaryPage, stockService.getSerializedStocks(StockSort.PRICE, null, 5, false));
+    }
+
+    @Test
+    public void test_Given_MaxStaleness_Then_PageOfAnOlderBookIsServedWithinIt() {
+        final StockPageCache pageCache = new StockPageCache(1, 1000L);
+        final PageCompression compression = new PageCompression(Deflater.BEST_SPEED, new StockServiceMetrics(() -> 0L, () -> 0L));
+        final SerializedPage page = new SerializedPage(new byte[]{'[', ']'}, null, 5L, 0L, 0L, compression);
+        pageCache.put("first", page);
+        Assert.assertSame("Page should be served within max staleness", page,
+                pageCache.get("first", 6L, TimeUnit.MILLISECONDS.toNanos(999)));
+        Assert.assertNull("Page should be stale after max staleness", pageCache.get("first", 6L, TimeUnit.SECONDS.toNanos(1)));
+        Assert.assertSame("Page of the current book is never stale", page, pageCache.get("first", 5L, TimeUnit.DAYS.toNanos(1)));
+        pageCache.put("second", new SerializedPage(new byte[]{'[', ']'}, null, 6L, 0L, 0L, compression));
+        Assert.assertEquals("Pages beyond max pages should be dropped", 1, pageCache.size());
+    }
+
+    @Test(expected = InvalidPageRequestException.class)
+    public void test_Given_InvalidCursor_Then_GetStocksShouldFail() {
+        stockService.getStocks(StockSort.PRICE, "abc", 10);
+    }
+
+    @Test(expected = InvalidPageRequestException.class)
+    public void test_Given_LimitOutOfRange_Then_GetStocksShouldFail() {
+        stockService.getStocks(StockSort.ID, null, 0);
+    }
+
+    /**
+     * @param operation label of the sample, null for metrics without labels
+     */
+    private static double metric(final String name, final String operation) {
+        return stockService.getMetrics().collect().stream()
+                .flatMap(family -> family.samples.stream())
+                .filter(sample -> sample.name.equals(name))
+                .filter(sample -> operation == null || sample.labelValues.equals(Collections.singletonList(operation)))
+                .findFirst().orElseThrow(() -> new AssertionError("No metric " + name)).value;
+    }
+
+    private static List<String> nameList(final StockPage page) {
+        return page.getStocks().stream().map(StockResponse::getName).collect(Collectors.toList());
+    }
+
+    private static List<StockResponse> walk(final StockSort sort) {
+        final List<StockResponse> stocks = new ArrayList<>();
+        StockPage page = stockService.getStocks(sort, null, 3);
+        stocks.addAll(page.getStocks());
+        while (page.getNextCursor() != null) {
+            page = stockService.getStocks(sort, page.getNextCursor(), 3);
+            stocks.addAll(page.getStocks());
+        }
+        return stocks;
+    }
+
+    private static List<StockResponse> allStocks(final StockService stockService) {
+        final List<StockResponse> stocks = new ArrayList<>();
+        StockPage page = stockService.getStocks(StockSort.ID, null, 1000);
+        stocks.addAll(page.getStocks());
+        while (page.getNextCursor() != null) {
+            page = stockService.getStocks(StockSort.ID, page.getNextCursor(), 1000);
+            stocks.addAll(page.getStocks());
+        }
+        return stocks;
+    }
 }